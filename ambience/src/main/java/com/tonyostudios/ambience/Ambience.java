@@ -2,15 +2,26 @@ package com.tonyostudios.ambience;
 
 import android.app.UiModeManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.res.Configuration;
+import android.net.Uri;
+import android.os.DeadObjectException;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
+import android.os.RemoteException;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Ambience is a Broadcast Receiver
@@ -47,6 +58,73 @@ public class Ambience extends BroadcastReceiver {
      */
     private static AmbientListener  mCallback;
 
+    /**
+     * Holds the stream of typed playback events
+     */
+    private static AmbientEventStream mEventStream;
+
+    /**
+     * Holds the current playing track last sent by the AmbientService
+     */
+    private static AmbientTrack mCurrentTrack;
+
+    /**
+     * Reusable message used to decode updates from the AmbientService on the main thread
+     */
+    private static final AmbientCodec.Message mUpdate = new AmbientCodec.Message();
+
+    /**
+     * Default time a playback command may take before its future fails, in milliseconds
+     */
+    public static final long DEFAULT_COMMAND_TIMEOUT = 10000;
+
+    /**
+     * Name of the metric that holds the time the AmbientService held the wifi lock, in milliseconds
+     */
+    public static final String WIFI_LOCK_METRIC = "service.wifiLock";
+
+    /**
+     * Name of the metric that holds the duration of playback stalls, in milliseconds
+     */
+    public static final String STALL_METRIC = "service.stall";
+
+    /**
+     * Prefix of the layer metrics. Each layer records under "layer." followed by its id the
+     * microseconds of CPU it used per second of audio (".cpu"), the bytes it held (".memory")
+     * and the number of buffers its decoder fell behind the mix (".underruns").
+     */
+    public static final String LAYER_METRIC = "layer.";
+
+    /**
+     * Holds the futures of playback commands waiting for a matching service state
+     */
+    private static final ArrayList<AmbientCommandFuture> mPendingCommands = new ArrayList<AmbientCommandFuture>();
+
+    /**
+     * Holds the command latency metrics recorded by Ambience
+     */
+    private static final AmbientMetrics mMetrics = new AmbientMetrics();
+
+    /**
+     * Identifies this Ambience as the sender of requests to the AmbientService
+     */
+    private static final long mSenderId = new Random().nextLong();
+
+    /**
+     * Sequence number of the last request sent to the AmbientService
+     */
+    private static final AtomicLong mRequestSequence = new AtomicLong();
+
+    /**
+     * Handler used to time out playback commands
+     */
+    private static Handler mHandler;
+
+    /**
+     * Holds the time a playback command may take before its future fails
+     */
+    private static long mCommandTimeout = DEFAULT_COMMAND_TIMEOUT;
+
     /**
      * Boolean value used to indicate if Ambience is
      * listening for updates from the AmbientService
@@ -59,6 +137,47 @@ public class Ambience extends BroadcastReceiver {
      */
     private static boolean isAmbientServiceStarted = false;
 
+    /**
+     * Binder of the AmbientService. Requests are sent through the binder when it is connected
+     * and as broadcasts otherwise.
+     */
+    private static IAmbientService mAmbientServiceBinder;
+
+    /**
+     * Boolean value used to indicate that Ambience is waiting for the binder of the AmbientService
+     */
+    private static boolean isBindingAmbientService = false;
+
+    /**
+     * Requests sent while waiting for the binder. They are sent through the binder once it is
+     * connected so they keep their order.
+     */
+    private static final ArrayList<Intent> mQueuedRequests = new ArrayList<Intent>();
+
+    /**
+     * Connection to the IAmbientService interface of the AmbientService
+     */
+    private static final ServiceConnection mServiceConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mAmbientServiceBinder = IAmbientService.Stub.asInterface(service);
+            isBindingAmbientService = false;
+
+            for(int x = 0; x < mQueuedRequests.size(); x++)
+            {
+                sendRequestThroughBinder(mQueuedRequests.get(x));
+            }
+
+            mQueuedRequests.clear();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mAmbientServiceBinder = null; // the ambience process died. Fall back to broadcasts
+        }
+    };
+
     /**
      * private constructor
      */
@@ -69,7 +188,8 @@ public class Ambience extends BroadcastReceiver {
 
     /**
      * Method used to initialize the Ambience. This method starts the AmbientService
-     * if it is not alreadyStarted.
+     * if it is not alreadyStarted. The service creates its media player and other playback
+     * resources when the first command arrives, so turnOn can be called early at no cost.
      * @param context A context object
      * @return An Ambience object
      */
@@ -80,6 +200,8 @@ public class Ambience extends BroadcastReceiver {
             throw new NullPointerException(TAG + " context cannot be null");
         }
 
+        AmbientTrace.begin(AmbientTrace.TURN_ON);
+
         mContext = null;
         mContext = context;
 
@@ -90,6 +212,8 @@ public class Ambience extends BroadcastReceiver {
 
         mAmbience.startAmbientService();
 
+        AmbientTrace.end();
+
         return mAmbience;
     }
 
@@ -132,6 +256,35 @@ public class Ambience extends BroadcastReceiver {
             mCallback = callback;
         }
 
+        registerForUpdates();
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to access the stream of typed playback events. Subscribing to the stream
+     * registers Ambience for updates from the AmbientService, with or without an AmbientListener.
+     * Progress events are conflated for subscribers that do not keep up, so a slow subscriber
+     * never causes unbounded queuing.
+     * @return The AmbientEventStream
+     */
+    public AmbientEventStream playbackEvents()
+    {
+        if(mEventStream == null)
+        {
+            mEventStream = new AmbientEventStream();
+        }
+
+        registerForUpdates();
+
+        return mEventStream;
+    }
+
+    /**
+     * Helper method used to register Ambience with the Broadcast Manager
+     */
+    private static void registerForUpdates()
+    {
         if(!isListeningForUpdates() && mContext != null && mAmbience != null)
         {
             IntentFilter filter = new IntentFilter(AMBIENCE_BROADCASTER);
@@ -139,8 +292,6 @@ public class Ambience extends BroadcastReceiver {
 
             isListeningForUpdates = true;
         }
-
-        return mAmbience;
     }
 
     /**
@@ -187,16 +338,69 @@ public class Ambience extends BroadcastReceiver {
             if(isAndroidTvOrCar())
             {
                 mContext.startService(new Intent(mContext, AmbientMediaBrowserService.class));
+                bindAmbientService(AmbientMediaBrowserService.class);
                 isAmbientServiceStarted = true;
                 return;
             }
 
 
             mContext.startService(new Intent(mContext, AmbientService.class));
+            bindAmbientService(AmbientService.class);
             isAmbientServiceStarted = true;
         }
     }
 
+    /**
+     * Method used to bind to the IAmbientService interface of a started AmbientService. The binding
+     * does not create the service, so the service lifecycle is still controlled by start and stop.
+     * @param serviceClass Class of the started service
+     */
+    private void bindAmbientService(Class<?> serviceClass)
+    {
+        Intent intent = new Intent(mContext, serviceClass);
+        intent.setAction(AmbientService.AMBIENT_SERVICE_BINDER);
+
+        try
+        {
+            isBindingAmbientService = mContext.getApplicationContext()
+                    .bindService(intent, mServiceConnection, 0);
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+
+            isBindingAmbientService = false;
+        }
+    }
+
+    /**
+     * Method used to unbind from the AmbientService. Queued requests are sent as broadcasts.
+     */
+    private static void unbindAmbientService()
+    {
+        if(mAmbientServiceBinder != null || isBindingAmbientService)
+        {
+            try
+            {
+                mContext.getApplicationContext().unbindService(mServiceConnection);
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage());
+            }
+        }
+
+        mAmbientServiceBinder = null;
+        isBindingAmbientService = false;
+
+        for(int x = 0; x < mQueuedRequests.size(); x++)
+        {
+            mContext.sendBroadcast(mQueuedRequests.get(x));
+        }
+
+        mQueuedRequests.clear();
+    }
+
     /**
      * Method used to stop the AmbientService
      */
@@ -204,6 +408,8 @@ public class Ambience extends BroadcastReceiver {
     {
         if(hasAmbientServiceStarted())
         {
+            unbindAmbientService();
+
             if(isAndroidTvOrCar())
             {
                 mContext.stopService(new Intent(mContext, AmbientMediaBrowserService.class));
@@ -229,13 +435,53 @@ public class Ambience extends BroadcastReceiver {
         stopAmbientService();
         stopListeningForUpdates();
 
+        if(mEventStream != null)
+        {
+            mEventStream.complete();
+        }
+
+        failPendingCommands(new AmbientCommandException(AmbientCommandException.Reason.SERVICE_STOPPED,
+                TAG + ": Ambience was turned off"));
+
         mContext = null;
         mAmbience = null;
         mCallback = null;
+        mEventStream = null;
+        mCurrentTrack = null;
         isListeningForUpdates = false;
         isAmbientServiceStarted = false;
     }
 
+    /**
+     * Sets the time a playback command may take before its future fails
+     * @param timeout Timeout in milliseconds
+     * @return An Ambience object
+     */
+    public Ambience setCommandTimeoutTo(long timeout)
+    {
+        if(timeout <= 0)
+        {
+            timeout = DEFAULT_COMMAND_TIMEOUT;
+        }
+
+        mCommandTimeout = timeout;
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to access the latency metrics of playback commands. Each command records its
+     * latency in milliseconds under "command." followed by the command name, for example
+     * "command.PLAY" for the tap-to-sound time of play(). The AmbientService also reports how
+     * long it held the wifi lock under WIFI_LOCK_METRIC, the duration of playback stalls under STALL_METRIC
+     * and the resource use of the layers under LAYER_METRIC.
+     * @return The command metrics
+     */
+    public AmbientMetrics getCommandMetrics()
+    {
+        return mMetrics;
+    }
+
     /**
      * Sends a volume request to the AmbientService
      * @param volume The amount to increase or decrease the audio player's volume
@@ -248,9 +494,64 @@ public class Ambience extends BroadcastReceiver {
             volume = 0.5f;
         }
 
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.VOLUME_LEVEL, volume);
-        sendIntentToAmbientService(intent);
+        sendRequestToAmbientService(newRequest().volume(volume), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+    /**
+     * Sends a crossfade request to the AmbientService. When set, the next track fades in
+     * with an equal-power curve while the current track fades out.
+     * @param duration Crossfade duration in milliseconds. 0 turns the crossfade off.
+     * @return An Ambience object
+     */
+    public Ambience setCrossfadeTo(int duration)
+    {
+        if(duration < 0)
+        {
+            duration = 0;
+        }
+
+        sendRequestToAmbientService(newRequest().crossfade(duration), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+    /**
+     * Sends a retry policy request to the AmbientService. A track that fails to prepare or play
+     * is retried with a doubling delay and skipped when its retries are used up.
+     * @param maxRetries Number of retries of a failed track before it is skipped
+     * @param retryDelay Delay of the first retry in milliseconds
+     * @param prepareTimeout Time in milliseconds a track may take to prepare. 0 waits forever.
+     * @return An Ambience object
+     */
+    public Ambience setRetryPolicyTo(int maxRetries, int retryDelay, int prepareTimeout)
+    {
+        if(maxRetries < 0 || retryDelay < 0 || prepareTimeout < 0)
+        {
+            throw new IllegalStateException(TAG + ": the retry policy values cannot be negative");
+        }
+
+        sendRequestToAmbientService(newRequest().retryPolicy(maxRetries, retryDelay, prepareTimeout),
+                getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+    /**
+     * Sends a metadata probing request to the AmbientService. The service probes the queued tracks
+     * that miss a duration, or a name, artist or album, in the background and caches the results.
+     * Durations are probed by default.
+     * @param isDurationProbing Boolean value indicating if missing durations are probed
+     * @param isTagProbing Boolean value indicating if missing names, artists and albums are probed
+     * @return An Ambience object
+     */
+    public Ambience setMetadataProbingTo(boolean isDurationProbing, boolean isTagProbing)
+    {
+        int flags = (isDurationProbing ? AmbientMetadataProber.PROBE_DURATION : 0)
+                | (isTagProbing ? AmbientMetadataProber.PROBE_TAGS : 0);
+
+        sendRequestToAmbientService(newRequest().metadataProbing(flags), getAmbientServiceIntentInstance());
 
         return mAmbience;
     }
@@ -301,6 +602,142 @@ public class Ambience extends BroadcastReceiver {
         return mAmbience;
     }
 
+    /**
+     * Sets the Ambience Playlist to the rows of a content uri. The AmbientService pages the tracks
+     * in around the play position, so the playlist can be of any size. The rows hold the
+     * AmbientPlaylistSource.COLUMN_* columns.
+     * @param contentUri The content uri of the playlist
+     * @param count Number of tracks of the playlist
+     * @return An Ambience object
+     */
+    public Ambience setPlaylistSourceTo(Uri contentUri, int count)
+    {
+        if(contentUri == null)
+        {
+            throw new NullPointerException(TAG + ": the content uri cannot be null");
+        }
+
+        return setPlaylistSourceTo(contentUri.toString(), count);
+    }
+
+    /**
+     * Sets the Ambience Playlist to an AmbientPlaylistSource registered in the AmbientService
+     * process. The AmbientService pages the tracks in around the play position, so the playlist
+     * can be of any size.
+     * @param sourceName The name the source is registered under
+     * @param count Number of tracks of the playlist
+     * @return An Ambience object
+     */
+    public Ambience setPlaylistSourceTo(String sourceName, int count)
+    {
+        if(sourceName == null)
+        {
+            throw new NullPointerException(TAG + ": the source name cannot be null");
+        }
+
+        if(count <= 0)
+        {
+            throw new IllegalStateException(TAG + ": a playlist source needs at least one AmbientTrack");
+        }
+
+        Intent intent = getAmbientServiceIntentInstance();
+        intent.putExtra(AmbientCodec.EXTRA_PLAYLIST_SOURCE, sourceName);
+        sendRequestToAmbientService(newRequest().playlistSource(count), intent);
+
+        return mAmbience;
+    }
+
+    /**
+     * Sets the Ambience Playlist to the entries of a M3U, PLS or XSPF playlist file. The
+     * AmbientService reads the file itself and appends its tracks while it reads, so playback
+     * can start with the first entry and the tracks are never sent through the binder. A play
+     * request sent before the first entry is read waits for it. Relative entries are resolved
+     * against a file or http uri.
+     * @param playlistUri The content, file or http uri of the playlist file
+     * @return An Ambience object
+     */
+    public Ambience setPlaylistFileTo(Uri playlistUri)
+    {
+        if(playlistUri == null)
+        {
+            throw new NullPointerException(TAG + ": the playlist uri cannot be null");
+        }
+
+        Intent intent = getAmbientServiceIntentInstance();
+        intent.putExtra(AmbientCodec.EXTRA_PLAYLIST_FILE, playlistUri.toString());
+        sendRequestToAmbientService(newRequest().playlistFile(), intent);
+
+        return mAmbience;
+    }
+
+    /**
+     * Sets the Ambience Playlist to the entries of a M3U, PLS or XSPF playlist file opened by
+     * the app. A file descriptor can only be sent through the binder, so the AmbientService must
+     * be bound. The service reads its own copy of the descriptor, so the caller can close the
+     * descriptor once this method returns. Relative entries are skipped.
+     * @param descriptor The ParcelFileDescriptor of the playlist file
+     * @return An Ambience object
+     */
+    public Ambience setPlaylistFileTo(ParcelFileDescriptor descriptor)
+    {
+        if(descriptor == null)
+        {
+            throw new NullPointerException(TAG + ": the file descriptor cannot be null");
+        }
+
+        if(mAmbientServiceBinder == null)
+        {
+            throw new IllegalStateException(TAG + ": a file descriptor needs a bound AmbientService. Pass a uri instead.");
+        }
+
+        Intent intent = getAmbientServiceIntentInstance();
+        intent.putExtra(AmbientCodec.EXTRA_PLAYLIST_FILE, descriptor);
+        sendRequestToAmbientService(newRequest().playlistFile(), intent);
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to turn the infinite queue on. When fewer than lowWatermark tracks are left
+     * after the current track, the AmbientService asks the supplier for its next tracks and
+     * appends them, so playback never reaches the end of the playlist while the supplier has
+     * tracks. The supplier is an AmbientPlaylistSource registered in the service process or a
+     * content uri. Its getTracks is called with the number of tracks it already handed out.
+     * @param supplierName The registered name or content uri of the supplier
+     * @param lowWatermark Number of upcoming tracks below which more are asked for
+     * @param historyLimit Number of played tracks kept in the playlist
+     * @return An Ambience object
+     */
+    public Ambience setInfiniteQueueTo(String supplierName, int lowWatermark, int historyLimit)
+    {
+        if(supplierName == null)
+        {
+            throw new NullPointerException(TAG + ": the supplier name cannot be null");
+        }
+
+        if(lowWatermark <= 0 || historyLimit < 0)
+        {
+            throw new IllegalStateException(TAG + ": the low watermark must be positive and the history limit cannot be negative");
+        }
+
+        Intent intent = getAmbientServiceIntentInstance();
+        intent.putExtra(AmbientCodec.EXTRA_QUEUE_SUPPLIER, supplierName);
+        sendRequestToAmbientService(newRequest().infiniteQueue(lowWatermark, historyLimit), intent);
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to turn the infinite queue off. The playlist keeps the tracks it was extended with.
+     * @return An Ambience object
+     */
+    public Ambience turnInfiniteQueueOff()
+    {
+        sendRequestToAmbientService(newRequest().infiniteQueue(0, 0), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
     /**
      * Method used to set the Ambience Playlist and shuffle it
      * @param playlist Ambient Track Playlist ArrayList
@@ -342,8 +779,8 @@ public class Ambience extends BroadcastReceiver {
         }
 
         Intent intent = getAmbientServiceIntentInstance();
-        intent.putParcelableArrayListExtra(AmbientService.PLAYLIST,playlist);
-        sendIntentToAmbientService(intent);
+        intent.putParcelableArrayListExtra(AmbientCodec.EXTRA_PLAYLIST,playlist);
+        sendRequestToAmbientService(newRequest().playlist(), intent);
     }
 
     /**
@@ -352,9 +789,8 @@ public class Ambience extends BroadcastReceiver {
      */
     public Ambience shufflePlaylist()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.SHUFFLE_MODE,AmbientService.ShuffleMode.ON);
-        sendIntentToAmbientService(intent);
+        sendRequestToAmbientService(newRequest().shuffleMode(AmbientService.ShuffleMode.ON),
+                getAmbientServiceIntentInstance());
 
         return mAmbience;
     }
@@ -365,9 +801,8 @@ public class Ambience extends BroadcastReceiver {
      */
     public Ambience unShufflePlaylist()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.SHUFFLE_MODE,AmbientService.ShuffleMode.OFF);
-        sendIntentToAmbientService(intent);
+        sendRequestToAmbientService(newRequest().shuffleMode(AmbientService.ShuffleMode.OFF),
+                getAmbientServiceIntentInstance());
 
         return mAmbience;
     }
@@ -384,9 +819,12 @@ public class Ambience extends BroadcastReceiver {
             return mAmbience;
         }
 
+        ArrayList<Parcelable> tracks = new ArrayList<Parcelable>();
+        tracks.add(track);
+
         Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.ADD_TRACK,track);
-        sendIntentToAmbientService(intent);
+        intent.putParcelableArrayListExtra(AmbientCodec.EXTRA_ADD_TRACKS,tracks);
+        sendRequestToAmbientService(newRequest().addTracks(), intent);
 
         return mAmbience;
     }
@@ -404,9 +842,12 @@ public class Ambience extends BroadcastReceiver {
             return mAmbience;
         }
 
+        ArrayList<Parcelable> tracks = new ArrayList<Parcelable>();
+        tracks.add(track);
+
         Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.REMOVE_TRACK,track);
-        sendIntentToAmbientService(intent);
+        intent.putParcelableArrayListExtra(AmbientCodec.EXTRA_REMOVE_TRACKS,tracks);
+        sendRequestToAmbientService(newRequest().removeTracks(), intent);
 
         return mAmbience;
     }
@@ -417,9 +858,8 @@ public class Ambience extends BroadcastReceiver {
      */
     public Ambience repeatASingleTrack()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.REPEAT_MODE,AmbientService.RepeatMode.REPEAT_ONE);
-        sendIntentToAmbientService(intent);
+        sendRequestToAmbientService(newRequest().repeatMode(AmbientService.RepeatMode.REPEAT_ONE),
+                getAmbientServiceIntentInstance());
 
         return mAmbience;
     }
@@ -431,9 +871,8 @@ public class Ambience extends BroadcastReceiver {
      */
     public Ambience repeatAllTracks()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.REPEAT_MODE,AmbientService.RepeatMode.REPEAT_ALL);
-        sendIntentToAmbientService(intent);
+        sendRequestToAmbientService(newRequest().repeatMode(AmbientService.RepeatMode.REPEAT_ALL),
+                getAmbientServiceIntentInstance());
 
         return mAmbience;
     }
@@ -444,9 +883,8 @@ public class Ambience extends BroadcastReceiver {
      */
     public Ambience turnRepeatOff()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.REPEAT_MODE,AmbientService.RepeatMode.OFF);
-        sendIntentToAmbientService(intent);
+        sendRequestToAmbientService(newRequest().repeatMode(AmbientService.RepeatMode.OFF),
+                getAmbientServiceIntentInstance());
 
         return mAmbience;
     }
@@ -466,31 +904,141 @@ public class Ambience extends BroadcastReceiver {
         }
 
         Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.ACTIVITY_LAUNCHER,intentFilterAction);
-        sendIntentToAmbientService(intent);
+        intent.putExtra(AmbientCodec.EXTRA_ACTIVITY_LAUNCHER,intentFilterAction);
+        sendRequestToAmbientService(newRequest().activityLauncher(), intent);
 
         return mAmbience;
     }
 
     /**
-     * Method used to send a seek request to the AmbientService
-     * @param progress Seek progress value
+     * Method used to add a layer to the layered playback mode. Layers play together with each other
+     * and with the playlist, each with its own gain and loop mode. Up to eight layers play at once.
+     * A layer with the same id is replaced. Requires API 16.
+     * @param layerId Id chosen by the app to refer to the layer
+     * @param track The AmbientTrack played by the layer
+     * @param gain Layer gain between 0.0 and 1.0
+     * @param loop true if the layer loops
      * @return Instance of Ambience
      */
-    public Ambience seekTo(int progress)
+    public Ambience addLayer(int layerId, AmbientTrack track, float gain, boolean loop)
     {
+        if(track == null)
+        {
+            throw new NullPointerException(TAG + ": layer track cannot be null");
+        }
+
+        if(layerId == AmbientCodec.ALL_LAYERS)
+        {
+            throw new IllegalStateException(TAG + ": " + layerId + " is not a valid layer id");
+        }
+
         Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.SEEK_POSITION,progress);
-        sendIntentToAmbientService(intent);
+        intent.putExtra(AmbientCodec.EXTRA_LAYER_TRACK, track);
+        sendRequestToAmbientService(newRequest().addLayer(layerId, gain, loop), intent);
 
         return mAmbience;
     }
 
-
     /**
-     * Helper method used to create a new Intent object
-     * used to send messages to the AmbientService
-     * @return A new Intent object used to send messages to the AmbientService
+     * Method used to set the gain of a layer
+     * @param layerId Id of the layer
+     * @param gain Layer gain between 0.0 and 1.0
+     * @return Instance of Ambience
+     */
+    public Ambience setLayerGain(int layerId, float gain)
+    {
+        sendRequestToAmbientService(newRequest().layerGain(layerId, gain), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to set the loop mode of a layer. A layer that does not loop is removed when it ends.
+     * @param layerId Id of the layer
+     * @param loop true if the layer loops
+     * @return Instance of Ambience
+     */
+    public Ambience setLayerLooping(int layerId, boolean loop)
+    {
+        sendRequestToAmbientService(newRequest().layerLoop(layerId, loop), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to remove a layer
+     * @param layerId Id of the layer
+     * @return Instance of Ambience
+     */
+    public Ambience removeLayer(int layerId)
+    {
+        sendRequestToAmbientService(newRequest().removeLayer(layerId), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to remove every layer
+     * @return Instance of Ambience
+     */
+    public Ambience removeAllLayers()
+    {
+        sendRequestToAmbientService(newRequest().removeLayer(AmbientCodec.ALL_LAYERS), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to send a seek request to the AmbientService
+     * @param progress Seek progress value
+     * @return Instance of Ambience
+     */
+    public Ambience seekTo(int progress)
+    {
+        sendRequestToAmbientService(newRequest().seek(progress), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+
+    /**
+     * Method used to seek to a time of the whole queue. The AmbientService plays the track that
+     * holds the time from the right position.
+     * @param time Time from the start of the queue in milliseconds
+     * @return Instance of Ambience
+     */
+    public Ambience seekToQueueTime(long time)
+    {
+        if(time < 0)
+        {
+            throw new IllegalStateException(TAG + ": the queue time cannot be negative");
+        }
+
+        sendRequestToAmbientService(newRequest().seekQueueTime(time), getAmbientServiceIntentInstance());
+
+        return mAmbience;
+    }
+
+    /**
+     * Method used to send a seek request to the AmbientService
+     * @param progress Seek progress value
+     * @return A future that completes when the seek is done
+     */
+    public AmbientCommandFuture seekToForResult(int progress)
+    {
+        long sequence = mRequestSequence.incrementAndGet();
+        AmbientCommandFuture future = trackCommand(AmbientService.PlaybackState.SEEK_COMPLETED,
+                AmbientService.PlaybackState.SEEK_COMPLETED, false, sequence);
+
+        sendRequestToAmbientService(newRequest(sequence).seek(progress), getAmbientServiceIntentInstance());
+
+        return future;
+    }
+
+    /**
+     * Helper method used to create a new Intent object
+     * used to send messages to the AmbientService
+     * @return A new Intent object used to send messages to the AmbientService
      */
     private Intent getAmbientServiceIntentInstance()
     {
@@ -498,14 +1046,129 @@ public class Ambience extends BroadcastReceiver {
     }
 
     /**
-     * Helper method used to send an intent to AmbientService
-     * @param intent Intent Object
+     * Helper method used to start encoding a request to the AmbientService. Every request
+     * carries the sender id and the next sequence number.
+     * @return A new AmbientCodec writer
      */
-    private void sendIntentToAmbientService(Intent intent)
+    private AmbientCodec.Writer newRequest()
+    {
+        return newRequest(mRequestSequence.incrementAndGet());
+    }
+
+    /**
+     * Helper method used to start encoding a request whose sequence number is already taken,
+     * e.g. by the future of its command
+     * @param sequence The sequence number
+     * @return A new AmbientCodec writer
+     */
+    private AmbientCodec.Writer newRequest(long sequence)
+    {
+        return new AmbientCodec.Writer().sequence(mSenderId, sequence);
+    }
+
+    /**
+     * Method used to start a transaction. All requests made on the transaction are sent to the
+     * AmbientService as a single request when the transaction is committed, and are applied together.
+     * @return A new AmbientTransaction
+     */
+    public AmbientTransaction edit()
+    {
+        return new AmbientTransaction(mAmbience);
+    }
+
+    /**
+     * Method used to send a committed transaction to the AmbientService
+     * @param transaction The transaction
+     * @return A future for the playback request of the transaction, or null if it has none
+     */
+    AmbientCommandFuture commit(AmbientTransaction transaction)
+    {
+        AmbientService.PlaybackState command = transaction.getPlaybackState();
+        AmbientCommandFuture future = null;
+        long sequence = mRequestSequence.incrementAndGet();
+
+        if(command != null)
+        {
+            future = trackCommand(command, getExpectedState(command), isPrepRequired(command), sequence);
+        }
+
+        Intent intent = getAmbientServiceIntentInstance();
+        AmbientCodec.Writer request = newRequest(sequence);
+        transaction.writeTo(request, intent);
+        sendRequestToAmbientService(request, intent);
+
+        return future;
+    }
+
+    /**
+     * Helper method used to send an encoded request to AmbientService. The request goes through
+     * the binder when it is connected, is queued while the binder is connecting and is sent as
+     * a broadcast otherwise.
+     * @param request The encoded request
+     * @param intent Intent Object that carries the request and its extras
+     */
+    private void sendRequestToAmbientService(AmbientCodec.Writer request, Intent intent)
     {
         if(mContext != null && intent != null)
         {
-            mContext.sendBroadcast(intent);
+            intent.putExtra(AmbientCodec.MESSAGE, request.toByteArray());
+
+            if(mAmbientServiceBinder != null)
+            {
+                sendRequestThroughBinder(intent);
+            }
+            else if(isBindingAmbientService)
+            {
+                mQueuedRequests.add(intent);
+            }
+            else
+            {
+                mContext.sendBroadcast(intent);
+            }
+        }
+    }
+
+    /**
+     * Helper method used to send a request through the binder of the AmbientService. A request that
+     * fails is not sent again as a broadcast, since it could overtake the requests still on their way
+     * through the binder. Its command is failed instead.
+     * @param intent Intent Object that carries the request and its extras
+     */
+    private static void sendRequestThroughBinder(Intent intent)
+    {
+        IAmbientService binder = mAmbientServiceBinder;
+
+        if(binder == null)
+        {
+            return;
+        }
+
+        byte[] message = intent.getByteArrayExtra(AmbientCodec.MESSAGE);
+
+        try
+        {
+            binder.sendRequest(message, intent.getExtras());
+        }catch (RemoteException e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+
+            if(e instanceof DeadObjectException)
+            {
+                mAmbientServiceBinder = null; // the ambience process died. Later requests are broadcast
+            }
+
+            AmbientCodec.Message request = new AmbientCodec.Message();
+
+            try
+            {
+                AmbientCodec.decode(message, request);
+                resolvePendingCommands(AmbientService.PlaybackState.COMMAND_REJECTED, mSenderId, request.sequence);
+            }catch (Exception error)
+            {
+                error.printStackTrace();
+                Log.e(TAG, error.getMessage());
+            }
         }
     }
 
@@ -513,74 +1176,228 @@ public class Ambience extends BroadcastReceiver {
      * Method used to play a track at a certain position
      * in the playlist.
      * @param position Track position
+     * @return A future that completes when the track starts playing
      */
-    public void PlayFromPosition(int position)
+    public AmbientCommandFuture PlayFromPosition(int position)
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.PLAY_POSITION,position);
-        sendIntentToAmbientService(intent);
-
-        play();
+        return edit().setPlayPositionTo(position).play().commit();
     }
 
     /**
      * Method used to play a track
+     * @return A future that completes when the track starts playing
      */
-    public void play()
+    public AmbientCommandFuture play()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.PLAYBACK_STATE, AmbientService.PlaybackState.PLAY);
-        sendIntentToAmbientService(intent);
+        return sendPlaybackCommand(AmbientService.PlaybackState.PLAY);
     }
 
     /**
      * Method used to stop a current playing track
+     * @return A future that completes when the track has stopped
      */
-    public void stop()
+    public AmbientCommandFuture stop()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.PLAYBACK_STATE,AmbientService.PlaybackState.STOP);
-        sendIntentToAmbientService(intent);
+        return sendPlaybackCommand(AmbientService.PlaybackState.STOP);
     }
 
     /**
      * Method used to resume the current track
+     * @return A future that completes when the track is playing again
      */
-    public void resume()
+    public AmbientCommandFuture resume()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.PLAYBACK_STATE,AmbientService.PlaybackState.RESUME);
-        sendIntentToAmbientService(intent);
+        return sendPlaybackCommand(AmbientService.PlaybackState.RESUME);
     }
 
     /**
      * Method used to skip the current track
+     * @return A future that completes when the next track starts playing
      */
-    public void skip()
+    public AmbientCommandFuture skip()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.PLAYBACK_STATE,AmbientService.PlaybackState.SKIP);
-        sendIntentToAmbientService(intent);
+        return sendPlaybackCommand(AmbientService.PlaybackState.SKIP);
     }
 
     /**
      * Method used to play the previous track
+     * @return A future that completes when the previous track starts playing
      */
-    public void previous()
+    public AmbientCommandFuture previous()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.PLAYBACK_STATE,AmbientService.PlaybackState.PREVIOUS);
-        sendIntentToAmbientService(intent);
+        return sendPlaybackCommand(AmbientService.PlaybackState.PREVIOUS);
     }
 
     /**
      * Method used to pause the current track
+     * @return A future that completes when the track is paused
      */
-    public void pause()
+    public AmbientCommandFuture pause()
     {
-        Intent intent = getAmbientServiceIntentInstance();
-        intent.putExtra(AmbientService.PLAYBACK_STATE,AmbientService.PlaybackState.PAUSE);
-        sendIntentToAmbientService(intent);
+        return sendPlaybackCommand(AmbientService.PlaybackState.PAUSE);
+    }
+
+    /**
+     * Helper method used to send a playback state request to the AmbientService
+     * @param command The playback state request
+     * @return A future for the request
+     */
+    private AmbientCommandFuture sendPlaybackCommand(AmbientService.PlaybackState command)
+    {
+        long sequence = mRequestSequence.incrementAndGet();
+        AmbientCommandFuture future = trackCommand(command, getExpectedState(command), isPrepRequired(command), sequence);
+
+        sendRequestToAmbientService(newRequest(sequence).playbackState(command), getAmbientServiceIntentInstance());
+
+        return future;
+    }
+
+    /**
+     * Helper method used to get the service state that completes a playback state request
+     * @param command The playback state request
+     * @return PLAY for requests that start a track, otherwise the request itself
+     */
+    private static AmbientService.PlaybackState getExpectedState(AmbientService.PlaybackState command)
+    {
+        switch (command)
+        {
+            case PLAY:
+            case RESUME:
+            case SKIP:
+            case PREVIOUS:
+                return AmbientService.PlaybackState.PLAY;
+            default:
+                return command;
+        }
+    }
+
+    /**
+     * Helper method used to check if the AmbientService preps a track before completing a request
+     * @param command The playback state request
+     * @return boolean value indicating if a new track is prepped
+     */
+    private static boolean isPrepRequired(AmbientService.PlaybackState command)
+    {
+        return command == AmbientService.PlaybackState.PLAY || command == AmbientService.PlaybackState.SKIP
+                || command == AmbientService.PlaybackState.PREVIOUS;
+    }
+
+    /**
+     * Helper method used to create a future for a command and schedule its timeout.
+     * Ambience registers for updates so the future can be resolved.
+     * @param command The command
+     * @param expectedState The service state that completes the command
+     * @param prepRequired true if the service preps a track before reaching the expected state
+     * @param sequence Sequence number of the request that carries the command
+     * @return A pending future
+     */
+    private AmbientCommandFuture trackCommand(AmbientService.PlaybackState command,
+                                              AmbientService.PlaybackState expectedState,
+                                              boolean prepRequired, long sequence)
+    {
+        final AmbientCommandFuture future = new AmbientCommandFuture(command, expectedState, prepRequired,
+                mSenderId, sequence);
+
+        future.addListener(new AmbientCommandFuture.Listener() {
+            @Override
+            public void onCommandCompleted(AmbientCommandFuture future) {
+                mMetrics.record("command." + future.getCommand(), future.getLatency());
+            }
+
+            @Override
+            public void onCommandFailed(AmbientCommandFuture future, AmbientCommandException error) {
+                mMetrics.increment("command." + future.getCommand() + ".failed." + error.getReason());
+            }
+        });
+
+        if(mContext == null)
+        {
+            future.fail(new AmbientCommandException(AmbientCommandException.Reason.SERVICE_STOPPED,
+                    TAG + ": Ambience is turned off"));
+            return future;
+        }
+
+        registerForUpdates();
+
+        if(mHandler == null)
+        {
+            mHandler = new Handler(Looper.getMainLooper());
+        }
+
+        synchronized (mPendingCommands)
+        {
+            mPendingCommands.add(future);
+        }
+
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mPendingCommands)
+                {
+                    mPendingCommands.remove(future);
+                }
+
+                future.fail(new AmbientCommandException(AmbientCommandException.Reason.TIMEOUT,
+                        TAG + ": " + future.getCommand() + " timed out after " + mCommandTimeout + "ms"));
+            }
+        }, mCommandTimeout);
+
+        return future;
+    }
+
+    /**
+     * Helper method used to resolve pending command futures with a state received from the AmbientService
+     * @param state The received state
+     * @param sender Sender echoed by the update or null if it has none
+     * @param sequence Sequence number echoed by the update
+     */
+    private static void resolvePendingCommands(AmbientService.PlaybackState state, Long sender, long sequence)
+    {
+        ArrayList<AmbientCommandFuture> pending;
+
+        synchronized (mPendingCommands)
+        {
+            pending = new ArrayList<AmbientCommandFuture>(mPendingCommands);
+        }
+
+        // Futures are resolved outside the lock because their listeners may send new commands
+        for(int x = 0; x < pending.size(); x++)
+        {
+            AmbientCommandFuture future = pending.get(x);
+
+            if(future.onServiceState(state, sender, sequence))
+            {
+                synchronized (mPendingCommands)
+                {
+                    mPendingCommands.remove(future);
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper method used to fail all pending command futures
+     * @param error The reason the commands failed
+     */
+    private static void failPendingCommands(AmbientCommandException error)
+    {
+        ArrayList<AmbientCommandFuture> pending;
+
+        synchronized (mPendingCommands)
+        {
+            pending = new ArrayList<AmbientCommandFuture>(mPendingCommands);
+            mPendingCommands.clear();
+        }
+
+        for(int x = 0; x < pending.size(); x++)
+        {
+            pending.get(x).fail(error);
+        }
+
+        if(mHandler != null)
+        {
+            mHandler.removeCallbacksAndMessages(null);
+        }
     }
 
 
@@ -597,22 +1414,73 @@ public class Ambience extends BroadcastReceiver {
             return;
         }
 
-        if(intent.getSerializableExtra(AmbientService.PLAYBACK_STATE) == null)
+        try
         {
-            Log.e(TAG, "Intent does not contain a known playback state ");
+            AmbientCodec.decode(intent.getByteArrayExtra(AmbientCodec.MESSAGE), mUpdate);
+        }catch (Exception e)
+        {
+            Log.e(TAG, "Intent does not contain a valid update: " + e.getMessage());
             return;
         }
 
-        if(mCallback == null)
+        if(mUpdate.has(AmbientCodec.OP_WIFI_LOCK_TIME))
+        {
+            mMetrics.record(WIFI_LOCK_METRIC, mUpdate.wifiLockTime);
+        }
+
+        if(mUpdate.has(AmbientCodec.OP_STALL_TIME))
+        {
+            mMetrics.record(STALL_METRIC, mUpdate.stallTime);
+        }
+
+        if(mUpdate.has(AmbientCodec.OP_LAYER_STATS))
+        {
+            String layer = LAYER_METRIC + mUpdate.layerId;
+
+            mMetrics.record(layer + ".cpu", mUpdate.layerCpuTime);
+            mMetrics.record(layer + ".memory", mUpdate.layerMemory);
+            mMetrics.record(layer + ".underruns", mUpdate.layerUnderruns);
+        }
+
+        if(!mUpdate.has(AmbientCodec.OP_PLAYBACK_STATE))
         {
-            Log.e(TAG, ": The callback(AmbientListener) object is null.");
+            if(!mUpdate.has(AmbientCodec.OP_LAYER_STATS))
+            {
+                Log.e(TAG, "Intent does not contain a known playback state ");
+            }
             return;
         }
 
         try
         {
-            AmbientService.PlaybackState state =
-                    (AmbientService.PlaybackState) intent.getSerializableExtra(AmbientService.PLAYBACK_STATE);
+            AmbientService.PlaybackState state = mUpdate.playbackState;
+            boolean isTrackChanged = false;
+
+            // The track is only sent when it changes and from time to time with progress updates
+            if(mUpdate.has(AmbientCodec.OP_TRACK))
+            {
+                AmbientTrack track = intent.getParcelableExtra(AmbientCodec.EXTRA_TRACK);
+                isTrackChanged = !isSameTrack(track, mCurrentTrack);
+                mCurrentTrack = track;
+            }
+
+            if(state == AmbientService.PlaybackState.SERVICE_STARTED)
+            {
+                isAmbientServiceStarted = true;
+            }
+            else if(state == AmbientService.PlaybackState.SERVICE_STOPPED)
+            {
+                isAmbientServiceStarted = false;
+            }
+
+            publishEvents(state, isTrackChanged);
+            resolvePendingCommands(state, mUpdate.has(AmbientCodec.OP_SEQUENCE) ? mUpdate.sender : null,
+                    mUpdate.sequence);
+
+            if(mCallback == null)
+            {
+                return;
+            }
 
             // Alert the callback with the currentPlayback State.
             switch (state)
@@ -629,21 +1497,44 @@ public class Ambience extends BroadcastReceiver {
                     break;
                 case CURRENT_PLAYING_TRACK_INFO:
                 {
-                    if(intent.hasExtra(AmbientService.TRACK_PROGRESS))
+                    if(mUpdate.has(AmbientCodec.OP_PROGRESS))
                     {
-                        mCallback.ambienceTrackCurrentProgress(intent.getIntExtra(AmbientService.TRACK_PROGRESS,0));
+                        mCallback.ambienceTrackCurrentProgress(mUpdate.progress);
+                        mCallback.ambienceTrackDuration(mUpdate.duration);
                     }
 
-                    if(intent.hasExtra(AmbientService.TRACK_DURATION))
+                    if(mCurrentTrack != null)
                     {
-                        mCallback.ambienceTrackDuration(intent.getIntExtra(AmbientService.TRACK_DURATION,0));
+                        mCallback.ambiencePlayingTrack(mCurrentTrack);
                     }
 
-                    if(intent.hasExtra(AmbientService.CURRENT_TRACK))
+                    if(mUpdate.has(AmbientCodec.OP_BUFFERED_PERCENT) && mCallback instanceof AmbientBufferingListener)
                     {
-                        mCallback.ambiencePlayingTrack((AmbientTrack)intent.getParcelableExtra(AmbientService.CURRENT_TRACK));
+                        ((AmbientBufferingListener) mCallback).ambienceBufferedPercent(mUpdate.bufferedPercent);
                     }
 
+                    if(mUpdate.has(AmbientCodec.OP_QUEUE_TIME) && mCallback instanceof AmbientQueueTimeListener)
+                    {
+                        ((AmbientQueueTimeListener) mCallback).ambienceQueueTime(mUpdate.queueElapsedTime,
+                                Math.max(0, mUpdate.queueTotalTime - mUpdate.queueElapsedTime));
+                    }
+
+                    break;
+                }
+                case BUFFERING_STARTED:
+                {
+                    if(mCallback instanceof AmbientBufferingListener)
+                    {
+                        ((AmbientBufferingListener) mCallback).ambienceBufferingStarted();
+                    }
+                    break;
+                }
+                case BUFFERING_ENDED:
+                {
+                    if(mCallback instanceof AmbientBufferingListener)
+                    {
+                        ((AmbientBufferingListener) mCallback).ambienceBufferingEnded(mUpdate.stallTime);
+                    }
                     break;
                 }
                 /*
@@ -656,16 +1547,19 @@ public class Ambience extends BroadcastReceiver {
                 case SERVICE_STARTED:
                 {
                     mCallback.ambienceServiceStarted(activeInstance());
-                    isAmbientServiceStarted = true;
                     break;
                 }
                 case SERVICE_STOPPED:
                 {
                     mCallback.ambienceServiceStopped(activeInstance());
-                    isAmbientServiceStarted = false;
                     break;
                 }
 
+                // Only used to resolve command futures
+                case SEEK_COMPLETED:
+                case COMMAND_REJECTED:
+                    break;
+
                 default:
                     throw new IllegalStateException(TAG + ": Unknown Playback State");
             }
@@ -676,6 +1570,63 @@ public class Ambience extends BroadcastReceiver {
         }
     }
 
+    /**
+     * Helper method used to publish the typed events of an AmbientService update
+     * to the AmbientEventStream
+     * @param state The playback state of the update
+     * @param isTrackChanged true if the update changed the current track
+     */
+    private void publishEvents(AmbientService.PlaybackState state, boolean isTrackChanged)
+    {
+        if(mEventStream == null || !mEventStream.hasSubscribers())
+        {
+            return;
+        }
+
+        switch (state)
+        {
+            case CURRENT_PLAYING_TRACK_INFO:
+            {
+                if(isTrackChanged && mCurrentTrack != null)
+                {
+                    mEventStream.publish(AmbientEvent.track(mCurrentTrack));
+                }
+
+                mEventStream.publish(AmbientEvent.progress(mUpdate.progress, mUpdate.duration));
+
+                if(mUpdate.has(AmbientCodec.OP_BUFFERED_PERCENT))
+                {
+                    mEventStream.publish(AmbientEvent.buffering(mUpdate.bufferedPercent));
+                }
+                break;
+            }
+            case ERROR: mEventStream.publish(AmbientEvent.error());
+                break;
+            default: mEventStream.publish(AmbientEvent.state(state));
+                break;
+        }
+    }
+
+    /**
+     * Helper method used to check if two tracks sent by the AmbientService are the same track
+     * @param first An AmbientTrack
+     * @param second An AmbientTrack
+     * @return boolean value indicating if both tracks have the same id and audio uri
+     */
+    private static boolean isSameTrack(AmbientTrack first, AmbientTrack second)
+    {
+        if(first == null || second == null)
+        {
+            return first == second;
+        }
+
+        Uri firstUri = first.getAudioUri();
+        Uri secondUri = second.getAudioUri();
+
+        //catalog and source tracks may have no audio uri
+        return first.getId() == second.getId() && (firstUri == null ? secondUri == null : firstUri.equals(secondUri));
+    }
+
     /**
      * Called to check if the application is running on an androidTV or androidAuto. This method is used to launch
      * the appropriate android service specific for TV or Auto.
@@ -776,4 +1727,46 @@ public class Ambience extends BroadcastReceiver {
          */
         public void ambienceServiceStopped(Ambience activeInstance);
     }
+
+    /**
+     * Optional interface for an AmbientListener that also wants buffering updates. Implement it
+     * next to AmbientListener on the component passed to listenForUpdatesWith.
+     */
+    public static abstract interface AmbientBufferingListener {
+
+        /**
+         * Method used to update an Android Component with the buffered part of the current
+         * streamed track. Called with progress updates when the value changes.
+         * @param percent Buffered percentage between 0 and 100
+         */
+        public void ambienceBufferedPercent(int percent);
+
+        /**
+         * Method used to alert an Android Component that playback stalled because the stream
+         * ran out of data. The progress does not move until the stall ends.
+         */
+        public void ambienceBufferingStarted();
+
+        /**
+         * Method used to alert an Android Component that a stall has ended
+         * @param stallTime Duration of the stall in milliseconds
+         */
+        public void ambienceBufferingEnded(long stallTime);
+    }
+
+    /**
+     * Optional interface for an AmbientListener that also wants the play time of the whole
+     * queue, e.g. to show the time left in the playlist. Implement it next to AmbientListener
+     * on the component passed to listenForUpdatesWith.
+     */
+    public static abstract interface AmbientQueueTimeListener {
+
+        /**
+         * Method used to update an Android Component with the play time of the queue. Called
+         * with every progress update. Tracks with an unknown duration count once they are prepared.
+         * @param elapsed Time from the start of the queue to the play position in milliseconds
+         * @param remaining Time left in the queue in milliseconds
+         */
+        public void ambienceQueueTime(long elapsed, long remaining);
+    }
 }
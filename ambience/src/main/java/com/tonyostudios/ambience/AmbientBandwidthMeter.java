@@ -0,0 +1,221 @@
+package com.tonyostudios.ambience;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+/**
+ * The AmbientBandwidthMeter estimates the network bandwidth of the process from a sliding window
+ * of transfer samples and picks the variant of a track that the estimate and the buffer health
+ * can carry. Samples come from the buffering updates of the playing stream and from the cache
+ * fills of an AmbientDownloader in the same process. The players run in the ":ambience" process
+ * and the downloader in the app process, so the players measure their own streams: until there
+ * is an estimate the first variant of a track is played, and its known bitrate turns its buffering
+ * updates into samples.
+ *
+ * A variant is picked when a track is prepared, so the bitrate only changes at track boundaries.
+ * The meter is shared by the players of the process. Its methods are thread safe.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientBandwidthMeter {
+
+    /**
+     * Number of samples in the sliding window
+     */
+    private static final int WINDOW_SIZE = 20;
+
+    /**
+     * Part of the estimate a variant may use
+     */
+    private static final float BANDWIDTH_FRACTION = 0.75f;
+
+    /**
+     * Buffered audio ahead of the play position in milliseconds below which the buffer is unhealthy
+     */
+    static final int LOW_BUFFER = 10000;
+
+    /**
+     * Shortest sample in milliseconds. Shorter transfers only measure latency.
+     */
+    private static final long MIN_SAMPLE_TIME = 50;
+
+    private static final AmbientBandwidthMeter mMeter = new AmbientBandwidthMeter();
+
+    private final long[] mSampleBytes = new long[WINDOW_SIZE];
+    private final long[] mSampleTimes = new long[WINDOW_SIZE];
+    private int mSampleIndex = 0;
+    private int mSampleCount = 0;
+    private long mWindowBytes = 0;
+    private long mWindowTime = 0;
+
+    private AmbientTrack mSelectedTrack;
+    private int mSelectedBitrate = 0;
+
+    private int mStreamBitrate = 0;
+    private int mLastPercent = 0;
+    private long mLastUpdate = 0;
+    private boolean isBufferLow = false;
+
+    /**
+     * constructor. The players use the meter of the process.
+     */
+    AmbientBandwidthMeter()
+    {
+        super();
+    }
+
+    /**
+     * Method that returns the meter of the process
+     * @return The AmbientBandwidthMeter
+     */
+    static AmbientBandwidthMeter getInstance()
+    {
+        return mMeter;
+    }
+
+    /**
+     * Method used to add a transfer sample to the window
+     * @param bytes Transferred bytes
+     * @param time Transfer time in milliseconds
+     */
+    synchronized void addSample(long bytes, long time)
+    {
+        if(bytes <= 0 || time < MIN_SAMPLE_TIME)
+        {
+            return;
+        }
+
+        if(mSampleCount == WINDOW_SIZE)
+        {
+            mWindowBytes -= mSampleBytes[mSampleIndex];
+            mWindowTime -= mSampleTimes[mSampleIndex];
+        }
+        else
+        {
+            mSampleCount++;
+        }
+
+        mSampleBytes[mSampleIndex] = bytes;
+        mSampleTimes[mSampleIndex] = time;
+        mWindowBytes += bytes;
+        mWindowTime += time;
+
+        mSampleIndex = (mSampleIndex + 1) % WINDOW_SIZE;
+    }
+
+    /**
+     * Method that returns the bandwidth estimate
+     * @return Estimate in bits per second or -1 if there are no samples
+     */
+    synchronized long getEstimate()
+    {
+        return mWindowTime == 0 ? -1 : mWindowBytes * 8 * 1000 / mWindowTime;
+    }
+
+    /**
+     * Method used to pick the variant of a track. The highest bitrate that fits in the estimate
+     * is picked. An unhealthy buffer on the previous track halves the budget. Without an estimate
+     * the first variant is picked and measured. A track without variants plays its audioUri.
+     * @param track The AmbientTrack
+     * @return Uri to play
+     */
+    synchronized Uri selectVariant(AmbientTrack track)
+    {
+        mSelectedTrack = track;
+        mSelectedBitrate = 0;
+
+        long estimate = getEstimate();
+
+        if(track.getVariantCount() == 0)
+        {
+            return track.getAudioUri();
+        }
+
+        if(estimate < 0)
+        {
+            mSelectedBitrate = track.getVariantBitrate(0); // seeds the estimate
+
+            return track.getVariantUri(0);
+        }
+
+        long budget = (long) (estimate * BANDWIDTH_FRACTION);
+
+        if(isBufferLow)
+        {
+            budget /= 2;
+        }
+
+        int best = -1;
+        int lowest = 0;
+
+        for(int x = 0; x < track.getVariantCount(); x++)
+        {
+            int bitrate = track.getVariantBitrate(x);
+
+            if(bitrate <= budget && (best == -1 || bitrate > track.getVariantBitrate(best)))
+            {
+                best = x;
+            }
+
+            if(bitrate < track.getVariantBitrate(lowest))
+            {
+                lowest = x;
+            }
+        }
+
+        if(best == -1)
+        {
+            best = lowest; // nothing fits. Play the cheapest variant.
+        }
+
+        mSelectedBitrate = track.getVariantBitrate(best);
+
+        return track.getVariantUri(best);
+    }
+
+    /**
+     * Method called by a service when a track starts to play. Buffering updates are measured
+     * against the bitrate of the variant picked for the track. Tracks played from a local copy
+     * or from their audioUri have no known bitrate and are not measured.
+     * @param track The AmbientTrack
+     */
+    synchronized void onStreamStarted(AmbientTrack track)
+    {
+        mStreamBitrate = track == mSelectedTrack ? mSelectedBitrate : 0;
+        mSelectedTrack = null;
+        mLastPercent = 0;
+        mLastUpdate = SystemClock.elapsedRealtime();
+        isBufferLow = false;
+    }
+
+    /**
+     * Method called by a service with the buffering updates of the playing stream
+     * @param percent Buffered part of the track
+     * @param duration Duration of the track in milliseconds
+     * @param position Play position in milliseconds
+     */
+    synchronized void onBufferingUpdate(int percent, int duration, int position)
+    {
+        long now = SystemClock.elapsedRealtime();
+
+        if(duration <= 0 || percent < mLastPercent)
+        {
+            return;
+        }
+
+        //the start of a track is always close to the play position
+        if(percent < 100 && position > LOW_BUFFER && (long) percent * duration / 100 - position < LOW_BUFFER)
+        {
+            isBufferLow = true;
+        }
+
+        if(mStreamBitrate > 0 && percent > mLastPercent)
+        {
+            long bytes = (long) (percent - mLastPercent) * duration / 100 * mStreamBitrate / 8 / 1000;
+            addSample(bytes, now - mLastUpdate);
+        }
+
+        mLastUpdate = now; // an update without progress is an idle player, not a slow network
+        mLastPercent = percent;
+    }
+}
@@ -0,0 +1,796 @@
+package com.tonyostudios.ambience;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The AmbientBrowseTree is the browse hierarchy of the AmbientMediaBrowserService. The root
+ * holds the queue and the artists, albums and genres of the loaded tracks. The loaded tracks
+ * are the tracks of the queue and of the registered search library. The groups are kept
+ * incrementally, so a queue change only touches the nodes of the tracks that entered or left.
+ *
+ * Nodes with more than PAGE_SIZE children are paged. A page ends with a browsable "More" item
+ * whose id is the node id followed by @ and the page number. The MediaItem list of each
+ * requested page is cached until its node changes.
+ *
+ * Ids: a group is its list id, a slash and the encoded group name. A track is the id of its
+ * node, a # and its index in the node. Use the tree from the main thread.
+ *
+ * When an AmbientCatalog is registered, the root also holds a library node with the artists,
+ * albums and genres of the catalog. These nodes are served from the mapped catalog file: a
+ * catalog group is its list id, a slash and its group number, and only the tracks of a
+ * requested page are materialized.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class AmbientBrowseTree {
+
+    /**
+     * Ids of the root and of its children
+     */
+    static final String ROOT_ID = "__ROOT__";
+    static final String QUEUE_ID = "__QUEUE__";
+    static final String ARTISTS_ID = "__ARTISTS__";
+    static final String ALBUMS_ID = "__ALBUMS__";
+    static final String GENRES_ID = "__GENRES__";
+
+    /**
+     * Ids of the catalog node and of its group lists, in the order of the catalog lists
+     */
+    static final String LIBRARY_ID = "__LIBRARY__";
+    private static final String[] CATALOG_LIST_IDS = {"__LIBRARY_ARTISTS__", "__LIBRARY_ALBUMS__", "__LIBRARY_GENRES__"};
+
+    /**
+     * Maximum number of children of a page, without the "More" item
+     */
+    static final int PAGE_SIZE = 100;
+
+    private static final char GROUP_SEPARATOR = '/';
+    private static final char PAGE_SEPARATOR = '@';
+    private static final char TRACK_SEPARATOR = '#';
+
+    private final Context mContext;
+
+    private final TreeMap<String, ArrayList<AmbientTrack>> mArtists =
+            new TreeMap<String, ArrayList<AmbientTrack>>(String.CASE_INSENSITIVE_ORDER);
+    private final TreeMap<String, ArrayList<AmbientTrack>> mAlbums =
+            new TreeMap<String, ArrayList<AmbientTrack>>(String.CASE_INSENSITIVE_ORDER);
+    private final TreeMap<String, ArrayList<AmbientTrack>> mGenres =
+            new TreeMap<String, ArrayList<AmbientTrack>>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Number of sources (queue and library) each loaded track belongs to
+     */
+    private final IdentityHashMap<AmbientTrack, Integer> mLoadCounts = new IdentityHashMap<AmbientTrack, Integer>();
+
+    /**
+     * Group names each loaded track was filed under: its artist, its album and its genres. A track
+     * leaves the groups it was filed under even if its fields changed since.
+     */
+    private final IdentityHashMap<AmbientTrack, String[]> mGroupNames = new IdentityHashMap<AmbientTrack, String[]>();
+
+    private ArrayList<AmbientTrack> mQueue = new ArrayList<AmbientTrack>();
+    private ArrayList<AmbientTrack> mLibrary = new ArrayList<AmbientTrack>();
+    private AmbientCatalog mCatalog;
+
+    /**
+     * MediaItem lists of the requested pages
+     */
+    private final HashMap<String, List<MediaBrowser.MediaItem>> mPageCache = new HashMap<String, List<MediaBrowser.MediaItem>>();
+
+    /**
+     * constructor
+     * @param context A context object used to get the node titles
+     */
+    AmbientBrowseTree(Context context)
+    {
+        mContext = context;
+    }
+
+    /**
+     * Method used to update the queue node
+     * @param queue The tracks of the playlist in play order
+     * @return Ids of the nodes whose children changed
+     */
+    List<String> setQueue(List<AmbientTrack> queue)
+    {
+        LinkedHashSet<String> changed = new LinkedHashSet<String>();
+        ArrayList<AmbientTrack> previous = mQueue;
+
+        mQueue = queue == null ? new ArrayList<AmbientTrack>() : new ArrayList<AmbientTrack>(queue);
+        replaceSource(previous, mQueue, changed);
+        changed.add(QUEUE_ID);
+
+        return invalidate(changed);
+    }
+
+    /**
+     * Method used to update the tracks of the registered library
+     * @param library The tracks of the library
+     * @return Ids of the nodes whose children changed
+     */
+    List<String> setLibrary(List<AmbientTrack> library)
+    {
+        LinkedHashSet<String> changed = new LinkedHashSet<String>();
+        ArrayList<AmbientTrack> previous = mLibrary;
+
+        mLibrary = library == null ? new ArrayList<AmbientTrack>() : new ArrayList<AmbientTrack>(library);
+        replaceSource(previous, mLibrary, changed);
+
+        return invalidate(changed);
+    }
+
+    /**
+     * Method used to replace the registered catalog
+     * @param catalog The AmbientCatalog or null
+     * @return Ids of the nodes whose children changed
+     */
+    List<String> setCatalog(AmbientCatalog catalog)
+    {
+        LinkedHashSet<String> changed = new LinkedHashSet<String>();
+
+        changed.add(ROOT_ID);
+        changed.add(LIBRARY_ID);
+
+        //group numbers belong to one catalog file, so every cached catalog node changes
+        for(String pageId : mPageCache.keySet())
+        {
+            if(getCatalogList(pageId) != -1)
+            {
+                int separator = pageId.lastIndexOf(PAGE_SEPARATOR);
+                changed.add(separator == -1 ? pageId : pageId.substring(0, separator));
+            }
+        }
+
+        mCatalog = catalog;
+
+        return invalidate(changed);
+    }
+
+    /**
+     * Method used to refile a loaded track whose fields changed, e.g. after its tags were probed
+     * @param track The AmbientTrack
+     * @return Ids of the nodes whose children changed
+     */
+    List<String> updateTrack(AmbientTrack track)
+    {
+        LinkedHashSet<String> changed = new LinkedHashSet<String>();
+        String[] names = mGroupNames.get(track);
+
+        if(names == null)
+        {
+            return new ArrayList<String>(); // not loaded
+        }
+
+        if(Arrays.equals(names, getGroupNames(track)))
+        {
+            //the track keeps its groups, only the items that show it change
+            for(int x = 0; x < names.length; x++)
+            {
+                String listId = getListId(x);
+                changed.add(getGroupId(listId, getGroups(listId).ceilingKey(names[x])));
+            }
+        }
+        else
+        {
+            removeFromGroups(track, changed);
+            addToGroups(track, changed);
+        }
+
+        changed.add(QUEUE_ID);
+
+        return invalidate(changed);
+    }
+
+    /**
+     * Method that returns a page of the children of a node
+     * @param parentId Id of the node, optionally followed by @ and a page number
+     * @return The children or null if the id is unknown
+     */
+    List<MediaBrowser.MediaItem> getChildren(String parentId)
+    {
+        if(parentId == null)
+        {
+            return null;
+        }
+
+        List<MediaBrowser.MediaItem> page = mPageCache.get(parentId);
+
+        if(page != null)
+        {
+            return page;
+        }
+
+        String nodeId = parentId;
+        int pageNumber = 0;
+        int separator = parentId.lastIndexOf(PAGE_SEPARATOR);
+
+        if(separator != -1)
+        {
+            try
+            {
+                pageNumber = Integer.parseInt(parentId.substring(separator + 1));
+                nodeId = parentId.substring(0, separator);
+            }catch (NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        if(ROOT_ID.equals(nodeId))
+        {
+            page = getRootChildren();
+        }
+        else if(LIBRARY_ID.equals(nodeId) || getCatalogList(nodeId) != -1)
+        {
+            page = mCatalog == null ? null : getCatalogPage(nodeId, pageNumber);
+        }
+        else
+        {
+            page = getNodePage(nodeId, pageNumber);
+        }
+
+        if(page != null)
+        {
+            mPageCache.put(parentId, page);
+        }
+
+        return page;
+    }
+
+    /**
+     * Method that returns the tracks of a node
+     * @param nodeId Id of the queue, an artist, an album or a genre
+     * @return The tracks or null if the node has no tracks
+     */
+    List<AmbientTrack> getTracks(String nodeId)
+    {
+        if(QUEUE_ID.equals(nodeId))
+        {
+            return mQueue;
+        }
+
+        String[] group = splitGroupId(nodeId);
+        TreeMap<String, ArrayList<AmbientTrack>> groups = group == null ? null : getGroups(group[0]);
+
+        return groups == null ? null : groups.get(group[1]);
+    }
+
+    /**
+     * Method that returns a catalog group as a playlist source
+     * @param nodeId Id of the catalog group
+     * @return The AmbientPlaylistSource or null if the node is not a catalog group
+     */
+    AmbientPlaylistSource getCatalogSource(String nodeId)
+    {
+        int group = getCatalogGroup(nodeId);
+
+        return group == -1 ? null : mCatalog.getGroupSource(getCatalogList(nodeId), group);
+    }
+
+    /**
+     * Method that returns the number of tracks of a catalog group
+     * @param nodeId Id of the catalog group
+     * @return The number of tracks or -1 if the node is not a catalog group
+     */
+    int getCatalogSize(String nodeId)
+    {
+        int group = getCatalogGroup(nodeId);
+
+        return group == -1 ? -1 : mCatalog.getGroupSize(getCatalogList(nodeId), group);
+    }
+
+    /**
+     * Method that returns the node of a playable media id
+     * @param mediaId The media id of a track
+     * @return Id of the node or null if the media id is not a track
+     */
+    static String getNodeId(String mediaId)
+    {
+        int separator = mediaId == null ? -1 : mediaId.lastIndexOf(TRACK_SEPARATOR);
+
+        return separator == -1 ? null : mediaId.substring(0, separator);
+    }
+
+    /**
+     * Method that returns the index of a playable media id in its node
+     * @param mediaId The media id of a track
+     * @return The index or -1 if the media id is not a track
+     */
+    static int getTrackIndex(String mediaId)
+    {
+        int separator = mediaId == null ? -1 : mediaId.lastIndexOf(TRACK_SEPARATOR);
+
+        try
+        {
+            return separator == -1 ? -1 : Integer.parseInt(mediaId.substring(separator + 1));
+        }catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Helper method used to replace the tracks of a source. New tracks are counted before the
+     * previous ones are released, so tracks kept by the source do not leave their groups.
+     * @param previous The previous tracks of the source
+     * @param tracks The new tracks of the source
+     * @param changed Collects the ids of the changed nodes
+     */
+    private void replaceSource(List<AmbientTrack> previous, List<AmbientTrack> tracks, LinkedHashSet<String> changed)
+    {
+        for(int x = 0; x < tracks.size(); x++)
+        {
+            AmbientTrack track = tracks.get(x);
+            Integer count = mLoadCounts.get(track);
+
+            mLoadCounts.put(track, count == null ? 1 : count + 1);
+
+            if(count == null)
+            {
+                addToGroups(track, changed);
+            }
+        }
+
+        for(int x = 0; x < previous.size(); x++)
+        {
+            AmbientTrack track = previous.get(x);
+            Integer count = mLoadCounts.get(track);
+
+            if(count == null)
+            {
+                continue;
+            }
+
+            if(count > 1)
+            {
+                mLoadCounts.put(track, count - 1);
+                continue;
+            }
+
+            mLoadCounts.remove(track);
+            removeFromGroups(track, changed);
+        }
+    }
+
+    /**
+     * Helper method used to add a track to its artist, album and genre groups
+     * @param track The AmbientTrack
+     * @param changed Collects the ids of the changed nodes
+     */
+    private void addToGroups(AmbientTrack track, LinkedHashSet<String> changed)
+    {
+        String[] names = getGroupNames(track);
+        mGroupNames.put(track, names);
+
+        for(int x = 0; x < names.length; x++)
+        {
+            String listId = getListId(x);
+            addToGroup(listId, getGroups(listId), names[x], track, changed);
+        }
+    }
+
+    /**
+     * Helper method used to remove a track from the artist, album and genre groups it was filed under
+     * @param track The AmbientTrack
+     * @param changed Collects the ids of the changed nodes
+     */
+    private void removeFromGroups(AmbientTrack track, LinkedHashSet<String> changed)
+    {
+        String[] names = mGroupNames.remove(track);
+
+        for(int x = 0; names != null && x < names.length; x++)
+        {
+            String listId = getListId(x);
+            removeFromGroup(listId, getGroups(listId), names[x], track, changed);
+        }
+    }
+
+    /**
+     * Helper method used to get the group names of a track
+     * @param track The AmbientTrack
+     * @return Its artist, its album and its genres
+     */
+    private String[] getGroupNames(AmbientTrack track)
+    {
+        ArrayList<String> genres = track.getGenresList();
+        boolean isGenreless = genres == null || genres.isEmpty();
+        String[] names = new String[isGenreless ? 3 : 2 + genres.size()];
+
+        names[0] = getGroupName(track.getArtistName(), R.string.unknown_artist);
+        names[1] = getGroupName(track.getAlbumName(), R.string.unknown_album);
+
+        for(int x = 2; x < names.length; x++)
+        {
+            names[x] = isGenreless ? mContext.getString(R.string.unknown_genre)
+                    : getGroupName(genres.get(x - 2), R.string.unknown_genre);
+        }
+
+        return names;
+    }
+
+    /**
+     * Helper method used to get the group list of a group name
+     * @param index Index of the name in the group names of a track
+     * @return Id of the group list
+     */
+    private static String getListId(int index)
+    {
+        return index == 0 ? ARTISTS_ID : index == 1 ? ALBUMS_ID : GENRES_ID;
+    }
+
+    /**
+     * Helper method used to add a track to a group. A new group also changes the group list.
+     * @param listId Id of the group list
+     * @param groups The groups of the list
+     * @param name Name of the group
+     * @param track The AmbientTrack
+     * @param changed Collects the ids of the changed nodes
+     */
+    private void addToGroup(String listId, TreeMap<String, ArrayList<AmbientTrack>> groups, String name,
+                            AmbientTrack track, LinkedHashSet<String> changed)
+    {
+        ArrayList<AmbientTrack> group = groups.get(name);
+
+        if(group == null)
+        {
+            group = new ArrayList<AmbientTrack>();
+            groups.put(name, group);
+            changed.add(listId);
+        }
+        else if(group.contains(track))
+        {
+            return; // a track with the same genre twice
+        }
+
+        group.add(track);
+        changed.add(getGroupId(listId, groups.ceilingKey(name)));
+    }
+
+    /**
+     * Helper method used to remove a track from a group. An empty group leaves the group list.
+     * @param listId Id of the group list
+     * @param groups The groups of the list
+     * @param name Name of the group
+     * @param track The AmbientTrack
+     * @param changed Collects the ids of the changed nodes
+     */
+    private void removeFromGroup(String listId, TreeMap<String, ArrayList<AmbientTrack>> groups, String name,
+                                 AmbientTrack track, LinkedHashSet<String> changed)
+    {
+        ArrayList<AmbientTrack> group = groups.get(name);
+
+        if(group == null || !group.remove(track))
+        {
+            return;
+        }
+
+        changed.add(getGroupId(listId, groups.ceilingKey(name)));
+
+        if(group.isEmpty())
+        {
+            groups.remove(name);
+            changed.add(listId);
+        }
+    }
+
+    /**
+     * Helper method used to drop the cached pages of the changed nodes
+     * @param changed Ids of the changed nodes
+     * @return Ids of the changed nodes and of their cached pages
+     */
+    private List<String> invalidate(LinkedHashSet<String> changed)
+    {
+        ArrayList<String> ids = new ArrayList<String>(changed);
+        Iterator<Map.Entry<String, List<MediaBrowser.MediaItem>>> pages = mPageCache.entrySet().iterator();
+
+        while(pages.hasNext())
+        {
+            String pageId = pages.next().getKey();
+            int separator = pageId.lastIndexOf(PAGE_SEPARATOR);
+            String nodeId = separator == -1 ? pageId : pageId.substring(0, separator);
+
+            if(changed.contains(nodeId))
+            {
+                pages.remove();
+
+                if(separator != -1)
+                {
+                    ids.add(pageId);
+                }
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Helper method used to build the children of the root
+     * @return The queue and the group lists
+     */
+    private List<MediaBrowser.MediaItem> getRootChildren()
+    {
+        List<MediaBrowser.MediaItem> items = new ArrayList<MediaBrowser.MediaItem>();
+
+        items.add(newBrowsableItem(QUEUE_ID, mContext.getString(R.string.browse_queue)));
+        items.add(newBrowsableItem(ARTISTS_ID, mContext.getString(R.string.browse_artists)));
+        items.add(newBrowsableItem(ALBUMS_ID, mContext.getString(R.string.browse_albums)));
+        items.add(newBrowsableItem(GENRES_ID, mContext.getString(R.string.browse_genres)));
+
+        if(mCatalog != null)
+        {
+            items.add(newBrowsableItem(LIBRARY_ID, mContext.getString(R.string.browse_library)));
+        }
+
+        return items;
+    }
+
+    /**
+     * Helper method used to build a page of the catalog node, a catalog group list or a catalog group
+     * @param nodeId Id of the node
+     * @param pageNumber Number of the page
+     * @return The children of the page or null if the node or page does not exist
+     */
+    private List<MediaBrowser.MediaItem> getCatalogPage(String nodeId, int pageNumber)
+    {
+        List<MediaBrowser.MediaItem> items = new ArrayList<MediaBrowser.MediaItem>();
+
+        if(LIBRARY_ID.equals(nodeId))
+        {
+            items.add(newBrowsableItem(CATALOG_LIST_IDS[AmbientCatalog.ARTISTS], mContext.getString(R.string.browse_artists)));
+            items.add(newBrowsableItem(CATALOG_LIST_IDS[AmbientCatalog.ALBUMS], mContext.getString(R.string.browse_albums)));
+            items.add(newBrowsableItem(CATALOG_LIST_IDS[AmbientCatalog.GENRES], mContext.getString(R.string.browse_genres)));
+
+            return pageNumber == 0 ? items : null;
+        }
+
+        int list = getCatalogList(nodeId);
+        int group = getCatalogGroup(nodeId);
+        boolean isList = nodeId.indexOf(GROUP_SEPARATOR) == -1;
+
+        if(list == -1 || (!isList && group == -1))
+        {
+            return null;
+        }
+
+        int count = isList ? mCatalog.getGroupCount(list) : mCatalog.getGroupSize(list, group);
+        int start = pageNumber * PAGE_SIZE;
+
+        if(pageNumber < 0 || (start >= count && pageNumber > 0))
+        {
+            return null;
+        }
+
+        int end = Math.min(count, start + PAGE_SIZE);
+        int[] unknown = {R.string.unknown_artist, R.string.unknown_album, R.string.unknown_genre};
+
+        //groups are paged by number and tracks are read from the catalog for this page only
+        for(int x = start; x < end; x++)
+        {
+            if(isList)
+            {
+                items.add(newBrowsableItem(nodeId + GROUP_SEPARATOR + x,
+                        getGroupName(mCatalog.getGroupName(list, x), unknown[list])));
+            }
+            else
+            {
+                items.add(newPlayableItem(nodeId + TRACK_SEPARATOR + x,
+                        mCatalog.getTrack(mCatalog.getGroupTrack(list, group, x))));
+            }
+        }
+
+        if(end < count)
+        {
+            items.add(newBrowsableItem(nodeId + PAGE_SEPARATOR + (pageNumber + 1),
+                    mContext.getString(R.string.browse_more)));
+        }
+
+        return items;
+    }
+
+    /**
+     * Helper method used to get the catalog list of a catalog node
+     * @param nodeId Id of a catalog group list or group
+     * @return AmbientCatalog.ARTISTS, ALBUMS or GENRES or -1 if the node is not in the catalog
+     */
+    private int getCatalogList(String nodeId)
+    {
+        int separator = nodeId.indexOf(GROUP_SEPARATOR);
+        String listId = separator == -1 ? nodeId : nodeId.substring(0, separator);
+        int page = listId.lastIndexOf(PAGE_SEPARATOR);
+        listId = page == -1 ? listId : listId.substring(0, page);
+
+        for(int x = 0; mCatalog != null && x < CATALOG_LIST_IDS.length; x++)
+        {
+            if(CATALOG_LIST_IDS[x].equals(listId))
+            {
+                return x;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Helper method used to get the group number of a catalog group
+     * @param nodeId Id of the catalog group
+     * @return The group number or -1 if the node is not a group of the catalog
+     */
+    private int getCatalogGroup(String nodeId)
+    {
+        int list = getCatalogList(nodeId);
+        int separator = nodeId.indexOf(GROUP_SEPARATOR);
+
+        try
+        {
+            int group = list == -1 || separator == -1 ? -1 : Integer.parseInt(nodeId.substring(separator + 1));
+
+            return group >= 0 && group < mCatalog.getGroupCount(list) ? group : -1;
+        }catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Helper method used to build a page of a group list, a group or the queue
+     * @param nodeId Id of the node
+     * @param pageNumber Number of the page
+     * @return The children of the page or null if the node or page does not exist
+     */
+    private List<MediaBrowser.MediaItem> getNodePage(String nodeId, int pageNumber)
+    {
+        TreeMap<String, ArrayList<AmbientTrack>> groups = getGroups(nodeId);
+        List<AmbientTrack> tracks = groups == null ? getTracks(nodeId) : null;
+        int count = groups != null ? groups.size() : tracks != null ? tracks.size() : -1;
+        int start = pageNumber * PAGE_SIZE;
+
+        if(count == -1 || pageNumber < 0 || (start >= count && pageNumber > 0))
+        {
+            return null;
+        }
+
+        int end = Math.min(count, start + PAGE_SIZE);
+        List<MediaBrowser.MediaItem> items = new ArrayList<MediaBrowser.MediaItem>();
+
+        if(groups != null)
+        {
+            //group names in order. Walk the keys of the page only.
+            String name = start < count ? groups.firstKey() : null;
+
+            for(int x = 0; x < start; x++)
+            {
+                name = groups.higherKey(name);
+            }
+
+            for(int x = start; x < end; x++)
+            {
+                items.add(newBrowsableItem(getGroupId(nodeId, name), name));
+                name = groups.higherKey(name);
+            }
+        }
+        else
+        {
+            for(int x = start; x < end; x++)
+            {
+                items.add(newPlayableItem(nodeId + TRACK_SEPARATOR + x, tracks.get(x)));
+            }
+        }
+
+        if(end < count)
+        {
+            items.add(newBrowsableItem(nodeId + PAGE_SEPARATOR + (pageNumber + 1),
+                    mContext.getString(R.string.browse_more)));
+        }
+
+        return items;
+    }
+
+    /**
+     * Helper method used to get the groups of a group list
+     * @param listId Id of the group list
+     * @return The groups or null if the id is not a group list
+     */
+    private TreeMap<String, ArrayList<AmbientTrack>> getGroups(String listId)
+    {
+        if(ARTISTS_ID.equals(listId))
+        {
+            return mArtists;
+        }
+
+        if(ALBUMS_ID.equals(listId))
+        {
+            return mAlbums;
+        }
+
+        return GENRES_ID.equals(listId) ? mGenres : null;
+    }
+
+    /**
+     * Helper method used to get the id of a group
+     * @param listId Id of the group list
+     * @param name Name of the group
+     * @return The id of the group
+     */
+    private static String getGroupId(String listId, String name)
+    {
+        return listId + GROUP_SEPARATOR + Uri.encode(name);
+    }
+
+    /**
+     * Helper method used to split the id of a group
+     * @param nodeId The id
+     * @return The group list id and the group name or null if the id is not a group
+     */
+    private static String[] splitGroupId(String nodeId)
+    {
+        int separator = nodeId == null ? -1 : nodeId.indexOf(GROUP_SEPARATOR);
+
+        return separator == -1 ? null
+                : new String[] {nodeId.substring(0, separator), Uri.decode(nodeId.substring(separator + 1))};
+    }
+
+    /**
+     * Helper method used to get the group name of a track field
+     * @param value Value of the field
+     * @param unknown Resource id of the name used when the field is empty
+     * @return The group name
+     */
+    private String getGroupName(String value, int unknown)
+    {
+        return value == null || value.trim().isEmpty() ? mContext.getString(unknown) : value.trim();
+    }
+
+    /**
+     * Helper method used to build a browsable item
+     * @param id Media id of the item
+     * @param title Title of the item
+     * @return The MediaItem
+     */
+    private static MediaBrowser.MediaItem newBrowsableItem(String id, String title)
+    {
+        MediaDescription description = new MediaDescription.Builder()
+                .setMediaId(id)
+                .setTitle(title)
+                .build();
+
+        return new MediaBrowser.MediaItem(description, MediaBrowser.MediaItem.FLAG_BROWSABLE);
+    }
+
+    /**
+     * Helper method used to build a playable item
+     * @param id Media id of the item
+     * @param track The AmbientTrack
+     * @return The MediaItem
+     */
+    private MediaBrowser.MediaItem newPlayableItem(String id, AmbientTrack track)
+    {
+        MediaDescription.Builder builder = new MediaDescription.Builder()
+                .setMediaId(id)
+                .setTitle(getGroupName(track.getName(), R.string.unknown_track))
+                .setSubtitle(getGroupName(track.getArtistName(), R.string.unknown_artist))
+                .setDescription(getGroupName(track.getAlbumName(), R.string.unknown_album));
+
+        if(track.getAlbumImageUri() != null && !Uri.EMPTY.equals(track.getAlbumImageUri()))
+        {
+            builder.setIconUri(track.getAlbumImageUri());
+        }
+
+        return new MediaBrowser.MediaItem(builder.build(), MediaBrowser.MediaItem.FLAG_PLAYABLE);
+    }
+}
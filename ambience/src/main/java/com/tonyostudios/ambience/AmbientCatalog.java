@@ -0,0 +1,1007 @@
+package com.tonyostudios.ambience;
+
+import android.net.Uri;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The AmbientCatalog is a read-mostly library of tracks in a file, for libraries too large to
+ * keep as AmbientTracks on the heap. The file is memory-mapped, so a lookup reads the pages it
+ * touches and the heap holds only the AmbientTracks that are materialized with getTrack.
+ *
+ * <pre>AmbientCatalog.Writer writer = new AmbientCatalog.Writer(file);
+ * writer.add(track); // for every track
+ * writer.close();
+ *
+ * AmbientCatalog catalog = AmbientCatalog.open(file);
+ * int[] records = catalog.search("miles davis", AmbientCatalog.FIELD_ALL, 50);</pre>
+ *
+ * The file holds a fixed-width record per track, a heap of UTF-8 strings the records point
+ * into, and a sorted index of each group list: the artists, the albums and the genres. A group
+ * is a range of its index, so groups are found with a binary search and paged by number.
+ * Group names and searches are compared without case and accents.
+ *
+ * A catalog is immutable once written and can be read from any thread. Write a new file to change it.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public final class AmbientCatalog {
+
+    /**
+     * Tag used to identify the AmbientCatalog
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientCatalog";
+
+    /**
+     * Group lists
+     */
+    public static final int ARTISTS = 0;
+    public static final int ALBUMS = 1;
+    public static final int GENRES = 2;
+    private static final int LIST_COUNT = 3;
+
+    /**
+     * Fields matched by search
+     */
+    public static final int FIELD_NAME = AmbientSearchIndex.FIELD_NAME;
+    public static final int FIELD_ARTIST = AmbientSearchIndex.FIELD_ARTIST;
+    public static final int FIELD_ALBUM = AmbientSearchIndex.FIELD_ALBUM;
+    public static final int FIELD_GENRE = AmbientSearchIndex.FIELD_GENRE;
+    public static final int FIELD_ALL = AmbientSearchIndex.FIELD_ALL;
+
+    private static final int MAGIC = 0x414D4243; // AMBC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 128;
+
+    /**
+     * Layout of a record. String fields are heap references, -1 for an empty string.
+     */
+    private static final int RECORD_SIZE = 68;
+    private static final int ID = 0;
+    private static final int ARTIST_ID = 8;
+    private static final int ALBUM_ID = 16;
+    private static final int DURATION = 24;
+    private static final int POSITION = 28;
+    private static final int NAME = 32;
+    private static final int NAME_KEY = 36;
+    private static final int ARTIST = 40;
+    private static final int ALBUM = 44;
+    private static final int GENRE_NAMES = 48;
+    private static final int AUDIO_URI = 52;
+    private static final int DOWNLOAD_URI = 56;
+    private static final int IMAGE_URI = 60;
+    private static final int RELEASE_DATE = 64;
+
+    /**
+     * Layout of a group: the heap references of its key and name, and its start in the index
+     */
+    private static final int GROUP_SIZE = 12;
+
+    /**
+     * Separator of the genres of a record
+     */
+    private static final String GENRE_SEPARATOR = "\u001F";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile mFile;
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mHeapOffset;
+    private final int[] mGroupCounts = new int[LIST_COUNT];
+    private final int[] mIndexSizes = new int[LIST_COUNT];
+    private final int[] mIndexOffsets = new int[LIST_COUNT];
+    private final int[] mGroupOffsets = new int[LIST_COUNT];
+
+    /**
+     * private constructor
+     * @param file The open file
+     * @param buffer The mapped file
+     * @throws IOException if the file is not a catalog
+     */
+    private AmbientCatalog(RandomAccessFile file, ByteBuffer buffer) throws IOException
+    {
+        mFile = file;
+        mBuffer = buffer;
+
+        if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+        {
+            throw new IOException(TAG + ": not a catalog of version " + VERSION);
+        }
+
+        mCount = buffer.getInt(8);
+        mHeapOffset = buffer.getInt(12);
+
+        for(int x = 0; x < LIST_COUNT; x++)
+        {
+            mGroupCounts[x] = buffer.getInt(20 + x * 16);
+            mIndexSizes[x] = buffer.getInt(24 + x * 16);
+            mIndexOffsets[x] = buffer.getInt(28 + x * 16);
+            mGroupOffsets[x] = buffer.getInt(32 + x * 16);
+        }
+    }
+
+    /**
+     * Method used to open a catalog file
+     * @param file The catalog file
+     * @return The AmbientCatalog
+     * @throws IOException if the file cannot be read or is not a catalog
+     */
+    public static AmbientCatalog open(File file) throws IOException
+    {
+        if(file == null)
+        {
+            throw new NullPointerException(TAG + ": file cannot be null");
+        }
+
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try
+        {
+            if(input.length() > Integer.MAX_VALUE)
+            {
+                throw new IOException(TAG + ": a catalog is limited to 2 GB");
+            }
+
+            return new AmbientCatalog(input, input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length()));
+        }catch (IOException e)
+        {
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Method used to close the catalog file. The mapping is released by the garbage collector.
+     */
+    public void close()
+    {
+        try
+        {
+            mFile.close();
+        }catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method that returns the number of tracks
+     * @return The number of tracks
+     */
+    public int size()
+    {
+        return mCount;
+    }
+
+    /**
+     * Method used to materialize the AmbientTrack of a record
+     * @param record Number of the record
+     * @return A new AmbientTrack
+     */
+    public AmbientTrack getTrack(int record)
+    {
+        int offset = getRecordOffset(record);
+        ArrayList<String> genres = new ArrayList<String>();
+        String genreNames = readString(mBuffer.getInt(offset + GENRE_NAMES));
+
+        if(!genreNames.isEmpty())
+        {
+            Collections.addAll(genres, genreNames.split(GENRE_SEPARATOR));
+        }
+
+        return AmbientTrack.newInstance()
+                .setId(mBuffer.getLong(offset + ID))
+                .setArtistId(mBuffer.getLong(offset + ARTIST_ID))
+                .setAlbumId(mBuffer.getLong(offset + ALBUM_ID))
+                .setDuration(mBuffer.getInt(offset + DURATION))
+                .setPosition(mBuffer.getInt(offset + POSITION))
+                .setName(readString(mBuffer.getInt(offset + NAME)))
+                .setArtistName(readString(mBuffer.getInt(offset + ARTIST)))
+                .setAlbumName(readString(mBuffer.getInt(offset + ALBUM)))
+                .setGenres(genres)
+                .setAudioUri(readUri(mBuffer.getInt(offset + AUDIO_URI)))
+                .setAudioDownloadUri(readUri(mBuffer.getInt(offset + DOWNLOAD_URI)))
+                .setAlbumImageUri(readUri(mBuffer.getInt(offset + IMAGE_URI)))
+                .setReleaseDate(readString(mBuffer.getInt(offset + RELEASE_DATE)));
+    }
+
+    /**
+     * Method that returns the number of groups of a list
+     * @param list ARTISTS, ALBUMS or GENRES
+     * @return The number of groups
+     */
+    public int getGroupCount(int list)
+    {
+        return mGroupCounts[checkList(list)];
+    }
+
+    /**
+     * Method that returns the name of a group. Groups are sorted by name.
+     * @param list ARTISTS, ALBUMS or GENRES
+     * @param group Number of the group
+     * @return The name as first written, or an empty string for the tracks without one
+     */
+    public String getGroupName(int list, int group)
+    {
+        return readString(mBuffer.getInt(getGroupOffset(list, group) + 4));
+    }
+
+    /**
+     * Method that returns the number of tracks of a group
+     * @param list ARTISTS, ALBUMS or GENRES
+     * @param group Number of the group
+     * @return The number of tracks
+     */
+    public int getGroupSize(int list, int group)
+    {
+        return getGroupEnd(list, group) - mBuffer.getInt(getGroupOffset(list, group) + 8);
+    }
+
+    /**
+     * Method that returns the tracks of a group as a playlist source, so a group of any size is
+     * played without materializing it
+     * @param list ARTISTS, ALBUMS or GENRES
+     * @param group Number of the group
+     * @return The AmbientPlaylistSource
+     */
+    public AmbientPlaylistSource getGroupSource(final int list, final int group)
+    {
+        final int size = getGroupSize(list, group);
+
+        return new AmbientPlaylistSource() {
+            @Override
+            public List<AmbientTrack> getTracks(int start, int count) {
+
+                int end = Math.min(size, start + count);
+                List<AmbientTrack> tracks = new ArrayList<AmbientTrack>(Math.max(0, end - start));
+
+                for(int x = Math.max(0, start); x < end; x++)
+                {
+                    tracks.add(getTrack(getGroupTrack(list, group, x)));
+                }
+
+                return tracks;
+            }
+        };
+    }
+
+    /**
+     * Method that returns a track of a group. The tracks of a group are in the order they were written.
+     * @param list ARTISTS, ALBUMS or GENRES
+     * @param group Number of the group
+     * @param position Position of the track in the group
+     * @return Number of the record
+     */
+    public int getGroupTrack(int list, int group, int position)
+    {
+        int start = mBuffer.getInt(getGroupOffset(list, group) + 8);
+
+        if(position < 0 || start + position >= getGroupEnd(list, group))
+        {
+            throw new IllegalStateException(TAG + ": no track " + position + " in group " + group);
+        }
+
+        return mBuffer.getInt(mIndexOffsets[list] + (start + position) * 4);
+    }
+
+    /**
+     * Method used to find a group by name with a binary search
+     * @param list ARTISTS, ALBUMS or GENRES
+     * @param name Name of the group. Case and accents are ignored.
+     * @return Number of the group or -1
+     */
+    public int findGroup(int list, String name)
+    {
+        byte[] key = getKey(name).getBytes(UTF_8);
+        int group = findFirstGroup(list, key);
+
+        return group < mGroupCounts[list] && compareKey(getGroupKey(list, group), key, false) == 0 ? group : -1;
+    }
+
+    /**
+     * Method used to search the catalog. Query words match the start of the words of a field.
+     * Tracks whose name matches come first, then the tracks of the matching artists, albums and
+     * genres. Names are matched by a scan of the records, groups by a binary search of their index.
+     * @param query The query
+     * @param fields FIELD_NAME, FIELD_ARTIST, FIELD_ALBUM and FIELD_GENRE
+     * @param limit Maximum number of results
+     * @return Numbers of the matching records
+     */
+    public int[] search(String query, int fields, int limit)
+    {
+        byte[] key = getKey(query).getBytes(UTF_8);
+        int[] results = new int[Math.max(0, Math.min(limit, mCount))];
+        int size = 0;
+
+        if(key.length == 0)
+        {
+            return new int[0];
+        }
+
+        for(int record = 0; (fields & FIELD_NAME) != 0 && record < mCount && size < results.length; record++)
+        {
+            if(containsWordPrefix(mBuffer.getInt(getRecordOffset(record) + NAME_KEY), key))
+            {
+                results[size++] = record;
+            }
+        }
+
+        int[] lists = {ARTISTS, ALBUMS, GENRES};
+        int[] listFields = {FIELD_ARTIST, FIELD_ALBUM, FIELD_GENRE};
+
+        for(int x = 0; x < lists.length && size < results.length; x++)
+        {
+            if((fields & listFields[x]) == 0)
+            {
+                continue;
+            }
+
+            //groups that start with the query are a range of the sorted index
+            for(int group = findFirstGroup(lists[x], key); group < mGroupCounts[lists[x]] && size < results.length
+                    && compareKey(getGroupKey(lists[x], group), key, true) == 0; group++)
+            {
+                int groupSize = getGroupSize(lists[x], group);
+
+                for(int position = 0; position < groupSize && size < results.length; position++)
+                {
+                    int record = getGroupTrack(lists[x], group, position);
+
+                    if(!contains(results, size, record))
+                    {
+                        results[size++] = record;
+                    }
+                }
+            }
+        }
+
+        return Arrays.copyOf(results, size);
+    }
+
+    /**
+     * Helper method used to find the first group whose key is not below a key
+     * @param list The group list
+     * @param key The key in UTF-8
+     * @return Number of the group or the group count
+     */
+    private int findFirstGroup(int list, byte[] key)
+    {
+        int low = 0;
+        int high = mGroupCounts[checkList(list)];
+
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+
+            if(compareKey(getGroupKey(list, middle), key, false) < 0)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Helper method used to compare a heap string with a key, byte by byte
+     * @param ref Heap reference of the string
+     * @param key The key in UTF-8
+     * @param isPrefix Boolean value indicating if a string that starts with the key is equal
+     * @return A negative number, 0 or a positive number
+     */
+    private int compareKey(int ref, byte[] key, boolean isPrefix)
+    {
+        int length = ref < 0 ? 0 : mBuffer.getInt(mHeapOffset + ref);
+        int start = mHeapOffset + ref + 4;
+
+        for(int x = 0; x < length && x < key.length; x++)
+        {
+            int difference = (mBuffer.get(start + x) & 0xFF) - (key[x] & 0xFF);
+
+            if(difference != 0)
+            {
+                return difference;
+            }
+        }
+
+        return isPrefix && length >= key.length ? 0 : length - key.length;
+    }
+
+    /**
+     * Helper method used to check if a word of a heap string starts with a key
+     * @param ref Heap reference of the string
+     * @param key The key in UTF-8
+     * @return true if the key matches at the start of a word
+     */
+    private boolean containsWordPrefix(int ref, byte[] key)
+    {
+        int length = ref < 0 ? 0 : mBuffer.getInt(mHeapOffset + ref);
+        int start = mHeapOffset + ref + 4;
+
+        for(int x = 0; x + key.length <= length; x++)
+        {
+            if(x > 0 && mBuffer.get(start + x - 1) != ' ')
+            {
+                continue;
+            }
+
+            int y = 0;
+
+            while(y < key.length && mBuffer.get(start + x + y) == key[y])
+            {
+                y++;
+            }
+
+            if(y == key.length)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Helper method used to read a heap string
+     * @param ref Heap reference of the string
+     * @return The string or an empty string
+     */
+    private String readString(int ref)
+    {
+        if(ref < 0)
+        {
+            return "";
+        }
+
+        byte[] bytes = new byte[mBuffer.getInt(mHeapOffset + ref)];
+        ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(mHeapOffset + ref + 4);
+        buffer.get(bytes);
+
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Helper method used to read a heap uri
+     * @param ref Heap reference of the uri
+     * @return The uri or Uri.EMPTY
+     */
+    private Uri readUri(int ref)
+    {
+        return ref < 0 ? Uri.EMPTY : Uri.parse(readString(ref));
+    }
+
+    /**
+     * Helper method used to get the heap reference of the key of a group
+     * @param list The group list
+     * @param group Number of the group
+     * @return The heap reference
+     */
+    private int getGroupKey(int list, int group)
+    {
+        return mBuffer.getInt(getGroupOffset(list, group));
+    }
+
+    /**
+     * Helper method used to get the end of a group in its index
+     * @param list The group list
+     * @param group Number of the group
+     * @return The end, exclusive
+     */
+    private int getGroupEnd(int list, int group)
+    {
+        return group + 1 < mGroupCounts[list] ? mBuffer.getInt(getGroupOffset(list, group + 1) + 8) : mIndexSizes[list];
+    }
+
+    /**
+     * Helper method used to get the offset of a group in the file
+     * @param list The group list
+     * @param group Number of the group
+     * @return The offset
+     */
+    private int getGroupOffset(int list, int group)
+    {
+        if(group < 0 || group >= mGroupCounts[checkList(list)])
+        {
+            throw new IllegalStateException(TAG + ": no group " + group + " in list " + list);
+        }
+
+        return mGroupOffsets[list] + group * GROUP_SIZE;
+    }
+
+    /**
+     * Helper method used to get the offset of a record in the file
+     * @param record Number of the record
+     * @return The offset
+     */
+    private int getRecordOffset(int record)
+    {
+        if(record < 0 || record >= mCount)
+        {
+            throw new IllegalStateException(TAG + ": no record " + record);
+        }
+
+        return HEADER_SIZE + record * RECORD_SIZE;
+    }
+
+    /**
+     * Helper method used to check a group list
+     * @param list The group list
+     * @return The group list
+     */
+    private static int checkList(int list)
+    {
+        if(list < 0 || list >= LIST_COUNT)
+        {
+            throw new IllegalStateException(TAG + ": unknown group list " + list);
+        }
+
+        return list;
+    }
+
+    /**
+     * Helper method used to check if a result was found already
+     * @param results The results
+     * @param size Number of results
+     * @param record Number of the record
+     * @return true if the record is a result
+     */
+    private static boolean contains(int[] results, int size, int record)
+    {
+        for(int x = 0; x < size; x++)
+        {
+            if(results[x] == record)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Helper method used to get the key of a name: its lower case words without accents
+     * @param name The name
+     * @return The key
+     */
+    private static String getKey(String name)
+    {
+        ArrayList<String> words = AmbientSearchIndex.tokenize(name);
+        StringBuilder key = new StringBuilder();
+
+        for(int x = 0; x < words.size(); x++)
+        {
+            key.append(x == 0 ? "" : " ").append(words.get(x));
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * The Writer streams the tracks of a new catalog to disk. Records and strings go to
+     * temporary files as tracks are added, so writing a catalog only keeps the group names
+     * and the group numbers of the tracks in memory. The catalog file is replaced on close.
+     */
+    public static final class Writer
+    {
+        private final File mFile;
+        private final File mRecordsFile;
+        private final File mHeapFile;
+        private final DataOutputStream mRecords;
+        private final DataOutputStream mHeap;
+        private long mHeapSize = 0;
+        private int mCount = 0;
+
+        /**
+         * Heap references of the strings written once: names of groups, keys and uris of images
+         */
+        private final HashMap<String, Integer> mSharedStrings = new HashMap<String, Integer>();
+
+        private final GroupList[] mLists = {new GroupList(), new GroupList(), new GroupList()};
+
+        /**
+         * constructor
+         * @param file The catalog file
+         * @throws IOException if the temporary files cannot be created
+         */
+        public Writer(File file) throws IOException
+        {
+            if(file == null)
+            {
+                throw new NullPointerException(TAG + ": file cannot be null");
+            }
+
+            mFile = file;
+            mRecordsFile = new File(file.getPath() + ".records");
+            mHeapFile = new File(file.getPath() + ".heap");
+            mRecords = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mRecordsFile), 64 * 1024));
+            mHeap = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mHeapFile), 64 * 1024));
+        }
+
+        /**
+         * Method used to add a track
+         * @param track The AmbientTrack
+         * @return This writer
+         * @throws IOException if the track cannot be written
+         */
+        public Writer add(AmbientTrack track) throws IOException
+        {
+            if(track == null)
+            {
+                throw new NullPointerException(TAG + ": track cannot be null");
+            }
+
+            ArrayList<String> genres = track.getGenresList() == null ? new ArrayList<String>() : track.getGenresList();
+            StringBuilder genreNames = new StringBuilder();
+
+            for(int x = 0; x < genres.size(); x++)
+            {
+                genreNames.append(x == 0 ? "" : GENRE_SEPARATOR).append(genres.get(x).replace(GENRE_SEPARATOR, " ").trim());
+            }
+
+            int artist = putString(track.getArtistName(), true);
+            int album = putString(track.getAlbumName(), true);
+
+            mRecords.writeLong(track.getId());
+            mRecords.writeLong(track.getArtistId());
+            mRecords.writeLong(track.getAlbumId());
+            mRecords.writeInt(track.getDuration());
+            mRecords.writeInt(track.getPosition());
+            mRecords.writeInt(putString(track.getName(), false));
+            mRecords.writeInt(putString(getKey(track.getName()), false));
+            mRecords.writeInt(artist);
+            mRecords.writeInt(album);
+            mRecords.writeInt(putString(genreNames.toString(), true));
+            mRecords.writeInt(putUri(track.getAudioUri(), false));
+            mRecords.writeInt(putUri(track.getAudioDownloadUri(), false));
+            mRecords.writeInt(putUri(track.getAlbumImageUri(), true));
+            mRecords.writeInt(putString(track.getReleaseDate(), true));
+
+            mLists[ARTISTS].add(track.getArtistName(), mCount);
+            mLists[ALBUMS].add(track.getAlbumName(), mCount);
+
+            for(int x = 0; x < genres.size(); x++)
+            {
+                mLists[GENRES].add(genres.get(x), mCount);
+            }
+
+            if(genres.isEmpty())
+            {
+                mLists[GENRES].add("", mCount);
+            }
+
+            mCount++;
+
+            return this;
+        }
+
+        /**
+         * Method used to sort the group indexes and write the catalog file
+         * @throws IOException if the catalog cannot be written
+         */
+        public void close() throws IOException
+        {
+            mRecords.close();
+
+            //the sorted keys and names of the groups go to the heap first
+            int[][] groupRefs = new int[LIST_COUNT][];
+
+            for(int x = 0; x < LIST_COUNT; x++)
+            {
+                groupRefs[x] = mLists[x].sort();
+
+                for(int y = 0; y < groupRefs[x].length / 2; y++)
+                {
+                    groupRefs[x][y * 2] = putString(mLists[x].mKeys.get(mLists[x].mOrder[y]), true);
+                    groupRefs[x][y * 2 + 1] = putString(mLists[x].mNames.get(mLists[x].mOrder[y]), true);
+                }
+            }
+
+            mHeap.close();
+
+            long recordsEnd = HEADER_SIZE + (long) mCount * RECORD_SIZE;
+            long offset = recordsEnd;
+            int[] indexOffsets = new int[LIST_COUNT];
+            int[] groupOffsets = new int[LIST_COUNT];
+
+            for(int x = 0; x < LIST_COUNT; x++)
+            {
+                indexOffsets[x] = checkOffset(offset);
+                offset += (long) mLists[x].mSize * 4;
+                groupOffsets[x] = checkOffset(offset);
+                offset += (long) mLists[x].mKeys.size() * GROUP_SIZE;
+            }
+
+            int heapOffset = checkOffset(offset);
+            checkOffset(offset + mHeapSize);
+
+            File temporary = new File(mFile.getPath() + ".tmp");
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 64 * 1024));
+
+            try
+            {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeInt(mCount);
+                output.writeInt(heapOffset);
+                output.writeInt((int) mHeapSize);
+
+                for(int x = 0; x < LIST_COUNT; x++)
+                {
+                    output.writeInt(mLists[x].mKeys.size());
+                    output.writeInt(mLists[x].mSize);
+                    output.writeInt(indexOffsets[x]);
+                    output.writeInt(groupOffsets[x]);
+                }
+
+                output.write(new byte[HEADER_SIZE - 20 - LIST_COUNT * 16]);
+                copy(mRecordsFile, output);
+
+                for(int x = 0; x < LIST_COUNT; x++)
+                {
+                    mLists[x].writeIndex(output, groupRefs[x]);
+                }
+
+                copy(mHeapFile, output);
+            }finally
+            {
+                output.close();
+                mRecordsFile.delete();
+                mHeapFile.delete();
+            }
+
+            if(!temporary.renameTo(mFile))
+            {
+                throw new IOException(TAG + ": cannot replace " + mFile);
+            }
+        }
+
+        /**
+         * Helper method used to write a string to the heap
+         * @param value The string
+         * @param isShared Boolean value indicating if equal strings share one copy
+         * @return Heap reference of the string or -1 for an empty string
+         * @throws IOException if the heap cannot be written
+         */
+        private int putString(String value, boolean isShared) throws IOException
+        {
+            if(value == null || value.isEmpty())
+            {
+                return -1;
+            }
+
+            Integer shared = isShared ? mSharedStrings.get(value) : null;
+
+            if(shared != null)
+            {
+                return shared;
+            }
+
+            byte[] bytes = value.getBytes(UTF_8);
+            int ref = checkOffset(mHeapSize);
+
+            mHeap.writeInt(bytes.length);
+            mHeap.write(bytes);
+            mHeapSize += 4 + bytes.length;
+
+            if(isShared)
+            {
+                mSharedStrings.put(value, ref);
+            }
+
+            return ref;
+        }
+
+        /**
+         * Helper method used to write a uri to the heap
+         * @param uri The uri
+         * @param isShared Boolean value indicating if equal uris share one copy
+         * @return Heap reference of the uri or -1 for an empty uri
+         * @throws IOException if the heap cannot be written
+         */
+        private int putUri(Uri uri, boolean isShared) throws IOException
+        {
+            return uri == null || Uri.EMPTY.equals(uri) ? -1 : putString(uri.toString(), isShared);
+        }
+
+        /**
+         * Helper method used to check that an offset fits the 2 GB limit of a catalog
+         * @param offset The offset
+         * @return The offset
+         */
+        private static int checkOffset(long offset)
+        {
+            if(offset > Integer.MAX_VALUE)
+            {
+                throw new IllegalStateException(TAG + ": a catalog is limited to 2 GB");
+            }
+
+            return (int) offset;
+        }
+
+        /**
+         * Helper method used to append a file to the catalog
+         * @param file The file
+         * @param output The catalog
+         * @throws IOException if the file cannot be copied
+         */
+        private static void copy(File file, DataOutputStream output) throws IOException
+        {
+            InputStream input = new BufferedInputStream(new FileInputStream(file));
+            byte[] buffer = new byte[64 * 1024];
+
+            try
+            {
+                int count;
+
+                while((count = input.read(buffer)) != -1)
+                {
+                    output.write(buffer, 0, count);
+                }
+            }finally
+            {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * The groups of a list while a catalog is written: the distinct keys and the key of every
+     * track of the list, in the order they were added
+     */
+    private static final class GroupList
+    {
+        final HashMap<String, Integer> mKeyIds = new HashMap<String, Integer>();
+        final ArrayList<String> mKeys = new ArrayList<String>();
+        final ArrayList<String> mNames = new ArrayList<String>();
+        int[] mTrackKeys = new int[1024];
+        int[] mTracks = new int[1024];
+        int mSize = 0;
+
+        /**
+         * Key ids in sorted order
+         */
+        Integer[] mOrder;
+
+        /**
+         * Method used to add a track to the group of a name
+         * @param name The group name
+         * @param record Number of the record
+         */
+        void add(String name, int record)
+        {
+            String display = name == null ? "" : name.trim();
+            String key = getKey(display);
+            Integer id = mKeyIds.get(key);
+
+            if(id == null)
+            {
+                id = mKeys.size();
+                mKeyIds.put(key, id);
+                mKeys.add(key);
+                mNames.add(display); // the first spelling names the group
+            }
+
+            if(mSize == mTracks.length)
+            {
+                mTracks = Arrays.copyOf(mTracks, mSize * 2);
+                mTrackKeys = Arrays.copyOf(mTrackKeys, mSize * 2);
+            }
+
+            mTracks[mSize] = record;
+            mTrackKeys[mSize] = id;
+            mSize++;
+        }
+
+        /**
+         * Method used to sort the keys by their UTF-8 bytes, the order the reader compares them in
+         * @return An array for the heap references of the sorted keys and names
+         */
+        int[] sort()
+        {
+            final byte[][] keys = new byte[mKeys.size()][];
+
+            for(int x = 0; x < keys.length; x++)
+            {
+                keys[x] = mKeys.get(x).getBytes(UTF_8);
+            }
+
+            mOrder = new Integer[keys.length];
+
+            for(int x = 0; x < mOrder.length; x++)
+            {
+                mOrder[x] = x;
+            }
+
+            Arrays.sort(mOrder, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer first, Integer second) {
+                    byte[] a = keys[first];
+                    byte[] b = keys[second];
+
+                    for(int x = 0; x < a.length && x < b.length; x++)
+                    {
+                        if(a[x] != b[x])
+                        {
+                            return (a[x] & 0xFF) - (b[x] & 0xFF);
+                        }
+                    }
+
+                    return a.length - b.length;
+                }
+            });
+
+            return new int[keys.length * 2];
+        }
+
+        /**
+         * Method used to write the index, the tracks grouped in key order, and the group table
+         * @param output The catalog
+         * @param groupRefs Heap references of the sorted keys and names
+         * @throws IOException if the index cannot be written
+         */
+        void writeIndex(DataOutputStream output, int[] groupRefs) throws IOException
+        {
+            int[] ranks = new int[mOrder.length];
+
+            for(int x = 0; x < mOrder.length; x++)
+            {
+                ranks[mOrder[x]] = x;
+            }
+
+            //a counting sort keeps the tracks of a group in the order they were added
+            int[] starts = new int[mOrder.length + 1];
+
+            for(int x = 0; x < mSize; x++)
+            {
+                starts[ranks[mTrackKeys[x]] + 1]++;
+            }
+
+            for(int x = 0; x < mOrder.length; x++)
+            {
+                starts[x + 1] += starts[x];
+            }
+
+            int[] index = new int[mSize];
+            int[] next = Arrays.copyOf(starts, mOrder.length);
+
+            for(int x = 0; x < mSize; x++)
+            {
+                index[next[ranks[mTrackKeys[x]]]++] = mTracks[x];
+            }
+
+            for(int x = 0; x < mSize; x++)
+            {
+                output.writeInt(index[x]);
+            }
+
+            for(int x = 0; x < mOrder.length; x++)
+            {
+                output.writeInt(groupRefs[x * 2]);
+                output.writeInt(groupRefs[x * 2 + 1]);
+                output.writeInt(starts[x]);
+            }
+        }
+    }
+}
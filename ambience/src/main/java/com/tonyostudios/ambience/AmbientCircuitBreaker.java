@@ -0,0 +1,89 @@
+package com.tonyostudios.ambience;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+/**
+ * The AmbientCircuitBreaker tracks playback failures per host. After FAILURE_THRESHOLD failures
+ * in a row the circuit of a host opens and its tracks are skipped without a connection attempt.
+ * Once OPEN_TIME has passed one track is let through again. It closes the circuit if it plays
+ * and opens it for another OPEN_TIME if it fails.
+ *
+ * Use the circuit breaker from the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientCircuitBreaker {
+
+    /**
+     * Number of failures in a row that open the circuit of a host
+     */
+    static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * Time in milliseconds the circuit of a host stays open
+     */
+    static final long OPEN_TIME = 30000;
+
+    private final HashMap<String, Circuit> mCircuits = new HashMap<String, Circuit>();
+
+    /**
+     * Method used to check if the tracks of a host must be skipped
+     * @param host The host or null for local tracks
+     * @return true if the circuit of the host is open
+     */
+    boolean isOpen(String host)
+    {
+        Circuit circuit = host == null ? null : mCircuits.get(host);
+
+        return circuit != null && circuit.mFailures >= FAILURE_THRESHOLD
+                && SystemClock.elapsedRealtime() < circuit.mOpenUntil;
+    }
+
+    /**
+     * Method used to record a track of a host that played
+     * @param host The host or null for local tracks
+     */
+    void onSuccess(String host)
+    {
+        if(host != null)
+        {
+            mCircuits.remove(host);
+        }
+    }
+
+    /**
+     * Method used to record a failed track of a host
+     * @param host The host or null for local tracks
+     */
+    void onFailure(String host)
+    {
+        if(host == null)
+        {
+            return;
+        }
+
+        Circuit circuit = mCircuits.get(host);
+
+        if(circuit == null)
+        {
+            circuit = new Circuit();
+            mCircuits.put(host, circuit);
+        }
+
+        if(++circuit.mFailures >= FAILURE_THRESHOLD)
+        {
+            circuit.mOpenUntil = SystemClock.elapsedRealtime() + OPEN_TIME;
+        }
+    }
+
+    /**
+     * Failure state of a host
+     */
+    private static final class Circuit
+    {
+        int mFailures = 0;
+        long mOpenUntil = 0;
+    }
+}
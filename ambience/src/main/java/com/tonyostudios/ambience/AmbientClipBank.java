@@ -0,0 +1,443 @@
+package com.tonyostudios.ambience;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.MediaMetadataRetriever;
+import android.media.SoundPool;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * An AmbientClipBank plays short clips (UI and ambient accent sounds under 5 s) with low latency.
+ * Clips are registered once and decoded ahead of time by a SoundPool in the app process, so
+ * triggering a clip does not go through the AmbientService, MediaPlayer preparation or any IPC.
+ *
+ * <pre>AmbientClipBank bank = new AmbientClipBank(context, 4 * 1024 * 1024);
+ * int chime = bank.register(chimeTrack);
+ * ...
+ * bank.play(chime);</pre>
+ *
+ * register returns a handle. play looks the clip up by handle and does not allocate.
+ * The bank keeps the estimated decoded size of its loaded clips under a byte limit by unloading
+ * the least recently played clips. An unloaded clip stays registered and is loaded again the
+ * next time it is played. That play call returns 0 because the clip is not decoded yet.
+ *
+ * Only local clips (file, content and android.resource URIs) are supported. Use the bank from the
+ * main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public class AmbientClipBank {
+
+    /**
+     * Tag used to identify the AmbientClipBank
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientClipBank";
+
+    /**
+     * Longest clip the bank is meant for, in milliseconds. Used when the duration cannot be read.
+     */
+    public static final int MAX_CLIP_DURATION = 5000;
+
+    /**
+     * Maximum number of clips playing at the same time
+     */
+    private static final int MAX_STREAMS = 8;
+
+    /**
+     * Bytes per millisecond of decoded audio. SoundPool decodes to 16 bit PCM, assumed to be
+     * 44.1 kHz stereo.
+     */
+    private static final double DECODED_BYTES_PER_MS = 44100 * 2 * 2 / 1000.0;
+
+    private final Context mContext;
+    private final long mMaxDecodedBytes;
+    private final SoundPool mSoundPool;
+
+    private Clip[] mClips = new Clip[16];
+    private int mClipCount = 0;
+    private long mDecodedBytes = 0;
+    private long mPlayCounter = 0;
+
+    /**
+     * constructor
+     * @param context A context object
+     * @param maxDecodedBytes Limit of the estimated decoded size of all loaded clips, in bytes
+     */
+    public AmbientClipBank(Context context, long maxDecodedBytes)
+    {
+        if(context == null)
+        {
+            throw new NullPointerException(TAG + ": context cannot be null");
+        }
+
+        if(maxDecodedBytes <= 0)
+        {
+            throw new IllegalStateException(TAG + ": maxDecodedBytes must be positive");
+        }
+
+        mContext = context.getApplicationContext();
+        mMaxDecodedBytes = maxDecodedBytes;
+        mSoundPool = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                ? createSoundPool() : createLegacySoundPool();
+
+        mSoundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool soundPool, int sampleId, int status) {
+                onClipLoaded(sampleId, status);
+            }
+        });
+    }
+
+    /**
+     * Helper method used to create the SoundPool on API 21 and up
+     * @return The SoundPool
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static SoundPool createSoundPool()
+    {
+        AudioAttributes attributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                .build();
+
+        return new SoundPool.Builder()
+                .setMaxStreams(MAX_STREAMS)
+                .setAudioAttributes(attributes)
+                .build();
+    }
+
+    /**
+     * Helper method used to create the SoundPool below API 21
+     * @return The SoundPool
+     */
+    @SuppressWarnings("deprecation")
+    private static SoundPool createLegacySoundPool()
+    {
+        return new SoundPool(MAX_STREAMS, AudioManager.STREAM_MUSIC, 0);
+    }
+
+    /**
+     * Method used to register a clip. The clip is decoded in the background.
+     * @param clip An AmbientTrack with a local audio URI
+     * @return Handle of the clip used by play
+     */
+    public int register(AmbientTrack clip)
+    {
+        if(clip == null)
+        {
+            throw new NullPointerException(TAG + ": clip cannot be null");
+        }
+
+        int duration = readDuration(clip.getAudioUri());
+
+        if(duration > MAX_CLIP_DURATION)
+        {
+            Log.w(TAG, clip.getName() + " is longer than " + MAX_CLIP_DURATION + " ms. Consider the AmbientService instead.");
+        }
+
+        long decodedBytes = (long) (duration * DECODED_BYTES_PER_MS);
+
+        if(decodedBytes > mMaxDecodedBytes)
+        {
+            throw new IllegalStateException(TAG + ": " + clip.getName() + " does not fit in the clip bank");
+        }
+
+        if(mClipCount == mClips.length)
+        {
+            mClips = Arrays.copyOf(mClips, mClipCount * 2);
+        }
+
+        int handle = mClipCount++;
+        mClips[handle] = new Clip(clip.getAudioUri(), decodedBytes);
+
+        load(handle);
+
+        return handle;
+    }
+
+    /**
+     * Method used to check if a clip is decoded and ready to play
+     * @param handle Handle returned by register
+     * @return true if the clip is ready
+     */
+    public boolean isLoaded(int handle)
+    {
+        Clip clip = getClip(handle);
+
+        return clip != null && clip.isLoaded;
+    }
+
+    /**
+     * Method used to play a clip at full volume
+     * @param handle Handle returned by register
+     * @return Id of the playing stream or 0 if the clip is not loaded
+     */
+    public int play(int handle)
+    {
+        return play(handle, 1.0f);
+    }
+
+    /**
+     * Method used to play a clip. Does not allocate.
+     * @param handle Handle returned by register
+     * @param volume Volume between 0.0 and 1.0
+     * @return Id of the playing stream or 0 if the clip is not loaded
+     */
+    public int play(int handle, float volume)
+    {
+        Clip clip = getClip(handle);
+
+        if(clip == null)
+        {
+            return 0;
+        }
+
+        clip.mLastPlayed = ++mPlayCounter;
+
+        if(!clip.isLoaded)
+        {
+            if(clip.mSampleId == 0 && !clip.isFailed)
+            {
+                load(handle); // evicted earlier. Ready for the next trigger
+            }
+
+            return 0;
+        }
+
+        return mSoundPool.play(clip.mSampleId, volume, volume, 1, 0, 1.0f);
+    }
+
+    /**
+     * Method used to stop a playing clip
+     * @param streamId Id returned by play
+     */
+    public void stop(int streamId)
+    {
+        mSoundPool.stop(streamId);
+    }
+
+    /**
+     * Method used to unload and forget a clip. The handle must not be used afterwards.
+     * @param handle Handle returned by register
+     */
+    public void unregister(int handle)
+    {
+        Clip clip = getClip(handle);
+
+        if(clip != null)
+        {
+            unload(clip);
+            mClips[handle] = null;
+        }
+    }
+
+    /**
+     * Method that returns the estimated decoded size of the loaded clips
+     * @return Size in bytes
+     */
+    public long getDecodedBytes()
+    {
+        return mDecodedBytes;
+    }
+
+    /**
+     * Method used to release the clip bank. The bank cannot be used afterwards.
+     */
+    public void release()
+    {
+        mSoundPool.release();
+        Arrays.fill(mClips, null);
+        mClipCount = 0;
+        mDecodedBytes = 0;
+    }
+
+    /**
+     * Helper method used to load a clip, unloading the least recently played clips
+     * until it fits under the byte limit
+     * @param handle Handle of the clip
+     */
+    private void load(int handle)
+    {
+        Clip clip = mClips[handle];
+
+        while (mDecodedBytes + clip.mDecodedBytes > mMaxDecodedBytes)
+        {
+            Clip eldest = null;
+
+            for(int x = 0; x < mClipCount; x++)
+            {
+                Clip candidate = mClips[x];
+
+                if(candidate != null && candidate != clip && candidate.mSampleId != 0
+                        && (eldest == null || candidate.mLastPlayed < eldest.mLastPlayed))
+                {
+                    eldest = candidate;
+                }
+            }
+
+            if(eldest == null)
+            {
+                break;
+            }
+
+            unload(eldest);
+        }
+
+        try
+        {
+            clip.mSampleId = loadSample(clip.mUri);
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+
+        if(clip.mSampleId != 0)
+        {
+            mDecodedBytes += clip.mDecodedBytes;
+        }
+        else
+        {
+            Log.e(TAG, "Cannot load clip " + clip.mUri);
+            clip.isFailed = true; // not retried on every play
+        }
+    }
+
+    /**
+     * Helper method used to hand a clip to the SoundPool
+     * @param uri Clip uri
+     * @return SoundPool sample id
+     * @throws Exception if the clip cannot be opened
+     */
+    private int loadSample(Uri uri) throws Exception
+    {
+        if(ContentResolver.SCHEME_FILE.equals(uri.getScheme()))
+        {
+            return mSoundPool.load(uri.getPath(), 1);
+        }
+
+        if(ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())
+                || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme()))
+        {
+            AssetFileDescriptor descriptor = mContext.getContentResolver().openAssetFileDescriptor(uri, "r");
+
+            try
+            {
+                return mSoundPool.load(descriptor, 1);
+            }finally
+            {
+                descriptor.close();
+            }
+        }
+
+        throw new IllegalStateException(TAG + ": clips must be local. Unsupported uri " + uri);
+    }
+
+    /**
+     * Helper method used to unload a clip
+     * @param clip The clip
+     */
+    private void unload(Clip clip)
+    {
+        if(clip.mSampleId != 0)
+        {
+            mSoundPool.unload(clip.mSampleId);
+            mDecodedBytes -= clip.mDecodedBytes;
+        }
+
+        clip.mSampleId = 0;
+        clip.isLoaded = false;
+    }
+
+    /**
+     * Called by the SoundPool when a clip is decoded
+     * @param sampleId SoundPool sample id
+     * @param status 0 on success
+     */
+    private void onClipLoaded(int sampleId, int status)
+    {
+        for(int x = 0; x < mClipCount; x++)
+        {
+            Clip clip = mClips[x];
+
+            if(clip != null && clip.mSampleId == sampleId)
+            {
+                if(status == 0)
+                {
+                    clip.isLoaded = true;
+                }
+                else
+                {
+                    Log.e(TAG, "Cannot decode clip " + clip.mUri);
+                    unload(clip);
+                    clip.isFailed = true; // not retried on every play
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Helper method used to read the duration of a clip
+     * @param uri Clip uri
+     * @return Duration in milliseconds. MAX_CLIP_DURATION if it cannot be read.
+     */
+    private int readDuration(Uri uri)
+    {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+
+        try
+        {
+            retriever.setDataSource(mContext, uri);
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+
+            return duration == null ? MAX_CLIP_DURATION : Integer.parseInt(duration);
+        }catch (Exception e)
+        {
+            Log.e(TAG, "Cannot read the duration of " + uri + ": " + e.getMessage());
+
+            return MAX_CLIP_DURATION;
+        }finally
+        {
+            retriever.release();
+        }
+    }
+
+    /**
+     * Helper method used to look up a clip
+     * @param handle Handle of the clip
+     * @return The clip or null
+     */
+    private Clip getClip(int handle)
+    {
+        return handle >= 0 && handle < mClipCount ? mClips[handle] : null;
+    }
+
+    /**
+     * A registered clip
+     */
+    private static final class Clip
+    {
+        final Uri mUri;
+        final long mDecodedBytes;
+        int mSampleId = 0;
+        boolean isLoaded = false;
+        boolean isFailed = false;
+        long mLastPlayed = 0;
+
+        Clip(Uri uri, long decodedBytes)
+        {
+            mUri = uri;
+            mDecodedBytes = decodedBytes;
+        }
+    }
+}
@@ -0,0 +1,995 @@
+package com.tonyostudios.ambience;
+
+import java.util.Arrays;
+
+/**
+ * AmbientCodec encodes the requests sent to the AmbientService and the updates sent back to Ambience
+ * as compact binary messages. It is shared by Ambience, the AmbientService and the
+ * AmbientMediaBrowserService.
+ *
+ * A message starts with a version byte followed by operations. Each operation is an opcode byte,
+ * a payload length byte and a payload of primitive values (big-endian). Enums are sent as ordinals.
+ * Objects that cannot be sent as primitives (tracks, playlists and the launcher action) travel as
+ * extras next to the message and are only read when their operation is present.
+ *
+ * Decoding fills a reusable Message through a table of operation decoders indexed by opcode and does
+ * not allocate. Operations unknown to this version are skipped using their payload length. A known
+ * operation whose payload is shorter than its decoder reads rejects the message.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public final class AmbientCodec {
+
+    /**
+     * Tag used to identify the AmbientCodec
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientCodec";
+
+    /**
+     * Current message version
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Intent extra that holds an encoded message
+     */
+    public static final String MESSAGE = "com.tonyostudios.ambience.MESSAGE";
+
+    /**
+     * Intent extra that holds the playlist of an OP_PLAYLIST operation
+     */
+    public static final String EXTRA_PLAYLIST = "com.tonyostudios.ambience.P";
+
+    /**
+     * Intent extra that holds the tracks of an OP_ADD_TRACKS operation
+     */
+    public static final String EXTRA_ADD_TRACKS = "com.tonyostudios.ambience.A";
+
+    /**
+     * Intent extra that holds the tracks of an OP_REMOVE_TRACKS operation
+     */
+    public static final String EXTRA_REMOVE_TRACKS = "com.tonyostudios.ambience.R";
+
+    /**
+     * Intent extra that holds the action of an OP_ACTIVITY_LAUNCHER operation
+     */
+    public static final String EXTRA_ACTIVITY_LAUNCHER = "com.tonyostudios.ambience.L";
+
+    /**
+     * Intent extra that holds the track of an OP_TRACK operation
+     */
+    public static final String EXTRA_TRACK = "com.tonyostudios.ambience.T";
+
+    /**
+     * Intent extra that holds the track of an OP_ADD_LAYER operation
+     */
+    public static final String EXTRA_LAYER_TRACK = "com.tonyostudios.ambience.LT";
+
+    /**
+     * Intent extra that holds the registered name or content uri of an OP_PLAYLIST_SOURCE operation
+     */
+    public static final String EXTRA_PLAYLIST_SOURCE = "com.tonyostudios.ambience.PS";
+
+    /**
+     * Intent extra that holds the registered name of the supplier of an OP_INFINITE_QUEUE operation
+     */
+    public static final String EXTRA_QUEUE_SUPPLIER = "com.tonyostudios.ambience.QS";
+
+    /**
+     * Intent extra that holds the uri string or the ParcelFileDescriptor of an OP_PLAYLIST_FILE operation
+     */
+    public static final String EXTRA_PLAYLIST_FILE = "com.tonyostudios.ambience.PF";
+
+    // OPCODES. Opcodes are bit positions in Message.ops and must stay below 64.
+    public static final int OP_SEQUENCE = 0;
+    public static final int OP_ACTIVITY_LAUNCHER = 1;
+    public static final int OP_VOLUME = 2;
+    public static final int OP_PLAYLIST = 3;
+    public static final int OP_PLAY_POSITION = 4;
+    public static final int OP_REMOVE_TRACKS = 5;
+    public static final int OP_ADD_TRACKS = 6;
+    public static final int OP_REPEAT_MODE = 7;
+    public static final int OP_SHUFFLE_MODE = 8;
+    public static final int OP_SEEK = 9;
+    public static final int OP_PLAYBACK_STATE = 10;
+    public static final int OP_PROGRESS = 11;
+    public static final int OP_TRACK = 12;
+    public static final int OP_ADD_LAYER = 13;
+    public static final int OP_LAYER_GAIN = 14;
+    public static final int OP_LAYER_LOOP = 15;
+    public static final int OP_REMOVE_LAYER = 16;
+    public static final int OP_CROSSFADE = 17;
+    public static final int OP_RETRY_POLICY = 18;
+    public static final int OP_WIFI_LOCK_TIME = 19;
+    public static final int OP_BUFFERED_PERCENT = 20;
+    public static final int OP_STALL_TIME = 21;
+    public static final int OP_SEEK_QUEUE_TIME = 22;
+    public static final int OP_QUEUE_TIME = 23;
+    public static final int OP_METADATA_PROBING = 24;
+    public static final int OP_PLAYLIST_SOURCE = 25;
+    public static final int OP_INFINITE_QUEUE = 26;
+    public static final int OP_PLAYLIST_FILE = 27;
+    public static final int OP_LAYER_STATS = 28;
+
+    /**
+     * Layer id of an OP_REMOVE_LAYER operation that removes every layer
+     */
+    public static final int ALL_LAYERS = -1;
+
+    /**
+     * Cached enum values. Enum.values() allocates a new array on every call.
+     */
+    private static final AmbientService.PlaybackState[] PLAYBACK_STATES = AmbientService.PlaybackState.values();
+    private static final AmbientService.RepeatMode[] REPEAT_MODES = AmbientService.RepeatMode.values();
+    private static final AmbientService.ShuffleMode[] SHUFFLE_MODES = AmbientService.ShuffleMode.values();
+
+    /**
+     * Table of operation decoders indexed by opcode
+     */
+    private static final OpDecoder[] DECODERS = new OpDecoder[64];
+
+    static
+    {
+        DECODERS[OP_SEQUENCE] = new OpDecoder(16) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.sender = readLong(data, offset);
+                message.sequence = readLong(data, offset + 8);
+            }
+        };
+
+        DECODERS[OP_ACTIVITY_LAUNCHER] = OpDecoder.NO_PAYLOAD;
+        DECODERS[OP_PLAYLIST] = OpDecoder.NO_PAYLOAD;
+        DECODERS[OP_PLAYLIST_FILE] = OpDecoder.NO_PAYLOAD;
+        DECODERS[OP_REMOVE_TRACKS] = OpDecoder.NO_PAYLOAD;
+        DECODERS[OP_ADD_TRACKS] = OpDecoder.NO_PAYLOAD;
+        DECODERS[OP_TRACK] = OpDecoder.NO_PAYLOAD;
+
+        DECODERS[OP_VOLUME] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.volume = Float.intBitsToFloat(readInt(data, offset));
+            }
+        };
+
+        DECODERS[OP_PLAY_POSITION] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.playPosition = readInt(data, offset);
+            }
+        };
+
+        DECODERS[OP_REPEAT_MODE] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.repeatMode = REPEAT_MODES[checkOrdinal(readInt(data, offset), REPEAT_MODES.length)];
+            }
+        };
+
+        DECODERS[OP_SHUFFLE_MODE] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.shuffleMode = SHUFFLE_MODES[checkOrdinal(readInt(data, offset), SHUFFLE_MODES.length)];
+            }
+        };
+
+        DECODERS[OP_SEEK] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.seekPosition = readInt(data, offset);
+            }
+        };
+
+        DECODERS[OP_PLAYBACK_STATE] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.playbackState = PLAYBACK_STATES[checkOrdinal(readInt(data, offset), PLAYBACK_STATES.length)];
+            }
+        };
+
+        DECODERS[OP_PROGRESS] = new OpDecoder(8) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.progress = readInt(data, offset);
+                message.duration = readInt(data, offset + 4);
+            }
+        };
+
+        DECODERS[OP_ADD_LAYER] = new OpDecoder(12) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.layerId = readInt(data, offset);
+                message.layerGain = Float.intBitsToFloat(readInt(data, offset + 4));
+                message.layerLoop = readInt(data, offset + 8) != 0;
+            }
+        };
+
+        DECODERS[OP_LAYER_GAIN] = new OpDecoder(8) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.layerId = readInt(data, offset);
+                message.layerGain = Float.intBitsToFloat(readInt(data, offset + 4));
+            }
+        };
+
+        DECODERS[OP_LAYER_LOOP] = new OpDecoder(8) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.layerId = readInt(data, offset);
+                message.layerLoop = readInt(data, offset + 4) != 0;
+            }
+        };
+
+        DECODERS[OP_REMOVE_LAYER] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.layerId = readInt(data, offset);
+            }
+        };
+
+        DECODERS[OP_CROSSFADE] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.crossfade = readInt(data, offset);
+            }
+        };
+
+        DECODERS[OP_RETRY_POLICY] = new OpDecoder(12) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.maxRetries = readInt(data, offset);
+                message.retryDelay = readInt(data, offset + 4);
+                message.prepareTimeout = readInt(data, offset + 8);
+            }
+        };
+
+        DECODERS[OP_WIFI_LOCK_TIME] = new OpDecoder(8) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.wifiLockTime = readLong(data, offset);
+            }
+        };
+
+        DECODERS[OP_BUFFERED_PERCENT] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.bufferedPercent = readInt(data, offset);
+            }
+        };
+
+        DECODERS[OP_STALL_TIME] = new OpDecoder(8) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.stallTime = readLong(data, offset);
+            }
+        };
+        DECODERS[OP_SEEK_QUEUE_TIME] = new OpDecoder(8) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.seekQueueTime = readLong(data, offset);
+            }
+        };
+        DECODERS[OP_QUEUE_TIME] = new OpDecoder(16) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.queueElapsedTime = readLong(data, offset);
+                message.queueTotalTime = readLong(data, offset + 8);
+            }
+        };
+        DECODERS[OP_METADATA_PROBING] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.probeFlags = readInt(data, offset);
+            }
+        };
+
+        DECODERS[OP_PLAYLIST_SOURCE] = new OpDecoder(4) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.sourceCount = readInt(data, offset);
+            }
+        };
+
+        DECODERS[OP_INFINITE_QUEUE] = new OpDecoder(8) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.refillWatermark = readInt(data, offset);
+                message.historyLimit = readInt(data, offset + 4);
+            }
+        };
+
+        DECODERS[OP_LAYER_STATS] = new OpDecoder(16) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                message.layerId = readInt(data, offset);
+                message.layerCpuTime = readInt(data, offset + 4);
+                message.layerMemory = readInt(data, offset + 8);
+                message.layerUnderruns = readInt(data, offset + 12);
+            }
+        };
+    }
+
+    /**
+     * private constructor
+     */
+    private AmbientCodec()
+    {
+        super();
+    }
+
+    /**
+     * Method used to decode a message. The passed message is cleared and filled with the decoded operations.
+     * @param data The encoded message
+     * @param message Reusable message that receives the decoded values
+     * @return The passed message
+     * @throws IllegalStateException if the message is empty, malformed or of an unknown version
+     */
+    public static Message decode(byte[] data, Message message)
+    {
+        if(data == null || data.length == 0)
+        {
+            throw new IllegalStateException(TAG + ": empty message");
+        }
+
+        if(data[0] < 1 || data[0] > VERSION)
+        {
+            throw new IllegalStateException(TAG + ": unsupported message version " + data[0]);
+        }
+
+        message.clear();
+        message.version = data[0];
+
+        int offset = 1;
+
+        while (offset < data.length)
+        {
+            if(offset + 2 > data.length)
+            {
+                throw new IllegalStateException(TAG + ": truncated message");
+            }
+
+            int opcode = data[offset] & 0xFF;
+            int length = data[offset + 1] & 0xFF;
+            offset += 2;
+
+            if(offset + length > data.length)
+            {
+                throw new IllegalStateException(TAG + ": truncated message");
+            }
+
+            OpDecoder decoder = opcode < DECODERS.length ? DECODERS[opcode] : null;
+
+            if(decoder != null && length < decoder.size)
+            {
+                throw new IllegalStateException(TAG + ": operation " + opcode + " is shorter than its payload");
+            }
+
+            // Operations added by newer versions are skipped. A longer payload may carry newer values.
+            if(decoder != null)
+            {
+                decoder.decode(data, offset, message);
+                message.ops |= 1L << opcode;
+            }
+
+            offset += length;
+        }
+
+        return message;
+    }
+
+    /**
+     * Helper method used to check an enum ordinal
+     * @param ordinal The decoded ordinal
+     * @param size Number of enum values
+     * @return The ordinal
+     */
+    private static int checkOrdinal(int ordinal, int size)
+    {
+        if(ordinal < 0 || ordinal >= size)
+        {
+            throw new IllegalStateException(TAG + ": unknown enum ordinal " + ordinal);
+        }
+
+        return ordinal;
+    }
+
+    private static int readInt(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(byte[] data, int offset)
+    {
+        return ((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Decodes the payload of a single operation
+     */
+    private static abstract class OpDecoder
+    {
+        /**
+         * Decoder of operations whose values travel as extras
+         */
+        static final OpDecoder NO_PAYLOAD = new OpDecoder(0) {
+            @Override
+            void decode(byte[] data, int offset, Message message) {
+                // nothing to decode
+            }
+        };
+
+        /**
+         * Number of payload bytes the decoder reads
+         */
+        final int size;
+
+        /**
+         * Constructor
+         * @param size Number of payload bytes the decoder reads
+         */
+        OpDecoder(int size)
+        {
+            this.size = size;
+        }
+
+        abstract void decode(byte[] data, int offset, Message message);
+    }
+
+    /**
+     * A decoded message. Fields are only valid when their operation is present. The layer fields
+     * are shared by the layer operations, so a message carries at most one layer operation.
+     */
+    public static final class Message
+    {
+        public byte version;
+        public long ops;
+        public long sender;
+        public long sequence;
+        public float volume;
+        public int playPosition;
+        public AmbientService.RepeatMode repeatMode;
+        public AmbientService.ShuffleMode shuffleMode;
+        public int seekPosition;
+        public AmbientService.PlaybackState playbackState;
+        public int progress;
+        public int duration;
+        public int layerId;
+        public float layerGain;
+        public boolean layerLoop;
+        public int crossfade;
+        public int maxRetries;
+        public int retryDelay;
+        public int prepareTimeout;
+        public long wifiLockTime;
+        public int bufferedPercent;
+        public long stallTime;
+        public long seekQueueTime;
+        public long queueElapsedTime;
+        public long queueTotalTime;
+        public int probeFlags;
+        public int sourceCount;
+        public int refillWatermark;
+        public int historyLimit;
+        public int layerCpuTime;
+        public int layerMemory;
+        public int layerUnderruns;
+
+        /**
+         * Method used to check if the message contains an operation
+         * @param opcode The operation opcode
+         * @return boolean value indicating if the operation is present
+         */
+        public boolean has(int opcode)
+        {
+            return (ops & (1L << opcode)) != 0;
+        }
+
+        /**
+         * Resets the message so it can be reused
+         */
+        public void clear()
+        {
+            version = 0;
+            ops = 0;
+            sender = 0;
+            sequence = 0;
+            volume = 0.0f;
+            playPosition = 0;
+            repeatMode = null;
+            shuffleMode = null;
+            seekPosition = 0;
+            playbackState = null;
+            progress = 0;
+            duration = 0;
+            layerId = 0;
+            layerGain = 0.0f;
+            layerLoop = false;
+            crossfade = 0;
+            maxRetries = 0;
+            retryDelay = 0;
+            prepareTimeout = 0;
+            wifiLockTime = 0;
+            bufferedPercent = 0;
+            stallTime = 0;
+            seekQueueTime = 0;
+            queueElapsedTime = 0;
+            queueTotalTime = 0;
+            probeFlags = 0;
+            sourceCount = 0;
+            refillWatermark = 0;
+            historyLimit = 0;
+            layerCpuTime = 0;
+            layerMemory = 0;
+            layerUnderruns = 0;
+        }
+    }
+
+    /**
+     * Writer used to encode a message
+     */
+    public static final class Writer
+    {
+        private byte[] mBuffer = new byte[32];
+        private int mSize = 0;
+        private long mOps = 0;
+
+        /**
+         * constructor. The message version is written first.
+         */
+        public Writer()
+        {
+            mBuffer[mSize++] = VERSION;
+        }
+
+        /**
+         * Method used to writes the sender and sequence number of a request
+         * @param sender Id of the request sender
+         * @param sequence Sequence number of the request
+         * @return This writer
+         */
+        public Writer sequence(long sender, long sequence)
+        {
+            begin(OP_SEQUENCE, 16);
+            writeLong(sender);
+            writeLong(sequence);
+
+            return this;
+        }
+
+        /**
+         * Method used to marks that the activity launcher action is attached as EXTRA_ACTIVITY_LAUNCHER
+         * @return This writer
+         */
+        public Writer activityLauncher()
+        {
+            begin(OP_ACTIVITY_LAUNCHER, 0);
+
+            return this;
+        }
+
+        /**
+         * Method used to writes a volume request
+         * @param volume Volume level between 0.0 and 1.0
+         * @return This writer
+         */
+        public Writer volume(float volume)
+        {
+            begin(OP_VOLUME, 4);
+            writeInt(Float.floatToIntBits(volume));
+
+            return this;
+        }
+
+        /**
+         * Method used to marks that a playlist is attached as EXTRA_PLAYLIST
+         * @return This writer
+         */
+        public Writer playlist()
+        {
+            begin(OP_PLAYLIST, 0);
+
+            return this;
+        }
+
+        /**
+         * Method used to writes a play position request
+         * @param position Track position in the playlist
+         * @return This writer
+         */
+        public Writer playPosition(int position)
+        {
+            begin(OP_PLAY_POSITION, 4);
+            writeInt(position);
+
+            return this;
+        }
+
+        /**
+         * Method used to marks that tracks to remove are attached as EXTRA_REMOVE_TRACKS
+         * @return This writer
+         */
+        public Writer removeTracks()
+        {
+            begin(OP_REMOVE_TRACKS, 0);
+
+            return this;
+        }
+
+        /**
+         * Method used to marks that tracks to add are attached as EXTRA_ADD_TRACKS
+         * @return This writer
+         */
+        public Writer addTracks()
+        {
+            begin(OP_ADD_TRACKS, 0);
+
+            return this;
+        }
+
+        /**
+         * Method used to writes a repeat mode
+         * @param mode The repeat mode
+         * @return This writer
+         */
+        public Writer repeatMode(AmbientService.RepeatMode mode)
+        {
+            begin(OP_REPEAT_MODE, 4);
+            writeInt(mode.ordinal());
+
+            return this;
+        }
+
+        /**
+         * Method used to writes a shuffle mode
+         * @param mode The shuffle mode
+         * @return This writer
+         */
+        public Writer shuffleMode(AmbientService.ShuffleMode mode)
+        {
+            begin(OP_SHUFFLE_MODE, 4);
+            writeInt(mode.ordinal());
+
+            return this;
+        }
+
+        /**
+         * Method used to writes a seek request
+         * @param position Seek position in milliseconds
+         * @return This writer
+         */
+        public Writer seek(int position)
+        {
+            begin(OP_SEEK, 4);
+            writeInt(position);
+
+            return this;
+        }
+
+        /**
+         * Method used to writes a playback state
+         * @param state The playback state
+         * @return This writer
+         */
+        public Writer playbackState(AmbientService.PlaybackState state)
+        {
+            begin(OP_PLAYBACK_STATE, 4);
+            writeInt(state.ordinal());
+
+            return this;
+        }
+
+        /**
+         * Method used to writes the progress of the current track
+         * @param progress Track progress in milliseconds
+         * @param duration Track duration in milliseconds
+         * @return This writer
+         */
+        public Writer progress(int progress, int duration)
+        {
+            begin(OP_PROGRESS, 8);
+            writeInt(progress);
+            writeInt(duration);
+
+            return this;
+        }
+
+        /**
+         * Method used to marks that the current track is attached as EXTRA_TRACK
+         * @return This writer
+         */
+        public Writer track()
+        {
+            begin(OP_TRACK, 0);
+
+            return this;
+        }
+
+        /**
+         * Method used to mark that a layer track is attached as EXTRA_LAYER_TRACK and write its settings
+         * @param id Layer id
+         * @param gain Layer gain between 0.0 and 1.0
+         * @param loop true if the layer loops
+         * @return This writer
+         */
+        public Writer addLayer(int id, float gain, boolean loop)
+        {
+            begin(OP_ADD_LAYER, 12);
+            writeInt(id);
+            writeInt(Float.floatToIntBits(gain));
+            writeInt(loop ? 1 : 0);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the gain of a layer
+         * @param id Layer id
+         * @param gain Layer gain between 0.0 and 1.0
+         * @return This writer
+         */
+        public Writer layerGain(int id, float gain)
+        {
+            begin(OP_LAYER_GAIN, 8);
+            writeInt(id);
+            writeInt(Float.floatToIntBits(gain));
+
+            return this;
+        }
+
+        /**
+         * Method used to write the loop mode of a layer
+         * @param id Layer id
+         * @param loop true if the layer loops
+         * @return This writer
+         */
+        public Writer layerLoop(int id, boolean loop)
+        {
+            begin(OP_LAYER_LOOP, 8);
+            writeInt(id);
+            writeInt(loop ? 1 : 0);
+
+            return this;
+        }
+
+        /**
+         * Method used to write a layer removal
+         * @param id Layer id or ALL_LAYERS
+         * @return This writer
+         */
+        public Writer removeLayer(int id)
+        {
+            begin(OP_REMOVE_LAYER, 4);
+            writeInt(id);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the crossfade duration between tracks
+         * @param duration Crossfade duration in milliseconds. 0 turns the crossfade off.
+         * @return This writer
+         */
+        public Writer crossfade(int duration)
+        {
+            begin(OP_CROSSFADE, 4);
+            writeInt(duration);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the retry policy of failed tracks
+         * @param maxRetries Number of retries of a failed track before it is skipped
+         * @param retryDelay Delay of the first retry in milliseconds. Doubles with every retry.
+         * @param prepareTimeout Time in milliseconds a track may take to prepare. 0 waits forever.
+         * @return This writer
+         */
+        public Writer retryPolicy(int maxRetries, int retryDelay, int prepareTimeout)
+        {
+            begin(OP_RETRY_POLICY, 12);
+            writeInt(maxRetries);
+            writeInt(retryDelay);
+            writeInt(prepareTimeout);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the time the wifi lock of the service was held
+         * @param time Held time in milliseconds since the last report
+         * @return This writer
+         */
+        public Writer wifiLockTime(long time)
+        {
+            begin(OP_WIFI_LOCK_TIME, 8);
+            writeLong(time);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the buffered part of the current track
+         * @param percent Buffered percentage between 0 and 100
+         * @return This writer
+         */
+        public Writer bufferedPercent(int percent)
+        {
+            begin(OP_BUFFERED_PERCENT, 4);
+            writeInt(percent);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the duration of a playback stall
+         * @param time Stall duration in milliseconds
+         * @return This writer
+         */
+        public Writer stallTime(long time)
+        {
+            begin(OP_STALL_TIME, 8);
+            writeLong(time);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the resource use of a layer of the AmbientMixer
+         * @param id Layer id
+         * @param cpuTime Decode and mix CPU time in microseconds per second of audio
+         * @param memory Bytes held by the layer
+         * @param underruns Number of mix buffers the decoder of the layer did not fill in time
+         * @return This writer
+         */
+        public Writer layerStats(int id, int cpuTime, int memory, int underruns)
+        {
+            begin(OP_LAYER_STATS, 16);
+            writeInt(id);
+            writeInt(cpuTime);
+            writeInt(memory);
+            writeInt(underruns);
+
+            return this;
+        }
+
+        /**
+         * Method used to write a seek to a time of the whole queue
+         * @param time Time from the start of the queue in milliseconds
+         * @return This writer
+         */
+        public Writer seekQueueTime(long time)
+        {
+            begin(OP_SEEK_QUEUE_TIME, 8);
+            writeLong(time);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the play time of the whole queue
+         * @param elapsed Time from the start of the queue to the play position in milliseconds
+         * @param total Duration of the queue in milliseconds
+         * @return This writer
+         */
+        public Writer queueTime(long elapsed, long total)
+        {
+            begin(OP_QUEUE_TIME, 16);
+            writeLong(elapsed);
+            writeLong(total);
+
+            return this;
+        }
+
+        /**
+         * Method used to write what the service probes for the queued tracks
+         * @param flags Probe flags. 0 turns probing off.
+         * @return This writer
+         */
+        public Writer metadataProbing(int flags)
+        {
+            begin(OP_METADATA_PROBING, 4);
+            writeInt(flags);
+
+            return this;
+        }
+
+        /**
+         * Method used to mark that a playlist source is attached as EXTRA_PLAYLIST_SOURCE
+         * @param count Number of tracks of the source
+         * @return This writer
+         */
+        public Writer playlistSource(int count)
+        {
+            begin(OP_PLAYLIST_SOURCE, 4);
+            writeInt(count);
+
+            return this;
+        }
+
+        /**
+         * Method used to mark that a M3U, PLS or XSPF playlist file is attached as EXTRA_PLAYLIST_FILE
+         * @return This writer
+         */
+        public Writer playlistFile()
+        {
+            begin(OP_PLAYLIST_FILE, 0);
+
+            return this;
+        }
+
+        /**
+         * Method used to write the infinite queue settings. The supplier is attached as EXTRA_QUEUE_SUPPLIER.
+         * @param lowWatermark Number of upcoming tracks below which the supplier is asked for more. 0 turns the infinite queue off.
+         * @param historyLimit Number of played tracks kept before the play position
+         * @return This writer
+         */
+        public Writer infiniteQueue(int lowWatermark, int historyLimit)
+        {
+            begin(OP_INFINITE_QUEUE, 8);
+            writeInt(lowWatermark);
+            writeInt(historyLimit);
+
+            return this;
+        }
+
+        /**
+         * Method that returns the encoded message
+         * @return The encoded message
+         */
+        public byte[] toByteArray()
+        {
+            return Arrays.copyOf(mBuffer, mSize);
+        }
+
+        /**
+         * Method that checks if the message has an OP_TRACK operation
+         * @return true if the current track must be attached
+         */
+        public boolean hasTrack()
+        {
+            return (mOps & (1L << OP_TRACK)) != 0;
+        }
+
+        /**
+         * Method that checks if the message has an OP_SEQUENCE operation
+         * @return true if the sender and sequence number are written
+         */
+        public boolean hasSequence()
+        {
+            return (mOps & (1L << OP_SEQUENCE)) != 0;
+        }
+
+        private void begin(int opcode, int length)
+        {
+            mOps |= 1L << opcode;
+            ensureCapacity(2 + length);
+            mBuffer[mSize++] = (byte) opcode;
+            mBuffer[mSize++] = (byte) length;
+        }
+
+        private void writeInt(int value)
+        {
+            mBuffer[mSize++] = (byte) (value >>> 24);
+            mBuffer[mSize++] = (byte) (value >>> 16);
+            mBuffer[mSize++] = (byte) (value >>> 8);
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        private void writeLong(long value)
+        {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        private void ensureCapacity(int extra)
+        {
+            if(mSize + extra > mBuffer.length)
+            {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+            }
+        }
+    }
+}
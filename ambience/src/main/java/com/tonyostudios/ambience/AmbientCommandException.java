@@ -0,0 +1,46 @@
+package com.tonyostudios.ambience;
+
+/**
+ * Exception used to fail an AmbientCommandFuture
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public class AmbientCommandException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Reasons a command can fail
+     */
+    public static enum Reason
+    {
+        ERROR,
+        REJECTED,
+        TIMEOUT,
+        SERVICE_STOPPED
+    }
+
+    /**
+     * Holds the reason the command failed
+     */
+    private final Reason mReason;
+
+    /**
+     * constructor
+     * @param reason The reason the command failed
+     * @param message Detail message
+     */
+    public AmbientCommandException(Reason reason, String message)
+    {
+        super(message);
+        mReason = reason;
+    }
+
+    /**
+     * Method that returns the reason the command failed
+     * @return The failure reason
+     */
+    public Reason getReason() {
+        return mReason;
+    }
+}
@@ -0,0 +1,385 @@
+package com.tonyostudios.ambience;
+
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * An AmbientCommandFuture is returned by Ambience playback commands. The future completes when
+ * the AmbientService reaches the state that matches the command (for example PLAY after play()
+ * or SEEK_COMPLETED after a seek) and fails when the service reports an error, rejects the
+ * command or does not answer before the command timeout.
+ *
+ * The latency between sending the command and the matching service transition is available
+ * from getLatency once the future is done. For play() this is the tap-to-sound time.
+ *
+ * A future is only resolved by the states that follow its own request. The AmbientService echoes
+ * the sender and sequence number of the last applied request in its updates and of the rejected
+ * request in a rejection, so an older state or the rejection of another request does not resolve it.
+ *
+ * Futures are resolved on the main thread. Calling get() on the main thread before the future
+ * is done would block the update that resolves it, so it throws an IllegalStateException.
+ * Use addListener instead.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public class AmbientCommandFuture implements Future<AmbientService.PlaybackState> {
+
+    private static final int PENDING = 0;
+    private static final int COMPLETED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    /**
+     * The command that was sent to the AmbientService
+     */
+    private final AmbientService.PlaybackState mCommand;
+
+    /**
+     * The service state that completes the command
+     */
+    private final AmbientService.PlaybackState mExpectedState;
+
+    /**
+     * Sender and sequence number of the request that carried the command
+     */
+    private final long mSender;
+    private final long mSequence;
+
+    /**
+     * Boolean value used to indicate that the command must see the service prep a track
+     * before the expected state counts
+     */
+    private final boolean isPrepRequired;
+
+    /**
+     * Boolean value used to indicate that the service has started prepping the track
+     */
+    private boolean isPrepped = false;
+
+    /**
+     * Time the command was sent, in nanoseconds
+     */
+    private final long mSentAt;
+
+    /**
+     * Time between sending the command and its resolution, in nanoseconds
+     */
+    private long mLatency = -1;
+
+    private final CountDownLatch mLatch = new CountDownLatch(1);
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private volatile int mStatus = PENDING;
+    private AmbientCommandException mError;
+
+    /**
+     * constructor
+     * @param command The command sent to the AmbientService
+     * @param expectedState The service state that completes the command
+     * @param prepRequired true if the service must prep a track before the expected state counts
+     * @param sender Id of the request sender
+     * @param sequence Sequence number of the request
+     */
+    AmbientCommandFuture(AmbientService.PlaybackState command, AmbientService.PlaybackState expectedState,
+                         boolean prepRequired, long sender, long sequence)
+    {
+        mCommand = command;
+        mExpectedState = expectedState;
+        isPrepRequired = prepRequired;
+        mSender = sender;
+        mSequence = sequence;
+        mSentAt = System.nanoTime();
+    }
+
+    /**
+     * Called by Ambience with every state received from the AmbientService
+     * @param state The received state
+     * @param sender Sender echoed by the update or null if the service applied no request with a sequence yet
+     * @param sequence Sequence number echoed by the update
+     * @return true if the state resolved this future
+     */
+    boolean onServiceState(AmbientService.PlaybackState state, Long sender, long sequence)
+    {
+        if(isDone())
+        {
+            return true;
+        }
+
+        if(state == AmbientService.PlaybackState.SERVICE_STOPPED)
+        {
+            fail(new AmbientCommandException(AmbientCommandException.Reason.SERVICE_STOPPED,
+                    mCommand + ": the AmbientService stopped"));
+            return true;
+        }
+
+        if(state == AmbientService.PlaybackState.COMMAND_REJECTED)
+        {
+            if(sender == null || sender != mSender || sequence != mSequence)
+            {
+                return false; // another request was rejected
+            }
+
+            fail(new AmbientCommandException(AmbientCommandException.Reason.REJECTED,
+                    mCommand + ": the AmbientService rejected the command"));
+            return true;
+        }
+
+        if(!isFollowingRequest(sender, sequence))
+        {
+            return false; // sent before the service applied the request
+        }
+
+        switch (state)
+        {
+            case ERROR:
+                fail(new AmbientCommandException(AmbientCommandException.Reason.ERROR,
+                        mCommand + ": the AmbientService reported an error"));
+                return true;
+
+            case PREPPING_TRACK:
+                isPrepped = true;
+                break;
+        }
+
+        if(state == mExpectedState && (!isPrepRequired || isPrepped))
+        {
+            complete(state);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Helper method used to check if a state was sent after the service applied the request. States
+     * that follow a request of another sender cannot be ordered against this one, so they count.
+     * @param sender Sender echoed by the update or null if the service applied no request with a sequence yet
+     * @param sequence Sequence number echoed by the update
+     * @return true if the state follows the request
+     */
+    private boolean isFollowingRequest(Long sender, long sequence)
+    {
+        return sender != null && (sender != mSender || sequence >= mSequence);
+    }
+
+    /**
+     * Completes the future
+     * @param state The service state that completed the command
+     */
+    void complete(AmbientService.PlaybackState state)
+    {
+        ArrayList<Listener> listeners;
+
+        synchronized (this)
+        {
+            if(mStatus != PENDING)
+            {
+                return;
+            }
+
+            mLatency = System.nanoTime() - mSentAt;
+            mStatus = COMPLETED;
+            listeners = new ArrayList<Listener>(mListeners);
+            mListeners.clear();
+        }
+
+        mLatch.countDown();
+
+        for(Listener listener : listeners)
+        {
+            listener.onCommandCompleted(this);
+        }
+    }
+
+    /**
+     * Fails the future
+     * @param error The reason the command failed
+     */
+    void fail(AmbientCommandException error)
+    {
+        ArrayList<Listener> listeners;
+
+        synchronized (this)
+        {
+            if(mStatus != PENDING)
+            {
+                return;
+            }
+
+            mLatency = System.nanoTime() - mSentAt;
+            mError = error;
+            mStatus = FAILED;
+            listeners = new ArrayList<Listener>(mListeners);
+            mListeners.clear();
+        }
+
+        mLatch.countDown();
+
+        for(Listener listener : listeners)
+        {
+            listener.onCommandFailed(this, error);
+        }
+    }
+
+    /**
+     * Adds a listener. If the future is already done the listener is called immediately.
+     * @param listener The listener
+     * @return This future
+     */
+    public AmbientCommandFuture addListener(Listener listener)
+    {
+        if(listener == null)
+        {
+            throw new NullPointerException("listener cannot be null");
+        }
+
+        synchronized (this)
+        {
+            if(mStatus == PENDING)
+            {
+                mListeners.add(listener);
+                return this;
+            }
+        }
+
+        if(mStatus == COMPLETED)
+        {
+            listener.onCommandCompleted(this);
+        }
+        else if(mStatus == FAILED)
+        {
+            listener.onCommandFailed(this, mError);
+        }
+
+        return this;
+    }
+
+    /**
+     * Method that returns the command that was sent
+     * @return The command
+     */
+    public AmbientService.PlaybackState getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * Method that returns the time between sending the command and its resolution
+     * @return Latency in milliseconds or -1 if the future is not done
+     */
+    public long getLatency() {
+        return mLatency < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(mLatency);
+    }
+
+    /**
+     * Method that returns the error of a failed command
+     * @return The error or null if the command did not fail
+     */
+    public AmbientCommandException getError() {
+        return mError;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this)
+        {
+            if(mStatus != PENDING)
+            {
+                return false;
+            }
+
+            mStatus = CANCELLED;
+            mListeners.clear();
+        }
+
+        mLatch.countDown();
+
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mStatus == CANCELLED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mStatus != PENDING;
+    }
+
+    @Override
+    public AmbientService.PlaybackState get() throws InterruptedException, ExecutionException {
+        checkNotBlockingMainThread();
+        mLatch.await();
+
+        return getResult();
+    }
+
+    @Override
+    public AmbientService.PlaybackState get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        checkNotBlockingMainThread();
+
+        if(!mLatch.await(timeout, unit))
+        {
+            throw new TimeoutException(mCommand + ": not resolved after " + timeout + " " + unit);
+        }
+
+        return getResult();
+    }
+
+    /**
+     * Helper method used to get the result once the latch is released
+     * @return The service state that completed the command
+     * @throws ExecutionException if the command failed
+     */
+    private AmbientService.PlaybackState getResult() throws ExecutionException
+    {
+        if(mStatus == CANCELLED)
+        {
+            throw new CancellationException(mCommand + ": cancelled");
+        }
+
+        if(mStatus == FAILED)
+        {
+            throw new ExecutionException(mError);
+        }
+
+        return mExpectedState;
+    }
+
+    /**
+     * Helper method used to prevent blocking the thread that resolves the future
+     */
+    private void checkNotBlockingMainThread()
+    {
+        if(!isDone() && Looper.myLooper() == Looper.getMainLooper())
+        {
+            throw new IllegalStateException(mCommand + ": get() cannot block the main thread. Use addListener.");
+        }
+    }
+
+    /**
+     * Listener called on the main thread when an AmbientCommandFuture is resolved
+     */
+    public static interface Listener {
+
+        /**
+         * Called when the command reached its matching service state
+         * @param future The completed future. getLatency returns the command latency.
+         */
+        public void onCommandCompleted(AmbientCommandFuture future);
+
+        /**
+         * Called when the command failed
+         * @param future The failed future
+         * @param error The reason the command failed
+         */
+        public void onCommandFailed(AmbientCommandFuture future, AmbientCommandException error);
+    }
+}
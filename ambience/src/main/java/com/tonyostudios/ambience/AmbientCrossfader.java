@@ -0,0 +1,365 @@
+package com.tonyostudios.ambience;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.MediaPlayer;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * The AmbientCrossfader fades from the playing MediaPlayer of a service into a second MediaPlayer
+ * that holds the next track. The next track is prepared ahead of time with prepare. start plays it
+ * and runs an equal-power ramp (cos out, sin in) on a background thread, so the main looper only
+ * receives one message when the fade is done. The outgoing player is then reset and kept as the
+ * engine of the next crossfade.
+ *
+ * Call every method except the ramp from the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+class AmbientCrossfader implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener {
+
+    /**
+     * Tag used to identify the AmbientCrossfader
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientCrossfader";
+
+    /**
+     * Time in milliseconds the next track is prepared before its crossfade starts
+     */
+    static final int PREPARE_LEAD = 5000;
+
+    /**
+     * Time in milliseconds between two volume steps of a ramp
+     */
+    private static final int RAMP_STEP = 10;
+
+    /**
+     * Callback of the service that owns the crossfader
+     */
+    interface Callback
+    {
+        /**
+         * Called on the main thread when a crossfade is done. The service takes over the incoming player.
+         * @param incoming The player of the next track. It is playing at the volume of the service.
+         * @param uri The uri the incoming player plays
+         */
+        void onCrossfadeCompleted(MediaPlayer incoming, Uri uri);
+
+        /**
+         * Called on the main thread when the next track fails during a crossfade. The service
+         * restores the volume of its player and lets the track complete.
+         */
+        void onCrossfadeFailed();
+    }
+
+    private final Context mContext;
+    private final Handler mMainHandler;
+    private final Callback mCallback;
+
+    private HandlerThread mRampThread;
+    private Handler mRampHandler;
+
+    private MediaPlayer mNextPlayer;
+    private AmbientTrack mNextTrack;
+    private Uri mNextUri;
+    private boolean isNextPrepared = false;
+    private boolean isFading = false;
+    private int mDuration = 0;
+
+    /**
+     * Incremented by every start and cancel. A ramp stops as soon as it no longer matches.
+     */
+    private volatile int mGeneration = 0;
+
+    /**
+     * constructor
+     * @param context A context object
+     * @param mainHandler Handler of the main thread
+     * @param callback Callback of the service
+     */
+    AmbientCrossfader(Context context, Handler mainHandler, Callback callback)
+    {
+        mContext = context.getApplicationContext();
+        mMainHandler = mainHandler;
+        mCallback = callback;
+    }
+
+    /**
+     * Method used to set the crossfade duration
+     * @param duration Duration in milliseconds. 0 turns the crossfade off.
+     */
+    void setDuration(int duration)
+    {
+        mDuration = Math.max(0, duration);
+    }
+
+    /**
+     * Method that returns the crossfade duration
+     * @return Duration in milliseconds
+     */
+    int getDuration()
+    {
+        return mDuration;
+    }
+
+    /**
+     * Method used to check if a crossfade is running
+     * @return true while both players are playing
+     */
+    boolean isFading()
+    {
+        return isFading;
+    }
+
+    /**
+     * Method used to prepare the next track. Does nothing if the track is already prepared or preparing.
+     * @param track The next AmbientTrack
+     */
+    void prepare(AmbientTrack track)
+    {
+        if(isFading || (track == mNextTrack && mNextPlayer != null))
+        {
+            return;
+        }
+
+        try
+        {
+            if(mNextPlayer == null)
+            {
+                mNextPlayer = new MediaPlayer();
+                mNextPlayer.setWakeMode(mContext, PowerManager.PARTIAL_WAKE_LOCK);
+            }
+            else
+            {
+                mNextPlayer.reset();
+            }
+
+            mNextPlayer.setOnPreparedListener(this);
+            mNextPlayer.setOnErrorListener(this);
+            mNextPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mNextUri = AmbientDownloader.resolveAudioUri(mContext, track);
+            mNextPlayer.setDataSource(mContext, mNextUri);
+
+            mNextTrack = track;
+            isNextPrepared = false;
+
+            mNextPlayer.prepareAsync();
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+
+            mNextTrack = null;
+        }
+    }
+
+    /**
+     * Method used to start a crossfade from the outgoing player into the prepared next track
+     * @param outgoing The playing player of the service
+     * @param track The next AmbientTrack. Must be the prepared track.
+     * @param volume Volume of the service
+     * @param duration Duration of this crossfade in milliseconds
+     * @return false if the next track is not prepared yet
+     */
+    boolean start(final MediaPlayer outgoing, AmbientTrack track, final float volume, final int duration)
+    {
+        if(isFading || mNextPlayer == null || track != mNextTrack || !isNextPrepared || duration <= 0)
+        {
+            return false;
+        }
+
+        if(mRampThread == null)
+        {
+            mRampThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+            mRampThread.start();
+            mRampHandler = new Handler(mRampThread.getLooper());
+        }
+
+        final Handler rampHandler = mRampHandler;
+        final MediaPlayer incoming = mNextPlayer;
+        final int generation = ++mGeneration;
+
+        try
+        {
+            incoming.setVolume(0.0f, 0.0f);
+            incoming.start();
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+
+            return false;
+        }
+
+        isFading = true;
+
+        final long startTime = SystemClock.uptimeMillis();
+
+        rampHandler.post(new Runnable() {
+            @Override
+            public void run() {
+
+                if(generation != mGeneration)
+                {
+                    return;
+                }
+
+                //the curve follows the clock, so a late step does not stretch the fade
+                float fraction = Math.min(1.0f, (SystemClock.uptimeMillis() - startTime) / (float) duration);
+                double angle = fraction * Math.PI / 2;
+
+                try
+                {
+                    float out = (float) Math.cos(angle) * volume;
+                    float in = (float) Math.sin(angle) * volume;
+
+                    outgoing.setVolume(out, out);
+                    incoming.setVolume(in, in);
+                }catch (Exception e)
+                {
+                    Log.e(TAG, "Crossfade step failed: " + e.getMessage()); // cancelled from the main thread
+                }
+
+                if(fraction < 1.0f)
+                {
+                    rampHandler.postDelayed(this, RAMP_STEP);
+                }
+                else
+                {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            finish(generation, outgoing, incoming);
+                        }
+                    });
+                }
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Method used to cancel a running crossfade and drop the prepared next track.
+     * The service restores the volume of its own player.
+     */
+    void cancel()
+    {
+        ++mGeneration;
+        isFading = false;
+        mNextTrack = null;
+        isNextPrepared = false;
+
+        if(mNextPlayer != null)
+        {
+            try
+            {
+                mNextPlayer.reset();
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Method used to release both engines. The crossfader cannot be used afterwards.
+     */
+    void release()
+    {
+        cancel();
+
+        if(mNextPlayer != null)
+        {
+            mNextPlayer.release();
+            mNextPlayer = null;
+        }
+
+        if(mRampThread != null)
+        {
+            mRampThread.quit();
+            mRampThread = null;
+            mRampHandler = null;
+        }
+    }
+
+    /**
+     * Helper method that hands the incoming player to the service and keeps the outgoing one
+     * @param generation Generation of the finished ramp
+     * @param outgoing The faded out player
+     * @param incoming The faded in player
+     */
+    private void finish(int generation, MediaPlayer outgoing, MediaPlayer incoming)
+    {
+        if(generation != mGeneration)
+        {
+            return;
+        }
+
+        isFading = false;
+        mNextTrack = null;
+        isNextPrepared = false;
+
+        try
+        {
+            outgoing.setOnCompletionListener(null);
+            outgoing.setOnSeekCompleteListener(null);
+            outgoing.reset();
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+
+        mNextPlayer = outgoing;
+
+        mCallback.onCrossfadeCompleted(incoming, mNextUri);
+    }
+
+    /**
+     * Called when the next track is prepared
+     * @param mp Media Player object
+     */
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        if(mp == mNextPlayer)
+        {
+            isNextPrepared = true;
+        }
+    }
+
+    /**
+     * Called when the next track cannot be played. The transition falls back to playNext.
+     * @param mp Media Player object
+     * @param what What error occurred
+     * @param extra Extra error information about the error
+     * @return true, the error is handled
+     */
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        Log.e(TAG, "Cannot prepare the next track. What: " + what + ", extra: " + extra);
+
+        if(mp != mNextPlayer)
+        {
+            return true;
+        }
+
+        boolean wasFading = isFading;
+
+        cancel();
+
+        if(wasFading)
+        {
+            mCallback.onCrossfadeFailed();
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,792 @@
+package com.tonyostudios.ambience;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AmbientDownloader pins AmbientTracks for offline playback. A pinned track is downloaded from
+ * its audioDownloadUri into the private files directory of the app. The AmbientService plays the
+ * local copy instead of the audioUri once the download is complete.
+ *
+ * <pre>AmbientDownloader downloader = new AmbientDownloader(context, 2, 500 * 1024 * 1024);
+ * downloader.pin(playlist);</pre>
+ *
+ * Downloads run on a bounded pool of connections and resume with HTTP range requests. Progress
+ * lives on disk: the pinned tracks are kept in a journal and every download writes to a partial
+ * file, so call resumePending after a restart to continue where the process stopped. The size of
+ * all downloads is kept under a quota. A download that does not fit fails with an
+ * IllegalStateException.
+ *
+ * Create and use the downloader from the main thread. Listener methods are called on the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public class AmbientDownloader {
+
+    /**
+     * Tag used to identify the AmbientDownloader
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientDownloader";
+
+    /**
+     * Name of the download directory inside the files directory of the app
+     */
+    private static final String DIRECTORY = "ambience_downloads";
+
+    /**
+     * Suffix of a download that is not complete
+     */
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * Prefix of the journal entries that hold the validator (ETag or Last-Modified) of a download
+     */
+    private static final String VALIDATOR_PREFIX = "validator:";
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * Number of bytes between two progress callbacks
+     */
+    private static final long PROGRESS_INTERVAL = 256 * 1024;
+
+    /**
+     * Callback interface of the AmbientDownloader
+     */
+    public interface DownloadListener
+    {
+        /**
+         * Called while a track is downloading
+         * @param track The AmbientTrack
+         * @param bytes Number of bytes on disk
+         * @param total Size of the download or -1 if unknown
+         */
+        void onDownloadProgress(AmbientTrack track, long bytes, long total);
+
+        /**
+         * Called when a track is available offline
+         * @param track The AmbientTrack
+         */
+        void onDownloadCompleted(AmbientTrack track);
+
+        /**
+         * Called when a download failed. Its progress is kept and resumePending retries it.
+         * @param track The AmbientTrack
+         * @param e The cause
+         */
+        void onDownloadFailed(AmbientTrack track, Exception e);
+    }
+
+    private final Context mContext;
+    private final long mQuotaBytes;
+    private final File mDirectory;
+    private final SharedPreferences mJournal;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Active downloads by key. Also read by the download threads.
+     */
+    private final ConcurrentMap<String, Download> mDownloads = new ConcurrentHashMap<String, Download>();
+
+    /**
+     * Bytes reserved by the active downloads. Guarded by this.
+     */
+    private long mReservedBytes = 0;
+
+    private DownloadListener mListener;
+
+    /**
+     * constructor
+     * @param context A context object
+     * @param maxConnections Maximum number of parallel downloads
+     * @param quotaBytes Maximum size of all downloads in bytes
+     */
+    public AmbientDownloader(Context context, int maxConnections, long quotaBytes)
+    {
+        if(context == null)
+        {
+            throw new NullPointerException(TAG + ": context cannot be null");
+        }
+
+        if(maxConnections <= 0 || quotaBytes <= 0)
+        {
+            throw new IllegalStateException(TAG + ": maxConnections and quotaBytes must be positive");
+        }
+
+        mContext = context.getApplicationContext();
+        mQuotaBytes = quotaBytes;
+        mDirectory = getDirectory(mContext);
+        mJournal = mContext.getSharedPreferences(TAG, Context.MODE_PRIVATE);
+
+        mExecutor = new ThreadPoolExecutor(maxConnections, maxConnections, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Method used to set the listener of the downloader
+     * @param listener A DownloadListener or null
+     */
+    public void setDownloadListener(DownloadListener listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * Method used to pin a playlist for offline playback. Tracks without an audioDownloadUri are skipped.
+     * @param playlist Array of AmbientTracks
+     */
+    public void pin(AmbientTrack[] playlist)
+    {
+        if(playlist == null)
+        {
+            throw new NullPointerException(TAG + ": playlist cannot be null");
+        }
+
+        for(AmbientTrack track : playlist)
+        {
+            if(track != null)
+            {
+                pin(track);
+            }
+        }
+    }
+
+    /**
+     * Method used to pin a track for offline playback
+     * @param track The AmbientTrack
+     * @return false if the track has no audioDownloadUri
+     */
+    public boolean pin(AmbientTrack track)
+    {
+        if(track == null)
+        {
+            throw new NullPointerException(TAG + ": track cannot be null");
+        }
+
+        String key = getKey(track);
+
+        if(key == null)
+        {
+            return false;
+        }
+
+        mJournal.edit().putString(key, track.getAudioDownloadUri().toString()).apply();
+
+        start(key, track);
+
+        return true;
+    }
+
+    /**
+     * Method used to unpin a track. Its download is cancelled and deleted.
+     * @param track The AmbientTrack
+     */
+    public void unpin(AmbientTrack track)
+    {
+        if(track == null)
+        {
+            throw new NullPointerException(TAG + ": track cannot be null");
+        }
+
+        String key = getKey(track);
+
+        if(key == null)
+        {
+            return;
+        }
+
+        Download download = mDownloads.get(key);
+
+        if(download != null)
+        {
+            download.cancel();
+            mDownloads.remove(key, download); // a new pin of the track starts a new download
+        }
+
+        mJournal.edit().remove(key).remove(VALIDATOR_PREFIX + key).apply();
+
+        deleteFile(new File(mDirectory, key));
+        deleteFile(new File(mDirectory, key + PART_SUFFIX));
+    }
+
+    /**
+     * Method used to restart the pinned downloads that are not complete, for example after the
+     * process was killed. Tracks restored from the journal only carry their download uri.
+     */
+    public void resumePending()
+    {
+        for(Map.Entry<String, ?> entry : mJournal.getAll().entrySet())
+        {
+            String key = entry.getKey();
+
+            if(key.startsWith(VALIDATOR_PREFIX) || new File(mDirectory, key).exists())
+            {
+                continue;
+            }
+
+            start(key, AmbientTrack.newInstance().setAudioDownloadUri(Uri.parse((String) entry.getValue())));
+        }
+    }
+
+    /**
+     * Method used to check if a track is available offline
+     * @param track The AmbientTrack
+     * @return true if the download is complete
+     */
+    public boolean isDownloaded(AmbientTrack track)
+    {
+        return getLocalUri(mContext, track) != null;
+    }
+
+    /**
+     * Method used to check if a track is downloading or waiting for a connection
+     * @param track The AmbientTrack
+     * @return true if the download is active
+     */
+    public boolean isDownloading(AmbientTrack track)
+    {
+        String key = getKey(track);
+
+        return key != null && mDownloads.containsKey(key);
+    }
+
+    /**
+     * Method that returns the size of all downloads on disk, complete or not
+     * @return Size in bytes
+     */
+    public long getUsedBytes()
+    {
+        long used = 0;
+        File[] files = mDirectory.listFiles();
+
+        if(files != null)
+        {
+            for(File file : files)
+            {
+                used += file.length();
+            }
+        }
+
+        return used;
+    }
+
+    /**
+     * Method used to stop all downloads. Their progress is kept. The downloader cannot be used afterwards.
+     */
+    public void shutdown()
+    {
+        for(Download download : mDownloads.values())
+        {
+            download.cancel();
+        }
+
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Method that returns the local copy of a track
+     * @param context A context object
+     * @param track The AmbientTrack
+     * @return Uri of the complete download or null
+     */
+    public static Uri getLocalUri(Context context, AmbientTrack track)
+    {
+        String key = getKey(track);
+
+        if(key == null)
+        {
+            return null;
+        }
+
+        File file = new File(getDirectory(context), key);
+
+        return file.exists() ? Uri.fromFile(file) : null;
+    }
+
+    /**
+     * Method used by the players to resolve the uri of a track. The local copy is preferred.
+     * @param context A context object
+     * @param track The AmbientTrack
+     * @return Uri of the complete download, the variant that fits the bandwidth or the audioUri of the track
+     */
+    public static Uri resolveAudioUri(Context context, AmbientTrack track)
+    {
+        Uri local = getLocalUri(context, track);
+
+        if(local != null)
+        {
+            return local;
+        }
+
+        return track.getVariantCount() > 0
+                ? AmbientBandwidthMeter.getInstance().selectVariant(track) : track.getAudioUri();
+    }
+
+    /**
+     * Method used to open a connection. Override to route downloads to a local HTTP stand-in.
+     * @param url The download url
+     * @return An unconnected HttpURLConnection
+     * @throws IOException if the connection cannot be opened
+     */
+    protected HttpURLConnection openConnection(URL url) throws IOException
+    {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    /**
+     * Helper method used to submit a download unless it is active or complete
+     * @param key Key of the download
+     * @param track The AmbientTrack
+     */
+    private void start(String key, AmbientTrack track)
+    {
+        if(mDownloads.containsKey(key) || new File(mDirectory, key).exists())
+        {
+            return;
+        }
+
+        Download download = new Download(key, track);
+        mDownloads.put(key, download);
+        mExecutor.execute(download);
+    }
+
+    /**
+     * Helper method used to reserve space for a download
+     * @param key Key of the download
+     * @param bytes Size of the download
+     * @return false if the download does not fit in the quota
+     */
+    private synchronized boolean reserve(String key, long bytes)
+    {
+        long used = mReservedBytes;
+        File[] files = mDirectory.listFiles();
+
+        if(files != null)
+        {
+            for(File file : files)
+            {
+                String name = file.getName();
+                String fileKey = name.endsWith(PART_SUFFIX)
+                        ? name.substring(0, name.length() - PART_SUFFIX.length()) : name;
+
+                if(!fileKey.equals(key) && !mDownloads.containsKey(fileKey))
+                {
+                    used += file.length(); // active downloads are counted by their reservation
+                }
+            }
+        }
+
+        if(used + bytes > mQuotaBytes)
+        {
+            return false;
+        }
+
+        mReservedBytes += bytes;
+
+        return true;
+    }
+
+    /**
+     * Helper method used to free the space reserved by a download
+     * @param bytes Reserved size
+     */
+    private synchronized void release(long bytes)
+    {
+        mReservedBytes -= bytes;
+    }
+
+    /**
+     * Helper method that returns the download directory
+     * @param context A context object
+     * @return The directory
+     */
+    private static File getDirectory(Context context)
+    {
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+
+        if(!directory.exists() && !directory.mkdirs())
+        {
+            Log.e(TAG, "Cannot create " + directory);
+        }
+
+        return directory;
+    }
+
+    /**
+     * Helper method that returns the file name of a download. It is derived from the download uri,
+     * so the players find the file without the journal.
+     * @param track The AmbientTrack
+     * @return The key or null if the track has no audioDownloadUri
+     */
+    private static String getKey(AmbientTrack track)
+    {
+        if(track == null || track.getAudioDownloadUri() == null || Uri.EMPTY.equals(track.getAudioDownloadUri()))
+        {
+            return null;
+        }
+
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(track.getAudioDownloadUri().toString().getBytes("UTF-8"));
+
+            StringBuilder key = new StringBuilder(digest.length * 2);
+
+            for(byte value : digest)
+            {
+                key.append(Character.forDigit((value >> 4) & 0xF, 16)).append(Character.forDigit(value & 0xF, 16));
+            }
+
+            return key.toString();
+        }catch (Exception e)
+        {
+            throw new IllegalStateException(TAG + ": cannot hash " + track.getAudioDownloadUri(), e);
+        }
+    }
+
+    /**
+     * Helper method used to delete a file
+     * @param file The file
+     */
+    private static void deleteFile(File file)
+    {
+        if(file.exists() && !file.delete())
+        {
+            Log.e(TAG, "Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Helper method used to read a long header
+     * @param connection The connection
+     * @param name Header name
+     * @return The value or -1
+     */
+    private static long getLongHeader(HttpURLConnection connection, String name)
+    {
+        try
+        {
+            String value = connection.getHeaderField(name);
+
+            return value == null ? -1 : Long.parseLong(value.trim());
+        }catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Helper method used to read the total size from a Content-Range header (bytes a-b/total)
+     * @param connection The connection
+     * @return The total size or -1
+     */
+    private static long getRangeTotal(HttpURLConnection connection)
+    {
+        String range = connection.getHeaderField("Content-Range");
+
+        if(range == null || range.endsWith("/*"))
+        {
+            return -1;
+        }
+
+        try
+        {
+            return Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+        }catch (Exception e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * A download of a pinned track. Runs on the executor.
+     */
+    private final class Download implements Runnable
+    {
+        private final String mKey;
+        private final AmbientTrack mTrack;
+        private volatile boolean isCancelled = false;
+
+        /**
+         * Bytes of the quota reserved by this download
+         */
+        private long mReserved = 0;
+
+        Download(String key, AmbientTrack track)
+        {
+            mKey = key;
+            mTrack = track;
+        }
+
+        /**
+         * Method used to stop the download. The partial file is kept.
+         */
+        void cancel()
+        {
+            isCancelled = true;
+        }
+
+        @Override
+        public void run() {
+            if(isCancelled)
+            {
+                return; // unpinned before it started
+            }
+
+            try
+            {
+                download();
+            }catch (final Exception e)
+            {
+                Log.e(TAG, "Download of " + mTrack.getAudioDownloadUri() + " failed: " + e.getMessage());
+
+                if(!isCancelled)
+                {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if(mListener != null)
+                            {
+                                mListener.onDownloadFailed(mTrack, e);
+                            }
+                        }
+                    });
+                }
+            }finally
+            {
+                mDownloads.remove(mKey, this); // a download of a new pin may hold the key
+                release(mReserved);
+            }
+        }
+
+        /**
+         * Helper method that downloads the track, resuming from the partial file
+         * @throws Exception if the download fails or does not fit in the quota
+         */
+        private void download() throws Exception
+        {
+            File part = new File(mDirectory, mKey + PART_SUFFIX);
+            long offset = part.length();
+            long total;
+            String validator = mJournal.getString(VALIDATOR_PREFIX + mKey, null);
+
+            HttpURLConnection connection = openConnection(new URL(mTrack.getAudioDownloadUri().toString()));
+
+            try
+            {
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+
+                if(offset > 0)
+                {
+                    connection.setRequestProperty("Range", "bytes=" + offset + "-");
+
+                    if(validator != null)
+                    {
+                        connection.setRequestProperty("If-Range", validator); // restart if the file changed
+                    }
+                }
+
+                int code = connection.getResponseCode();
+
+                if(code == HttpURLConnection.HTTP_PARTIAL && offset > 0)
+                {
+                    total = getRangeTotal(connection);
+                }
+                else if(code == HTTP_RANGE_NOT_SATISFIABLE && offset > 0)
+                {
+                    total = offset; // the partial file already holds the whole track
+                }
+                else if(code == HttpURLConnection.HTTP_OK)
+                {
+                    offset = 0; // the server ignored the range or the file changed
+                    total = getLongHeader(connection, "Content-Length");
+                    saveValidator(connection);
+                }
+                else
+                {
+                    throw new IOException(TAG + ": HTTP " + code + " for " + mTrack.getAudioDownloadUri());
+                }
+
+                grow(Math.max(total, offset));
+
+                if(code != HTTP_RANGE_NOT_SATISFIABLE)
+                {
+                    offset = copy(connection.getInputStream(), part, offset, total);
+                }
+            }finally
+            {
+                connection.disconnect();
+            }
+
+            if(isCancelled)
+            {
+                return;
+            }
+
+            if(total >= 0 && offset != total)
+            {
+                throw new IOException(TAG + ": connection closed at " + offset + " of " + total + " bytes");
+            }
+
+            if(!part.renameTo(new File(mDirectory, mKey)))
+            {
+                throw new IOException(TAG + ": cannot move " + part);
+            }
+
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(mListener != null)
+                    {
+                        mListener.onDownloadCompleted(mTrack);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Helper method used to grow the reservation of this download
+         * @param bytes Size the download needs
+         * @throws IllegalStateException if the quota is full
+         */
+        private void grow(long bytes)
+        {
+            if(bytes <= mReserved)
+            {
+                return;
+            }
+
+            if(!reserve(mKey, bytes - mReserved))
+            {
+                throw new IllegalStateException(TAG + ": the download quota of " + mQuotaBytes + " bytes is full");
+            }
+
+            mReserved = bytes;
+        }
+
+        /**
+         * Helper method used to append the response body to the partial file
+         * @param input The response body
+         * @param part The partial file
+         * @param offset Bytes already on disk
+         * @param total Size of the download or -1. A download of unknown size grows its
+         *              reservation while it is written.
+         * @return Bytes on disk
+         * @throws IOException if the body cannot be read or written
+         */
+        private long copy(InputStream input, File part, long offset, long total) throws IOException
+        {
+            FileOutputStream output = new FileOutputStream(part, offset > 0);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long lastProgress = offset;
+            long lastTime = SystemClock.elapsedRealtime();
+
+            try
+            {
+                int read;
+
+                while (!isCancelled && (read = input.read(buffer)) != -1)
+                {
+                    output.write(buffer, 0, read);
+                    offset += read;
+
+                    if(offset - lastProgress >= PROGRESS_INTERVAL)
+                    {
+                        long now = SystemClock.elapsedRealtime();
+                        AmbientBandwidthMeter.getInstance().addSample(offset - lastProgress, now - lastTime);
+
+                        lastProgress = offset;
+                        lastTime = now;
+
+                        if(total < 0)
+                        {
+                            grow(offset + PROGRESS_INTERVAL);
+                        }
+
+                        postProgress(offset, total);
+                    }
+                }
+
+                output.getFD().sync(); // the partial file is the persisted progress
+            }finally
+            {
+                output.close();
+                input.close();
+            }
+
+            postProgress(offset, total);
+
+            return offset;
+        }
+
+        /**
+         * Helper method used to store the validator of a download for later range requests
+         * @param connection The connection
+         */
+        private void saveValidator(HttpURLConnection connection)
+        {
+            String validator = connection.getHeaderField("ETag");
+
+            if(validator == null)
+            {
+                validator = connection.getHeaderField("Last-Modified");
+            }
+
+            SharedPreferences.Editor editor = mJournal.edit();
+
+            if(validator == null)
+            {
+                editor.remove(VALIDATOR_PREFIX + mKey);
+            }
+            else
+            {
+                editor.putString(VALIDATOR_PREFIX + mKey, validator);
+            }
+
+            editor.apply();
+        }
+
+        /**
+         * Helper method used to post a progress callback
+         * @param bytes Bytes on disk
+         * @param total Size of the download or -1
+         */
+        private void postProgress(final long bytes, final long total)
+        {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(mListener != null)
+                    {
+                        mListener.onDownloadProgress(mTrack, bytes, total);
+                    }
+                }
+            });
+        }
+    }
+}
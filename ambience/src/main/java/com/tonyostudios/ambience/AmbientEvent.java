@@ -0,0 +1,191 @@
+package com.tonyostudios.ambience;
+
+import android.os.SystemClock;
+
+/**
+ * An AmbientEvent is a single typed playback event emitted by the AmbientEventStream.
+ * Events are immutable and are created by Ambience when an update is received from
+ * the AmbientService.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public final class AmbientEvent {
+
+    /**
+     * AmbientEvent types
+     */
+    public static enum Type
+    {
+        STATE,
+        PROGRESS,
+        TRACK,
+        ERROR,
+        BUFFERING
+    }
+
+    /**
+     * The type of this event
+     */
+    private final Type mType;
+
+    /**
+     * Playback state carried by STATE and ERROR events
+     */
+    private final AmbientService.PlaybackState mState;
+
+    /**
+     * Track progress carried by PROGRESS events
+     */
+    private final int mProgress;
+
+    /**
+     * Track duration carried by PROGRESS events
+     */
+    private final int mDuration;
+
+    /**
+     * Track carried by TRACK events
+     */
+    private final AmbientTrack mTrack;
+
+    /**
+     * Buffered percentage carried by BUFFERING events
+     */
+    private final int mBufferedPercent;
+
+    /**
+     * Time the event was created, in milliseconds since boot
+     */
+    private final long mTimestamp;
+
+    /**
+     * private constructor
+     */
+    private AmbientEvent(Type type, AmbientService.PlaybackState state, int progress, int duration,
+                         AmbientTrack track, int bufferedPercent)
+    {
+        mType = type;
+        mState = state;
+        mProgress = progress;
+        mDuration = duration;
+        mTrack = track;
+        mBufferedPercent = bufferedPercent;
+        mTimestamp = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Creates a STATE event
+     * @param state The new playback state
+     * @return A new AmbientEvent
+     */
+    static AmbientEvent state(AmbientService.PlaybackState state)
+    {
+        return new AmbientEvent(Type.STATE, state, -1, -1, null, -1);
+    }
+
+    /**
+     * Creates a PROGRESS event
+     * @param progress Current progress of the track
+     * @param duration Track duration time
+     * @return A new AmbientEvent
+     */
+    static AmbientEvent progress(int progress, int duration)
+    {
+        return new AmbientEvent(Type.PROGRESS, null, progress, duration, null, -1);
+    }
+
+    /**
+     * Creates a TRACK event
+     * @param track The current playing track
+     * @return A new AmbientEvent
+     */
+    static AmbientEvent track(AmbientTrack track)
+    {
+        return new AmbientEvent(Type.TRACK, null, -1, -1, track, -1);
+    }
+
+    /**
+     * Creates an ERROR event
+     * @return A new AmbientEvent
+     */
+    static AmbientEvent error()
+    {
+        return new AmbientEvent(Type.ERROR, AmbientService.PlaybackState.ERROR, -1, -1, null, -1);
+    }
+
+    /**
+     * Creates a BUFFERING event
+     * @param bufferedPercent Percentage of the current track that has been buffered
+     * @return A new AmbientEvent
+     */
+    static AmbientEvent buffering(int bufferedPercent)
+    {
+        return new AmbientEvent(Type.BUFFERING, null, -1, -1, null, bufferedPercent);
+    }
+
+    /**
+     * Method that returns the event type
+     * @return Event type
+     */
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * Method that returns the playback state of a STATE or ERROR event
+     * @return Playback state or null for other event types
+     */
+    public AmbientService.PlaybackState getState() {
+        return mState;
+    }
+
+    /**
+     * Method that returns the track progress of a PROGRESS event
+     * @return Track progress or -1 for other event types
+     */
+    public int getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * Method that returns the track duration of a PROGRESS event
+     * @return Track duration or -1 for other event types
+     */
+    public int getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Method that returns the track of a TRACK event
+     * @return Current playing track or null for other event types
+     */
+    public AmbientTrack getTrack() {
+        return mTrack;
+    }
+
+    /**
+     * Method that returns the buffered percentage of a BUFFERING event
+     * @return Buffered percentage or -1 for other event types
+     */
+    public int getBufferedPercent() {
+        return mBufferedPercent;
+    }
+
+    /**
+     * Method that returns the time the event was created
+     * @return Milliseconds since boot
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "AmbientEvent{" + mType
+                + (mState != null ? ", state=" + mState : "")
+                + (mProgress >= 0 ? ", progress=" + mProgress + ", duration=" + mDuration : "")
+                + (mTrack != null ? ", track=" + mTrack.getName() : "")
+                + (mBufferedPercent >= 0 ? ", buffered=" + mBufferedPercent : "")
+                + "}";
+    }
+}
@@ -0,0 +1,477 @@
+package com.tonyostudios.ambience;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AmbientEventStream is a publisher of typed AmbientEvents that follows the reactive-streams
+ * contract (onSubscribe, request(n), onNext, onError, onComplete). Subscribers control how many
+ * events they receive through their Subscription.
+ *
+ * Events are never queued without limit for a slow subscriber. PROGRESS and BUFFERING events
+ * are conflated (latest wins), so a subscriber that has not requested more events only ever
+ * holds the newest one. STATE, TRACK and ERROR events are buffered in order up to
+ * MAX_BUFFERED_EVENTS, after which the oldest buffered event is dropped.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public class AmbientEventStream {
+
+    /**
+     * Tag used to identify the AmbientEventStream
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientEventStream";
+
+    /**
+     * Maximum number of buffered (non conflated) events held per subscriber
+     */
+    public static final int MAX_BUFFERED_EVENTS = 128;
+
+    /**
+     * Backpressure strategies applied to an event type when a subscriber has no demand
+     */
+    public static enum BackpressureStrategy
+    {
+        BUFFER,
+        LATEST
+    }
+
+    /**
+     * Executor that delivers events on the thread that publishes them
+     */
+    private static final Executor IMMEDIATE_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    /**
+     * Holds all active subscriptions
+     */
+    private final CopyOnWriteArrayList<EventSubscription> mSubscriptions =
+            new CopyOnWriteArrayList<EventSubscription>();
+
+    /**
+     * Boolean value used to indicate if the stream has completed
+     */
+    private volatile boolean isCompleted = false;
+
+    /**
+     * Method used to get the backpressure strategy of an event type
+     * @param type Event type
+     * @return LATEST for high frequency events, BUFFER for everything else
+     */
+    public static BackpressureStrategy strategyFor(AmbientEvent.Type type)
+    {
+        switch (type)
+        {
+            case PROGRESS:
+            case BUFFERING:
+                return BackpressureStrategy.LATEST;
+            default:
+                return BackpressureStrategy.BUFFER;
+        }
+    }
+
+    /**
+     * Subscribes to the stream. Events are delivered on the thread that publishes them,
+     * which is the main thread for events received from the AmbientService.
+     * @param subscriber The subscriber
+     */
+    public void subscribe(Subscriber subscriber)
+    {
+        subscribe(subscriber, IMMEDIATE_EXECUTOR);
+    }
+
+    /**
+     * Subscribes to the stream. Events are delivered serially on the passed executor.
+     * @param subscriber The subscriber
+     * @param executor Executor used to deliver events to the subscriber
+     */
+    public void subscribe(Subscriber subscriber, Executor executor)
+    {
+        if(subscriber == null)
+        {
+            throw new NullPointerException(TAG + ": subscriber cannot be null");
+        }
+
+        if(executor == null)
+        {
+            throw new NullPointerException(TAG + ": executor cannot be null");
+        }
+
+        EventSubscription subscription = new EventSubscription(subscriber, executor);
+        subscriber.onSubscribe(subscription);
+
+        if(isCompleted)
+        {
+            subscription.complete();
+            return;
+        }
+
+        mSubscriptions.add(subscription);
+
+        if(subscription.isCancelled)
+        {
+            mSubscriptions.remove(subscription); // cancelled in onSubscribe or while it was added
+        }
+    }
+
+    /**
+     * Method used to check if the stream has any subscribers
+     * @return boolean value indicating if there are subscribers
+     */
+    public boolean hasSubscribers()
+    {
+        return !mSubscriptions.isEmpty();
+    }
+
+    /**
+     * Publishes an event to all subscribers
+     * @param event The event to publish
+     */
+    void publish(AmbientEvent event)
+    {
+        if(event == null || isCompleted)
+        {
+            return;
+        }
+
+        for(EventSubscription subscription : mSubscriptions)
+        {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Completes the stream. All subscribers receive onComplete once their buffered events
+     * have been delivered.
+     */
+    void complete()
+    {
+        isCompleted = true;
+
+        for(EventSubscription subscription : mSubscriptions)
+        {
+            subscription.complete();
+        }
+
+        mSubscriptions.clear();
+    }
+
+    /**
+     * Subscription handed to each subscriber. Holds the subscriber demand and its pending events.
+     */
+    private final class EventSubscription implements Subscription, Runnable
+    {
+        private final Subscriber mSubscriber;
+        private final Executor mExecutor;
+
+        /**
+         * Pending events. Conflated event types are queued as a LatestSlot.
+         */
+        private final ArrayDeque<Object> mQueue = new ArrayDeque<Object>();
+
+        /**
+         * Slots for conflated events that are queued but not yet delivered, indexed by type
+         */
+        private final LatestSlot[] mLatestSlots = new LatestSlot[AmbientEvent.Type.values().length];
+
+        /**
+         * Work-in-progress counter used to serialize delivery
+         */
+        private final AtomicInteger mWip = new AtomicInteger();
+
+        private long mRequested = 0;
+        private int mBufferedCount = 0;
+        private boolean isDone = false;
+        private volatile boolean isCancelled = false;
+        private Throwable mError;
+
+        EventSubscription(Subscriber subscriber, Executor executor)
+        {
+            mSubscriber = subscriber;
+            mExecutor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0)
+            {
+                synchronized (this)
+                {
+                    mError = new IllegalArgumentException(TAG + ": request must be positive, was " + n);
+                    isDone = true;
+                }
+            }
+            else
+            {
+                synchronized (this)
+                {
+                    mRequested += n;
+
+                    if(mRequested < 0)
+                    {
+                        mRequested = Long.MAX_VALUE;
+                    }
+                }
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            isCancelled = true;
+            mSubscriptions.remove(this);
+
+            synchronized (this)
+            {
+                mQueue.clear();
+            }
+        }
+
+        /**
+         * Queues an event for this subscriber using the event type backpressure strategy
+         * @param event The event to queue
+         */
+        void offer(AmbientEvent event)
+        {
+            if(isCancelled)
+            {
+                return;
+            }
+
+            synchronized (this)
+            {
+                if(isDone)
+                {
+                    return;
+                }
+
+                if(strategyFor(event.getType()) == BackpressureStrategy.LATEST)
+                {
+                    int index = event.getType().ordinal();
+
+                    if(mLatestSlots[index] != null)
+                    {
+                        mLatestSlots[index].event = event;
+                    }
+                    else
+                    {
+                        LatestSlot slot = new LatestSlot(event);
+                        mLatestSlots[index] = slot;
+                        mQueue.offer(slot);
+                    }
+                }
+                else
+                {
+                    if(mBufferedCount >= MAX_BUFFERED_EVENTS)
+                    {
+                        dropOldestBufferedEvent();
+                    }
+
+                    mQueue.offer(event);
+                    mBufferedCount++;
+                }
+            }
+
+            schedule();
+        }
+
+        /**
+         * Signals completion once all pending events have been delivered
+         */
+        void complete()
+        {
+            synchronized (this)
+            {
+                isDone = true;
+            }
+
+            schedule();
+        }
+
+        /**
+         * Helper method used to drop the oldest buffered event when the buffer is full
+         */
+        private void dropOldestBufferedEvent()
+        {
+            for(Iterator<Object> it = mQueue.iterator(); it.hasNext();)
+            {
+                if(it.next() instanceof AmbientEvent)
+                {
+                    it.remove();
+                    mBufferedCount--;
+                    Log.w(TAG, "Subscriber is not keeping up. Dropped the oldest buffered event");
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Schedules a delivery pass if one is not already running
+         */
+        private void schedule()
+        {
+            if(mWip.getAndIncrement() == 0)
+            {
+                mExecutor.execute(this);
+            }
+        }
+
+        /**
+         * Delivers as many pending events as the subscriber has requested
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+
+            do
+            {
+                while (!isCancelled)
+                {
+                    AmbientEvent event;
+                    Throwable error = null;
+                    boolean completed = false;
+
+                    synchronized (this)
+                    {
+                        event = null;
+
+                        if(mError != null)
+                        {
+                            error = mError;
+                        }
+                        else if(mRequested > 0 && !mQueue.isEmpty())
+                        {
+                            Object next = mQueue.poll();
+
+                            if(next instanceof LatestSlot)
+                            {
+                                LatestSlot slot = (LatestSlot) next;
+                                event = slot.event;
+                                mLatestSlots[event.getType().ordinal()] = null;
+                            }
+                            else
+                            {
+                                event = (AmbientEvent) next;
+                                mBufferedCount--;
+                            }
+
+                            if(mRequested != Long.MAX_VALUE)
+                            {
+                                mRequested--;
+                            }
+                        }
+                        else if(isDone && mQueue.isEmpty())
+                        {
+                            completed = true;
+                        }
+                    }
+
+                    if(error != null)
+                    {
+                        isCancelled = true;
+                        mSubscriptions.remove(this);
+                        mSubscriber.onError(error);
+                        return;
+                    }
+
+                    if(completed)
+                    {
+                        isCancelled = true;
+                        mSubscriptions.remove(this);
+                        mSubscriber.onComplete();
+                        return;
+                    }
+
+                    if(event == null)
+                    {
+                        break;
+                    }
+
+                    try
+                    {
+                        mSubscriber.onNext(event);
+                    }catch (Exception e)
+                    {
+                        e.printStackTrace();
+                        Log.e(TAG, "Subscriber threw an exception. Cancelling subscription: " + e.getMessage());
+                        cancel();
+                        return;
+                    }
+                }
+
+                missed = mWip.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+    }
+
+    /**
+     * Holder used to conflate events of the same type while they wait for demand
+     */
+    private static final class LatestSlot
+    {
+        AmbientEvent event;
+
+        LatestSlot(AmbientEvent event)
+        {
+            this.event = event;
+        }
+    }
+
+    /**
+     * Receives events from an AmbientEventStream. Follows the reactive-streams Subscriber contract.
+     */
+    public static interface Subscriber {
+
+        /**
+         * Called once when the subscriber is subscribed. No events are delivered until
+         * Subscription.request is called.
+         * @param subscription The subscription used to request events or cancel
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * Called for each requested event
+         * @param event The next event
+         */
+        public void onNext(AmbientEvent event);
+
+        /**
+         * Called when the subscription failed. No further events are delivered.
+         * @param error The error
+         */
+        public void onError(Throwable error);
+
+        /**
+         * Called when the stream has completed, for example after Ambience.turnOff.
+         */
+        public void onComplete();
+    }
+
+    /**
+     * Links a Subscriber to an AmbientEventStream. Follows the reactive-streams Subscription contract.
+     */
+    public static interface Subscription {
+
+        /**
+         * Requests more events
+         * @param n Number of events to request. Must be positive. Long.MAX_VALUE means unbounded.
+         */
+        public void request(long n);
+
+        /**
+         * Stops the delivery of events and releases pending events
+         */
+        public void cancel();
+    }
+}
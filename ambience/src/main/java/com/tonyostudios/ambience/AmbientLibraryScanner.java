@@ -0,0 +1,614 @@
+package com.tonyostudios.ambience;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The AmbientLibraryScanner builds AmbientTracks from the audio files of local directories,
+ * so apps do not need their own crawler.
+ *
+ * <pre>AmbientLibraryScanner scanner = new AmbientLibraryScanner(context, 4);
+ * scanner.setScanListener(listener);
+ * scanner.scan(new File[]{Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_MUSIC)});</pre>
+ *
+ * Directories are walked in parallel: every directory is a task of a bounded pool, and the
+ * tasks of its subdirectories are queued as it is listed. Tags are read in pure Java by the
+ * AmbientTagReader. Hidden directories and directories with a .nomedia file are skipped.
+ *
+ * The scan is incremental. The tags of every file are kept in an index in the private files
+ * directory of the app, and a file whose size and modification time did not change is not read
+ * again. The tracks of a scan are streamed to the listener in batches as they are found.
+ *
+ * Create and use the scanner from the main thread. Listener methods are called on the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public class AmbientLibraryScanner {
+
+    /**
+     * Tag used to identify the AmbientLibraryScanner
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientLibraryScanner";
+
+    /**
+     * Name of the index file inside the files directory of the app
+     */
+    private static final String INDEX_FILE = "ambience_library.index";
+
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Number of characters of a tag kept in the index
+     */
+    private static final int MAX_TAG_LENGTH = 1024;
+
+    /**
+     * Number of tracks of a batch
+     */
+    private static final int BATCH_SIZE = 250;
+
+    /**
+     * Extensions of the scanned files
+     */
+    private static final Set<String> EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "mp3", "ogg", "oga", "opus", "flac", "m4a", "aac", "wav"));
+
+    /**
+     * Callback interface of the AmbientLibraryScanner
+     */
+    public interface ScanListener
+    {
+        /**
+         * Called with the next batch of tracks of a scan
+         * @param tracks The AmbientTracks
+         */
+        void onTracksScanned(List<AmbientTrack> tracks);
+
+        /**
+         * Called when a scan is complete
+         * @param trackCount Number of tracks found
+         * @param readCount Number of new or changed files that were read
+         */
+        void onScanCompleted(int trackCount, int readCount);
+    }
+
+    private final File mIndexFile;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Tag readers of the pool threads
+     */
+    private final ThreadLocal<AmbientTagReader> mReaders = new ThreadLocal<AmbientTagReader>() {
+        @Override
+        protected AmbientTagReader initialValue() {
+            return new AmbientTagReader();
+        }
+    };
+
+    private ScanListener mListener;
+    private Scan mScan;
+
+    /**
+     * constructor
+     * @param context A context object
+     * @param threads Number of directories scanned in parallel
+     */
+    public AmbientLibraryScanner(Context context, int threads)
+    {
+        if(context == null)
+        {
+            throw new NullPointerException(TAG + ": context cannot be null");
+        }
+
+        if(threads <= 0)
+        {
+            throw new IllegalStateException(TAG + ": threads must be positive");
+        }
+
+        mIndexFile = new File(context.getApplicationContext().getFilesDir(), INDEX_FILE);
+        mExecutor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Method used to set the ScanListener
+     * @param listener The ScanListener
+     */
+    public void setScanListener(ScanListener listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * Method used to scan directories for audio files. A running scan is cancelled.
+     * @param directories The directories
+     */
+    public void scan(File[] directories)
+    {
+        if(directories == null)
+        {
+            throw new NullPointerException(TAG + ": directories cannot be null");
+        }
+
+        cancel();
+
+        final Scan scan = new Scan();
+        mScan = scan;
+
+        //the first task loads the index, then walks the directories
+        scan.mPendingTasks.set(1);
+        final File[] roots = directories.clone();
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                scan.mOldIndex = loadIndex();
+
+                for(File root : roots)
+                {
+                    if(root != null)
+                    {
+                        scan.submit(root);
+                    }
+                }
+
+                scan.onTaskDone();
+            }
+        });
+    }
+
+    /**
+     * Method used to cancel the running scan. Tracks that were found are not delivered.
+     */
+    public void cancel()
+    {
+        if(mScan != null)
+        {
+            mScan.isCancelled = true;
+            mScan = null;
+        }
+    }
+
+    /**
+     * Method used to stop scanning and release the threads
+     */
+    public void shutdown()
+    {
+        cancel();
+        mListener = null;
+        mExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Helper method used to load the index of the last scan
+     * @return The entries by path
+     */
+    private Map<String, Entry> loadIndex()
+    {
+        Map<String, Entry> index = new HashMap<String, Entry>();
+
+        if(!mIndexFile.exists())
+        {
+            return index;
+        }
+
+        DataInputStream input = null;
+
+        try
+        {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+
+            if(input.readInt() != INDEX_VERSION)
+            {
+                return index;
+            }
+
+            int count = input.readInt();
+
+            for(int x = 0; x < count; x++)
+            {
+                Entry entry = new Entry();
+                entry.path = input.readUTF();
+                entry.size = input.readLong();
+                entry.modified = input.readLong();
+                entry.tags.title = input.readUTF();
+                entry.tags.artist = input.readUTF();
+                entry.tags.album = input.readUTF();
+                entry.tags.genre = input.readUTF();
+                entry.tags.trackNumber = input.readInt();
+                entry.tags.duration = input.readInt();
+                index.put(entry.path, entry);
+            }
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage() + ""); // a damaged index is a full scan
+            index.clear();
+        }finally
+        {
+            close(input);
+        }
+
+        return index;
+    }
+
+    /**
+     * Helper method used to save the index of a complete scan. The file is replaced atomically.
+     * @param entries The entries of the scan
+     */
+    private void saveIndex(Map<String, Entry> entries)
+    {
+        File temporary = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream output = null;
+
+        try
+        {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            output.writeInt(INDEX_VERSION);
+            output.writeInt(entries.size());
+
+            for(Entry entry : entries.values())
+            {
+                output.writeUTF(entry.path);
+                output.writeLong(entry.size);
+                output.writeLong(entry.modified);
+                output.writeUTF(clip(entry.tags.title));
+                output.writeUTF(clip(entry.tags.artist));
+                output.writeUTF(clip(entry.tags.album));
+                output.writeUTF(clip(entry.tags.genre));
+                output.writeInt(entry.tags.trackNumber);
+                output.writeInt(entry.tags.duration);
+            }
+
+            output.close();
+            output = null;
+
+            if(!temporary.renameTo(mIndexFile))
+            {
+                throw new IOException(TAG + ": cannot replace " + mIndexFile);
+            }
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage() + "");
+        }finally
+        {
+            close(output);
+        }
+    }
+
+    /**
+     * Helper method used to build the AmbientTrack of a file
+     * @param entry The index entry of the file
+     * @return The AmbientTrack
+     */
+    private static AmbientTrack createTrack(Entry entry)
+    {
+        File file = new File(entry.path);
+        String name = entry.tags.title;
+
+        if(name.length() == 0)
+        {
+            name = file.getName();
+            name = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+        }
+
+        ArrayList<String> genres = new ArrayList<String>();
+
+        if(entry.tags.genre.length() > 0)
+        {
+            genres.add(entry.tags.genre);
+        }
+
+        return AmbientTrack.newInstance()
+                .setName(name)
+                .setArtistName(entry.tags.artist)
+                .setAlbumName(entry.tags.album)
+                .setGenres(genres)
+                .setPosition(entry.tags.trackNumber)
+                .setDuration(entry.tags.duration)
+                .setAudioUri(Uri.fromFile(file));
+    }
+
+    /**
+     * Helper method used to clip a tag to the length the index keeps
+     * @param tag The tag
+     * @return The tag or its first MAX_TAG_LENGTH characters
+     */
+    private static String clip(String tag)
+    {
+        return tag.length() > MAX_TAG_LENGTH ? tag.substring(0, MAX_TAG_LENGTH) : tag;
+    }
+
+    /**
+     * Helper method used to get the lower case extension of a file name
+     * @param name The file name
+     * @return The extension or an empty string
+     */
+    private static String getExtension(String name)
+    {
+        int dot = name.lastIndexOf('.');
+
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase();
+    }
+
+    /**
+     * Helper method used to close a stream
+     * @param stream The stream or null
+     */
+    private static void close(Closeable stream)
+    {
+        try
+        {
+            if(stream != null)
+            {
+                stream.close();
+            }
+        }catch (IOException e)
+        {
+            Log.e(TAG, e.getMessage() + "");
+        }
+    }
+
+    /**
+     * An index entry: the size and modification time of a file and its tags
+     */
+    private static final class Entry
+    {
+        String path;
+        long size;
+        long modified;
+        AmbientTagReader.Tags tags = new AmbientTagReader.Tags();
+    }
+
+    /**
+     * The state of one scan, shared by its directory tasks
+     */
+    private final class Scan
+    {
+        volatile boolean isCancelled = false;
+
+        /**
+         * Index of the last scan. Written by the first task before any directory task runs.
+         */
+        volatile Map<String, Entry> mOldIndex;
+
+        /**
+         * Index of this scan
+         */
+        final Map<String, Entry> mNewIndex = new ConcurrentHashMap<String, Entry>();
+
+        /**
+         * Canonical paths of the visited directories, so links cannot loop
+         */
+        final Set<String> mVisited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        final AtomicInteger mPendingTasks = new AtomicInteger();
+        final AtomicInteger mReadCount = new AtomicInteger();
+
+        /**
+         * Tracks of the next batch. Guarded by itself.
+         */
+        final List<AmbientTrack> mBatch = new ArrayList<AmbientTrack>();
+
+        /**
+         * Method used to queue the task of a directory
+         * @param directory The directory
+         */
+        void submit(final File directory)
+        {
+            mPendingTasks.incrementAndGet();
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                    try
+                    {
+                        if(!isCancelled)
+                        {
+                            scanDirectory(directory);
+                        }
+                    }catch (Exception e)
+                    {
+                        e.printStackTrace();
+                        Log.e(TAG, e.getMessage() + "");
+                    }
+
+                    onTaskDone();
+                }
+            });
+        }
+
+        /**
+         * Helper method used to list a directory. Subdirectories are queued, files are read.
+         * @param directory The directory
+         * @throws IOException if the path of the directory cannot be resolved
+         */
+        private void scanDirectory(File directory) throws IOException
+        {
+            File[] files = directory.listFiles();
+
+            if(files == null || new File(directory, ".nomedia").exists()
+                    || !mVisited.add(directory.getCanonicalPath()))
+            {
+                return;
+            }
+
+            ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>();
+
+            for(File file : files)
+            {
+                if(isCancelled)
+                {
+                    return;
+                }
+
+                if(file.getName().startsWith("."))
+                {
+                    continue;
+                }
+
+                if(file.isDirectory())
+                {
+                    submit(file);
+                }
+                else if(EXTENSIONS.contains(getExtension(file.getName())))
+                {
+                    Entry entry = getEntry(file);
+
+                    if(entry != null)
+                    {
+                        mNewIndex.put(entry.path, entry);
+                        tracks.add(createTrack(entry));
+                    }
+                }
+            }
+
+            addToBatch(tracks, false);
+        }
+
+        /**
+         * Helper method used to get the entry of a file. An unchanged file keeps the entry of the
+         * last scan, other files are read.
+         * @param file The file
+         * @return The entry or null if the file cannot be read
+         */
+        private Entry getEntry(File file)
+        {
+            String path = file.getAbsolutePath();
+            long size = file.length();
+            long modified = file.lastModified();
+            Entry entry = mOldIndex.get(path);
+
+            if(entry != null && entry.size == size && entry.modified == modified)
+            {
+                return entry;
+            }
+
+            entry = new Entry();
+            entry.path = path;
+            entry.size = size;
+            entry.modified = modified;
+
+            try
+            {
+                entry.tags = mReaders.get().read(file);
+            }catch (Exception e)
+            {
+                Log.e(TAG, path + ": " + e.getMessage()); // indexed without tags
+            }
+
+            mReadCount.incrementAndGet();
+
+            return entry;
+        }
+
+        /**
+         * Helper method used to add tracks to the batch. A full batch is delivered.
+         * @param tracks The tracks
+         * @param isLast Boolean value indicating if the scan is complete
+         */
+        private void addToBatch(List<AmbientTrack> tracks, boolean isLast)
+        {
+            List<AmbientTrack> batch = null;
+
+            synchronized (mBatch)
+            {
+                mBatch.addAll(tracks);
+
+                if(mBatch.size() >= BATCH_SIZE || (isLast && !mBatch.isEmpty()))
+                {
+                    batch = new ArrayList<AmbientTrack>(mBatch);
+                    mBatch.clear();
+                }
+            }
+
+            if(batch != null)
+            {
+                deliver(batch);
+            }
+        }
+
+        /**
+         * Helper method used to end a task. The last task completes the scan.
+         */
+        void onTaskDone()
+        {
+            if(mPendingTasks.decrementAndGet() != 0 || isCancelled)
+            {
+                return;
+            }
+
+            addToBatch(new ArrayList<AmbientTrack>(0), true);
+            saveIndex(mNewIndex);
+
+            final int trackCount = mNewIndex.size();
+            final int readCount = mReadCount.get();
+
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(mScan == Scan.this)
+                    {
+                        mScan = null;
+
+                        if(mListener != null)
+                        {
+                            mListener.onScanCompleted(trackCount, readCount);
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Helper method used to deliver a batch on the main thread
+         * @param batch The tracks
+         */
+        private void deliver(final List<AmbientTrack> batch)
+        {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(mScan == Scan.this && mListener != null)
+                    {
+                        mListener.onTracksScanned(batch);
+                    }
+                }
+            });
+        }
+    }
+}
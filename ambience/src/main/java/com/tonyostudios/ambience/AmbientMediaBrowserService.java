@@ -17,14 +17,16 @@ import android.media.Rating;
 import android.media.browse.MediaBrowser;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
-import android.net.wifi.WifiManager;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Parcelable;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.ResultReceiver;
+import android.provider.MediaStore;
 import android.service.media.MediaBrowserService;
 import android.util.Log;
 import android.view.KeyEvent;
@@ -33,8 +35,11 @@ import android.view.KeyEvent;
 import com.squareup.picasso.Picasso;
 import com.squareup.picasso.Target;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 /**
@@ -49,7 +54,11 @@ import java.util.List;
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class AmbientMediaBrowserService extends MediaBrowserService implements MediaPlayer.OnErrorListener,
         MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener,
-        AudioManager.OnAudioFocusChangeListener {
+        MediaPlayer.OnSeekCompleteListener, MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnInfoListener,
+        AudioManager.OnAudioFocusChangeListener,
+        AmbientServiceBinder.RequestHandler, AmbientCrossfader.Callback, AmbientMetadataProber.ProbeListener,
+        AmbientPlaylistPager.PageListener, AmbientPlaylistImporter.ImportListener,
+        AmbientMixer.LayerStatsListener {
 
 
     /**
@@ -57,6 +66,51 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
      */
     public final static String MEDIA_SESSION_TOKEN_TAG = AmbientService.TAG + ".MEDIA_SESSION_TOKEN_TAG";
 
+    /**
+     * Maximum number of library tracks queued by a voice search
+     */
+    private static final int MAX_SEARCH_RESULTS = 50;
+
+    /**
+     * Name the picked catalog group is registered under as a playlist source
+     */
+    private static final String CATALOG_SOURCE = "com.tonyostudios.ambience.CATALOG_GROUP";
+
+    /**
+     * Search index of the library registered with setSearchLibrary or null if there is none
+     */
+    private static volatile AmbientSearchIndex mLibraryIndex;
+
+    /**
+     * Catalog of a library too large for the heap. Searched and browsed through its mapped file.
+     */
+    private static volatile AmbientCatalog mLibraryCatalog;
+
+    /**
+     * Search index of the tracks in the playlist
+     */
+    private final AmbientSearchIndex mQueueIndex = new AmbientSearchIndex();
+
+    /**
+     * Browse hierarchy served to MediaBrowser clients
+     */
+    private AmbientBrowseTree mBrowseTree;
+
+    /**
+     * Library index the browse tree was last updated with
+     */
+    private AmbientSearchIndex mBrowsedLibrary;
+
+    /**
+     * Catalog the browse tree was last updated with
+     */
+    private AmbientCatalog mBrowsedCatalog;
+
+    /**
+     * Window of the playlist published as the queue of the MediaSession
+     */
+    private final AmbientQueueWindow mQueueWindow = new AmbientQueueWindow();
+
     /**
      * Holds the MediaSession object
      */
@@ -78,9 +132,37 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
     private Handler mHandler;
 
     /**
-     * Allows service to keep the wifi-radio on when needed
+     * Allows service to keep the wifi-radio on while a remote track is fetched
+     */
+    private AmbientWifiLock mWifiLock;
+
+    /**
+     * Boolean values used to indicate if the current track streams from the network and if
+     * it is completely buffered
+     */
+    private boolean isRemoteTrack = false;
+    private boolean isTrackBuffered = false;
+
+    /**
+     * Buffered percentage of the current track and the last one sent to Ambience
+     */
+    private int mBufferedPercent = 0;
+    private int mLastSentBufferedPercent = -1;
+
+    /**
+     * Time the current stall started or 0 if playback is not stalled
+     */
+    private long mStallStart = 0;
+
+    /**
+     * Play position when the current stall started. It is reported as the progress until the stall ends.
+     */
+    private int mStallPosition = 0;
+
+    /**
+     * Session state before the current stall
      */
-    private WifiManager.WifiLock mWifiLock;
+    private long mStateBeforeStall = PlaybackState.STATE_NONE;
 
     /**
      * Provides access to volume and ringer controls
@@ -93,9 +175,62 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
     private ArrayList<AmbientTrack> mOriginalPlaylist = new ArrayList<AmbientTrack>();
 
     /**
-     * ArrayList used to manage AmbientTracks sent to the AmbientService for processing
+     * List used to manage AmbientTracks sent to the AmbientService for processing
+     */
+    private List<AmbientTrack> mPlaylist = new ArrayList<AmbientTrack>();
+
+    /**
+     * Pages in the tracks of a playlist source. It is mPlaylist while a source is played, otherwise null.
+     */
+    private AmbientPlaylistPager mPager;
+
+    /**
+     * Supplier of the infinite queue or null if the queue ends with its last track
+     */
+    private AmbientPlaylistSource mQueueSupplier;
+
+    /**
+     * Number of upcoming tracks below which the supplier is asked for more
+     */
+    private int mRefillWatermark = 0;
+
+    /**
+     * Number of played tracks of the infinite queue kept before the play position
+     */
+    private int mHistoryLimit = 0;
+
+    /**
+     * Number of tracks the supplier handed out. It is the start of the next page.
+     */
+    private int mSuppliedCount = 0;
+
+    /**
+     * Incremented when the supplier or the playlist is replaced, so a page asked for earlier is dropped
+     */
+    private int mRefillGeneration = 0;
+
+    private boolean isRefilling = false;
+    private boolean isSupplierExhausted = false;
+
+    /**
+     * true when playback reached the end of the infinite queue and continues with the next page
      */
-    private ArrayList<AmbientTrack> mPlaylist = new ArrayList<AmbientTrack>();
+    private boolean isWaitingForRefill = false;
+
+    /**
+     * true when the track at the play position is paged in from the playlist source before it is prepared
+     */
+    private boolean isWaitingForPage = false;
+
+    /**
+     * Importer of the playlist file being read or null
+     */
+    private AmbientPlaylistImporter mImporter;
+
+    /**
+     * true when PLAY arrived before the first track of the playlist file was imported
+     */
+    private boolean isPlayPending = false;
 
     /**
      * Holds the current playing AmbientTrack
@@ -114,10 +249,139 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
     private String mActivityLauncher;
 
     /**
-     * The bundle passed to the IncomingRequestReceiver. This bundle may contain
-     * data or actions requested by the Ambience Class
+     * Holds the sequence number of the last request applied for each sender. Used to drop
+     * duplicate and out of order requests.
+     */
+    private HashMap<Long, Long> mRequestSequences = new HashMap<Long, Long>();
+
+    /**
+     * Sender and sequence number of the last applied request. Updates echo them, so Ambience can
+     * tell which of its requests a state follows. The sender is null until a request carries a sequence.
+     */
+    private Long mAppliedSender;
+    private long mAppliedSequence;
+
+    /**
+     * Sender and sequence number of the play request waiting for the first imported track
+     */
+    private Long mPendingPlaySender;
+    private long mPendingPlaySequence;
+
+    /**
+     * Reusable message used to decode incoming requests on the main thread
+     */
+    private final AmbientCodec.Message mRequest = new AmbientCodec.Message();
+
+    /**
+     * Binder returned to clients that bind with the AMBIENT_SERVICE_BINDER action
+     */
+    private AmbientServiceBinder mBinder;
+
+    /**
+     * Mixer of the layered playback mode. Created with the first layer.
+     */
+    private AmbientMixer mMixer;
+
+    /**
+     * Audio focus listener of the layers. It holds the focus while the layers play and the playlist
+     * does not. Android takes the focus from the other listeners of an app, so only one listener of
+     * the service holds it. While the playlist holds it, the layers follow its focus changes.
+     */
+    private final AudioManager.OnAudioFocusChangeListener mMixerFocusListener = new AudioManager.OnAudioFocusChangeListener() {
+        @Override
+        public void onAudioFocusChange(int focusChange) {
+            if(mMixer != null)
+            {
+                onMixerAudioFocusChange(focusChange);
+            }
+        }
+    };
+
+    /**
+     * Boolean values used to indicate which listener holds the audio focus
+     */
+    private boolean isPlaylistFocused = false;
+    private boolean isMixerFocused = false;
+
+    /**
+     * Boolean value used to indicate that another app took the audio focus from the layers.
+     * The layers do not take it back until a layer is added.
+     */
+    private boolean isMixerFocusLost = false;
+
+    /**
+     * Crossfader of the track transitions. Created with the first crossfade request.
+     */
+    private AmbientCrossfader mCrossfader;
+
+    /**
+     * Failure state of the hosts of the played tracks
+     */
+    private final AmbientCircuitBreaker mCircuitBreaker = new AmbientCircuitBreaker();
+
+    /**
+     * Durations of the playlist in play order
+     */
+    private final AmbientQueueTimeline mTimeline = new AmbientQueueTimeline();
+
+    /**
+     * Prober of the durations and tags the queued tracks are missing. Created by the first command.
+     */
+    private AmbientMetadataProber mProber;
+
+    /**
+     * Boolean value indicating if the media player is prepared and can seek
+     */
+    private boolean isPlayerPrepared = false;
+
+    /**
+     * Seek position applied when mPendingSeekTrack is prepared
+     */
+    private int mPendingSeek = 0;
+    private AmbientTrack mPendingSeekTrack;
+
+    /**
+     * Play position of a queue time seek whose track was not paged in yet or -1
+     */
+    private int mPendingSeekPosition = -1;
+
+    /**
+     * Retry policy of failed tracks. Set with Ambience.setRetryPolicyTo
+     */
+    private int mMaxRetries = AmbientService.DEFAULT_MAX_RETRIES;
+    private int mRetryDelay = AmbientService.DEFAULT_RETRY_DELAY;
+    private int mPrepareTimeout = AmbientService.DEFAULT_PREPARE_TIMEOUT;
+
+    /**
+     * Number of retries of mRetryTrack
+     */
+    private int mRetries = 0;
+    private AmbientTrack mRetryTrack;
+
+    /**
+     * Number of failed tracks skipped in a row
+     */
+    private int mSkippedTracks = 0;
+
+    /**
+     * Host of the current track or null if the track is local
+     */
+    private String mCurrentHost;
+
+    /**
+     * Boolean value used to indicate that the pending seek was made by a loop
+     */
+    private boolean isLoopSeek = false;
+
+    /**
+     * The last AmbientTrack sent to Ambience
+     */
+    private AmbientTrack mLastSentTrack;
+
+    /**
+     * Number of progress updates sent since the AmbientTrack was last sent
      */
-    private Bundle mBundle;
+    private int mProgressUpdates = 0;
 
     /**
      * Holds the current repeat mode for the playlist
@@ -145,7 +409,13 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
      */
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+
+        if(intent != null && AmbientService.AMBIENT_SERVICE_BINDER.equals(intent.getAction()))
+        {
+            return mBinder;
+        }
+
+        return super.onBind(intent); // MediaBrowser clients
     }
 
     /**
@@ -177,798 +447,2713 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
         @Override
         public void onReceive(Context context, Intent intent) {
 
-            if (intent == null || intent.getExtras() == null) {
+            if (intent == null || intent.getByteArrayExtra(AmbientCodec.MESSAGE) == null) {
                 Log.e(AmbientService.TAG, "Passed an empty intent to IncomingRequestBroadcaster");
                 return;
             }
 
-            mBundle = intent.getExtras();
-
-
-            if(mBundle.containsKey(AmbientService.ACTIVITY_LAUNCHER))
-            {
-                mActivityLauncher = mBundle.getString(AmbientService.ACTIVITY_LAUNCHER);
-                updateCardLaunchActivity();
-            }
-
-            if(mBundle.containsKey(AmbientService.VOLUME_LEVEL))
-            {
-                setVolumeTo(mBundle.getFloat(AmbientService.VOLUME_LEVEL,0.5f));
-            }
-
-            if(mBundle.containsKey(AmbientService.PLAYLIST))
-            {
-                createPlaylist();
-            }
-
-            if(mBundle.containsKey(AmbientService.PLAY_POSITION))
-            {
-                setPlayPosition();
-            }
-
-            if(mBundle.containsKey(AmbientService.REMOVE_TRACK))
-            {
-                removeTrackFromPlaylist();
-            }
-
-            if(mBundle.containsKey(AmbientService.ADD_TRACK))
-            {
-                addTrackToPlaylist();
-            }
-
-            if(mBundle.containsKey(AmbientService.REPEAT_MODE))
-            {
-                setRepeatMode();
-            }
-
-            if(mBundle.containsKey(AmbientService.SHUFFLE_MODE))
-            {
-                setShuffleMode();
-            }
-
-            if(mBundle.containsKey(AmbientService.SEEK_POSITION))
-            {
-                seekTo(mBundle.getInt(AmbientService.SEEK_POSITION,0));
-            }
-
-
-            if(mBundle.containsKey(AmbientService.PLAYBACK_STATE))
-            {
-
-                try {
-                    AmbientService.PlaybackState state =
-                            (AmbientService.PlaybackState) mBundle.getSerializable(AmbientService.PLAYBACK_STATE);
-
-                    //PLAYBACK CONTROLS
-                    switch (state) {
-                        case PLAY: init();
-                            break;
-                        case STOP: stop();
-                            break;
-                        case PAUSE: pause();
-                            break;
-                        case RESUME: play();
-                            break;
-                        case SKIP: playNext();
-                            break;
-                        case PREVIOUS: playPrevious();
-                            break;
-                        default:
-                            throw new IllegalStateException(AmbientService.TAG + ": Unknown Playback State");
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.e(AmbientService.TAG, e.getMessage());
-                }
-            }
+            handleRequest(intent.getByteArrayExtra(AmbientCodec.MESSAGE), intent.getExtras());
         }
     };
 
     /**
-     * Called by the system when the service is first created.
+     * Method used to handle a request received from the IncomingRequestReceiver or the binder.
+     * Must be called on the main thread.
+     * @param message The encoded request
+     * @param extras The request extras holding the tracks, playlist and launcher
      */
     @Override
-    public void onCreate() {
-        super.onCreate();
+    public void handleRequest(byte[] message, Bundle extras)
+    {
+        if(mHandler == null)
+        {
+            return; // the service was destroyed
+        }
 
-        createMediaPlayer();
-        createMediaSession();
+        try
+        {
+            AmbientCodec.decode(message, mRequest);
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
 
-        mHandler = new Handler();
+            sendRejection(getSender(mRequest), mRequest.sequence); // the request could not be decoded
+            return;
+        }
 
-        //get handle on audio manager, wifi lock and notification manager
-        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        mWifiLock = ((WifiManager) getSystemService(Context.WIFI_SERVICE))
-                .createWifiLock(WifiManager.WIFI_MODE_FULL,AmbientService.TAG);
+        if(isStaleRequest(mRequest))
+        {
+            Log.i(AmbientService.TAG, "Rejected a duplicate or out of order request");
 
+            sendRejection(mRequest.sender, mRequest.sequence);
+            return;
+        }
 
+        try
+        {
+            validateRequest(mRequest, extras);
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
 
-        //register the incoming request receiver
-        IntentFilter filter = new IntentFilter(AmbientService.AMBIENT_SERVICE_BROADCASTER);
-        registerReceiver(IncomingRequestReceiver,filter);
+            sendRejection(getSender(mRequest), mRequest.sequence); // the request was dropped
+            return;
+        }
 
-        sendUpdateBroadcast(AmbientService.PlaybackState.SERVICE_STARTED);
+        if(mRequest.has(AmbientCodec.OP_SEQUENCE))
+        {
+            mAppliedSender = mRequest.sender;
+            mAppliedSequence = mRequest.sequence;
+        }
 
+        createPlaybackResources();
+        applyRequest(mRequest, extras);
     }
 
     /**
-     * Called to create a set a media session object for AndroidTV Now Playing Card
+     * Method used to check if a request was already applied. Requests sent by Ambience carry a sender
+     * and a sequence number. Stale requests are rejected. Requests without a sequence number (e.g.
+     * notification actions) are never stale.
+     * @param request The decoded request
+     * @return boolean value indicating if the request must be dropped
      */
-    private void createMediaSession()
+    private boolean isStaleRequest(AmbientCodec.Message request)
     {
-
-        if(mSession != null)
+        if(!request.has(AmbientCodec.OP_SEQUENCE))
         {
-            mSession.release();
-            mSession = null;
+            return false;
         }
 
-        mSession = new MediaSession(this, MEDIA_SESSION_TOKEN_TAG);
-        mSession.setCallback(new MediaSessionCallback());
-        mSession.setFlags(MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS | MediaSession.FLAG_HANDLES_MEDIA_BUTTONS);
+        Long sender = request.sender;
+        long sequence = request.sequence;
+        Long lastSequence = mRequestSequences.get(sender);
 
-        setSessionToken(mSession.getSessionToken());
+        if(lastSequence != null && sequence <= lastSequence)
+        {
+            return true;
+        }
 
-        updateCardLaunchActivity();
+        mRequestSequences.put(sender, sequence);
 
+        return false;
     }
 
-
     /**
-     * Method used to bundle the Ambient Service current information
-     * @return A bundle containing the ambientService current playing track,
-     * playlist, shuffle mode, repeat mode, volume level and action launcher string
-     *
+     * Method used to reject a request that was not applied. The rejection carries the sender and
+     * sequence number of the request, so Ambience only fails the command of that request.
+     * @param sender Id of the request sender or null if the request has no sequence number
+     * @param sequence Sequence number of the request
      */
-    private Bundle buildAmbientServiceBundle()
+    private void sendRejection(Long sender, long sequence)
     {
-        Bundle bundle = new Bundle();
-
-        if(mActivityLauncher != null)
+        if(sender == null)
         {
-            bundle.putString(AmbientService.ACTIVITY_LAUNCHER,mActivityLauncher);
+            return; // no command waits for a request without a sequence number
         }
 
-        if(mAmbientTrack != null)
-        {
-            bundle.putParcelable(AmbientService.CURRENT_TRACK,mAmbientTrack);
-        }
+        sendUpdateBroadcast(new AmbientCodec.Writer()
+                .playbackState(AmbientService.PlaybackState.COMMAND_REJECTED)
+                .sequence(sender, sequence));
+    }
 
+    /**
+     * Helper method used to get the sender of a request
+     * @param request The decoded request
+     * @return Id of the sender or null if the request has no sequence number
+     */
+    private static Long getSender(AmbientCodec.Message request)
+    {
+        return request.has(AmbientCodec.OP_SEQUENCE) ? request.sender : null;
+    }
 
-        if(mRepeatMode != null)
+    /**
+     * Method used to validate every part of a request before any of it is applied. A request that
+     * fails validation is rejected as a whole, so a batched request is applied completely or not at all.
+     * @param request The decoded request
+     * @param extras The request extras holding the tracks, playlist and launcher
+     */
+    private void validateRequest(AmbientCodec.Message request, Bundle extras)
+    {
+        if(request.has(AmbientCodec.OP_PLAYLIST)
+                && (extras == null || extras.getParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST) == null))
         {
-            bundle.putSerializable(AmbientService.REPEAT_MODE,mRepeatMode);
+            throw new IllegalStateException(AmbientService.TAG + ": needs at least one AmbientTrack item to play");
         }
 
-        if(mShuffleState != null)
+        if(request.has(AmbientCodec.OP_PLAYLIST_FILE) && (extras == null
+                || !AmbientPlaylistImporter.isImportable(extras.get(AmbientCodec.EXTRA_PLAYLIST_FILE))
+                || request.has(AmbientCodec.OP_PLAYLIST) || request.has(AmbientCodec.OP_PLAYLIST_SOURCE)))
         {
-            bundle.putSerializable(AmbientService.SHUFFLE_MODE,mShuffleState);
+            throw new IllegalStateException(AmbientService.TAG + ": a playlist file needs a uri or a file descriptor and replaces the playlist");
         }
 
-        if(mPlaylist != null)
+        if(request.has(AmbientCodec.OP_PLAYLIST_SOURCE) && (request.sourceCount <= 0 || extras == null
+                || !AmbientPlaylistSource.isResolvable(extras.getString(AmbientCodec.EXTRA_PLAYLIST_SOURCE))))
         {
-            bundle.putParcelableArrayList(AmbientService.PLAYLIST,mPlaylist);
+            throw new IllegalStateException(AmbientService.TAG + ": a playlist source needs a registered name or a content uri and a positive count");
         }
 
+        if(request.has(AmbientCodec.OP_REMOVE_TRACKS) && (request.has(AmbientCodec.OP_PLAYLIST_SOURCE)
+                || mPager != null && !request.has(AmbientCodec.OP_PLAYLIST) && !request.has(AmbientCodec.OP_PLAYLIST_FILE)))
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": tracks cannot be removed from a playlist source");
+        }
 
-        bundle.putInt(AmbientService.PLAY_POSITION,playPosition);
+        if(request.has(AmbientCodec.OP_INFINITE_QUEUE) && (request.refillWatermark < 0 || request.historyLimit < 0
+                || request.refillWatermark > 0 && (extras == null
+                || !AmbientPlaylistSource.isResolvable(extras.getString(AmbientCodec.EXTRA_QUEUE_SUPPLIER)))))
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": an infinite queue needs a registered supplier and values that are not negative");
+        }
 
-        bundle.putFloat(AmbientService.VOLUME_LEVEL,mVolume);
+        boolean isInfiniteQueue = request.has(AmbientCodec.OP_INFINITE_QUEUE) ? request.refillWatermark > 0 : mQueueSupplier != null;
+        boolean isSourcePlaylist = request.has(AmbientCodec.OP_PLAYLIST_SOURCE)
+                || mPager != null && !request.has(AmbientCodec.OP_PLAYLIST) && !request.has(AmbientCodec.OP_PLAYLIST_FILE);
 
-        return bundle;
-    }
+        if(isInfiniteQueue && isSourcePlaylist)
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": an infinite queue cannot extend a playlist source");
+        }
 
-    /**
-     * Called to set the launch activity of th Now Playing Card on AndroidTV
-     */
-    private void updateCardLaunchActivity()
-    {
-        Intent intent = new Intent();
+        if(request.has(AmbientCodec.OP_PLAYBACK_STATE))
+        {
+            AmbientService.PlaybackState state = request.playbackState;
 
-        //Set activity to launch from notification drawer
-        if(mActivityLauncher != null)
+            if(state != AmbientService.PlaybackState.PLAY && state != AmbientService.PlaybackState.STOP
+                    && state != AmbientService.PlaybackState.PAUSE && state != AmbientService.PlaybackState.RESUME
+                    && state != AmbientService.PlaybackState.SKIP && state != AmbientService.PlaybackState.PREVIOUS)
+            {
+                throw new IllegalStateException(AmbientService.TAG + ": Unknown Playback State");
+            }
+        }
+
+        if(request.has(AmbientCodec.OP_RETRY_POLICY)
+                && (request.maxRetries < 0 || request.retryDelay < 0 || request.prepareTimeout < 0))
         {
-            intent.setAction(mActivityLauncher);
-            intent.putExtras(buildAmbientServiceBundle());
+            throw new IllegalStateException(AmbientService.TAG + ": the retry policy values cannot be negative");
         }
 
-        PendingIntent pi = PendingIntent.getActivity(this, 99 /*request code*/,
-                intent, PendingIntent.FLAG_UPDATE_CURRENT);
-        mSession.setSessionActivity(pi);
-    }
+        if(request.has(AmbientCodec.OP_SEEK) && (request.seekPosition < 0 || mPlayer == null
+                || !isPlayerPrepared || request.seekPosition > mPlayer.getDuration()))
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": the seek position is outside the current track");
+        }
 
-    /**
-     * resets and create a new media player object
-     */
-    private void createMediaPlayer()
-    {
-        if(mPlayer != null)
+        if(request.has(AmbientCodec.OP_SEEK_QUEUE_TIME) && (request.seekQueueTime < 0
+                || request.seekQueueTime >= getQueueTimeAfter(request, extras)))
         {
-            try
-            {
-                mPlayer.release();
-            }catch (Exception e)
-            {
-                e.printStackTrace();
-                Log.e(AmbientService.TAG, e.getMessage());
-            }
+            throw new IllegalStateException(AmbientService.TAG + ": the queue time is outside the queue");
+        }
 
-            mPlayer = null;
+        if(request.has(AmbientCodec.OP_METADATA_PROBING) && (request.probeFlags
+                & ~(AmbientMetadataProber.PROBE_DURATION | AmbientMetadataProber.PROBE_TAGS)) != 0)
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": unknown metadata probe flags");
         }
 
-        mPlayer = new MediaPlayer();
+        if(request.has(AmbientCodec.OP_CROSSFADE) && request.crossfade < 0)
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": the crossfade duration cannot be negative");
+        }
 
-        //Set listeners on media player
-        mPlayer.setOnCompletionListener(this);
-        mPlayer.setOnPreparedListener(this);
-        mPlayer.setOnErrorListener(this);
+        if(hasLayerRequest(request) && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": layered playback requires API 16");
+        }
 
-        ///set wake-lock mode for media player
-        mPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+        if(request.has(AmbientCodec.OP_ADD_LAYER)
+                && (extras == null || extras.getParcelable(AmbientCodec.EXTRA_LAYER_TRACK) == null))
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": a layer needs an AmbientTrack");
+        }
+
+        if(request.has(AmbientCodec.OP_ADD_LAYER) && mMixer != null && !mMixer.canAddLayer(request.layerId))
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": the mixer already plays " + AmbientMixer.MAX_LAYERS + " layers");
+        }
     }
 
     /**
-     * Method used to added the passed AmbientPlaylist to the queue
+     * Helper method used to compute the total time of the queue a request leaves behind, so a
+     * queue time seek is checked before any part of the request is applied. It replays the new
+     * playlist, the play position, the removed and added tracks and the history an infinite queue
+     * trims. Shuffling changes the order of the queue but not its total time.
+     * @param request The decoded request
+     * @param extras The request extras holding the tracks and playlist
+     * @return Total time in milliseconds or -1 if the resulting playlist has no queue time
      */
-    private void createPlaylist()
+    private long getQueueTimeAfter(AmbientCodec.Message request, Bundle extras)
     {
-        if( mBundle == null || !mBundle.containsKey(AmbientService.PLAYLIST)
-                ||  mBundle.getParcelableArrayList(AmbientService.PLAYLIST) == null)
+        if(request.has(AmbientCodec.OP_PLAYLIST_SOURCE) || request.has(AmbientCodec.OP_PLAYLIST_FILE)
+                || !request.has(AmbientCodec.OP_PLAYLIST) && (mPlaylist == null || mPager != null))
         {
-            throw new IllegalStateException(AmbientService.TAG + ": needs at least one AmbientTrack item to play");
+            return -1; // a source has no queue time and an imported playlist starts empty
         }
 
-        if(mOriginalPlaylist != null)
+        ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>();
+        ArrayList<Long> durations = new ArrayList<Long>();
+        int position = playPosition;
+
+        if(request.has(AmbientCodec.OP_PLAYLIST))
         {
-            mOriginalPlaylist.clear();
+            ArrayList<Parcelable> playlist = extras.getParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST);
+
+            for(int x = 0; x < playlist.size(); x++)
+            {
+                AmbientTrack track = (AmbientTrack) playlist.get(x);
+                tracks.add(track);
+                durations.add(track == null ? 0 : Math.max(0L, track.getDuration()));
+            }
+
+            position = 0;
         }
         else
         {
-            mOriginalPlaylist = new ArrayList<AmbientTrack>();
+            for(int x = 0; x < mPlaylist.size(); x++)
+            {
+                tracks.add(mPlaylist.get(x));
+                durations.add(mTimeline.getDuration(x)); // holds the probed durations
+            }
         }
 
-        if(mPlaylist == null)
+        if(request.has(AmbientCodec.OP_PLAY_POSITION))
         {
-            mPlaylist = new ArrayList<AmbientTrack>();
+            position = request.playPosition < 0 || request.playPosition >= tracks.size() ? 0 : request.playPosition;
         }
 
+        if(request.has(AmbientCodec.OP_REMOVE_TRACKS))
+        {
+            ArrayList<AmbientTrack> removed = getRequestTracks(extras, AmbientCodec.EXTRA_REMOVE_TRACKS);
 
-        ArrayList<Parcelable> newTracks =  mBundle.getParcelableArrayList(AmbientService.PLAYLIST);
+            for(int x = 0; x < removed.size(); x++)
+            {
+                int index = tracks.indexOf(removed.get(x));
 
-        for(int j = 0; j < newTracks.size(); j++)
+                if(index != -1)
+                {
+                    tracks.remove(index);
+                    durations.remove(index);
+                }
+            }
+        }
+
+        if(request.has(AmbientCodec.OP_ADD_TRACKS))
         {
-            mPlaylist.add((AmbientTrack)newTracks.get(j));
+            ArrayList<AmbientTrack> added = getRequestTracks(extras, AmbientCodec.EXTRA_ADD_TRACKS);
+
+            for(int x = 0; x < added.size(); x++)
+            {
+                durations.add(Math.max(0L, added.get(x).getDuration()));
+            }
         }
 
-        //Copy position to maintain shuffle & un-shuffle state
-        for(int x = 0; x < mPlaylist.size(); x++)
+        if(request.has(AmbientCodec.OP_INFINITE_QUEUE) && request.refillWatermark > 0
+                && position >= request.historyLimit + AmbientService.TRIM_BATCH)
         {
-            mOriginalPlaylist.add(mPlaylist.get(x));
+            durations.subList(0, position - request.historyLimit).clear(); // the played tracks are trimmed
         }
 
-        playPosition = 0;
+        long total = 0;
 
+        for(int x = 0; x < durations.size(); x++)
+        {
+            total += durations.get(x);
+        }
+
+        return total;
     }
 
     /**
-     * Called to remove a track from the current playlist
+     * Helper method used to check if a request contains a layer operation
+     * @param request The decoded request
+     * @return true if the request adds, changes or removes a layer
      */
-    private void removeTrackFromPlaylist()
+    private boolean hasLayerRequest(AmbientCodec.Message request)
     {
-        if(mBundle.getParcelable(AmbientService.REMOVE_TRACK) != null && mOriginalPlaylist != null
-                && mPlaylist != null)
-        {
-            mOriginalPlaylist.remove((AmbientTrack)mBundle.getParcelable(AmbientService.REMOVE_TRACK));
-            mPlaylist.remove((AmbientTrack)mBundle.getParcelable(AmbientService.REMOVE_TRACK));
-        }
+        return request.has(AmbientCodec.OP_ADD_LAYER) || request.has(AmbientCodec.OP_LAYER_GAIN)
+                || request.has(AmbientCodec.OP_LAYER_LOOP) || request.has(AmbientCodec.OP_REMOVE_LAYER);
     }
 
     /**
-     * Called to append a track to the current playlist
+     * Method used to apply the layer operation of a request to the AmbientMixer. The mixer is
+     * created with the first layer.
+     * @param request The decoded request
+     * @param extras The request extras holding the layer track
      */
-    private void addTrackToPlaylist()
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void applyLayerRequest(AmbientCodec.Message request, Bundle extras)
     {
-        if(mBundle.getParcelable(AmbientService.ADD_TRACK) != null && mOriginalPlaylist != null
-                && mPlaylist != null)
+        if(mMixer == null)
+        {
+            mMixer = new AmbientMixer(this);
+            mMixer.setLayerStatsListener(this);
+        }
+
+        if(request.has(AmbientCodec.OP_ADD_LAYER))
         {
-            mOriginalPlaylist.add((AmbientTrack)mBundle.getParcelable(AmbientService.ADD_TRACK));
-            mPlaylist.add((AmbientTrack)mBundle.getParcelable(AmbientService.ADD_TRACK));
+            AmbientTrack track = extras.getParcelable(AmbientCodec.EXTRA_LAYER_TRACK);
+            isMixerFocusLost = false; // a new layer asks for the focus again
 
-            if(mShuffleState == AmbientService.ShuffleMode.ON && !mBundle.containsKey(AmbientService.SHUFFLE_MODE))
+            if(!mMixer.addLayer(request.layerId, track, request.layerGain, request.layerLoop))
             {
-                toggleShuffle(); //If shuffle is on reshuffle track
+                return; // validated, only a released mixer refuses a layer
             }
         }
-    }
 
-    /**
-     * Sets the repeat mode for the Ambient Playlist
-     */
-    private void setRepeatMode()
-    {
-        if(mBundle == null || !mBundle.containsKey(AmbientService.REPEAT_MODE)
-                ||mBundle.getSerializable(AmbientService.REPEAT_MODE) == null )
+        if(request.has(AmbientCodec.OP_LAYER_GAIN))
         {
-            Log.e(AmbientService.TAG,": No valid repeat mode");
-            return;
+            mMixer.setLayerGain(request.layerId, request.layerGain);
         }
 
-        mRepeatMode = (AmbientService.RepeatMode) mBundle.getSerializable(AmbientService.REPEAT_MODE);
-    }
-
-    /**
-     * Sets the shuffle mode for the Ambient Playlist
-     */
-    private void setShuffleMode()
-    {
-        if(mBundle == null || !mBundle.containsKey(AmbientService.SHUFFLE_MODE)
-                ||mBundle.getSerializable(AmbientService.SHUFFLE_MODE) == null )
+        if(request.has(AmbientCodec.OP_LAYER_LOOP))
         {
-            Log.e(AmbientService.TAG,"No valid shuffle mode");
-            return;
+            mMixer.setLayerLooping(request.layerId, request.layerLoop);
         }
 
-        mShuffleState = (AmbientService.ShuffleMode) mBundle.getSerializable(AmbientService.SHUFFLE_MODE);
-
-        toggleShuffle();
-    }
-
-    /**
-     * Helper method used to toggle the shuffle state of the Ambient Playlist
-     */
-    private void toggleShuffle()
-    {
-        if(mPlaylist != null && mOriginalPlaylist != null)
+        if(request.has(AmbientCodec.OP_REMOVE_LAYER))
         {
-            if(mShuffleState == AmbientService.ShuffleMode.ON)
+            if(request.layerId == AmbientCodec.ALL_LAYERS)
             {
-                Collections.shuffle(mPlaylist);
-                setCurrentAmbientTrackPosition();
-
-            }else
+                mMixer.removeAllLayers();
+            }
+            else
             {
-                mPlaylist.clear();
-
-                for(int x = 0; x < mOriginalPlaylist.size(); x++)
-                {
-                    mPlaylist.add(mOriginalPlaylist.get(x));
-                }
-
-                setCurrentAmbientTrackPosition();
+                mMixer.removeLayer(request.layerId);
             }
         }
+
+        updateMixerFocus();
     }
 
     /**
-     * Helper method used to get the position of the current playing AmbientTrack
-     * before and after shuffle
+     * Helper method used to request or abandon the audio focus of the layers. The layers request
+     * the focus with their own listener while they play and the playlist does not hold the focus.
      */
-    private void  setCurrentAmbientTrackPosition()
+    private void updateMixerFocus()
     {
-        if(mPlaylist != null)
+        boolean hasLayers = mMixer != null && mMixer.getLayerCount() > 0;
+
+        if(hasLayers && !isPlaylistFocused && !isMixerFocused && !isMixerFocusLost)
         {
-            for(int x = 0; x < mPlaylist.size(); x++)
+            isMixerFocused = mAudioManager.requestAudioFocus(mMixerFocusListener, AudioManager.STREAM_MUSIC,
+                    AudioManager.AUDIOFOCUS_GAIN) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+
+            if(isMixerFocused)
             {
-                if(mPlaylist.get(x) == mAmbientTrack)
-                {
-                    playPosition = x;
-                    break;
-                }
+                mMixer.resume();
             }
         }
+        else if(isMixerFocused && (!hasLayers || isPlaylistFocused))
+        {
+            mAudioManager.abandonAudioFocus(mMixerFocusListener);
+            isMixerFocused = false;
+        }
     }
 
     /**
-     * Sets the play position of an Ambient track from the Ambient Playlist
+     * Method used to apply a validated request. The parts of a request are always applied
+     * in the same order: launcher, volume, crossfade, retry policy, metadata probing, playlist, playlist source, playlist file, play position, removed tracks, added tracks,
+     * repeat mode, shuffle mode, infinite queue, seek position, layer operation and finally the playback state.
+     * @param request The decoded request
+     * @param extras The request extras holding the tracks, playlist and launcher
      */
-    private void setPlayPosition()
+    private void applyRequest(AmbientCodec.Message request, Bundle extras)
     {
-        if( mBundle == null || !mBundle.containsKey(AmbientService.PLAY_POSITION))
+        if(request.has(AmbientCodec.OP_ACTIVITY_LAUNCHER))
         {
-            throw new IllegalStateException(AmbientService.TAG + ": invalid play position");
+            mActivityLauncher = extras.getString(AmbientCodec.EXTRA_ACTIVITY_LAUNCHER);
+            updateCardLaunchActivity();
         }
 
-        playPosition = mBundle.getInt(AmbientService.PLAY_POSITION,0);
+        if(request.has(AmbientCodec.OP_VOLUME))
+        {
+            setVolumeTo(request.volume);
+        }
 
-        if(playPosition < 0 || playPosition >= mPlaylist.size())
+        if(request.has(AmbientCodec.OP_CROSSFADE))
         {
-            playPosition = 0;
+            setCrossfade(request.crossfade);
         }
-    }
 
-    /**
-     * Alerts the AmbientService about audio focus gain,
-     * loss, etc.
-     * @param focusChange value of focus changed
-     */
-    @Override
-    public void onAudioFocusChange(int focusChange) {
-        if(mPlayer == null)
+        if(request.has(AmbientCodec.OP_RETRY_POLICY))
         {
-            return;
+            mMaxRetries = request.maxRetries;
+            mRetryDelay = request.retryDelay;
+            mPrepareTimeout = request.prepareTimeout;
         }
 
-        switch (focusChange) {
-            case AudioManager.AUDIOFOCUS_GAIN:
+        if(request.has(AmbientCodec.OP_METADATA_PROBING))
+        {
+            mProber.setFlags(request.probeFlags);
+        }
 
-                if (!mPlayer.isPlaying())
-                {
-                    play();
-                }
+        if(request.has(AmbientCodec.OP_PLAYLIST))
+        {
+            createPlaylist(extras);
+        }
 
-                mPlayer.setVolume(mVolume,mVolume);
-                break;
+        if(request.has(AmbientCodec.OP_PLAYLIST_SOURCE))
+        {
+            createPlaylist(extras.getString(AmbientCodec.EXTRA_PLAYLIST_SOURCE), request.sourceCount);
+        }
 
-            case AudioManager.AUDIOFOCUS_LOSS:
-                // Lost focus for an unbounded amount of time: stop playback and release media player
-                if (mPlayer.isPlaying())
-                {
-                    if(mSession != null && mSession.isActive())
-                    {
-                        mSession.setActive(false);
-                    }
+        if(request.has(AmbientCodec.OP_PLAYLIST_FILE))
+        {
+            importPlaylist(extras.get(AmbientCodec.EXTRA_PLAYLIST_FILE));
+        }
 
-                    pause();
-                }
+        if(request.has(AmbientCodec.OP_PLAY_POSITION))
+        {
+            setPlayPosition(request.playPosition);
+        }
 
-                break;
+        if(request.has(AmbientCodec.OP_REMOVE_TRACKS))
+        {
+            removeTrackFromPlaylist(extras);
+        }
 
-            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                // Lost focus for a short time, but we have to stop
-                // playback. We don't release the media player because playback
-                // is likely to resume
-                if (mPlayer.isPlaying())
-                {
-                    pause();
-                }
+        if(request.has(AmbientCodec.OP_ADD_TRACKS))
+        {
+            addTrackToPlaylist(extras, !request.has(AmbientCodec.OP_SHUFFLE_MODE));
+        }
 
-                break;
+        if(request.has(AmbientCodec.OP_REPEAT_MODE))
+        {
+            setRepeatMode(request.repeatMode);
+        }
 
-            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                // Lost focus for a short time, but it's ok to keep playing
-                // at an attenuated level
-                if (mPlayer.isPlaying())
-                {
-                    mPlayer.setVolume(0.1f, 0.1f);
-                }
+        if(request.has(AmbientCodec.OP_SHUFFLE_MODE))
+        {
+            setShuffleMode(request.shuffleMode);
+        }
 
-                break;
+        if(request.has(AmbientCodec.OP_INFINITE_QUEUE))
+        {
+            setInfiniteQueue(extras == null ? null : extras.getString(AmbientCodec.EXTRA_QUEUE_SUPPLIER),
+                    request.refillWatermark, request.historyLimit);
         }
-    }
 
-    /**
-     * Initialize and prepare the media player with the ambient track
-     */
-    private void init()
-    {
-        sendUpdateBroadcast(AmbientService.PlaybackState.PREPPING_TRACK); // send prepping update to callback
+        if(request.has(AmbientCodec.OP_PLAYLIST) || request.has(AmbientCodec.OP_PLAYLIST_SOURCE)
+                || request.has(AmbientCodec.OP_PLAYLIST_FILE) || request.has(AmbientCodec.OP_REMOVE_TRACKS) || request.has(AmbientCodec.OP_ADD_TRACKS)
+                || request.has(AmbientCodec.OP_SHUFFLE_MODE))
+        {
+            updateBrowseTree(true);
+            mQueueWindow.setPlaylist(mPlaylist);
+            publishQueueWindow();
+        }
 
-        if(mPlayer == null)
+        if(request.has(AmbientCodec.OP_SEEK))
         {
-            createMediaPlayer();
+            seekTo(request.seekPosition);
         }
 
-        try {
+        if(request.has(AmbientCodec.OP_SEEK_QUEUE_TIME))
+        {
+            seekToQueueTime(request.seekQueueTime);
+        }
 
-            if(mPlaylist == null || mPlaylist.get(playPosition) == null )
-            {
-                Log.e(AmbientService.TAG, ": The AmbientTrack item was null. Check the quality of your playlist before" +
-                        " passing it to the AmbientService.");
+        if(hasLayerRequest(request))
+        {
+            applyLayerRequest(request, extras);
+        }
+
+        if(request.has(AmbientCodec.OP_PLAYBACK_STATE))
+        {
+
+            try {
+                AmbientService.PlaybackState state = request.playbackState;
+
+                isPlayPending = false;
+
+                //PLAYBACK CONTROLS
+                switch (state) {
+                    case PLAY: mSkippedTracks = 0; // a new attempt at the playlist
+                        isPlayPending = mImporter != null && mPlaylist.isEmpty(); // the first imported track starts playback
+                        mPendingPlaySender = mAppliedSender;
+                        mPendingPlaySequence = mAppliedSequence;
+
+                        if(!isPlayPending)
+                        {
+                            init();
+                        }
+                        break;
+                    case STOP: stop();
+                        break;
+                    case PAUSE: pause();
+                        break;
+                    case RESUME: play();
+                        break;
+                    case SKIP: playNext();
+                        break;
+                    case PREVIOUS: playPrevious();
+                        break;
+                    default:
+                        throw new IllegalStateException(AmbientService.TAG + ": Unknown Playback State");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.e(AmbientService.TAG, e.getMessage()); // a validated request is not rejected
+            }
+        }
+    }
+
+    /**
+     * Called by the system when the service is first created.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AmbientTrace.begin(AmbientTrace.SERVICE_CREATE);
+
+        //the media player, media session and audio manager are created by the first command
+        mHandler = new Handler();
+        mBinder = new AmbientServiceBinder(mHandler, this);
+        mBrowseTree = new AmbientBrowseTree(this);
+
+        //register the incoming request receiver
+        IntentFilter filter = new IntentFilter(AmbientService.AMBIENT_SERVICE_BROADCASTER);
+        registerReceiver(IncomingRequestReceiver,filter);
+
+        sendUpdateBroadcast(AmbientService.PlaybackState.SERVICE_STARTED);
+
+        AmbientTrace.end();
+    }
+
+    /**
+     * Helper method used to create the playback resources on the first command. Starting the
+     * service only registers the request receiver, so turnOn stays cheap for apps that never play.
+     */
+    private void createPlaybackResources()
+    {
+        if(mPlayer != null)
+        {
+            return;
+        }
+
+        AmbientTrace.begin(AmbientTrace.SERVICE_RESOURCES);
+
+        createMediaPlayer();
+        createMediaSession();
+
+        //get handle on audio manager
+        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+
+        mProber = new AmbientMetadataProber(this);
+        mProber.setProbeListener(this);
+
+        AmbientTrace.end();
+    }
+
+    /**
+     * Called to create a set a media session object for AndroidTV Now Playing Card
+     */
+    private void createMediaSession()
+    {
+
+        if(mSession != null)
+        {
+            mSession.release();
+            mSession = null;
+        }
+
+        mSession = new MediaSession(this, MEDIA_SESSION_TOKEN_TAG);
+        mSession.setCallback(new MediaSessionCallback());
+        mSession.setFlags(MediaSession.FLAG_HANDLES_TRANSPORT_CONTROLS | MediaSession.FLAG_HANDLES_MEDIA_BUTTONS);
+
+        setSessionToken(mSession.getSessionToken());
+
+        updateCardLaunchActivity();
+        mQueueWindow.invalidate(); // the new session has no queue
+
+    }
+
+
+    /**
+     * Method used to bundle the Ambient Service current information
+     * @return A bundle containing the ambientService current playing track,
+     * playlist, shuffle mode, repeat mode, volume level and action launcher string
+     *
+     */
+    private Bundle buildAmbientServiceBundle()
+    {
+        Bundle bundle = new Bundle();
+
+        if(mActivityLauncher != null)
+        {
+            bundle.putString(AmbientService.ACTIVITY_LAUNCHER,mActivityLauncher);
+        }
+
+        if(mAmbientTrack != null)
+        {
+            bundle.putParcelable(AmbientService.CURRENT_TRACK,mAmbientTrack);
+        }
+
+
+        if(mRepeatMode != null)
+        {
+            bundle.putSerializable(AmbientService.REPEAT_MODE,mRepeatMode);
+        }
+
+        if(mShuffleState != null)
+        {
+            bundle.putSerializable(AmbientService.SHUFFLE_MODE,mShuffleState);
+        }
+
+        if(mPlaylist != null && mPager == null) // a playlist source may not fit in an intent
+        {
+            bundle.putParcelableArrayList(AmbientService.PLAYLIST,new ArrayList<AmbientTrack>(mPlaylist));
+        }
+
+
+        bundle.putInt(AmbientService.PLAY_POSITION,playPosition);
+
+        bundle.putFloat(AmbientService.VOLUME_LEVEL,mVolume);
+
+        return bundle;
+    }
+
+    /**
+     * Called to set the launch activity of th Now Playing Card on AndroidTV
+     */
+    private void updateCardLaunchActivity()
+    {
+        Intent intent = new Intent();
+
+        //Set activity to launch from notification drawer
+        if(mActivityLauncher != null)
+        {
+            intent.setAction(mActivityLauncher);
+            intent.putExtras(buildAmbientServiceBundle());
+        }
+
+        PendingIntent pi = PendingIntent.getActivity(this, 99 /*request code*/,
+                intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        mSession.setSessionActivity(pi);
+    }
+
+    /**
+     * resets and create a new media player object
+     */
+    private void createMediaPlayer()
+    {
+        if(mPlayer != null)
+        {
+            try
+            {
+                mPlayer.release();
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(AmbientService.TAG, e.getMessage());
+            }
+
+            mPlayer = null;
+        }
+
+        mPlayer = new MediaPlayer();
+
+        //Set listeners on media player
+        mPlayer.setOnCompletionListener(this);
+        mPlayer.setOnPreparedListener(this);
+        mPlayer.setOnErrorListener(this);
+        mPlayer.setOnSeekCompleteListener(this);
+        mPlayer.setOnBufferingUpdateListener(this);
+        mPlayer.setOnInfoListener(this);
+
+        ///set wake-lock mode for media player
+        mPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+    }
+
+    /**
+     * Method used to added the passed AmbientPlaylist to the queue
+     * @param extras The request extras containing the playlist
+     */
+    private void createPlaylist(Bundle extras)
+    {
+        if( extras == null ||  extras.getParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST) == null)
+        {
+            throw new IllegalStateException(AmbientService.TAG + ": needs at least one AmbientTrack item to play");
+        }
+
+        releasePager();
+        cancelImport();
+        dropRefill(); // a page asked for the replaced playlist
+
+        if(mOriginalPlaylist != null)
+        {
+            mOriginalPlaylist.clear();
+        }
+        else
+        {
+            mOriginalPlaylist = new ArrayList<AmbientTrack>();
+        }
+
+
+        if(mPlaylist != null)
+        {
+            mPlaylist.clear();
+        }
+        else
+        {
+            mPlaylist = new ArrayList<AmbientTrack>();
+        }
+
+        ArrayList<Parcelable> newTracks =  extras.getParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST);
+        mQueueIndex.clear();
+
+        for(int j = 0; j < newTracks.size(); j++)
+        {
+            mPlaylist.add((AmbientTrack)newTracks.get(j));
+            mQueueIndex.add((AmbientTrack)newTracks.get(j));
+        }
+
+
+        //Copy position to maintain shuffle & un-shuffle state
+        for(int x = 0; x < mPlaylist.size(); x++)
+        {
+            mOriginalPlaylist.add(mPlaylist.get(x));
+        }
+
+        mTimeline.setTracks(mPlaylist);
+        probeMetadata();
+
+        playPosition = 0;
+
+    }
+
+    /**
+     * Method used to play a playlist source. Only the tracks around the play position are paged in.
+     * The queue time of a source is not tracked, as it needs the duration of every track.
+     * @param name The registered name or content uri of the source
+     * @param count Number of tracks of the source
+     */
+    private void createPlaylist(String name, int count)
+    {
+        releasePager();
+        cancelImport();
+
+        if(mOriginalPlaylist != null)
+        {
+            mOriginalPlaylist.clear();
+        }
+
+        mPager = new AmbientPlaylistPager(AmbientPlaylistSource.resolve(this, name), count, this);
+        mPlaylist = mPager;
+        mQueueIndex.clear();
+        mTimeline.setTracks(null);
+        playPosition = 0;
+        probeMetadata();
+    }
+
+    /**
+     * Method used to import a M3U, PLS or XSPF playlist file. The playlist is replaced by an empty
+     * one, and the tracks of the file are appended to it while the file is read on a background
+     * thread, so playback starts with the first entry.
+     * @param file The uri string or the ParcelFileDescriptor of the file
+     */
+    private void importPlaylist(Object file)
+    {
+        releasePager();
+        cancelImport();
+        dropRefill();
+
+        if(mOriginalPlaylist != null)
+        {
+            mOriginalPlaylist.clear();
+        }
+        else
+        {
+            mOriginalPlaylist = new ArrayList<AmbientTrack>();
+        }
+
+        if(mPlaylist != null)
+        {
+            mPlaylist.clear();
+        }
+        else
+        {
+            mPlaylist = new ArrayList<AmbientTrack>();
+        }
+
+        mQueueIndex.clear();
+        mTimeline.setTracks(mPlaylist);
+        playPosition = 0;
+
+        mImporter = new AmbientPlaylistImporter(this, file, this);
+        mImporter.start();
+    }
+
+    /**
+     * Helper method used to stop importing the playlist file, if one is read
+     */
+    private void cancelImport()
+    {
+        if(mImporter != null)
+        {
+            mImporter.cancel();
+            mImporter = null;
+        }
+
+        isPlayPending = false;
+    }
+
+    /**
+     * Called on the main thread with the next tracks of the playlist file. They are appended to
+     * the playlist in file order. A pending PLAY starts with the first of them.
+     * @param importer The AmbientPlaylistImporter
+     * @param tracks The tracks
+     */
+    @Override
+    public void onTracksImported(AmbientPlaylistImporter importer, ArrayList<AmbientTrack> tracks) {
+
+        if(importer != mImporter || tracks.isEmpty())
+        {
+            return;
+        }
+
+        appendTracks(tracks);
+        updateBrowseTree(true);
+        mQueueWindow.setPlaylist(mPlaylist);
+        publishQueueWindow();
+
+        if(isPlayPending)
+        {
+            isPlayPending = false;
+            init();
+        }
+        else if(isWaitingForRefill)
+        {
+            isWaitingForRefill = false;
+            playNext();
+        }
+    }
+
+    /**
+     * Called on the main thread once the playlist file was read
+     * @param importer The AmbientPlaylistImporter
+     * @param count Number of tracks imported
+     * @param isFailed true if the file could not be read to its end
+     */
+    @Override
+    public void onImportFinished(AmbientPlaylistImporter importer, int count, boolean isFailed) {
+
+        if(importer != mImporter)
+        {
+            return;
+        }
+
+        mImporter = null;
+
+        if(isFailed || count == 0)
+        {
+            Log.e(AmbientService.TAG, ": The playlist file was not fully imported. Imported tracks: " + count);
+        }
+
+        if(isPlayPending)
+        {
+            isPlayPending = false;
+            sendRejection(mPendingPlaySender, mPendingPlaySequence); // the file had no playable entry
+        }
+        else if(isWaitingForRefill && (mQueueSupplier == null || isSupplierExhausted))
+        {
+            isWaitingForRefill = false;
+            sendUpdateBroadcast(AmbientService.PlaybackState.END_OF_PLAYLIST);
+        }
+
+        updateInfiniteQueue(); // the supplier extends the playlist once the file is imported
+    }
+
+    /**
+     * Helper method used to stop paging the playlist source, if one is played
+     */
+    private void releasePager()
+    {
+        isWaitingForPage = false;
+
+        if(mPager != null)
+        {
+            mPager.release();
+            mPager = null;
+            mPlaylist = new ArrayList<AmbientTrack>();
+        }
+    }
+
+    /**
+     * Helper method used to collect the tracks of a request extra
+     * @param extras The request extras
+     * @param key Key of an AmbientTrack list
+     * @return The requested tracks
+     */
+    private ArrayList<AmbientTrack> getRequestTracks(Bundle extras, String key)
+    {
+        ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>();
+        ArrayList<Parcelable> list = extras == null ? null : extras.<Parcelable>getParcelableArrayList(key);
+
+        if(list != null)
+        {
+            for(int x = 0; x < list.size(); x++)
+            {
+                if(list.get(x) != null)
+                {
+                    tracks.add((AmbientTrack) list.get(x));
+                }
+            }
+        }
+
+        return tracks;
+    }
+
+    /**
+     * Called to remove tracks from the current playlist
+     * @param extras The request extras containing the tracks to remove
+     */
+    private void removeTrackFromPlaylist(Bundle extras)
+    {
+        if(mOriginalPlaylist != null && mPlaylist != null)
+        {
+            ArrayList<AmbientTrack> tracks = getRequestTracks(extras, AmbientCodec.EXTRA_REMOVE_TRACKS);
+
+            for(int x = 0; x < tracks.size(); x++)
+            {
+                mOriginalPlaylist.remove(tracks.get(x));
+
+                int position = mPlaylist.indexOf(tracks.get(x));
+
+                if(position != -1)
+                {
+                    mPlaylist.remove(position);
+                    mTimeline.remove(position);
+                }
+                mQueueIndex.remove(tracks.get(x));
+            }
+
+            probeMetadata(); // the queued probes moved
+        }
+    }
+
+    /**
+     * Called to append tracks to the current playlist
+     * @param extras The request extras containing the tracks to add
+     * @param reshuffle true if the playlist must be reshuffled when shuffle is on
+     */
+    private void addTrackToPlaylist(Bundle extras, boolean reshuffle)
+    {
+        if(mOriginalPlaylist != null && mPlaylist != null)
+        {
+            ArrayList<AmbientTrack> tracks = getRequestTracks(extras, AmbientCodec.EXTRA_ADD_TRACKS);
+
+            if(tracks.isEmpty())
+            {
+                return;
+            }
+
+            appendTracks(tracks);
+
+            if(mShuffleState == AmbientService.ShuffleMode.ON && reshuffle)
+            {
+                toggleShuffle(); //If shuffle is on reshuffle track
+            }
+        }
+    }
+
+    /**
+     * Helper method used to append tracks to the playlist and its timeline
+     * @param tracks The tracks to append
+     */
+    private void appendTracks(ArrayList<AmbientTrack> tracks)
+    {
+        mPlaylist.addAll(tracks);
+
+        if(mPager == null)
+        {
+            mOriginalPlaylist.addAll(tracks);
+
+            for(int x = 0; x < tracks.size(); x++)
+            {
+                mTimeline.append(tracks.get(x));
+            }
+        }
+
+        probeMetadata();
+
+        for(int x = 0; x < tracks.size(); x++)
+        {
+            mQueueIndex.add(tracks.get(x));
+        }
+    }
+
+    /**
+     * Method used to turn the infinite queue on or off. When fewer than lowWatermark tracks are
+     * left after the play position, the next page of the supplier is asked for on a background
+     * thread and appended. Played tracks beyond the history limit are trimmed.
+     * @param supplier Registered name or content uri of the supplier
+     * @param lowWatermark Number of upcoming tracks below which a page is asked for. 0 turns the infinite queue off.
+     * @param historyLimit Number of played tracks kept before the play position
+     */
+    private void setInfiniteQueue(String supplier, int lowWatermark, int historyLimit)
+    {
+        closeQueueSupplier();
+
+        mQueueSupplier = lowWatermark == 0 ? null : AmbientPlaylistSource.resolve(this, supplier);
+        mRefillWatermark = lowWatermark;
+        mHistoryLimit = historyLimit;
+        mSuppliedCount = 0;
+        isSupplierExhausted = false;
+
+        updateInfiniteQueue();
+    }
+
+    /**
+     * Helper method used to trim the played tracks of the infinite queue beyond the history
+     * limit, and to ask the supplier for the next page when few tracks are left
+     */
+    private void updateInfiniteQueue()
+    {
+        if(mQueueSupplier == null || mPlaylist == null)
+        {
+            return;
+        }
+
+        if(playPosition >= mHistoryLimit + AmbientService.TRIM_BATCH)
+        {
+            trimHistory(playPosition - mHistoryLimit); // in batches, each trim copies the playlist
+        }
+
+        if(mImporter == null && !isRefilling && !isSupplierExhausted && mPlaylist.size() - 1 - playPosition < mRefillWatermark)
+        {
+            refillQueue();
+        }
+    }
+
+    /**
+     * Helper method used to remove the first played tracks of the infinite queue
+     * @param count Number of tracks to remove
+     */
+    private void trimHistory(int count)
+    {
+        List<AmbientTrack> played = mPlaylist.subList(0, count);
+        IdentityHashMap<AmbientTrack, Boolean> trimmed = new IdentityHashMap<AmbientTrack, Boolean>();
+
+        for(int x = 0; x < played.size(); x++)
+        {
+            trimmed.put(played.get(x), Boolean.TRUE);
+            mTimeline.remove(0);
+            mQueueIndex.remove(played.get(x));
+        }
+
+        played.clear();
+
+        //the original order holds the same tracks, shuffled or not
+        ArrayList<AmbientTrack> original = new ArrayList<AmbientTrack>(mPlaylist.size());
+
+        for(int x = 0; x < mOriginalPlaylist.size(); x++)
+        {
+            if(!trimmed.containsKey(mOriginalPlaylist.get(x)))
+            {
+                original.add(mOriginalPlaylist.get(x));
+            }
+        }
+
+        mOriginalPlaylist = original;
+        playPosition -= count;
+        probeMetadata(); // the queued probes moved
+
+        updateBrowseTree(true);
+        mQueueWindow.setPlaylist(mPlaylist);
+        publishQueueWindow();
+    }
+
+    /**
+     * Helper method used to ask the supplier for the next page of the infinite queue on a background thread
+     */
+    private void refillQueue()
+    {
+        final AmbientPlaylistSource supplier = mQueueSupplier;
+        final Handler handler = mHandler;
+        final int generation = mRefillGeneration;
+        final int start = mSuppliedCount;
+        final int count = Math.max(AmbientService.REFILL_PAGE_SIZE, mRefillWatermark);
+
+        if(handler == null)
+        {
+            return;
+        }
+
+        isRefilling = true;
+
+        Thread refill = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<AmbientTrack> tracks = null;
+
+                try
+                {
+                    synchronized (supplier)
+                    {
+                        tracks = supplier.getTracks(start, count);
+                    }
+                }catch (Exception e)
+                {
+                    e.printStackTrace();
+                    Log.e(AmbientService.TAG, e.getMessage() + "");
+                }
+
+                final List<AmbientTrack> page = tracks;
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onQueueRefilled(page, generation);
+                    }
+                });
+            }
+        }, "AmbientQueueRefill");
+
+        refill.setPriority(Thread.MIN_PRIORITY);
+        refill.start();
+    }
+
+    /**
+     * Called on the main thread with the next page of the infinite queue. Playback that
+     * reached the end of the queue continues with the page. If the supplier failed or ran out,
+     * it ends with END_OF_PLAYLIST.
+     * @param page The tracks, an empty list if the supplier ran out, or null if it failed
+     * @param generation The refill generation the page was asked for in
+     */
+    private void onQueueRefilled(List<AmbientTrack> page, int generation)
+    {
+        if(generation != mRefillGeneration || mPlaylist == null)
+        {
+            return; // the supplier or the playlist was replaced
+        }
+
+        isRefilling = false;
+
+        if(page == null || page.isEmpty())
+        {
+            isSupplierExhausted = page != null;
+
+            if(isWaitingForRefill)
+            {
+                isWaitingForRefill = false;
+                sendUpdateBroadcast(AmbientService.PlaybackState.END_OF_PLAYLIST);
+            }
+
+            return;
+        }
+
+        ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>(page.size());
+
+        for(int x = 0; x < page.size(); x++)
+        {
+            if(page.get(x) != null)
+            {
+                tracks.add(page.get(x));
+            }
+        }
+
+        mSuppliedCount += page.size();
+        appendTracks(tracks);
+        updateBrowseTree(true);
+        mQueueWindow.setPlaylist(mPlaylist);
+        publishQueueWindow();
+
+        if(isWaitingForRefill)
+        {
+            isWaitingForRefill = false;
+            playNext();
+        }
+        else
+        {
+            updateInfiniteQueue(); // a short page may leave the queue below the watermark
+        }
+    }
+
+    /**
+     * Helper method that checks if tracks are still appended to the end of the playlist, by the
+     * import of a playlist file or by an infinite queue whose supplier has not run out
+     * @return true if playback at the end of the playlist waits for the next tracks
+     */
+    private boolean isPlaylistExtending()
+    {
+        return mImporter != null || mQueueSupplier != null && !isSupplierExhausted;
+    }
+
+    /**
+     * Helper method used to drop the page the supplier is asked for
+     */
+    private void dropRefill()
+    {
+        mRefillGeneration++;
+        isRefilling = false;
+        isWaitingForRefill = false;
+    }
+
+    /**
+     * Helper method used to drop the supplier of the infinite queue. It is closed on a background
+     * thread once a page it is asked for is handed out.
+     */
+    private void closeQueueSupplier()
+    {
+        dropRefill();
+
+        final AmbientPlaylistSource supplier = mQueueSupplier;
+        mQueueSupplier = null;
+
+        if(supplier == null)
+        {
+            return;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (supplier)
+                {
+                    supplier.close();
+                }
+            }
+        }, "AmbientQueueRefill").start();
+    }
+
+    /**
+     * Sets the repeat mode for the Ambient Playlist
+     * @param mode The repeat mode
+     */
+    private void setRepeatMode(AmbientService.RepeatMode mode)
+    {
+        if(mode == null)
+        {
+            Log.e(AmbientService.TAG,": No valid repeat mode");
+            return;
+        }
+
+        mRepeatMode = mode;
+        updateLooping();
+    }
+
+    /**
+     * Sets the shuffle mode for the Ambient Playlist
+     * @param mode The shuffle mode
+     */
+    private void setShuffleMode(AmbientService.ShuffleMode mode)
+    {
+        if(mode == null)
+        {
+            Log.e(AmbientService.TAG,"No valid shuffle mode");
+            return;
+        }
+
+        mShuffleState = mode;
+
+        toggleShuffle();
+    }
+
+    /**
+     * Helper method used to toggle the shuffle state of the Ambient Playlist
+     */
+    private void toggleShuffle()
+    {
+        if(mPager != null)
+        {
+            mPager.setShuffled(mShuffleState == AmbientService.ShuffleMode.ON); // a permutation, the source is not read
+            setCurrentAmbientTrackPosition();
+            probeMetadata();
+            return;
+        }
+
+        if(mPlaylist != null && mOriginalPlaylist != null)
+        {
+            if(mShuffleState == AmbientService.ShuffleMode.ON)
+            {
+                Collections.shuffle(mPlaylist);
+                setCurrentAmbientTrackPosition();
+
+            }else
+            {
+                mPlaylist.clear();
+
+                for(int x = 0; x < mOriginalPlaylist.size(); x++)
+                {
+                    mPlaylist.add(mOriginalPlaylist.get(x));
+                }
+
+                setCurrentAmbientTrackPosition();
+            }
+
+            mTimeline.setTracks(mPlaylist); // a new play order
+            probeMetadata();
+        }
+    }
+
+    /**
+     * Helper method used to get the position of the current playing AmbientTrack
+     * before and after shuffle
+     */
+    private void  setCurrentAmbientTrackPosition()
+    {
+        int position = mPlaylist == null ? -1 : mPlaylist.indexOf(mAmbientTrack);
+
+        if(position != -1)
+        {
+            playPosition = position;
+        }
+    }
+
+    /**
+     * Sets the play position of an Ambient track from the Ambient Playlist
+     * @param position The play position
+     */
+    private void setPlayPosition(int position)
+    {
+        playPosition = position;
+
+        if(playPosition < 0 || playPosition >= mPlaylist.size())
+        {
+            playPosition = 0;
+        }
+    }
+
+    /**
+     * Alerts the AmbientService about audio focus gain,
+     * loss, etc.
+     * @param focusChange value of focus changed
+     */
+    @Override
+    public void onAudioFocusChange(int focusChange) {
+        if(mMixer != null)
+        {
+            mMixerFocusListener.onAudioFocusChange(focusChange); // the layers follow the focus of the playlist
+        }
+
+        if(mPlayer == null)
+        {
+            return;
+        }
+
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+
+                if (!mPlayer.isPlaying())
+                {
+                    play();
+                }
+
+                mPlayer.setVolume(mVolume,mVolume);
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS:
+                // Lost focus for an unbounded amount of time: stop playback and release media player
+                if (mPlayer.isPlaying())
+                {
+                    if(mSession != null && mSession.isActive())
+                    {
+                        mSession.setActive(false);
+                    }
+
+                    pause();
+                }
+
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                // Lost focus for a short time, but we have to stop
+                // playback. We don't release the media player because playback
+                // is likely to resume
+                if (mPlayer.isPlaying())
+                {
+                    pause();
+                }
+
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                // Lost focus for a short time, but it's ok to keep playing
+                // at an attenuated level
+                if (mPlayer.isPlaying())
+                {
+                    mPlayer.setVolume(0.1f, 0.1f);
+                }
+
+                break;
+        }
+    }
+
+    /**
+     * Helper method used to pause, resume or duck the layers of the AmbientMixer
+     * @param focusChange value of focus changed
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void onMixerAudioFocusChange(int focusChange)
+    {
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                isMixerFocusLost = false;
+                mMixer.setMasterGain(1.0f);
+                mMixer.resume();
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS:
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                isMixerFocusLost = true;
+                mMixer.pause();
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                mMixer.setMasterGain(0.1f);
+                break;
+        }
+    }
+
+    /**
+     * Initialize and prepare the media player with the ambient track
+     */
+    private void init()
+    {
+        sendUpdateBroadcast(AmbientService.PlaybackState.PREPPING_TRACK); // send prepping update to callback
+
+        cancelLoopRange();
+        cancelCrossfade(); // a manual skip drops the crossfade
+        cancelRecovery();
+        endStall();
+        isPlayerPrepared = false;
+
+        if(mPlayer == null)
+        {
+            createMediaPlayer();
+        }
+
+        try {
+
+            if(mPager != null && mPlaylist.get(playPosition) == null && mPager.isPaging(playPosition))
+            {
+                if(mPlayer.isPlaying())
+                {
+                    mPlayer.stop();
+                }
+
+                isWaitingForPage = true; // onTracksPaged prepares the track
+                return;
+            }
+
+            if(mPlaylist == null || mPlaylist.get(playPosition) == null )
+            {
+                Log.e(AmbientService.TAG, ": The AmbientTrack item was null. Check the quality of your playlist before" +
+                        " passing it to the AmbientService.");
+                sendUpdateBroadcast(AmbientService.PlaybackState.COMMAND_REJECTED);
+                return;
+            }
+
+            mAmbientTrack = mPlaylist.get(playPosition);
+            probeMetadata(); // the upcoming tracks moved
+            updateInfiniteQueue();
+
+            if(mPendingSeekPosition == playPosition && mPendingSeekTrack == null)
+            {
+                mPendingSeekTrack = mAmbientTrack; // the seek waited for its track to be paged in
+            }
+
+            mPendingSeekPosition = -1;
+
+            if(mAmbientTrack != mRetryTrack)
+            {
+                mRetryTrack = mAmbientTrack;
+                mRetries = 0;
+            }
+
+            Uri uri = AmbientDownloader.resolveAudioUri(this, mAmbientTrack); // prefer the offline copy
+            isRemoteTrack = AmbientWifiLock.isRemote(uri);
+            isTrackBuffered = false;
+            mBufferedPercent = 0;
+            mLastSentBufferedPercent = -1;
+            mCurrentHost = isRemoteTrack ? uri.getHost() : null;
+
+            if(mCircuitBreaker.isOpen(mCurrentHost))
+            {
+                Log.w(AmbientService.TAG, mCurrentHost + " is failing. Skipping " + mAmbientTrack.getName());
+                mHandler.post(mSkipFailedTrack);
+                return;
+            }
+
+            if(mPlayer.isPlaying())
+            {
+                mPlayer.stop();
+            }
+            mPlayer.reset();
+
+            mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mPlayer.setDataSource(this, uri); // set audio source
+            AmbientBandwidthMeter.getInstance().onStreamStarted(mAmbientTrack);
+
+            mPlayer.prepareAsync();
+            updateWifiLock(true); // preparing fetches the start of the stream
+
+            if(mPrepareTimeout > 0)
+            {
+                mHandler.postDelayed(mPrepareTimeoutCheck, mPrepareTimeout);
+            }
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
+
+            onPlaybackFailure();
+        }
+    }
+
+    /**
+     * Plays the AmbientTrack
+     */
+    private void play()
+    {
+        try
+        {
+            isPlaylistFocused = true;
+            updateMixerFocus(); // the focus moves from the layers to the playlist
+
+            int result = mAudioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC,AudioManager.AUDIOFOCUS_GAIN);
+
+            if (result != AudioManager.AUDIOFOCUS_GAIN)
+            {
+                Log.i(AmbientService.TAG, ": could not get audio focus from manager");
+
+                isPlaylistFocused = false;
+                updateMixerFocus();
+            }
+
+            updateWifiLock(true);
+
+            if(mPlayer != null)
+            {
+                mPlayer.start();
+                scheduleLoopRange();
+                scheduleCrossfade();
+                mState = PlaybackState.ACTION_PLAY;
+            }
+
+            if(mSession != null)
+            {
+                mSession.setPlaybackState(getPlaybackState());
+
+                if(!mSession.isActive())
+                {
+                    mSession.setActive(true);
+                }
+            }
+
+            metadataBitmapHelper();
+            publishQueueWindow();
+
+            if(mHandler != null)
+            {
+                mHandler.postDelayed(mUpdateProgress, AmbientService.AUDIO_PROGRESS_UPDATE_TIME);
+            }
+
+            sendUpdateBroadcast(AmbientService.PlaybackState.PLAY); // sends a now playing update to the callback
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG,e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the current playing AmbientTrack
+     */
+    private void stop()
+    {
+        isWaitingForPage = false;
+        cancelLoopRange();
+        cancelCrossfade();
+        cancelRecovery();
+        endStall();
+
+        try
+        {
+            mAudioManager.abandonAudioFocus(this);
+            isPlaylistFocused = false;
+            updateMixerFocus(); // the layers keep playing with their own focus
+            updateWifiLock(false);
+
+            if(mPlayer != null && mPlayer.isPlaying())
+            {
+                mPlayer.stop();
+                isPlayerPrepared = false;
+                mState = PlaybackState.ACTION_STOP;
+            }
+
+            if(mSession != null)
+            {
+                mSession.setPlaybackState(getPlaybackState());
+            }
+
+            sendUpdateBroadcast(AmbientService.PlaybackState.STOP); // sends a track has stopped update to the callback
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Pause the current playing AmbientTrack
+     */
+    private void pause()
+    {
+        isWaitingForPage = false;
+        cancelLoopRange();
+        cancelCrossfade();
+        cancelRecovery();
+        endStall();
+
+        try
+        {
+            mAudioManager.abandonAudioFocus(this);
+            isPlaylistFocused = false;
+            updateMixerFocus(); // the layers keep playing with their own focus
+            updateWifiLock(false);
+
+
+            if(mPlayer != null && mPlayer.isPlaying())
+            {
+                mPlayer.pause();
+                mState = PlaybackState.ACTION_PAUSE;
+            }
+
+            if(mSession != null)
+            {
+                mSession.setPlaybackState(getPlaybackState());
+            }
+
+            sendUpdateBroadcast(AmbientService.PlaybackState.PAUSE); // sends a track has paused update to the callback
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Method used to play the previous AmbientTrack in the playlist
+     */
+    private void playPrevious()
+    {
+        mState = PlaybackState.ACTION_SKIP_TO_PREVIOUS;
+
+        if(mPlayer != null && mPlayer.isPlaying())
+        {
+            stop();
+        }
+
+        if(mPlaylist != null)
+        {
+            --playPosition;
+
+            if(playPosition < 0 )
+            {
+                playPosition = mPlaylist.size() - 1;
+            }
+
+            init();
+        }
+    }
+
+    /**
+     * Method used to play the next AmbientTrack in the playlist
+     */
+    private void playNext()
+    {
+        mState = PlaybackState.ACTION_SKIP_TO_NEXT;
+
+        if(mPlayer != null && mPlayer.isPlaying())
+        {
+            stop();
+        }
+
+        if(mPlaylist != null)
+        {
+            ++playPosition;
+
+            if(playPosition >= mPlaylist.size() && isPlaylistExtending())
+            {
+                --playPosition;
+                isWaitingForRefill = true; // the next imported tracks or page of the infinite queue continue playback
+                updateInfiniteQueue();
                 return;
             }
 
-            mAmbientTrack = mPlaylist.get(playPosition);
+            if(playPosition >= mPlaylist.size())
+            {
+                sendUpdateBroadcast(AmbientService.PlaybackState.END_OF_PLAYLIST); // send end of playlist update to callback
+                playPosition = 0;
+            }
+
+            init();
+        }
+    }
+
+    /**
+     * Runnable object used to update the main user interface with playback values
+     */
+    private Runnable mUpdateProgress = new Runnable() {
+        public void run() {
+
+            if (mHandler != null && mPlayer != null && mPlayer.isPlaying()) {
+
+                int position = mStallStart != 0 ? mStallPosition : mPlayer.getCurrentPosition(); // frozen while stalled
+                int totalTime = mPlayer.getDuration();
+
+
+                //Send the progress to the callback. The track is only sent when it changes
+                //and every AmbientService.TRACK_UPDATE_INTERVAL updates
+                AmbientCodec.Writer update = new AmbientCodec.Writer()
+                        .playbackState(AmbientService.PlaybackState.CURRENT_PLAYING_TRACK_INFO)
+                        .progress(position, totalTime);
+
+                if(mAmbientTrack != mLastSentTrack || ++mProgressUpdates % AmbientService.TRACK_UPDATE_INTERVAL == 0)
+                {
+                    update.track();
+                }
+
+                if(mTimeline.size() > 0)
+                {
+                    update.queueTime(mTimeline.getTimeBefore(playPosition) + position, mTimeline.getTotalTime());
+                }
+
+                if(isRemoteTrack && mBufferedPercent != mLastSentBufferedPercent)
+                {
+                    update.bufferedPercent(mBufferedPercent);
+                    mLastSentBufferedPercent = mBufferedPercent;
+                }
+
+                sendUpdateBroadcast(update);
+
+
+                mHandler.postDelayed(this,AmbientService.AUDIO_PROGRESS_UPDATE_TIME);
+            }
+        }
+    };
+
+
+    /**
+     * Alerts the AmbientService when an AmbientTrack is
+     * done playing.
+     * @param mp Media Player object
+     */
+    @Override
+    public void onCompletion(MediaPlayer mp) {
 
+        if(mp != mPlayer || (mCrossfader != null && mCrossfader.isFading()))
+        {
+            return; // the crossfade hands over to the next track
+        }
 
-            if(mPlayer.isPlaying())
+        if(mRepeatMode == AmbientService.RepeatMode.REPEAT_ONE)
+        {
+            restartLoop(); // loop without a STOP update or a new notification
+            return;
+        }
+
+
+        sendUpdateBroadcast(AmbientService.PlaybackState.STOP); //send a stop update to the callback
+
+        if (!mSession.isActive()) {
+            mSession.setActive(false);
+        }
+
+        if(mSession != null)
+        {
+            mSession.release();
+            mSession = null;
+            createMediaSession();
+        }
+
+
+        if(mRepeatMode == AmbientService.RepeatMode.REPEAT_ALL || mQueueSupplier != null)
+        {
+            playNext(); // an infinite queue always moves on
+        }
+
+    }
+
+    /**
+     * Method used to recover from a failed track. The track is retried with a doubling delay
+     * until its retries are used up or its host is failing. Then it is skipped.
+     */
+    private void onPlaybackFailure()
+    {
+        if(mHandler == null)
+        {
+            return;
+        }
+
+        mHandler.removeCallbacks(mPrepareTimeoutCheck);
+        mCircuitBreaker.onFailure(mCurrentHost);
+
+        if(mRetries < mMaxRetries && !mCircuitBreaker.isOpen(mCurrentHost))
+        {
+            long delay = (long) mRetryDelay << Math.min(mRetries, 16);
+            mRetries++;
+
+            Log.w(AmbientService.TAG, "Retry " + mRetries + " of " + mMaxRetries + " in " + delay + " ms");
+            mHandler.postDelayed(mRetry, delay);
+            return;
+        }
+
+        mHandler.post(mSkipFailedTrack);
+    }
+
+    /**
+     * Method used to give up the current track and play the next one. Playback stops at the end
+     * of the playlist unless it repeats or is still extended, or when every track of the playlist
+     * failed in a row.
+     */
+    private void skipFailedTrack()
+    {
+        mRetries = 0;
+
+        sendUpdateBroadcast(AmbientService.PlaybackState.ERROR); // send error update to the callback
+
+        boolean isExtending = isPlaylistExtending(); // playNext waits for the next tracks
+        boolean isLastTrack = playPosition >= mPlaylist.size() - 1 && mRepeatMode != AmbientService.RepeatMode.REPEAT_ALL;
+
+        if(!isExtending && (++mSkippedTracks >= mPlaylist.size() || isLastTrack))
+        {
+            mSkippedTracks = 0;
+            stop();
+
+            return;
+        }
+
+        playNext();
+    }
+
+    /**
+     * Alerts the AmbientService of information about the media player. Only the buffering
+     * start and end are handled. They mark a stall of a streamed track.
+     * @param mp Media Player object
+     * @param what Type of information
+     * @param extra Extra information
+     * @return true if the information was handled
+     */
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+
+        if(mp != mPlayer)
+        {
+            return false;
+        }
+
+        switch (what)
+        {
+            case MediaPlayer.MEDIA_INFO_BUFFERING_START: startStall();
+                return true;
+            case MediaPlayer.MEDIA_INFO_BUFFERING_END: endStall();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Method used to start a stall. The progress sent to Ambience is frozen until the stall ends.
+     */
+    private void startStall()
+    {
+        if(mStallStart != 0 || mPlayer == null)
+        {
+            return;
+        }
+
+        mStallStart = SystemClock.elapsedRealtime();
+        mStallPosition = mPlayer.getCurrentPosition();
+
+        mStateBeforeStall = mState;
+        mState = PlaybackState.STATE_BUFFERING;
+
+        if(mSession != null)
+        {
+            mSession.setPlaybackState(getPlaybackState());
+        }
+
+        sendUpdateBroadcast(AmbientService.PlaybackState.BUFFERING_STARTED);
+    }
+
+    /**
+     * Method used to end the current stall, if any, and report its duration
+     */
+    private void endStall()
+    {
+        if(mStallStart == 0)
+        {
+            return;
+        }
+
+        long stallTime = SystemClock.elapsedRealtime() - mStallStart;
+        mStallStart = 0;
+
+        mState = mStateBeforeStall;
+
+        if(mSession != null)
+        {
+            mSession.setPlaybackState(getPlaybackState());
+        }
+
+        sendUpdateBroadcast(new AmbientCodec.Writer()
+                .playbackState(AmbientService.PlaybackState.BUFFERING_ENDED)
+                .stallTime(stallTime));
+    }
+
+    /**
+     * Helper method used to hold the wifi lock only while a remote track is fetched. Local
+     * and downloaded tracks and completely buffered streams do not need the wifi radio.
+     * @param isActive true if the player is preparing or playing
+     */
+    private void updateWifiLock(boolean isActive)
+    {
+        boolean held = isActive && isRemoteTrack && !isTrackBuffered;
+
+        if(mWifiLock == null && held)
+        {
+            mWifiLock = new AmbientWifiLock(this, AmbientService.TAG); // created by the first remote track
+        }
+
+        if(mWifiLock != null)
+        {
+            mWifiLock.setHeld(held);
+        }
+    }
+
+    /**
+     * Helper method used to cancel pending retries, skips and the prepare timeout
+     */
+    private void cancelRecovery()
+    {
+        if(mHandler != null)
+        {
+            mHandler.removeCallbacks(mRetry);
+            mHandler.removeCallbacks(mSkipFailedTrack);
+            mHandler.removeCallbacks(mPrepareTimeoutCheck);
+        }
+    }
+
+    /**
+     * Runnable object used to retry the current track
+     */
+    private Runnable mRetry = new Runnable() {
+        public void run() {
+            init();
+        }
+    };
+
+    /**
+     * Runnable object used to skip a failed track. Posted so a run of dead tracks does not recurse.
+     */
+    private Runnable mSkipFailedTrack = new Runnable() {
+        public void run() {
+            skipFailedTrack();
+        }
+    };
+
+    /**
+     * Runnable object used to fail a track that does not prepare in time
+     */
+    private Runnable mPrepareTimeoutCheck = new Runnable() {
+        public void run() {
+            Log.e(AmbientService.TAG, mAmbientTrack.getName() + " did not prepare in " + mPrepareTimeout + " ms");
+
+            try
             {
-                mPlayer.stop();
+                mPlayer.reset();
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(AmbientService.TAG, e.getMessage());
             }
-            mPlayer.reset();
 
-            mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            mPlayer.setDataSource(this, mAmbientTrack.getAudioUri()); // set audio source
+            onPlaybackFailure();
+        }
+    };
 
-            mPlayer.prepareAsync();
+    /**
+     * Method used to alert the AmbientService that an error
+     * has occured with the Media Player
+     * @param mp Media Player object
+     * @param what What error occurred
+     * @param extra Extra error information about the error
+     * @return The success of the error handling
+     */
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        String errorMessage = AmbientService.TAG + ".Error - What: " + what + ", extra: " + extra;
+
+        Log.e(AmbientService.TAG, errorMessage);
+
+        if(mp != mPlayer)
+        {
+            return true;
+        }
+
+        try
+        {
+            cancelLoopRange();
+            cancelCrossfade();
+            endStall();
+            isPlayerPrepared = false;
+            mPlayer.reset(); // keep the media player. reset returns it to its idle state
         }catch (Exception e)
         {
-            e.printStackTrace();
-            Log.e(AmbientService.TAG, e.getMessage());
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
+
+            createMediaPlayer();
+        }
+
+        onPlaybackFailure();
+
+        return true; // handled. onCompletion is not called
+    }
+
+    /**
+     * Alters the AmbientService when the media player has prepared an AmbientTrack
+     * and is ready for play.
+     * @param mp media player object
+     */
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        if(mHandler != null)
+        {
+            mHandler.removeCallbacks(mPrepareTimeoutCheck);
+        }
+
+        mCircuitBreaker.onSuccess(mCurrentHost);
+        mRetries = 0;
+        mSkippedTracks = 0;
+        isPlayerPrepared = true;
+        updateTrackDuration();
+
+        if(mPendingSeekTrack != null && mPendingSeekTrack == mAmbientTrack)
+        {
+            mp.seekTo(mPendingSeek); // a queue time seek to another track
+        }
+
+        mPendingSeekTrack = null;
+
+        updateLooping(); // reset() clears the looping flag
+        play();
+    }
+
+    /**
+     * Sets the volume level of the media player
+     * @param volumeLevel volume level
+     */
+    private void setVolumeTo(float volumeLevel) {
+
+        if(mPlayer != null)
+        {
+            if(volumeLevel < 0.0f || volumeLevel > 1.0f )
+            {
+                volumeLevel = 0.5f;
+            }
+
+            mVolume = volumeLevel;
+
+            mPlayer.setVolume(mVolume,mVolume);
+        }
+    }
+
+    /**
+     * Set the seek position of the current AmbientTrack
+     * @return false if the position is outside the current track
+     */
+    private boolean seekTo(int position)
+    {
+        if(mPlayer != null && isPlayerPrepared && position >= 0 && position <= mPlayer.getDuration())
+        {
+            cancelCrossfade();
+            mPlayer.seekTo(position);
+            scheduleLoopRange();
+            scheduleCrossfade();
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Method used to seek to a time of the whole queue. The timeline finds the track holding the
+     * time. Another track is started and seeks once it is prepared.
+     * @param time Time from the start of the queue in milliseconds
+     * @return false if the time is outside the queue
+     */
+    private boolean seekToQueueTime(long time)
+    {
+        int position = mPlaylist == null ? -1 : mTimeline.getPosition(time);
+
+        if(position == -1 || position >= mPlaylist.size())
+        {
+            return false;
+        }
+
+        int offset = (int) (time - mTimeline.getTimeBefore(position));
+
+        if(position == playPosition && isPlayerPrepared && mAmbientTrack == mPlaylist.get(position))
+        {
+            return seekTo(offset);
+        }
+
+        playPosition = position;
+        mPendingSeek = offset;
+        mPendingSeekTrack = mPlaylist.get(position);
+        mPendingSeekPosition = position;
+        mSkippedTracks = 0;
+        init();
+
+        return true;
+    }
+
+    /**
+     * Helper method used to page in the tracks around the play position of a playlist source and
+     * to probe the upcoming tracks of the playlist for missing metadata
+     */
+    private void probeMetadata()
+    {
+        if(mPager != null)
+        {
+            mPager.prefetch(playPosition);
+        }
+
+        if(mProber != null)
+        {
+            mProber.probe(mPlaylist, playPosition);
         }
     }
 
     /**
-     * Plays the AmbientTrack
+     * Called on the mix thread with the resource use of a layer. Reports it to Ambience on the main thread.
+     * @param id Id of the layer
+     * @param cpuTime Microseconds of CPU the layer used per second of audio
+     * @param memory Bytes held by the layer
+     * @param underruns Number of buffers the decoder fell behind the mix
      */
-    private void play()
-    {
-        try
+    @Override
+    public void onLayerStats(final int id, final int cpuTime, final int memory, final int underruns) {
+
+        Handler handler = mHandler;
+
+        if(handler == null)
         {
-            int result = mAudioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC,AudioManager.AUDIOFOCUS_GAIN);
+            return; // the service was destroyed
+        }
 
-            if (result != AudioManager.AUDIOFOCUS_GAIN)
-            {
-                Log.i(AmbientService.TAG, ": could not get audio focus from manager");
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                sendUpdateBroadcast(new AmbientCodec.Writer().layerStats(id, cpuTime, memory, underruns));
             }
+        });
+    }
 
-            mWifiLock.acquire();
+    /**
+     * Called on the main thread when the prober filled in the missing metadata of a track.
+     * A probed duration replaces the unknown duration in the timeline.
+     * Retagged tracks are refiled in the browse tree, the search index and the queue items.
+     * @param track The AmbientTrack
+     * @param position Position the track had in the playlist when it was queued
+     * @param isRetagged true if its name, artist or album was filled in
+     */
+    @Override
+    public void onTrackProbed(AmbientTrack track, int position, boolean isRetagged) {
 
-            if(mPlayer != null)
-            {
-                mPlayer.start();
-                mState = PlaybackState.ACTION_PLAY;
-            }
+        position = getTrackPosition(track, position);
 
-            if(mSession != null)
+        if(position != -1)
+        {
+            mTimeline.setDuration(position, track.getDuration());
+        }
+
+        if(isRetagged)
+        {
+            //the track was filed under its old names
+            if(mBrowseTree != null)
             {
-                mSession.setPlaybackState(getPlaybackState());
+                List<String> changed = mBrowseTree.updateTrack(track);
 
-                if(!mSession.isActive())
+                for(int x = 0; x < changed.size(); x++)
                 {
-                    mSession.setActive(true);
+                    notifyChildrenChanged(changed.get(x));
                 }
             }
 
-            metadataBitmapHelper();
-
-            if(mHandler != null)
+            if(mQueueIndex.remove(track))
             {
-                mHandler.postDelayed(mUpdateProgress, AmbientService.AUDIO_PROGRESS_UPDATE_TIME);
+                mQueueIndex.add(track);
             }
 
-            sendUpdateBroadcast(AmbientService.PlaybackState.PLAY); // sends a now playing update to the callback
-        }catch (Exception e)
-        {
-            e.printStackTrace();
-            Log.e(AmbientService.TAG,e.getMessage());
+            if(mQueueWindow.refresh(track))
+            {
+                publishQueueWindow();
+            }
         }
     }
 
     /**
-     * Stops the current playing AmbientTrack
+     * Helper method used to find a track of the playlist. The probes are queued again whenever
+     * the playlist changes, so the track is almost always still at its queued position.
+     * @param track The AmbientTrack
+     * @param position Position the track had in the playlist
+     * @return The position of the track or -1 if it left the playlist
      */
-    private void stop()
+    private int getTrackPosition(AmbientTrack track, int position)
     {
-        try
+        if(mPlaylist == null)
         {
-            mAudioManager.abandonAudioFocus(this);
-            mWifiLock.release();
+            return -1;
+        }
 
-            if(mPlayer != null && mPlayer.isPlaying())
-            {
-                mPlayer.stop();
-                mState = PlaybackState.ACTION_STOP;
-            }
+        if(position >= 0 && position < mPlaylist.size())
+        {
+            AmbientTrack queued = mPager != null ? mPager.peek(position) : mPlaylist.get(position);
 
-            if(mSession != null)
+            if(queued == track)
             {
-                mSession.setPlaybackState(getPlaybackState());
+                return position;
             }
+        }
 
-            sendUpdateBroadcast(AmbientService.PlaybackState.STOP); // sends a track has stopped update to the callback
-        }catch (Exception e)
+        //a playlist source is not searched, its tracks are paged in and out
+        return mPager != null ? -1 : mPlaylist.indexOf(track);
+    }
+
+    /**
+     * Called on the main thread when tracks of a playlist source were paged in. A track waiting
+     * to be played is prepared and the tracks around the play position are probed for missing metadata.
+     */
+    @Override
+    public void onTracksPaged() {
+
+        if(isWaitingForPage)
         {
-            e.printStackTrace();
-            Log.e(AmbientService.TAG, e.getMessage());
+            isWaitingForPage = false;
+            init(); // waits again if the page did not hold the track
         }
+
+        if(mProber != null)
+        {
+            mProber.probe(mPlaylist, playPosition);
+        }
+
+        publishQueueWindow(); // the window only holds paged in tracks
     }
 
     /**
-     * Pause the current playing AmbientTrack
+     * Called on the main thread when the playlist source failed to page in tracks. A track
+     * waiting to be played is rejected.
      */
-    private void pause()
-    {
-        try
+    @Override
+    public void onPagingFailed() {
+
+        if(isWaitingForPage)
         {
-            mAudioManager.abandonAudioFocus(this);
-            mWifiLock.release();
+            isWaitingForPage = false;
+            Log.e(AmbientService.TAG, ": The playlist source failed to page in the track at " + playPosition);
+            sendUpdateBroadcast(AmbientService.PlaybackState.COMMAND_REJECTED);
+        }
+    }
 
+    /**
+     * Helper method used to replace an unknown duration of the current track in the timeline
+     * with the duration of its prepared player
+     */
+    private void updateTrackDuration()
+    {
+        if(mAmbientTrack != null && mAmbientTrack.getDuration() <= 0 && mPlayer != null)
+        {
+            mTimeline.setDuration(playPosition, mPlayer.getDuration());
+        }
+    }
 
-            if(mPlayer != null && mPlayer.isPlaying())
+    /**
+     * Method used to set the crossfade duration. The crossfader is created with the first request.
+     * @param duration Crossfade duration in milliseconds. 0 turns the crossfade off.
+     */
+    private void setCrossfade(int duration)
+    {
+        if(mCrossfader == null)
+        {
+            if(duration == 0)
             {
-                mPlayer.pause();
-                mState = PlaybackState.ACTION_PAUSE;
+                return;
             }
 
-            if(mSession != null)
-            {
-                mSession.setPlaybackState(getPlaybackState());
-            }
+            mCrossfader = new AmbientCrossfader(this, mHandler, this);
+        }
 
-            sendUpdateBroadcast(AmbientService.PlaybackState.PAUSE); // sends a track has paused update to the callback
-        }catch (Exception e)
+        cancelCrossfade();
+        mCrossfader.setDuration(duration);
+        scheduleCrossfade();
+    }
+
+    /**
+     * Helper method that returns the track the current track crossfades into. Tracks only
+     * advance on completion in REPEAT_ALL mode or in an infinite queue, which does not wrap
+     * until its supplier ran out. A shuffled playlist is already in play order.
+     * @return The next AmbientTrack or null if there is no crossfade
+     */
+    private AmbientTrack getCrossfadeTrack()
+    {
+        if(mCrossfader == null || mCrossfader.getDuration() == 0 || mPlaylist == null
+                || mPlaylist.isEmpty() || (mRepeatMode != AmbientService.RepeatMode.REPEAT_ALL && mQueueSupplier == null))
         {
-            e.printStackTrace();
-            Log.e(AmbientService.TAG, e.getMessage());
+            return null;
+        }
+
+        int next = playPosition + 1;
+
+        if(next >= mPlaylist.size() && isPlaylistExtending())
+        {
+            return null; // the next tracks are not there yet
         }
+
+        return mPlaylist.get(next >= mPlaylist.size() ? 0 : next);
     }
 
     /**
-     * Method used to play the previous AmbientTrack in the playlist
+     * Helper method used to schedule the next step of the crossfade from the remaining duration
+     * of the current track: preparing the next track PREPARE_LEAD before the fade, then starting
+     * the fade. Each step is a single post to the main looper.
      */
-    private void playPrevious()
+    private void scheduleCrossfade()
     {
-        mState = PlaybackState.ACTION_SKIP_TO_PREVIOUS;
+        if(mHandler == null)
+        {
+            return;
+        }
 
-        if(mPlayer != null && mPlayer.isPlaying())
+        mHandler.removeCallbacks(mCrossfadeCheck);
+
+        AmbientTrack next = getCrossfadeTrack();
+
+        if(next == null || mPlayer == null || mCrossfader.isFading() || !mPlayer.isPlaying())
         {
-            stop();
+            return;
         }
 
-        if(mPlaylist != null)
+        int duration = mPlayer.getDuration();
+        int fade = Math.min(mCrossfader.getDuration(), duration / 2);
+        int remaining = duration - mPlayer.getCurrentPosition();
+
+        if(duration <= 0 || remaining <= 0)
         {
-            --playPosition;
+            return; // streams without a duration are not crossfaded
+        }
 
-            if(playPosition < 0 )
-            {
-                playPosition = mPlaylist.size() - 1;
-            }
+        if(remaining > fade + AmbientCrossfader.PREPARE_LEAD)
+        {
+            mHandler.postDelayed(mCrossfadeCheck, remaining - fade - AmbientCrossfader.PREPARE_LEAD);
+            return;
+        }
 
-            init();
+        mCrossfader.prepare(next);
+
+        if(remaining > fade)
+        {
+            mHandler.postDelayed(mCrossfadeCheck, remaining - fade);
+        }
+        else if(!mCrossfader.start(mPlayer, next, mVolume, remaining))
+        {
+            mHandler.postDelayed(mCrossfadeCheck, AmbientService.AUDIO_PROGRESS_UPDATE_TIME); // still preparing
         }
     }
 
     /**
-     * Method used to play the next AmbientTrack in the playlist
+     * Helper method used to cancel the crossfade and restore the volume of the current track
      */
-    private void playNext()
+    private void cancelCrossfade()
     {
-        mState = PlaybackState.ACTION_SKIP_TO_NEXT;
-
-        if(mPlayer != null && mPlayer.isPlaying())
+        if(mHandler != null)
         {
-            stop();
+            mHandler.removeCallbacks(mCrossfadeCheck);
         }
 
-        if(mPlaylist != null)
+        if(mCrossfader != null)
         {
-            ++playPosition;
+            boolean wasFading = mCrossfader.isFading();
 
-            if(playPosition >= mPlaylist.size())
+            mCrossfader.cancel();
+
+            if(wasFading && mPlayer != null)
             {
-                sendUpdateBroadcast(AmbientService.PlaybackState.END_OF_PLAYLIST); // send end of playlist update to callback
-                playPosition = 0;
+                mPlayer.setVolume(mVolume, mVolume);
             }
-
-            init();
         }
     }
 
     /**
-     * Runnable object used to update the main user interface with playback values
+     * Runnable object used to run the next step of the crossfade
      */
-    private Runnable mUpdateProgress = new Runnable() {
+    private Runnable mCrossfadeCheck = new Runnable() {
         public void run() {
+            scheduleCrossfade();
+        }
+    };
 
-            if (mHandler != null && mPlayer != null && mPlayer.isPlaying()) {
+    /**
+     * Called by the AmbientCrossfader when the next track has faded in. The incoming player
+     * becomes the player of the service.
+     * @param incoming The player of the next track
+     * @param uri The uri the incoming player plays
+     */
+    @Override
+    public void onCrossfadeCompleted(MediaPlayer incoming, Uri uri) {
+        mPlayer = incoming;
+        endStall();
+        isPlayerPrepared = true;
+        isRemoteTrack = AmbientWifiLock.isRemote(uri);
+        isTrackBuffered = false;
+        mBufferedPercent = 0;
+        mLastSentBufferedPercent = -1;
+        mCurrentHost = isRemoteTrack ? uri.getHost() : null;
+        updateWifiLock(true);
 
-                int position = mPlayer.getCurrentPosition();
-                int totalTime = mPlayer.getDuration();
+        mPlayer.setOnCompletionListener(this);
+        mPlayer.setOnPreparedListener(this);
+        mPlayer.setOnErrorListener(this);
+        mPlayer.setOnSeekCompleteListener(this);
+        mPlayer.setOnBufferingUpdateListener(this);
+        mPlayer.setOnInfoListener(this);
+        mPlayer.setVolume(mVolume, mVolume);
 
+        ++playPosition;
 
-                //Send bundle with all track information to callback
-                Bundle bundle = new Bundle();
-                bundle.putSerializable(AmbientService.PLAYBACK_STATE, AmbientService.PlaybackState.CURRENT_PLAYING_TRACK_INFO);
+        if(playPosition >= mPlaylist.size())
+        {
+            sendUpdateBroadcast(AmbientService.PlaybackState.END_OF_PLAYLIST); // send end of playlist update to callback
+            playPosition = 0;
+        }
 
-                bundle.putInt(AmbientService.TRACK_PROGRESS,position);
-                bundle.putParcelable(AmbientService.CURRENT_TRACK,mAmbientTrack);
-                bundle.putInt(AmbientService.TRACK_DURATION,totalTime);
+        mAmbientTrack = mPlaylist.get(playPosition);
+        probeMetadata(); // the upcoming tracks moved
+        updateInfiniteQueue();
+        AmbientBandwidthMeter.getInstance().onStreamStarted(mAmbientTrack);
+        updateTrackDuration();
 
-                sendUpdateBroadcast(bundle);
+        updateLooping();
+        if(mSession != null)
+        {
+            mSession.setPlaybackState(getPlaybackState());
+        }
 
+        metadataBitmapHelper();
+        publishQueueWindow();
 
-                mHandler.postDelayed(this,AmbientService.AUDIO_PROGRESS_UPDATE_TIME);
-            }
+        sendUpdateBroadcast(AmbientService.PlaybackState.PLAY); // sends a now playing update to the callback
+        scheduleCrossfade();
+    }
+
+    /**
+     * Called by the AmbientCrossfader when the next track failed during the fade. The current
+     * track plays on at full volume and completes as usual.
+     */
+    @Override
+    public void onCrossfadeFailed() {
+        if(mPlayer == null)
+        {
+            return;
         }
-    };
 
+        if(mPlayer.isPlaying())
+        {
+            mPlayer.setVolume(mVolume, mVolume);
+        }
+        else
+        {
+            onCompletion(mPlayer); // completed while the fade was running
+        }
+    }
 
     /**
-     * Alerts the AmbientService when an AmbientTrack is
-     * done playing.
-     * @param mp Media Player object
+     * Helper method used to loop the whole track with the MediaPlayer in REPEAT_ONE mode.
+     * A track with a loop range is looped by mLoopRange instead.
      */
-    @Override
-    public void onCompletion(MediaPlayer mp) {
+    private void updateLooping()
+    {
+        try
+        {
+            if(mPlayer != null)
+            {
+                mPlayer.setLooping(mRepeatMode == AmbientService.RepeatMode.REPEAT_ONE
+                        && (mAmbientTrack == null || !mAmbientTrack.hasLoopRange()));
+            }
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
+        }
 
+        scheduleLoopRange();
+    }
 
-        sendUpdateBroadcast(AmbientService.PlaybackState.STOP); //send a stop update to the callback
+    /**
+     * Helper method used to check if the current track loops a part of itself
+     * @return true if the track has a loop range in REPEAT_ONE mode
+     */
+    private boolean isLoopingRange()
+    {
+        return mRepeatMode == AmbientService.RepeatMode.REPEAT_ONE && mAmbientTrack != null && mAmbientTrack.hasLoopRange();
+    }
 
-        if (!mSession.isActive()) {
-            mSession.setActive(false);
-        }
+    /**
+     * Helper method used to schedule the end of the loop range from the current position
+     */
+    private void scheduleLoopRange()
+    {
+        cancelLoopRange();
 
-        if(mSession != null)
+        if(mHandler != null && mPlayer != null && isLoopingRange() && mPlayer.isPlaying())
         {
-            mSession.release();
-            mSession = null;
-            createMediaSession();
+            int delay = mAmbientTrack.getLoopEnd() - mPlayer.getCurrentPosition();
+            mHandler.postDelayed(mLoopRange, Math.max(0, delay));
         }
+    }
 
+    /**
+     * Helper method used to cancel the loop range
+     */
+    private void cancelLoopRange()
+    {
+        if(mHandler != null)
+        {
+            mHandler.removeCallbacks(mLoopRange);
+        }
+    }
 
-        if(mRepeatMode != null)
+    /**
+     * Helper method used to restart a REPEAT_ONE track that completed, without stopping it
+     */
+    private void restartLoop()
+    {
+        if(mPlayer == null)
         {
-            if(mRepeatMode == AmbientService.RepeatMode.REPEAT_ALL)
-            {
-                playNext();
-            }else if(mRepeatMode == AmbientService.RepeatMode.REPEAT_ONE)
-            {
-                play();
-            }
+            return;
         }
 
+        try
+        {
+            isLoopSeek = true;
+            mPlayer.seekTo(isLoopingRange() ? mAmbientTrack.getLoopStart() : 0);
+            mPlayer.start();
+            scheduleLoopRange();
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
+        }
     }
 
     /**
-     * Method used to alert the AmbientService that an error
-     * has occured with the Media Player
-     * @param mp Media Player object
-     * @param what What error occurred
-     * @param extra Extra error information about the error
-     * @return The success of the error handling
+     * Runnable object used to loop the loop range of the current track. It runs once per
+     * iteration at the loop end and seeks back to the loop start.
      */
-    @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
-        String errorMessage = AmbientService.TAG + ".Error - What: \" + what + \", extra: \" + extra";
+    private Runnable mLoopRange = new Runnable() {
+        public void run() {
 
-        Log.e(AmbientService.TAG, errorMessage);
+            if (mHandler == null || mPlayer == null || !isLoopingRange() || !mPlayer.isPlaying()) {
+                return;
+            }
 
-        createMediaPlayer(); // reset media player to original state
+            int position = mPlayer.getCurrentPosition();
 
-        sendUpdateBroadcast(AmbientService.PlaybackState.ERROR); // send error update to the callback
+            if(position >= mAmbientTrack.getLoopEnd() - AmbientService.LOOP_TOLERANCE)
+            {
+                isLoopSeek = true;
+                mPlayer.seekTo(mAmbientTrack.getLoopStart());
+                position = mAmbientTrack.getLoopStart();
+            }
 
-        return false;
-    }
+            mHandler.postDelayed(this, Math.max(0, mAmbientTrack.getLoopEnd() - position));
+        }
+    };
 
     /**
-     * Alters the AmbientService when the media player has prepared an AmbientTrack
-     * and is ready for play.
-     * @param mp media player object
+     * Alerts the AmbientService when a seek request has completed
+     * @param mp Media Player object
      */
     @Override
-    public void onPrepared(MediaPlayer mp) {
-        play();
+    public void onSeekComplete(MediaPlayer mp) {
+
+        if(isLoopSeek)
+        {
+            isLoopSeek = false; // seek made by a loop, not requested by Ambience
+            return;
+        }
+
+        sendUpdateBroadcast(AmbientService.PlaybackState.SEEK_COMPLETED);
     }
 
     /**
-     * Sets the volume level of the media player
-     * @param volumeLevel volume level
+     * Alerts the AmbientService when more of a streamed AmbientTrack is buffered. The updates
+     * feed the bandwidth estimate used to pick the variant of the next track.
+     * @param mp Media Player object
+     * @param percent Buffered part of the track
      */
-    private void setVolumeTo(float volumeLevel) {
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
 
-        if(mPlayer != null)
+        if(mp != mPlayer)
         {
-            if(volumeLevel < 0.0f || volumeLevel > 1.0f )
-            {
-                volumeLevel = 0.5f;
-            }
+            return;
+        }
 
-            mVolume = volumeLevel;
+        try
+        {
+            AmbientBandwidthMeter.getInstance().onBufferingUpdate(percent, mp.getDuration(), mp.getCurrentPosition());
+            mBufferedPercent = percent;
 
-            mPlayer.setVolume(mVolume,mVolume);
+            if(percent >= 100 && !isTrackBuffered)
+            {
+                isTrackBuffered = true;
+                updateWifiLock(mp.isPlaying()); // nothing left to fetch
+            }
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(AmbientService.TAG, e.getMessage());
         }
     }
 
     /**
-     * Set the seek position of the current AmbientTrack
+     * Method used to send an intent to the Ambience Broadcast Receiver to update the callback
+     * component. Updates carry the sender and sequence number of the last applied request.
+     * @param update The encoded update. The current AmbientTrack is attached if the update has a track.
      */
-    private void seekTo(int position)
+    private void sendUpdateBroadcast(AmbientCodec.Writer update)
     {
-        if(mPlayer != null && position >= 0 && position <= mPlayer.getDuration())
+        if(mAppliedSender != null && !update.hasSequence())
         {
-            mPlayer.seekTo(position);
+            update.sequence(mAppliedSender, mAppliedSequence); // the state follows this request
+        }
+
+        long wifiLockTime = mWifiLock == null ? 0 : mWifiLock.takeHeldTime();
+
+        if(wifiLockTime > 0)
+        {
+            update.wifiLockTime(wifiLockTime); // reported to the metrics of Ambience
         }
-    }
 
-    /**
-     * Method used to send an intent to the Ambience Broadcast Receiver to update the callback
-     * component.
-     * @param bundle A bundle object containing the current AmbientTrack component
-     */
-    private void sendUpdateBroadcast(Bundle bundle)
-    {
         Intent intent = new Intent(Ambience.AMBIENCE_BROADCASTER);
-        intent.putExtras(bundle);
+        intent.putExtra(AmbientCodec.MESSAGE, update.toByteArray());
+
+        if(update.hasTrack())
+        {
+            intent.putExtra(AmbientCodec.EXTRA_TRACK, mAmbientTrack);
+            mLastSentTrack = mAmbientTrack;
+            mProgressUpdates = 0;
+        }
+
         sendBroadcast(intent);
     }
 
@@ -979,9 +3164,14 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
      */
     private void sendUpdateBroadcast(AmbientService.PlaybackState value)
     {
-        Intent intent = new Intent(Ambience.AMBIENCE_BROADCASTER);
-        intent.putExtra(AmbientService.PLAYBACK_STATE, value);
-        sendBroadcast(intent);
+        AmbientCodec.Writer update = new AmbientCodec.Writer().playbackState(value);
+
+        if(value == AmbientService.PlaybackState.PLAY && mAmbientTrack != null)
+        {
+            update.track(); // the now playing update carries the track
+        }
+
+        sendUpdateBroadcast(update);
     }
 
     /**
@@ -1026,20 +3216,51 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
         mSession = null;
         mState = 0;
 
+        if(mHandler != null)
+        {
+            mHandler.removeCallbacksAndMessages(null); // drop pending binder requests
+        }
+
         mHandler = null;
         mAudioManager = null;
 
-        try
+        if(mWifiLock != null)
         {
-            mWifiLock.release();
-        }catch (Exception e)
+            try
+            {
+                mWifiLock.setHeld(false);
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(AmbientService.TAG,e.getMessage());
+            }
+
+            mWifiLock = null;
+        }
+
+        if(mMixer != null)
         {
-            e.printStackTrace();
-            Log.e(AmbientService.TAG,e.getMessage());
+            mMixer.release();
+            mMixer = null;
+            updateMixerFocus();
         }
 
-        mWifiLock = null;
-        mBundle = null;
+        if(mCrossfader != null)
+        {
+            mCrossfader.release();
+            mCrossfader = null;
+        }
+
+        if(mProber != null)
+        {
+            mProber.shutdown(); // unsaved results are written to the cache
+            mProber = null;
+        }
+        mRequestSequences.clear();
+        mAppliedSender = null;
+        releasePager();
+        cancelImport();
+        closeQueueSupplier();
 
         if(mOriginalPlaylist != null)
         {
@@ -1053,6 +3274,8 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
 
         mPlaylist = null;
         mOriginalPlaylist = null;
+        mQueueIndex.clear();
+        mBrowseTree = null;
         mActivityLauncher = null;
         mAmbientTrack = null;
         mVolume = 0.5f;
@@ -1062,6 +3285,196 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
         sendUpdateBroadcast(AmbientService.PlaybackState.SERVICE_STOPPED);
     }
 
+    /**
+     * Method used to register the tracks voice search can play besides the playlist, e.g. the
+     * music library of the app. Call it from Application.onCreate, which also runs in the
+     * :ambience process of the service. The library is indexed on a background thread and
+     * replaces the previous library.
+     * @param library The tracks of the library or null to remove the library
+     */
+    public static void setSearchLibrary(List<AmbientTrack> library)
+    {
+        if(library == null)
+        {
+            mLibraryIndex = null;
+            return;
+        }
+
+        final ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>(library);
+
+        Thread indexer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                AmbientSearchIndex index = new AmbientSearchIndex();
+
+                for(int x = 0; x < tracks.size(); x++)
+                {
+                    index.add(tracks.get(x));
+                }
+
+                mLibraryIndex = index;
+            }
+        }, "AmbientSearchIndex");
+
+        indexer.setPriority(Thread.MIN_PRIORITY);
+        indexer.start();
+    }
+
+    /**
+     * Method used to register an AmbientCatalog for libraries too large to register as tracks.
+     * The catalog is browsed under the library node and searched by voice search when the
+     * registered library has no match. Only the tracks of a requested page or search are
+     * materialized. Call it from Application.onCreate. The file is opened on a background thread.
+     * @param file The catalog file or null to remove the catalog
+     */
+    public static void setLibraryCatalog(final File file)
+    {
+        if(file == null)
+        {
+            mLibraryCatalog = null;
+            return;
+        }
+
+        Thread opener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try
+                {
+                    AmbientCatalog previous = mLibraryCatalog;
+                    mLibraryCatalog = AmbientCatalog.open(file);
+
+                    if(previous != null)
+                    {
+                        previous.close(); // its mapping stays valid for the pages still served from it
+                    }
+                }catch (Exception e)
+                {
+                    e.printStackTrace();
+                    Log.e(AmbientService.TAG, e.getMessage() + "");
+                }
+            }
+        }, "AmbientCatalog");
+
+        opener.setPriority(Thread.MIN_PRIORITY);
+        opener.start();
+    }
+
+    /**
+     * Method used to play the result of a voice search. A match in the playlist is played from
+     * the playlist. Otherwise the matches of the library, or else of the catalog, replace the
+     * playlist. An empty query plays the playlist or, without one, the start of the library.
+     * @param query The spoken query
+     * @param extras The search extras. The focus extra restricts the searched fields.
+     */
+    private void playFromSearch(String query, Bundle extras)
+    {
+        AmbientSearchIndex library = mLibraryIndex;
+        AmbientCatalog catalog = mLibraryCatalog;
+        boolean isQueueLoaded = mPlaylist != null && !mPlaylist.isEmpty();
+        ArrayList<AmbientTrack> results;
+
+        if(query == null || query.trim().isEmpty())
+        {
+            if(isQueueLoaded)
+            {
+                if(mState != PlaybackState.ACTION_PLAY && mStallStart == 0)
+                {
+                    handleRequest(new AmbientCodec.Writer()
+                            .playbackState(mState == PlaybackState.ACTION_PAUSE ? AmbientService.PlaybackState.RESUME
+                                    : AmbientService.PlaybackState.PLAY)
+                            .toByteArray(), null);
+                }
+
+                return;
+            }
+
+            results = library == null ? new ArrayList<AmbientTrack>() : library.getTracks(MAX_SEARCH_RESULTS);
+
+            for(int x = 0; results.isEmpty() && catalog != null && x < Math.min(catalog.size(), MAX_SEARCH_RESULTS); x++)
+            {
+                results.add(catalog.getTrack(x));
+            }
+        }
+        else
+        {
+            int fields = getSearchFields(extras);
+
+            if(isQueueLoaded)
+            {
+                ArrayList<AmbientTrack> queueResults = mQueueIndex.search(query, fields, 1);
+                int position = queueResults.isEmpty() ? -1 : mPlaylist.indexOf(queueResults.get(0));
+
+                if(position != -1)
+                {
+                    handleRequest(new AmbientCodec.Writer()
+                            .playPosition(position)
+                            .playbackState(AmbientService.PlaybackState.PLAY)
+                            .toByteArray(), null);
+                    return;
+                }
+            }
+
+            results = library == null ? new ArrayList<AmbientTrack>() : library.search(query, fields, MAX_SEARCH_RESULTS);
+
+            if(results.isEmpty() && catalog != null)
+            {
+                int[] records = catalog.search(query, fields, MAX_SEARCH_RESULTS);
+
+                for(int x = 0; x < records.length; x++)
+                {
+                    results.add(catalog.getTrack(records[x])); // only the results leave the catalog
+                }
+            }
+        }
+
+        if(results.isEmpty())
+        {
+            Log.i(AmbientService.TAG, "No track matches the voice search: " + query);
+            return;
+        }
+
+        Bundle playlist = new Bundle();
+        playlist.putParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST, results);
+
+        handleRequest(new AmbientCodec.Writer()
+                .playlist()
+                .playPosition(0)
+                .playbackState(AmbientService.PlaybackState.PLAY)
+                .toByteArray(), playlist);
+    }
+
+    /**
+     * Helper method used to get the fields a voice search targets
+     * @param extras The search extras
+     * @return Bits of the AmbientSearchIndex fields
+     */
+    private int getSearchFields(Bundle extras)
+    {
+        String focus = extras == null ? null : extras.getString(MediaStore.EXTRA_MEDIA_FOCUS);
+
+        if(MediaStore.Audio.Artists.ENTRY_CONTENT_TYPE.equals(focus))
+        {
+            return AmbientSearchIndex.FIELD_ARTIST;
+        }
+
+        if(MediaStore.Audio.Albums.ENTRY_CONTENT_TYPE.equals(focus))
+        {
+            return AmbientSearchIndex.FIELD_ALBUM;
+        }
+
+        if(MediaStore.Audio.Genres.ENTRY_CONTENT_TYPE.equals(focus))
+        {
+            return AmbientSearchIndex.FIELD_GENRE;
+        }
+
+        if(MediaStore.Audio.Media.ENTRY_CONTENT_TYPE.equals(focus))
+        {
+            return AmbientSearchIndex.FIELD_NAME;
+        }
+
+        return AmbientSearchIndex.FIELD_ALL;
+    }
+
     /**
      * Called to get the root information for browsing by a particular client.
      *The implementation should verify that the client package has permission to access browse media
@@ -1076,8 +3489,10 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
      */
     @Override
     public BrowserRoot onGetRoot(String clientPackageName, int clientUid, Bundle rootHints) {
-        //not implemented
-        return null;
+        createPlaybackResources(); // the session token is sent with the root
+        updateBrowseTree(false);
+
+        return new BrowserRoot(AmbientBrowseTree.ROOT_ID, null);
     }
 
     /**
@@ -1087,7 +3502,146 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
      */
     @Override
     public void onLoadChildren(String parentId, Result<List<MediaBrowser.MediaItem>> result) {
-        //not implemented
+        updateBrowseTree(false);
+        result.sendResult(mBrowseTree.getChildren(parentId));
+    }
+
+    /**
+     * Helper method used to publish the window of the playlist around the play position as the
+     * queue of the MediaSession. Nothing is sent when the window did not change.
+     */
+    private void publishQueueWindow()
+    {
+        if(mSession == null)
+        {
+            return;
+        }
+
+        List<MediaSession.QueueItem> window = mQueueWindow.update(mPlaylist, playPosition);
+
+        if(window != null)
+        {
+            mSession.setQueue(window);
+        }
+    }
+
+    /**
+     * Method used to play an item of the published queue
+     * @param id The queue item id
+     */
+    private void skipToQueueItem(long id)
+    {
+        int position = mQueueWindow.getPosition(mPlaylist, id);
+
+        if(position == -1)
+        {
+            Log.e(AmbientService.TAG, "The queue item " + id + " left the playlist");
+            return;
+        }
+
+        handleRequest(new AmbientCodec.Writer()
+                .playPosition(position)
+                .playbackState(AmbientService.PlaybackState.PLAY)
+                .toByteArray(), null);
+    }
+
+    /**
+     * Helper method used to bring the browse tree up to date with the playlist and the search
+     * library, and to notify the subscribed clients of the nodes that changed
+     * @param isQueueChanged true if the tracks or the order of the playlist changed
+     */
+    private void updateBrowseTree(boolean isQueueChanged)
+    {
+        if(mBrowseTree == null)
+        {
+            return;
+        }
+
+        List<String> changed = new ArrayList<String>();
+        AmbientSearchIndex library = mLibraryIndex;
+
+        if(isQueueChanged)
+        {
+            changed.addAll(mBrowseTree.setQueue(mPager == null ? mPlaylist : null)); // a source is not browsed
+        }
+
+        if(library != mBrowsedLibrary)
+        {
+            mBrowsedLibrary = library;
+            changed.addAll(mBrowseTree.setLibrary(library == null ? null : library.getTracks(Integer.MAX_VALUE)));
+        }
+
+        if(mLibraryCatalog != mBrowsedCatalog)
+        {
+            mBrowsedCatalog = mLibraryCatalog;
+            changed.addAll(mBrowseTree.setCatalog(mBrowsedCatalog));
+        }
+
+        for(int x = 0; x < changed.size(); x++)
+        {
+            notifyChildrenChanged(changed.get(x));
+        }
+    }
+
+    /**
+     * Method used to play a track picked in the browse tree. A track of the queue is played from
+     * the queue. A track of an artist, album or genre replaces the playlist with its group.
+     * @param mediaId The media id of the track
+     */
+    private void playFromMediaId(String mediaId)
+    {
+        String nodeId = AmbientBrowseTree.getNodeId(mediaId);
+        int index = AmbientBrowseTree.getTrackIndex(mediaId);
+
+        if(AmbientQueueWindow.QUEUE_ITEM_ID.equals(nodeId))
+        {
+            skipToQueueItem(index); // an item of the session queue
+            return;
+        }
+
+        //a catalog group is played as a playlist source, so it is never materialized as a whole
+        int catalogSize = mBrowseTree == null ? -1 : mBrowseTree.getCatalogSize(nodeId);
+
+        if(catalogSize != -1 && index >= 0 && index < catalogSize)
+        {
+            AmbientPlaylistSource.register(CATALOG_SOURCE, mBrowseTree.getCatalogSource(nodeId));
+
+            Bundle source = new Bundle();
+            source.putString(AmbientCodec.EXTRA_PLAYLIST_SOURCE, CATALOG_SOURCE);
+
+            handleRequest(new AmbientCodec.Writer()
+                    .playlistSource(catalogSize)
+                    .playPosition(index)
+                    .playbackState(AmbientService.PlaybackState.PLAY)
+                    .toByteArray(), source);
+            return;
+        }
+
+        List<AmbientTrack> tracks = mBrowseTree == null ? null : mBrowseTree.getTracks(nodeId);
+
+        if(tracks == null || index < 0 || index >= tracks.size())
+        {
+            Log.e(AmbientService.TAG, "Unknown media id: " + mediaId);
+            return;
+        }
+
+        if(AmbientBrowseTree.QUEUE_ID.equals(nodeId))
+        {
+            handleRequest(new AmbientCodec.Writer()
+                    .playPosition(index)
+                    .playbackState(AmbientService.PlaybackState.PLAY)
+                    .toByteArray(), null);
+            return;
+        }
+
+        Bundle playlist = new Bundle();
+        playlist.putParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST, new ArrayList<AmbientTrack>(tracks));
+
+        handleRequest(new AmbientCodec.Writer()
+                .playlist()
+                .playPosition(index)
+                .playbackState(AmbientService.PlaybackState.PLAY)
+                .toByteArray(), playlist);
     }
 
     /**
@@ -1097,12 +3651,19 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
     {
         long position = android.media.session.PlaybackState.PLAYBACK_POSITION_UNKNOWN;
 
-        if (mPlayer != null && mPlayer.isPlaying()) {
+        if (mStallStart != 0) {
+            position = mStallPosition;
+        } else if (mPlayer != null && mPlayer.isPlaying()) {
             position = mPlayer.getCurrentPosition();
         }
         android.media.session.PlaybackState.Builder stateBuilder = new android.media.session.PlaybackState.Builder()
                 .setActions(getAvailableActions());
-        stateBuilder.setState((int)mState, position, 1.0f);
+        stateBuilder.setState((int)mState, position, mStallStart != 0 ? 0.0f : 1.0f); // controllers do not extrapolate a stall
+
+        if(mAmbientTrack != null)
+        {
+            stateBuilder.setActiveQueueItemId(mQueueWindow.getId(mAmbientTrack));
+        }
 
         return stateBuilder.build();
     }
@@ -1120,6 +3681,8 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
         if (mPlaylist == null || mPlaylist.size() <= 0) {
             return actions;
         }
+
+        actions |= android.media.session.PlaybackState.ACTION_SKIP_TO_QUEUE_ITEM;
         if (mState == android.media.session.PlaybackState.STATE_PLAYING) {
             actions |= android.media.session.PlaybackState.ACTION_PAUSE;
         }
@@ -1363,7 +3926,7 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
             super.onPlayFromMediaId(mediaId, extras);
-            //not implemented
+            playFromMediaId(mediaId);
         }
 
         /**
@@ -1376,7 +3939,7 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
         @Override
         public void onPlayFromSearch(String query, Bundle extras) {
             super.onPlayFromSearch(query, extras);
-            //not implemented
+            playFromSearch(query, extras);
         }
 
         /**
@@ -1386,7 +3949,7 @@ public class AmbientMediaBrowserService extends MediaBrowserService implements M
         @Override
         public void onSkipToQueueItem(long id) {
             super.onSkipToQueueItem(id);
-            //not implemented
+            skipToQueueItem(id);
         }
 
         /**
@@ -0,0 +1,600 @@
+package com.tonyostudios.ambience;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AmbientMetadataProber fills in the durations, and optionally the name, artist and album, of
+ * queued AmbientTracks that arrive without them. Without it a duration is only known once the
+ * track is prepared for playback.
+ *
+ * Probes run on a small pool of background threads. The tracks after the play position are probed
+ * first and the order is updated whenever the play position or the playlist changes. Results are
+ * kept in a persistent cache keyed by the uri and the size and validator (ETag or Last-Modified)
+ * of the file, so each file is probed once and a changed file is probed again.
+ *
+ * Create and use the prober from the main thread. Listener methods are called on the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientMetadataProber {
+
+    /**
+     * Tag used to identify the AmbientMetadataProber
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientMetadataProber";
+
+    /**
+     * Probe flags. PROBE_DURATION fills in missing durations, PROBE_TAGS missing names, artists and albums.
+     */
+    static final int PROBE_DURATION = 1;
+    static final int PROBE_TAGS = 2;
+
+    /**
+     * Number of parallel probes
+     */
+    private static final int MAX_PROBES = 2;
+
+    /**
+     * Number of probes queued at once. The next tracks are queued when the queue drains.
+     */
+    private static final int MAX_QUEUED = 256;
+
+    /**
+     * Number of results written to the cache at once
+     */
+    private static final int FLUSH_BATCH = 16;
+
+    /**
+     * Number of cached results. The oldest quarter is dropped when the cache is full.
+     */
+    private static final int MAX_ENTRIES = 4000;
+
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    /**
+     * Separator of the fields of a cache entry
+     */
+    private static final String SEPARATOR = "\n";
+
+    /**
+     * Callback interface of the AmbientMetadataProber
+     */
+    interface ProbeListener
+    {
+        /**
+         * Called when the missing metadata of a track was filled in
+         * @param track The AmbientTrack
+         * @param position Position the track had in the playlist when it was queued. It may have moved since.
+         * @param isRetagged true if its name, artist or album was filled in
+         */
+        void onTrackProbed(AmbientTrack track, int position, boolean isRetagged);
+    }
+
+    private final Context mContext;
+    private final SharedPreferences mCache;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Queued and running probes by track
+     */
+    private final IdentityHashMap<AmbientTrack, Probe> mProbes = new IdentityHashMap<AmbientTrack, Probe>();
+
+    /**
+     * Tracks that could not be probed. They are not probed again.
+     */
+    private final IdentityHashMap<AmbientTrack, Boolean> mFailedTracks = new IdentityHashMap<AmbientTrack, Boolean>();
+
+    /**
+     * Results that are not written to the cache yet. Guarded by itself.
+     */
+    private final Map<String, String> mUnsaved = new HashMap<String, String>();
+
+    private ProbeListener mListener;
+    private int mFlags = PROBE_DURATION;
+    private List<AmbientTrack> mPlaylist;
+    private int mPlayPosition = 0;
+    private long mSequence = 0;
+
+    /**
+     * constructor
+     * @param context A context object
+     */
+    AmbientMetadataProber(Context context)
+    {
+        mContext = context.getApplicationContext();
+        mCache = mContext.getSharedPreferences(TAG, Context.MODE_PRIVATE);
+        mExecutor = new ThreadPoolExecutor(MAX_PROBES, MAX_PROBES, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Method used to set the ProbeListener
+     * @param listener The ProbeListener
+     */
+    void setProbeListener(ProbeListener listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * Method used to set what is probed. 0 turns probing off.
+     * @param flags PROBE_DURATION and PROBE_TAGS
+     */
+    void setFlags(int flags)
+    {
+        mFlags = flags;
+        probe(mPlaylist, mPlayPosition);
+    }
+
+    /**
+     * Method used to probe the tracks of a playlist that miss metadata. The tracks after the
+     * play position are probed first. Probes queued by an earlier call are reordered.
+     * @param playlist The tracks of the playlist in play order
+     * @param playPosition The play position
+     */
+    void probe(List<AmbientTrack> playlist, int playPosition)
+    {
+        if(mExecutor.isShutdown())
+        {
+            return;
+        }
+
+        mPlaylist = playlist;
+        mPlayPosition = playPosition;
+
+        //take back the probes that did not start, the rest finish
+        ArrayList<Runnable> queued = new ArrayList<Runnable>();
+        mExecutor.getQueue().drainTo(queued);
+
+        for(int x = 0; x < queued.size(); x++)
+        {
+            mProbes.remove(((Probe) queued.get(x)).mTrack);
+        }
+
+        int size = playlist == null || mFlags == 0 ? 0 : playlist.size();
+        int start = Math.max(0, Math.min(playPosition, size - 1));
+
+        //a playlist source is only probed in the window it pages in
+        AmbientPlaylistPager pager = playlist instanceof AmbientPlaylistPager ? (AmbientPlaylistPager) playlist : null;
+        int limit = pager == null ? size : Math.min(size, AmbientPlaylistPager.TRACKS_AFTER);
+
+        for(int x = 0; x < limit && mProbes.size() < MAX_QUEUED + MAX_PROBES; x++)
+        {
+            AmbientTrack track = pager == null ? playlist.get((start + x) % size) : pager.peek((start + x) % size);
+
+            if(isMissingMetadata(track) && !mProbes.containsKey(track) && !mFailedTracks.containsKey(track))
+            {
+                Probe probe = new Probe(track, (start + x) % size, x, mSequence++);
+                mProbes.put(track, probe);
+                mExecutor.execute(probe);
+            }
+        }
+    }
+
+    /**
+     * Method used to stop probing. Unsaved results are written to the cache.
+     */
+    void shutdown()
+    {
+        mListener = null;
+        mPlaylist = null;
+        mExecutor.shutdownNow();
+        mMainHandler.removeCallbacksAndMessages(null);
+        mProbes.clear();
+        flush();
+    }
+
+    /**
+     * Helper method used to check if a track misses metadata that is probed
+     * @param track The AmbientTrack
+     * @return true if the track should be probed
+     */
+    private boolean isMissingMetadata(AmbientTrack track)
+    {
+        if(track == null || track.getAudioUri() == null || Uri.EMPTY.equals(track.getAudioUri()))
+        {
+            return false;
+        }
+
+        if((mFlags & PROBE_DURATION) != 0 && track.getDuration() <= 0)
+        {
+            return true;
+        }
+
+        return (mFlags & PROBE_TAGS) != 0 && (isEmpty(track.getName())
+                || isEmpty(track.getArtistName()) || isEmpty(track.getAlbumName()));
+    }
+
+    /**
+     * Helper method used to apply a result on the main thread
+     * @param track The AmbientTrack
+     * @param entry The cache entry or null if the probe failed
+     */
+    private void onProbeCompleted(AmbientTrack track, String entry)
+    {
+        Probe probe = mProbes.remove(track);
+
+        if(probe == null)
+        {
+            return; // shut down
+        }
+
+        String[] fields = entry == null ? null : entry.split(SEPARATOR, -1);
+        int duration = fields == null ? -1 : Integer.parseInt(fields[1]);
+
+        if(fields == null || (duration <= 0 && isEmpty(fields[2]) && isEmpty(fields[3]) && isEmpty(fields[4])))
+        {
+            mFailedTracks.put(track, Boolean.TRUE);
+        }
+        else
+        {
+            if((mFlags & PROBE_DURATION) != 0 && track.getDuration() <= 0 && duration > 0)
+            {
+                track.setDuration(duration);
+            }
+
+            boolean isRetagged = false;
+
+            if((mFlags & PROBE_TAGS) != 0)
+            {
+                if(isEmpty(track.getName()) && !isEmpty(fields[2]))
+                {
+                    track.setName(fields[2]);
+                    isRetagged = true;
+                }
+
+                if(isEmpty(track.getArtistName()) && !isEmpty(fields[3]))
+                {
+                    track.setArtistName(fields[3]);
+                    isRetagged = true;
+                }
+
+                if(isEmpty(track.getAlbumName()) && !isEmpty(fields[4]))
+                {
+                    track.setAlbumName(fields[4]);
+                    isRetagged = true;
+                }
+            }
+
+            //a track that is still incomplete is not probed again
+            if(isMissingMetadata(track))
+            {
+                mFailedTracks.put(track, Boolean.TRUE);
+            }
+
+            if(mListener != null)
+            {
+                mListener.onTrackProbed(track, probe.mPosition, isRetagged);
+            }
+        }
+
+        if(mProbes.isEmpty())
+        {
+            probe(mPlaylist, mPlayPosition); // queue the next tracks
+        }
+    }
+
+    /**
+     * Helper method used to read a cache entry. Called on a probe thread.
+     * @param key The cache key
+     * @return The entry or null
+     */
+    private String getEntry(String key)
+    {
+        synchronized (mUnsaved)
+        {
+            String entry = mUnsaved.get(key);
+
+            return entry != null ? entry : mCache.getString(key, null);
+        }
+    }
+
+    /**
+     * Helper method used to keep a cache entry. Entries are written in batches. Called on a probe thread.
+     * @param key The cache key
+     * @param entry The entry
+     */
+    private void putEntry(String key, String entry)
+    {
+        boolean isFlushing;
+
+        synchronized (mUnsaved)
+        {
+            mUnsaved.put(key, entry);
+            isFlushing = mUnsaved.size() >= FLUSH_BATCH || mExecutor.getQueue().isEmpty();
+        }
+
+        if(isFlushing)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Helper method used to write the unsaved entries to the cache and drop the oldest entries
+     * once the cache is full
+     */
+    private void flush()
+    {
+        synchronized (mUnsaved)
+        {
+            if(mUnsaved.isEmpty())
+            {
+                return;
+            }
+
+            SharedPreferences.Editor editor = mCache.edit();
+            Map<String, ?> entries = mCache.getAll();
+
+            if(entries.size() + mUnsaved.size() > MAX_ENTRIES)
+            {
+                String[] keys = entries.keySet().toArray(new String[entries.size()]);
+                long[] times = new long[keys.length];
+
+                for(int x = 0; x < keys.length; x++)
+                {
+                    times[x] = getTime(String.valueOf(entries.get(keys[x])));
+                }
+
+                long[] sorted = times.clone();
+                Arrays.sort(sorted);
+                long oldest = sorted[Math.min(sorted.length - 1, MAX_ENTRIES / 4)];
+
+                for(int x = 0; x < keys.length; x++)
+                {
+                    if(times[x] <= oldest)
+                    {
+                        editor.remove(keys[x]);
+                    }
+                }
+            }
+
+            for(Map.Entry<String, String> entry : mUnsaved.entrySet())
+            {
+                editor.putString(entry.getKey(), entry.getValue());
+            }
+
+            mUnsaved.clear();
+            editor.apply();
+        }
+    }
+
+    /**
+     * Helper method used to build the cache key of a file from its uri, size and validator. A
+     * remote file is asked for its headers. Called on a probe thread.
+     * @param uri The uri of the file
+     * @return The cache key
+     */
+    private String getCacheKey(Uri uri)
+    {
+        String scheme = uri.getScheme() == null ? "" : uri.getScheme();
+        StringBuilder key = new StringBuilder(uri.toString());
+
+        try
+        {
+            if(scheme.equals("http") || scheme.equals("https"))
+            {
+                HttpURLConnection connection = (HttpURLConnection) new URL(uri.toString()).openConnection();
+                connection.setRequestMethod("HEAD");
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(CONNECT_TIMEOUT);
+
+                try
+                {
+                    String validator = connection.getHeaderField("ETag");
+
+                    if(validator == null)
+                    {
+                        validator = connection.getHeaderField("Last-Modified");
+                    }
+
+                    key.append('|').append(connection.getHeaderField("Content-Length")).append('|').append(validator);
+                }finally
+                {
+                    connection.disconnect();
+                }
+            }
+            else if(scheme.equals("file") || scheme.equals(""))
+            {
+                File file = new File(uri.getPath());
+                key.append('|').append(file.length()).append('|').append(file.lastModified());
+            }
+            else if(scheme.equals("content"))
+            {
+                Cursor cursor = mContext.getContentResolver()
+                        .query(uri, new String[]{OpenableColumns.SIZE}, null, null, null);
+
+                if(cursor != null)
+                {
+                    try
+                    {
+                        key.append('|').append(cursor.moveToFirst() ? cursor.getLong(0) : -1);
+                    }finally
+                    {
+                        cursor.close();
+                    }
+                }
+            }
+        }catch (Exception e)
+        {
+            Log.e(TAG, "no size for " + uri + ": " + e.getMessage()); // keyed by the uri only
+        }
+
+        return key.toString();
+    }
+
+    /**
+     * Helper method used to read the metadata of a file. Called on a probe thread.
+     * @param uri The uri of the file
+     * @return The cache entry
+     */
+    private String retrieve(Uri uri)
+    {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+
+        try
+        {
+            String scheme = uri.getScheme() == null ? "" : uri.getScheme();
+
+            if(scheme.equals("http") || scheme.equals("https"))
+            {
+                retriever.setDataSource(uri.toString(), new HashMap<String, String>());
+            }
+            else
+            {
+                retriever.setDataSource(mContext, uri);
+            }
+
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+
+            return System.currentTimeMillis() + SEPARATOR
+                    + (duration == null ? -1 : Integer.parseInt(duration.trim())) + SEPARATOR
+                    + getTag(retriever, MediaMetadataRetriever.METADATA_KEY_TITLE) + SEPARATOR
+                    + getTag(retriever, MediaMetadataRetriever.METADATA_KEY_ARTIST) + SEPARATOR
+                    + getTag(retriever, MediaMetadataRetriever.METADATA_KEY_ALBUM);
+        }finally
+        {
+            retriever.release();
+        }
+    }
+
+    /**
+     * Helper method used to read a tag
+     * @param retriever The MediaMetadataRetriever
+     * @param key The metadata key
+     * @return The tag or an empty string
+     */
+    private static String getTag(MediaMetadataRetriever retriever, int key)
+    {
+        String tag = retriever.extractMetadata(key);
+
+        return tag == null ? "" : tag.replace(SEPARATOR, " ").trim();
+    }
+
+    /**
+     * Helper method used to read the write time of a cache entry
+     * @param entry The entry
+     * @return The time or 0
+     */
+    private static long getTime(String entry)
+    {
+        try
+        {
+            return Long.parseLong(entry.substring(0, entry.indexOf(SEPARATOR)));
+        }catch (Exception e)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Helper method used to check if a string is empty
+     * @param value The string
+     * @return true if the string is null or empty
+     */
+    private static boolean isEmpty(String value)
+    {
+        return value == null || value.trim().length() == 0;
+    }
+
+    /**
+     * A probe of one track. Probes closer to the play position run first.
+     */
+    private final class Probe implements Runnable, Comparable<Probe>
+    {
+        private final AmbientTrack mTrack;
+        private final int mPosition;
+        private final int mDistance;
+        private final long mOrder;
+
+        /**
+         * constructor
+         * @param track The AmbientTrack
+         * @param position Position of the track in the playlist
+         * @param distance Number of tracks between the play position and the track
+         * @param order Order of submission
+         */
+        Probe(AmbientTrack track, int position, int distance, long order)
+        {
+            mTrack = track;
+            mPosition = position;
+            mDistance = distance;
+            mOrder = order;
+        }
+
+        @Override
+        public int compareTo(Probe other) {
+
+            if(mDistance != other.mDistance)
+            {
+                return mDistance < other.mDistance ? -1 : 1;
+            }
+
+            return mOrder < other.mOrder ? -1 : (mOrder == other.mOrder ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            String entry = null;
+
+            try
+            {
+                Uri uri = AmbientDownloader.getLocalUri(mContext, mTrack);
+
+                if(uri == null)
+                {
+                    uri = mTrack.getAudioUri();
+                }
+
+                String key = getCacheKey(uri);
+                entry = getEntry(key);
+
+                if(entry == null)
+                {
+                    entry = retrieve(uri);
+                    putEntry(key, entry);
+                }
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage() + "");
+                entry = null;
+            }
+
+            final String result = entry;
+
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onProbeCompleted(mTrack, result);
+                }
+            });
+        }
+    }
+}
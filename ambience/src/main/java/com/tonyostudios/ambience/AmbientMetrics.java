@@ -0,0 +1,183 @@
+package com.tonyostudios.ambience;
+
+import android.os.Bundle;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * AmbientMetrics holds named counters and timing samples recorded by Ambience and the
+ * AmbientService. Each metric keeps its count, total, minimum, maximum and last value.
+ * All methods are thread safe.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public class AmbientMetrics {
+
+    /**
+     * Holds all metrics by name, in the order they were first recorded
+     */
+    private final Map<String, Metric> mMetrics = new LinkedHashMap<String, Metric>();
+
+    /**
+     * Records a sample value for a metric, usually a time in milliseconds
+     * @param name Metric name
+     * @param value Sample value
+     */
+    public synchronized void record(String name, long value)
+    {
+        getOrCreate(name).add(value);
+    }
+
+    /**
+     * Increments a counter metric by one
+     * @param name Metric name
+     */
+    public synchronized void increment(String name)
+    {
+        getOrCreate(name).add(1);
+    }
+
+    /**
+     * Method used to get a metric
+     * @param name Metric name
+     * @return A copy of the metric or null if nothing was recorded under the name
+     */
+    public synchronized Metric get(String name)
+    {
+        Metric metric = mMetrics.get(name);
+
+        return metric == null ? null : metric.copy();
+    }
+
+    /**
+     * Removes all recorded metrics
+     */
+    public synchronized void reset()
+    {
+        mMetrics.clear();
+    }
+
+    /**
+     * Method used to bundle all metrics. For each metric the bundle holds the keys
+     * name.count, name.total, name.min, name.max and name.last
+     * @return A bundle containing all metrics
+     */
+    public synchronized Bundle toBundle()
+    {
+        Bundle bundle = new Bundle();
+
+        for(Map.Entry<String, Metric> entry : mMetrics.entrySet())
+        {
+            String name = entry.getKey();
+            Metric metric = entry.getValue();
+
+            bundle.putLong(name + ".count", metric.count);
+            bundle.putLong(name + ".total", metric.total);
+            bundle.putLong(name + ".min", metric.min);
+            bundle.putLong(name + ".max", metric.max);
+            bundle.putLong(name + ".last", metric.last);
+        }
+
+        return bundle;
+    }
+
+    /**
+     * Helper method used to get a metric, creating it when needed
+     * @param name Metric name
+     * @return The metric
+     */
+    private Metric getOrCreate(String name)
+    {
+        if(name == null)
+        {
+            throw new NullPointerException("metric name cannot be null");
+        }
+
+        Metric metric = mMetrics.get(name);
+
+        if(metric == null)
+        {
+            metric = new Metric();
+            mMetrics.put(name, metric);
+        }
+
+        return metric;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AmbientMetrics" + mMetrics;
+    }
+
+    /**
+     * A single metric
+     */
+    public static final class Metric
+    {
+        private long count = 0;
+        private long total = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private long last = 0;
+
+        private void add(long value)
+        {
+            count++;
+            total += value;
+            last = value;
+
+            if(value < min)
+            {
+                min = value;
+            }
+
+            if(value > max)
+            {
+                max = value;
+            }
+        }
+
+        private Metric copy()
+        {
+            Metric metric = new Metric();
+            metric.count = count;
+            metric.total = total;
+            metric.min = min;
+            metric.max = max;
+            metric.last = last;
+
+            return metric;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getMin() {
+            return min;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getLast() {
+            return last;
+        }
+
+        public long getAverage() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        @Override
+        public String toString() {
+            return "{count=" + count + ", avg=" + getAverage() + ", min=" + min
+                    + ", max=" + max + ", last=" + last + "}";
+        }
+    }
+}
@@ -0,0 +1,1292 @@
+package com.tonyostudios.ambience;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Debug;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The AmbientMixer plays several AmbientTracks (layers) at the same time, each with its own gain
+ * and loop mode. It is used by the AmbientService for soundscapes such as rain, wind and a drone
+ * playing together.
+ *
+ * A layer is a MediaExtractor, a MediaCodec decoder and a ring buffer of decoded frames. It has no
+ * player, thread or AudioTrack of its own. A single decode thread decodes every layer ahead into its
+ * ring buffer, and a single mix thread mixes the ring buffers into one AudioTrack, so a slow decoder
+ * does not hold up the mix. A layer whose ring buffer runs dry is silent for the rest of the mix
+ * buffer and counts an underrun. Layers are opened on a single prepare thread, so a slow data source
+ * does not stall the layers that are already playing. Looping layers seek their extractor back to the
+ * loop start when it runs out of samples or reaches the loop range end of its track, without flushing
+ * the decoder, so the loop does not leave a gap.
+ *
+ * Layers are resampled to 44.1 kHz stereo. Gain changes are ramped over one mix buffer.
+ * The decode and mix CPU time, memory and underruns of every layer are reported to the
+ * LayerStatsListener about every STATS_INTERVAL of audio. Requires API 16 (MediaCodec).
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+class AmbientMixer implements Runnable {
+
+    /**
+     * Tag used to identify the AmbientMixer
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientMixer";
+
+    /**
+     * Maximum number of layers playing at once
+     */
+    static final int MAX_LAYERS = 8;
+
+    /**
+     * Output sample rate of the mix
+     */
+    static final int SAMPLE_RATE = 44100;
+
+    /**
+     * Number of stereo frames mixed per cycle (about 23 ms)
+     */
+    private static final int FRAMES_PER_BUFFER = 1024;
+
+    /**
+     * Number of stereo frames decoded ahead per layer (about 370 ms at 44.1 kHz). Must be a power of two.
+     */
+    private static final int RING_FRAMES = 16384;
+
+    /**
+     * Time the decode thread waits for a decoder buffer, in microseconds
+     */
+    private static final long DECODE_TIMEOUT_US = 2000;
+
+    /**
+     * Number of decoder polls before a layer is considered stalled for the current decode pass
+     */
+    private static final int MAX_DECODE_ATTEMPTS = 10;
+
+    /**
+     * Time the decode thread waits when every ring buffer is full or every decoder stalled, in milliseconds
+     */
+    private static final long DECODE_IDLE_TIME = 10;
+
+    /**
+     * Seconds of audio a layer plays between two reports of its resource use
+     */
+    static final int STATS_INTERVAL = 10;
+
+    private final Context mContext;
+
+    /**
+     * Lock guarding the layer list, the release list and the pause state
+     */
+    private final Object mLock = new Object();
+
+    private final ArrayList<Layer> mLayers = new ArrayList<Layer>();
+    private ArrayList<Layer> mReleaseQueue = new ArrayList<Layer>();
+    private ArrayList<Layer> mReleasing = new ArrayList<Layer>();
+    private boolean isPaused = false;
+    private boolean isReleased = false;
+
+    /**
+     * Layers mixed during the current cycle. Only used by the mix thread.
+     */
+    private final Layer[] mMixLayers = new Layer[MAX_LAYERS];
+
+    /**
+     * Layers decoded during the current pass. Only used by the decode thread.
+     */
+    private final Layer[] mDecodeLayers = new Layer[MAX_LAYERS];
+    private final int[] mMixBuffer = new int[FRAMES_PER_BUFFER * 2];
+    private final short[] mOutputBuffer = new short[FRAMES_PER_BUFFER * 2];
+    private AudioTrack mAudioTrack;
+
+    private final ExecutorService mPrepareExecutor = Executors.newSingleThreadExecutor();
+    private Thread mMixThread;
+    private Thread mDecodeThread;
+    private volatile float mMasterGain = 1.0f;
+    private volatile LayerStatsListener mStatsListener;
+
+    /**
+     * Callback interface used to report the resource use of the layers
+     */
+    interface LayerStatsListener
+    {
+        /**
+         * Called on the mix thread about every STATS_INTERVAL seconds of audio a layer played
+         * @param id Layer id
+         * @param cpuTime Decode and mix CPU time of the layer in microseconds per second of audio
+         * @param memory Bytes held by the layer: its ring buffer, its PCM chunk and its decoder buffers
+         * @param underruns Number of mix buffers the decoder of the layer did not fill in time
+         */
+        void onLayerStats(int id, int cpuTime, int memory, int underruns);
+    }
+
+    /**
+     * constructor
+     * @param context A context object
+     */
+    AmbientMixer(Context context)
+    {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Method used to set the LayerStatsListener
+     * @param listener The LayerStatsListener
+     */
+    void setLayerStatsListener(LayerStatsListener listener)
+    {
+        mStatsListener = listener;
+    }
+
+    /**
+     * Method used to add a layer. A layer with the same id is replaced.
+     * @param id Layer id
+     * @param track The AmbientTrack played by the layer
+     * @param gain Layer gain between 0.0 and 1.0
+     * @param loop true if the layer loops
+     * @return false if the mixer already plays MAX_LAYERS layers or was released
+     */
+    boolean addLayer(int id, AmbientTrack track, float gain, boolean loop)
+    {
+        if(track == null)
+        {
+            throw new NullPointerException(TAG + ": layer track cannot be null");
+        }
+
+        final Layer layer = new Layer(id, track, clampGain(gain), loop);
+
+        synchronized (mLock)
+        {
+            if(isReleased)
+            {
+                return false;
+            }
+
+            removeLayerLocked(id);
+
+            if(mLayers.size() >= MAX_LAYERS)
+            {
+                Log.e(TAG, "Cannot add layer " + id + ". The mixer already plays " + MAX_LAYERS + " layers");
+                return false;
+            }
+
+            mLayers.add(layer);
+        }
+
+        mPrepareExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prepareLayer(layer);
+            }
+        });
+
+        return true;
+    }
+
+    /**
+     * Method used to set the gain of a layer
+     * @param id Layer id
+     * @param gain Layer gain between 0.0 and 1.0
+     */
+    void setLayerGain(int id, float gain)
+    {
+        synchronized (mLock)
+        {
+            Layer layer = findLayerLocked(id);
+
+            if(layer != null)
+            {
+                layer.mTargetGain = clampGain(gain);
+            }
+        }
+    }
+
+    /**
+     * Method used to set the loop mode of a layer
+     * @param id Layer id
+     * @param loop true if the layer loops
+     */
+    void setLayerLooping(int id, boolean loop)
+    {
+        synchronized (mLock)
+        {
+            Layer layer = findLayerLocked(id);
+
+            if(layer != null)
+            {
+                layer.isLooping = loop;
+            }
+        }
+    }
+
+    /**
+     * Method used to remove a layer
+     * @param id Layer id
+     */
+    void removeLayer(int id)
+    {
+        synchronized (mLock)
+        {
+            removeLayerLocked(id);
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Method used to remove every layer
+     */
+    void removeAllLayers()
+    {
+        synchronized (mLock)
+        {
+            while (!mLayers.isEmpty())
+            {
+                removeLayerLocked(mLayers.get(0));
+            }
+
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Method that checks if a layer can be added. A layer replaces the layer with its id.
+     * @param id Layer id
+     * @return false if the mixer already plays MAX_LAYERS other layers or was released
+     */
+    boolean canAddLayer(int id)
+    {
+        synchronized (mLock)
+        {
+            return !isReleased && (mLayers.size() < MAX_LAYERS || findLayerLocked(id) != null);
+        }
+    }
+
+    /**
+     * Method that returns the number of layers, including layers that are still being opened
+     * @return Number of layers
+     */
+    int getLayerCount()
+    {
+        synchronized (mLock)
+        {
+            return mLayers.size();
+        }
+    }
+
+    /**
+     * Method used to set the gain applied to the whole mix. Used to duck the mix.
+     * @param gain Gain between 0.0 and 1.0
+     */
+    void setMasterGain(float gain)
+    {
+        mMasterGain = clampGain(gain);
+    }
+
+    /**
+     * Method used to pause the mix
+     */
+    void pause()
+    {
+        synchronized (mLock)
+        {
+            isPaused = true;
+        }
+    }
+
+    /**
+     * Method used to resume the mix
+     */
+    void resume()
+    {
+        synchronized (mLock)
+        {
+            isPaused = false;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Method used to stop the mix and release every layer. The mixer cannot be used afterwards.
+     */
+    void release()
+    {
+        Thread mixThread;
+
+        synchronized (mLock)
+        {
+            if(isReleased)
+            {
+                return;
+            }
+
+            isReleased = true;
+
+            while (!mLayers.isEmpty())
+            {
+                removeLayerLocked(mLayers.get(0));
+            }
+
+            mixThread = mMixThread;
+            mLock.notifyAll();
+        }
+
+        mPrepareExecutor.shutdownNow();
+
+        if(mixThread == null)
+        {
+            releaseQueuedLayers(); // no decode thread to release them
+        }
+    }
+
+    /**
+     * Helper method used to open a layer on the prepare thread
+     * @param layer The layer to open
+     */
+    private void prepareLayer(Layer layer)
+    {
+        boolean isOpened = layer.open(mContext);
+
+        synchronized (mLock)
+        {
+            if(!isOpened || layer.isRemoved)
+            {
+                mLayers.remove(layer);
+                layer.release(); // never seen by the decode thread
+                return;
+            }
+
+            layer.isPrepared = true;
+
+            if(mMixThread == null)
+            {
+                mMixThread = new Thread(this, TAG);
+                mMixThread.start();
+
+                mDecodeThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        decodeLoop();
+                    }
+                }, TAG + ".decode");
+                mDecodeThread.start();
+            }
+
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Helper method used to remove a layer while holding the lock. Prepared layers are released
+     * by the decode thread, because it may be decoding them.
+     * @param id Layer id
+     */
+    private void removeLayerLocked(int id)
+    {
+        Layer layer = findLayerLocked(id);
+
+        if(layer != null)
+        {
+            removeLayerLocked(layer);
+        }
+    }
+
+    /**
+     * Helper method used to remove a layer instance while holding the lock. A layer that was
+     * already removed or replaced is left alone.
+     * @param layer The layer
+     */
+    private void removeLayerLocked(Layer layer)
+    {
+        if(!mLayers.remove(layer))
+        {
+            return;
+        }
+
+        layer.isRemoved = true;
+
+        if(layer.isPrepared)
+        {
+            mReleaseQueue.add(layer);
+        }
+    }
+
+    /**
+     * Helper method used to find a layer while holding the lock
+     * @param id Layer id
+     * @return The layer or null
+     */
+    private Layer findLayerLocked(int id)
+    {
+        for(int x = 0; x < mLayers.size(); x++)
+        {
+            if(mLayers.get(x).mId == id)
+            {
+                return mLayers.get(x);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The mix loop. Runs on the mix thread until the mixer is released.
+     */
+    @Override
+    public void run() {
+
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        try
+        {
+            while (true)
+            {
+                int count = 0;
+
+                synchronized (mLock)
+                {
+                    while (!isReleased && (isPaused || !hasPreparedLayerLocked()))
+                    {
+                        pauseOutput();
+
+                        mLock.wait();
+                    }
+
+                    if(isReleased)
+                    {
+                        break;
+                    }
+
+                    for(int x = 0; x < mLayers.size(); x++)
+                    {
+                        if(mLayers.get(x).isPrepared)
+                        {
+                            mMixLayers[count++] = mLayers.get(x);
+                        }
+                    }
+                }
+
+                mixAndWrite(count);
+            }
+        }catch (InterruptedException e)
+        {
+            Log.i(TAG, "Mix thread interrupted");
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+
+        if(mAudioTrack != null)
+        {
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+
+        Arrays.fill(mMixLayers, null);
+        releaseAllLayers(); // the decode thread releases them
+    }
+
+    /**
+     * The decode loop. Runs on the decode thread until the mixer is released. Every pass fills the
+     * ring buffers of the prepared layers and releases the removed layers.
+     */
+    private void decodeLoop()
+    {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        try
+        {
+            while (true)
+            {
+                int count = 0;
+
+                synchronized (mLock)
+                {
+                    if(isReleased)
+                    {
+                        break;
+                    }
+
+                    swapReleaseQueueLocked();
+
+                    for(int x = 0; x < mLayers.size(); x++)
+                    {
+                        if(mLayers.get(x).isPrepared)
+                        {
+                            mDecodeLayers[count++] = mLayers.get(x);
+                        }
+                    }
+                }
+
+                releaseSwappedLayers();
+
+                boolean isDecoded = false;
+
+                for(int x = 0; x < count; x++)
+                {
+                    Layer layer = mDecodeLayers[x];
+                    mDecodeLayers[x] = null;
+
+                    long start = Debug.threadCpuTimeNanos();
+                    isDecoded |= layer.decodeAhead();
+                    layer.mDecodeTime += Debug.threadCpuTimeNanos() - start;
+                }
+
+                if(!isDecoded)
+                {
+                    synchronized (mLock)
+                    {
+                        if(!isReleased)
+                        {
+                            mLock.wait(DECODE_IDLE_TIME); // the ring buffers are full or the decoders stalled
+                        }
+                    }
+                }
+            }
+        }catch (InterruptedException e)
+        {
+            Log.i(TAG, "Decode thread interrupted");
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+
+        Arrays.fill(mDecodeLayers, null);
+        releaseAllLayers();
+        releaseQueuedLayers();
+    }
+
+    /**
+     * Helper method used to stop both threads and queue every layer for release when one of them ends
+     */
+    private void releaseAllLayers()
+    {
+        synchronized (mLock)
+        {
+            isReleased = true;
+
+            while (!mLayers.isEmpty())
+            {
+                removeLayerLocked(mLayers.get(0));
+            }
+
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Helper method used to mix one buffer of every playing layer and write it to the AudioTrack
+     * @param count Number of layers in mMixLayers
+     */
+    private void mixAndWrite(int count)
+    {
+        Arrays.fill(mMixBuffer, 0);
+
+        for(int x = 0; x < count; x++)
+        {
+            Layer layer = mMixLayers[x];
+            mMixLayers[x] = null;
+
+            long start = Debug.threadCpuTimeNanos();
+            boolean isPlaying = layer.mixInto(mMixBuffer, FRAMES_PER_BUFFER);
+            layer.mMixTime += Debug.threadCpuTimeNanos() - start;
+
+            if(!isPlaying)
+            {
+                //a layer that does not loop has ended. A layer added with its id since then stays.
+                synchronized (mLock)
+                {
+                    removeLayerLocked(layer);
+                }
+            }
+            else if((layer.mMixedFrames += FRAMES_PER_BUFFER) >= STATS_INTERVAL * SAMPLE_RATE)
+            {
+                reportStats(layer);
+            }
+        }
+
+        float master = mMasterGain;
+
+        for(int x = 0; x < mMixBuffer.length; x++)
+        {
+            int sample = (int) (mMixBuffer[x] * master);
+
+            if(sample > Short.MAX_VALUE)
+            {
+                sample = Short.MAX_VALUE;
+            }
+            else if(sample < Short.MIN_VALUE)
+            {
+                sample = Short.MIN_VALUE;
+            }
+
+            mOutputBuffer[x] = (short) sample;
+        }
+
+        AudioTrack output = getOutput();
+        output.write(mOutputBuffer, 0, mOutputBuffer.length); // blocks, which paces the mix loop
+    }
+
+    /**
+     * Helper method used to report the resource use of a layer since its last report
+     * @param layer The layer
+     */
+    private void reportStats(Layer layer)
+    {
+        long decodeTime = layer.mDecodeTime; // written by the decode thread
+        long cpuTime = decodeTime - layer.mReportedDecodeTime + layer.mMixTime;
+        int underruns = layer.mUnderruns;
+
+        layer.mReportedDecodeTime = decodeTime;
+        layer.mMixTime = 0;
+        layer.mUnderruns = 0;
+
+        //microseconds of CPU per second of audio
+        int cpuPerSecond = (int) (cpuTime / 1000 * SAMPLE_RATE / layer.mMixedFrames);
+        layer.mMixedFrames = 0;
+
+        LayerStatsListener listener = mStatsListener;
+
+        if(listener != null)
+        {
+            listener.onLayerStats(layer.mId, cpuPerSecond, layer.mMemory, underruns);
+        }
+    }
+
+    /**
+     * Helper method used to get the playing AudioTrack of the mix thread
+     * @return The AudioTrack
+     */
+    private AudioTrack getOutput()
+    {
+        if(mAudioTrack == null)
+        {
+            int minBufferSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO,
+                    AudioFormat.ENCODING_PCM_16BIT);
+
+            mAudioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLE_RATE, AudioFormat.CHANNEL_OUT_STEREO,
+                    AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, FRAMES_PER_BUFFER * 4 * 2),
+                    AudioTrack.MODE_STREAM);
+        }
+
+        if(mAudioTrack.getPlayState() != AudioTrack.PLAYSTATE_PLAYING)
+        {
+            mAudioTrack.play();
+        }
+
+        return mAudioTrack;
+    }
+
+    /**
+     * Helper method used to pause the AudioTrack while nothing is mixed
+     */
+    private void pauseOutput()
+    {
+        if(mAudioTrack != null && mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING)
+        {
+            mAudioTrack.pause();
+            mAudioTrack.flush();
+        }
+    }
+
+    private boolean hasPreparedLayerLocked()
+    {
+        for(int x = 0; x < mLayers.size(); x++)
+        {
+            if(mLayers.get(x).isPrepared)
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Helper method used to hand the removed layers to the mix thread without allocating
+     */
+    private void swapReleaseQueueLocked()
+    {
+        ArrayList<Layer> queue = mReleaseQueue;
+        mReleaseQueue = mReleasing;
+        mReleasing = queue;
+    }
+
+    private void releaseSwappedLayers()
+    {
+        for(int x = 0; x < mReleasing.size(); x++)
+        {
+            mReleasing.get(x).release();
+        }
+
+        mReleasing.clear();
+    }
+
+    private void releaseQueuedLayers()
+    {
+        synchronized (mLock)
+        {
+            swapReleaseQueueLocked();
+        }
+
+        releaseSwappedLayers();
+    }
+
+    private static float clampGain(float gain)
+    {
+        return gain < 0.0f ? 0.0f : (gain > 1.0f ? 1.0f : gain);
+    }
+
+    /**
+     * A single layer of the mix. Decoding only happens on the decode thread and mixing on the mix
+     * thread. The ring buffer is their only shared state: the decode thread writes frames and then
+     * publishes them with mWritten, the mix thread reads them and then frees them with mRead.
+     */
+    private static final class Layer
+    {
+        final int mId;
+        final AmbientTrack mTrack;
+
+        /**
+         * Loop range of the track in microseconds. mLoopEndUs is -1 if the whole track loops.
+         */
+        private final long mLoopStartUs;
+        private final long mLoopEndUs;
+
+        // Set by the owner thread, read by the decode and mix threads
+        volatile float mTargetGain;
+        volatile boolean isLooping;
+
+        // Guarded by the mixer lock
+        boolean isPrepared = false;
+        boolean isRemoved = false;
+
+        /**
+         * Decoded stereo frames at the source rate. Frame n is at (n % RING_FRAMES) * 2.
+         */
+        private final short[] mRing = new short[RING_FRAMES * 2];
+        private volatile long mWritten = 0;
+        private volatile long mRead = 0;
+        private volatile boolean isDecodeDone = false;
+        private volatile int mSourceRate = SAMPLE_RATE;
+
+        // Used by the decode thread
+        private MediaExtractor mExtractor;
+        private MediaCodec mCodec;
+        private ByteBuffer[] mInputBuffers; // below API 21 only
+        private ByteBuffer[] mOutputBuffers; // below API 21 only
+        private int[] mInputCapacities = new int[0];
+        private int[] mOutputCapacities = new int[0];
+        private long mCodecBytes = 0;
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        private int mSourceChannels = 2;
+        private boolean isInputDone = false;
+        private boolean isOutputDone = false;
+
+        /**
+         * Last decoded chunk. Frames from mPcmOffset on are not in the ring buffer yet.
+         */
+        private short[] mPcm = new short[FRAMES_PER_BUFFER * 2];
+        private int mPcmFrames = 0;
+        private int mPcmOffset = 0;
+
+        // Used by the mix thread. The mix interpolates between the current and the next frame.
+        private short mLeft = 0;
+        private short mRight = 0;
+        private short mNextLeft = 0;
+        private short mNextRight = 0;
+        private double mPosition = 1.0;
+        private float mGain;
+
+        // Resource use. Times are thread CPU times in nanoseconds.
+        volatile long mDecodeTime = 0;
+        volatile int mMemory = 0;
+        long mReportedDecodeTime = 0;
+        long mMixTime = 0;
+        int mMixedFrames = 0;
+        int mUnderruns = 0;
+
+        Layer(int id, AmbientTrack track, float gain, boolean loop)
+        {
+            mId = id;
+            mTrack = track;
+            mGain = gain;
+            mTargetGain = gain;
+            isLooping = loop;
+            mLoopStartUs = track.hasLoopRange() ? track.getLoopStart() * 1000L : 0;
+            mLoopEndUs = track.hasLoopRange() ? track.getLoopEnd() * 1000L : -1;
+        }
+
+        /**
+         * Method used to open the extractor and decoder of the layer
+         * @param context A context object
+         * @return true if the layer is ready to be mixed
+         */
+        boolean open(Context context)
+        {
+            try
+            {
+                mExtractor = new MediaExtractor();
+                mExtractor.setDataSource(context, AmbientDownloader.resolveAudioUri(context, mTrack), null);
+
+                MediaFormat format = null;
+
+                for(int x = 0; x < mExtractor.getTrackCount(); x++)
+                {
+                    String mime = mExtractor.getTrackFormat(x).getString(MediaFormat.KEY_MIME);
+
+                    if(mime != null && mime.startsWith("audio/"))
+                    {
+                        format = mExtractor.getTrackFormat(x);
+                        mExtractor.selectTrack(x);
+                        break;
+                    }
+                }
+
+                if(format == null)
+                {
+                    throw new IllegalStateException(TAG + ": no audio stream in " + mTrack.getAudioUri());
+                }
+
+                mSourceRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                mSourceChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+                mCodec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+                mCodec.configure(format, null, null, 0);
+                mCodec.start();
+
+                if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+                {
+                    loadLegacyBuffers();
+                }
+
+                updateMemory();
+
+                return true;
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, "Cannot open layer " + mId + ": " + e.getMessage());
+
+                release();
+                return false;
+            }
+        }
+
+        /**
+         * Method used to add one buffer of the layer to the mix. Only reads the ring buffer.
+         * @param mix Interleaved stereo mix buffer
+         * @param frames Number of frames to mix
+         * @return false if the layer has ended
+         */
+        boolean mixInto(int[] mix, int frames)
+        {
+            float target = mTargetGain;
+            float gainStep = (target - mGain) / frames;
+            double increment = (double) mSourceRate / SAMPLE_RATE;
+
+            long read = mRead;
+            long written = mWritten;
+
+            for(int frame = 0; frame < frames; frame++)
+            {
+                while (mPosition >= 1.0)
+                {
+                    if(read == written)
+                    {
+                        boolean isDone = isDecodeDone; // read before mWritten, the last frames are published first
+                        written = mWritten;
+
+                        if(read == written)
+                        {
+                            mRead = read;
+                            mGain = target;
+
+                            if(isDone)
+                            {
+                                return false;
+                            }
+
+                            mUnderruns++; // the decoder fell behind. The rest of this buffer is silent
+                            return true;
+                        }
+                    }
+
+                    int index = (int) (read & (RING_FRAMES - 1)) * 2;
+                    mLeft = mNextLeft;
+                    mRight = mNextRight;
+                    mNextLeft = mRing[index];
+                    mNextRight = mRing[index + 1];
+                    read++;
+                    mPosition -= 1.0;
+                }
+
+                float fraction = (float) mPosition;
+                float gain = mGain + gainStep * frame;
+
+                float left = mLeft * (1.0f - fraction) + mNextLeft * fraction;
+                float right = mRight * (1.0f - fraction) + mNextRight * fraction;
+
+                mix[frame * 2] += (int) (left * gain);
+                mix[frame * 2 + 1] += (int) (right * gain);
+
+                mPosition += increment;
+            }
+
+            mRead = read; // frees the frames for the decode thread
+            mGain = target;
+
+            return true;
+        }
+
+        /**
+         * Method used to decode ahead until the ring buffer is full or the decoder stalls.
+         * A decoder that fails ends the layer.
+         * @return true if frames were added to the ring buffer
+         */
+        boolean decodeAhead()
+        {
+            boolean isDecoded = false;
+
+            try
+            {
+                while (!isDecodeDone)
+                {
+                    if(mPcmOffset < mPcmFrames)
+                    {
+                        if(writeRing() == 0)
+                        {
+                            break; // the ring buffer is full
+                        }
+
+                        isDecoded = true;
+                    }
+                    else if(isOutputDone)
+                    {
+                        isDecodeDone = true;
+                    }
+                    else if(!nextChunk())
+                    {
+                        break; // the decoder stalled
+                    }
+                }
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, "Layer " + mId + " failed: " + e.getMessage());
+
+                isDecodeDone = true;
+            }
+
+            return isDecoded;
+        }
+
+        /**
+         * Helper method used to copy the rest of the decoded chunk into the free part of the ring buffer
+         * @return Number of copied frames
+         */
+        private int writeRing()
+        {
+            long written = mWritten;
+            int count = Math.min(RING_FRAMES - (int) (written - mRead), mPcmFrames - mPcmOffset);
+
+            for(int x = 0; x < count; x++)
+            {
+                int index = (int) ((written + x) & (RING_FRAMES - 1)) * 2;
+                int pcm = (mPcmOffset + x) * 2;
+
+                mRing[index] = mPcm[pcm];
+                mRing[index + 1] = mPcm[pcm + 1];
+            }
+
+            mPcmOffset += count;
+            mWritten = written + count; // publishes the frames to the mix thread
+
+            return count;
+        }
+
+        /**
+         * Helper method used to replace the decoded chunk with the next chunk of the decoder
+         * @return false if the decoder stalled or has ended
+         */
+        private boolean nextChunk()
+        {
+            mPcmFrames = 0;
+            mPcmOffset = 0;
+
+            for(int attempt = 0; attempt < MAX_DECODE_ATTEMPTS; attempt++)
+            {
+                if(!isInputDone)
+                {
+                    queueInput();
+                }
+
+                int index = mCodec.dequeueOutputBuffer(mInfo, DECODE_TIMEOUT_US);
+
+                if(index >= 0)
+                {
+                    if(mInfo.size > 0)
+                    {
+                        copyPcm(getOutputBuffer(index), mInfo.offset, mInfo.size);
+                    }
+
+                    mCodec.releaseOutputBuffer(index, false);
+
+                    if((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                    {
+                        isOutputDone = true;
+                    }
+
+                    if(mPcmFrames > 0)
+                    {
+                        return true;
+                    }
+
+                    if(isOutputDone)
+                    {
+                        return false;
+                    }
+                }
+                else if(index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+                {
+                    MediaFormat format = mCodec.getOutputFormat();
+                    mSourceRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    mSourceChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                }
+                else if(Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+                {
+                    onLegacyOutputInfo(index);
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * Helper method used to feed the decoder. A looping layer seeks back to the loop start
+         * when it reaches the loop end or the end of the stream, instead of ending the stream.
+         * The loop points are accurate to one compressed packet.
+         */
+        private void queueInput()
+        {
+            int index = mCodec.dequeueInputBuffer(0);
+
+            if(index < 0)
+            {
+                return;
+            }
+
+            ByteBuffer buffer = getInputBuffer(index);
+            int size = mExtractor.readSampleData(buffer, 0);
+
+            if(isLooping && (size < 0 || (mLoopEndUs > 0 && mExtractor.getSampleTime() >= mLoopEndUs)))
+            {
+                mExtractor.seekTo(mLoopStartUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                size = mExtractor.readSampleData(buffer, 0);
+            }
+
+            if(size < 0)
+            {
+                mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                isInputDone = true;
+                return;
+            }
+
+            mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+            mExtractor.advance();
+        }
+
+        /**
+         * Helper method used to copy decoded 16 bit PCM into the stereo frame buffer
+         * @param buffer Decoder output buffer
+         * @param offset Offset of the data
+         * @param size Size of the data in bytes
+         */
+        private void copyPcm(ByteBuffer buffer, int offset, int size)
+        {
+            int channels = Math.max(1, mSourceChannels);
+            int frames = size / (2 * channels);
+
+            if(mPcm.length < frames * 2)
+            {
+                mPcm = new short[frames * 2];
+                updateMemory();
+            }
+
+            buffer.order(ByteOrder.nativeOrder());
+
+            for(int frame = 0; frame < frames; frame++)
+            {
+                int position = offset + frame * channels * 2;
+                short left = buffer.getShort(position);
+
+                mPcm[frame * 2] = left;
+                mPcm[frame * 2 + 1] = channels > 1 ? buffer.getShort(position + 2) : left;
+            }
+
+            mPcmFrames = frames;
+        }
+
+        /**
+         * Helper method used to look up a decoder input buffer
+         * @param index Index returned by dequeueInputBuffer
+         * @return The input buffer
+         */
+        private ByteBuffer getInputBuffer(int index)
+        {
+            ByteBuffer buffer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? getCodecInputBuffer(index) : mInputBuffers[index];
+
+            countBuffer(true, index, buffer);
+
+            return buffer;
+        }
+
+        /**
+         * Helper method used to look up a decoder output buffer
+         * @param index Index returned by dequeueOutputBuffer
+         * @return The output buffer
+         */
+        private ByteBuffer getOutputBuffer(int index)
+        {
+            ByteBuffer buffer = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                    ? getCodecOutputBuffer(index) : mOutputBuffers[index];
+
+            countBuffer(false, index, buffer);
+
+            return buffer;
+        }
+
+        /**
+         * Helper method used to look up a decoder input buffer on API 21 and up
+         * @param index Index returned by dequeueInputBuffer
+         * @return The input buffer
+         */
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private ByteBuffer getCodecInputBuffer(int index)
+        {
+            return mCodec.getInputBuffer(index);
+        }
+
+        /**
+         * Helper method used to look up a decoder output buffer on API 21 and up
+         * @param index Index returned by dequeueOutputBuffer
+         * @return The output buffer
+         */
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private ByteBuffer getCodecOutputBuffer(int index)
+        {
+            return mCodec.getOutputBuffer(index);
+        }
+
+        /**
+         * Helper method used to fetch the decoder buffer arrays below API 21
+         */
+        @SuppressWarnings("deprecation")
+        private void loadLegacyBuffers()
+        {
+            mInputBuffers = mCodec.getInputBuffers();
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+
+        /**
+         * Helper method used to handle the output info codes of the decoder below API 21
+         * @param index Index returned by dequeueOutputBuffer
+         */
+        @SuppressWarnings("deprecation")
+        private void onLegacyOutputInfo(int index)
+        {
+            if(index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED)
+            {
+                mOutputBuffers = mCodec.getOutputBuffers();
+            }
+        }
+
+        /**
+         * Helper method used to count the capacity of a decoder buffer the first time it is used
+         * or when the decoder replaced it. Allocates only for a buffer index not seen before.
+         * @param isInput true for an input buffer
+         * @param index Index of the buffer
+         * @param buffer The buffer
+         */
+        private void countBuffer(boolean isInput, int index, ByteBuffer buffer)
+        {
+            int[] capacities = isInput ? mInputCapacities : mOutputCapacities;
+
+            if(index >= capacities.length)
+            {
+                capacities = Arrays.copyOf(capacities, index + 1);
+
+                if(isInput)
+                {
+                    mInputCapacities = capacities;
+                }
+                else
+                {
+                    mOutputCapacities = capacities;
+                }
+            }
+
+            if(capacities[index] != buffer.capacity())
+            {
+                mCodecBytes += buffer.capacity() - capacities[index];
+                capacities[index] = buffer.capacity();
+                updateMemory();
+            }
+        }
+
+        /**
+         * Helper method used to count the bytes held by the layer: its ring buffer, its PCM chunk
+         * and the decoder input and output buffers it has used
+         */
+        private void updateMemory()
+        {
+            long bytes = mRing.length * 2L + mPcm.length * 2L + mCodecBytes;
+
+            mMemory = (int) Math.min(Integer.MAX_VALUE, bytes);
+        }
+
+        /**
+         * Method used to release the decoder and extractor of the layer
+         */
+        void release()
+        {
+            try
+            {
+                if(mCodec != null)
+                {
+                    mCodec.stop();
+                    mCodec.release();
+                }
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage());
+            }
+
+            if(mExtractor != null)
+            {
+                mExtractor.release();
+            }
+
+            mCodec = null;
+            mExtractor = null;
+        }
+    }
+}
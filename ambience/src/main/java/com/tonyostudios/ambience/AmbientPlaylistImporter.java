@@ -0,0 +1,670 @@
+package com.tonyostudios.ambience;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * The AmbientPlaylistImporter reads a M3U, PLS or XSPF playlist file on a background thread and
+ * hands its tracks to the AmbientService in batches while it reads. The first batch holds the
+ * first entry, so playback starts right away, and later batches double in size up to
+ * MAX_BATCH_SIZE to keep the work on the main thread low. The file is streamed, so only the
+ * entries of the current batch are held besides the tracks already handed out.
+ *
+ * A uri is opened with the ContentResolver, or with an HttpURLConnection when it is an http
+ * uri. The format is detected from the content of the file. Relative entries are resolved against
+ * the uri of the playlist when it is a file or http uri. Entries that cannot be resolved are skipped.
+ *
+ * Listener methods are called on the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientPlaylistImporter implements Runnable {
+
+    /**
+     * Tag used to identify the AmbientPlaylistImporter
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientPlaylistImporter";
+
+    /**
+     * Largest number of tracks handed to the listener at once
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * Number of characters read ahead to detect the format
+     */
+    private static final int SNIFF_LENGTH = 512;
+
+    /**
+     * Timeouts of an http playlist file in milliseconds
+     */
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    /**
+     * Matches a uri scheme. A single letter is a windows drive and not a scheme.
+     */
+    private static final Pattern SCHEME = Pattern.compile("^[a-zA-Z][a-zA-Z0-9+.-]+:");
+
+    /**
+     * Callback interface of the AmbientPlaylistImporter
+     */
+    interface ImportListener
+    {
+        /**
+         * Called with the next tracks of the playlist file
+         * @param importer The AmbientPlaylistImporter
+         * @param tracks The tracks in file order
+         */
+        void onTracksImported(AmbientPlaylistImporter importer, ArrayList<AmbientTrack> tracks);
+
+        /**
+         * Called once the playlist file was read or failed
+         * @param importer The AmbientPlaylistImporter
+         * @param count Number of tracks imported
+         * @param isFailed true if the file could not be read to its end
+         */
+        void onImportFinished(AmbientPlaylistImporter importer, int count, boolean isFailed);
+    }
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final ParcelFileDescriptor mDescriptor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final URI mBase;
+    private volatile ImportListener mListener;
+    private volatile Closeable mStream;
+
+    private ArrayList<AmbientTrack> mBatch = new ArrayList<AmbientTrack>(1);
+    private int mBatchSize = 1;
+    private int mCount = 0;
+
+    /**
+     * Constructor
+     * @param context Context used to open the uri
+     * @param file The uri or the ParcelFileDescriptor of the playlist file. A descriptor is closed by the importer.
+     * @param listener The ImportListener
+     */
+    AmbientPlaylistImporter(Context context, Object file, ImportListener listener)
+    {
+        mContext = context.getApplicationContext();
+        mUri = file instanceof String ? Uri.parse((String) file) : null;
+        mDescriptor = file instanceof ParcelFileDescriptor ? (ParcelFileDescriptor) file : null;
+        mListener = listener;
+        mBase = getBase(mUri);
+    }
+
+    /**
+     * Method that checks if a request extra holds a playlist file
+     * @param file The EXTRA_PLAYLIST_FILE extra
+     * @return true if it is a uri string or a ParcelFileDescriptor
+     */
+    static boolean isImportable(Object file)
+    {
+        return file instanceof String && !((String) file).isEmpty() || file instanceof ParcelFileDescriptor;
+    }
+
+    /**
+     * Method used to start reading the playlist file on a background thread
+     */
+    void start()
+    {
+        Thread thread = new Thread(this, "AmbientPlaylistImport");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Method used to stop the import. No listener method is called afterwards.
+     */
+    void cancel()
+    {
+        mListener = null;
+
+        Closeable stream = mStream;
+
+        if(stream != null)
+        {
+            close(stream); // unblocks a read in progress
+        }
+    }
+
+    /**
+     * Reads the playlist file. Called on the import thread.
+     */
+    @Override
+    public void run()
+    {
+        boolean isFailed = false;
+        InputStream input = null;
+
+        try
+        {
+            input = openStream();
+            mStream = input;
+
+            if(mListener == null)
+            {
+                return; // cancelled while the file was opened
+            }
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+            String format = detectFormat(reader);
+
+            if("xspf".equals(format))
+            {
+                readXspf(reader);
+            }
+            else if("pls".equals(format))
+            {
+                readPls(reader);
+            }
+            else
+            {
+                readM3u(reader);
+            }
+        }catch (Exception e)
+        {
+            if(mListener != null)
+            {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage() + "");
+                isFailed = true;
+            }
+        }finally
+        {
+            if(input != null)
+            {
+                close(input);
+            }
+            else if(mDescriptor != null)
+            {
+                try
+                {
+                    mDescriptor.close(); // not Closeable before API 16
+                }catch (Exception e)
+                {
+                    Log.e(TAG, e.getMessage() + "");
+                }
+            }
+        }
+
+        flush();
+
+        final boolean failed = isFailed;
+        final int count = mCount;
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ImportListener listener = mListener;
+
+                if(listener != null)
+                {
+                    listener.onImportFinished(AmbientPlaylistImporter.this, count, failed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Helper method used to open the playlist file
+     * @return The stream of the file
+     */
+    private InputStream openStream() throws IOException
+    {
+        if(mDescriptor != null)
+        {
+            return new ParcelFileDescriptor.AutoCloseInputStream(mDescriptor);
+        }
+
+        String scheme = mUri.getScheme();
+
+        if(!"http".equals(scheme) && !"https".equals(scheme))
+        {
+            return mContext.getContentResolver().openInputStream(mUri);
+        }
+
+        //the ContentResolver cannot open http uris
+        HttpURLConnection connection = (HttpURLConnection) new URL(mUri.toString()).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+
+        int code = connection.getResponseCode();
+
+        if(code != HttpURLConnection.HTTP_OK)
+        {
+            connection.disconnect();
+            throw new IOException(TAG + ": the playlist file " + mUri + " returned HTTP " + code);
+        }
+
+        return connection.getInputStream();
+    }
+
+    /**
+     * Helper method used to detect the format from the start of the file. The reader is left at the start.
+     * @param reader The reader of the file
+     * @return xspf, pls or m3u
+     */
+    private String detectFormat(BufferedReader reader) throws Exception
+    {
+        reader.mark(SNIFF_LENGTH);
+
+        char[] start = new char[SNIFF_LENGTH];
+        int length = 0;
+        int read = 0;
+
+        while(read != -1 && length < start.length)
+        {
+            read = reader.read(start, length, start.length - length);
+            length += Math.max(0, read);
+        }
+
+        reader.reset();
+
+        String head = new String(start, 0, length).replace("\uFEFF", "").trim().toLowerCase(Locale.US);
+
+        if(head.startsWith("<"))
+        {
+            return "xspf";
+        }
+
+        return head.startsWith("[playlist]") ? "pls" : "m3u";
+    }
+
+    /**
+     * Helper method used to read a M3U or M3U8 file. #EXTINF lines name the entry that follows them.
+     * @param reader The reader of the file
+     */
+    private void readM3u(BufferedReader reader) throws Exception
+    {
+        int duration = -1;
+        String title = null;
+        String line;
+
+        while(mListener != null && (line = reader.readLine()) != null)
+        {
+            line = line.replace("\uFEFF", "").trim();
+
+            if(line.isEmpty())
+            {
+                continue;
+            }
+
+            if(line.regionMatches(true, 0, "#EXTINF:", 0, 8))
+            {
+                int comma = line.indexOf(',');
+
+                duration = parseSeconds(comma == -1 ? line.substring(8) : line.substring(8, comma));
+                title = comma == -1 ? null : line.substring(comma + 1).trim();
+            }
+            else if(!line.startsWith("#"))
+            {
+                addTitledTrack(line, title, duration);
+                duration = -1;
+                title = null;
+            }
+        }
+    }
+
+    /**
+     * Helper method used to read a PLS file. The FileN, TitleN and LengthN keys of an entry are
+     * collected until a later entry starts, so only the open entries are held.
+     * @param reader The reader of the file
+     */
+    private void readPls(BufferedReader reader) throws Exception
+    {
+        TreeMap<Integer, String[]> entries = new TreeMap<Integer, String[]>();
+        String line;
+
+        while(mListener != null && (line = reader.readLine()) != null)
+        {
+            int equals = line.indexOf('=');
+
+            if(equals == -1)
+            {
+                continue;
+            }
+
+            String key = line.substring(0, equals).trim().toLowerCase(Locale.US);
+            String value = line.substring(equals + 1).trim();
+            int field = key.startsWith("file") ? 0 : key.startsWith("title") ? 1 : key.startsWith("length") ? 2 : -1;
+
+            if(field == -1)
+            {
+                continue;
+            }
+
+            int index;
+
+            try
+            {
+                index = Integer.parseInt(key.substring(field == 0 ? 4 : field == 1 ? 5 : 6));
+            }catch (NumberFormatException e)
+            {
+                continue;
+            }
+
+            if(field == 0)
+            {
+                //entries are written in order, so a new file closes the entries before it
+                while(!entries.isEmpty() && entries.firstKey() < index)
+                {
+                    addPlsEntry(entries.pollFirstEntry().getValue());
+                }
+            }
+
+            String[] entry = entries.get(index);
+
+            if(entry == null)
+            {
+                entry = new String[3];
+                entries.put(index, entry);
+            }
+
+            entry[field] = value;
+        }
+
+        while(mListener != null && !entries.isEmpty())
+        {
+            addPlsEntry(entries.pollFirstEntry().getValue());
+        }
+    }
+
+    /**
+     * Helper method used to add a PLS entry
+     * @param entry The file, title and length of the entry
+     */
+    private void addPlsEntry(String[] entry)
+    {
+        if(entry[0] != null)
+        {
+            addTitledTrack(entry[0], entry[1], entry[2] == null ? -1 : parseSeconds(entry[2]));
+        }
+    }
+
+    /**
+     * Helper method used to read a XSPF file with a pull parser, one track element at a time
+     * @param reader The reader of the file
+     */
+    private void readXspf(BufferedReader reader) throws Exception
+    {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(reader);
+
+        String location = null;
+        String title = null;
+        String creator = null;
+        String album = null;
+        String image = null;
+        int duration = -1;
+        int depth = -1;
+
+        for(int event = parser.getEventType(); mListener != null && event != XmlPullParser.END_DOCUMENT; event = parser.next())
+        {
+            if(event == XmlPullParser.START_TAG)
+            {
+                String name = parser.getName();
+
+                if("track".equals(name))
+                {
+                    depth = parser.getDepth();
+                    location = title = creator = album = image = null;
+                    duration = -1;
+                }
+                else if(depth != -1 && parser.getDepth() == depth + 1)
+                {
+                    if("location".equals(name) && location == null)
+                    {
+                        location = parser.nextText().trim();
+                    }
+                    else if("title".equals(name))
+                    {
+                        title = parser.nextText().trim();
+                    }
+                    else if("creator".equals(name))
+                    {
+                        creator = parser.nextText().trim();
+                    }
+                    else if("album".equals(name))
+                    {
+                        album = parser.nextText().trim();
+                    }
+                    else if("image".equals(name))
+                    {
+                        image = parser.nextText().trim();
+                    }
+                    else if("duration".equals(name))
+                    {
+                        duration = parseInt(parser.nextText().trim());
+                    }
+                }
+            }
+            else if(event == XmlPullParser.END_TAG && depth != -1 && parser.getDepth() == depth && "track".equals(parser.getName()))
+            {
+                depth = -1;
+
+                if(location != null)
+                {
+                    addTrack(location, title, creator, album, image, duration);
+                }
+            }
+        }
+    }
+
+    /**
+     * Helper method used to add a M3U or PLS entry. A title of the form "artist - title" is split.
+     * @param location The uri or path of the entry
+     * @param title The title or null
+     * @param duration The duration in milliseconds or -1 if it is unknown
+     */
+    private void addTitledTrack(String location, String title, int duration)
+    {
+        int dash = title == null ? -1 : title.indexOf(" - ");
+
+        if(dash == -1)
+        {
+            addTrack(location, title, null, null, null, duration);
+        }
+        else
+        {
+            addTrack(location, title.substring(dash + 3).trim(), title.substring(0, dash).trim(), null, null, duration);
+        }
+    }
+
+    /**
+     * Helper method used to add an entry to the current batch
+     * @param location The uri or path of the entry
+     * @param name The name or null to use the file name
+     * @param artist The artist or null
+     * @param album The album or null
+     * @param image The uri or path of the album image or null
+     * @param duration The duration in milliseconds or -1 if it is unknown
+     */
+    private void addTrack(String location, String name, String artist, String album, String image, int duration)
+    {
+        Uri audio = resolve(location);
+
+        if(audio == null)
+        {
+            Log.e(TAG, "Skipped the playlist entry " + location);
+            return;
+        }
+
+        AmbientTrack track = AmbientTrack.newInstance()
+                .setAudioUri(audio)
+                .setName(name == null || name.isEmpty() ? audio.getLastPathSegment() : name)
+                .setArtistName(artist)
+                .setAlbumName(album)
+                .setAlbumImageUri(image == null || image.isEmpty() ? null : resolve(image));
+
+        if(duration > 0)
+        {
+            track.setDuration(duration);
+        }
+
+        mBatch.add(track);
+
+        if(mBatch.size() >= mBatchSize)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Helper method used to hand the current batch to the listener. The next batch is twice as large.
+     */
+    private void flush()
+    {
+        if(mBatch.isEmpty())
+        {
+            return;
+        }
+
+        final ArrayList<AmbientTrack> tracks = mBatch;
+
+        mCount += tracks.size();
+        mBatchSize = Math.min(MAX_BATCH_SIZE, mBatchSize * 2);
+        mBatch = new ArrayList<AmbientTrack>(mBatchSize);
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                ImportListener listener = mListener;
+
+                if(listener != null)
+                {
+                    listener.onTracksImported(AmbientPlaylistImporter.this, tracks);
+                }
+            }
+        });
+    }
+
+    /**
+     * Helper method used to resolve an entry of the playlist to a uri
+     * @param location The uri, absolute path or relative path of the entry
+     * @return The uri or null if a relative path has no base to resolve against
+     */
+    private Uri resolve(String location)
+    {
+        if(SCHEME.matcher(location).lookingAt())
+        {
+            return Uri.parse(location);
+        }
+
+        String path = location.replace('\\', '/');
+
+        if(path.length() > 1 && path.charAt(1) == ':')
+        {
+            return null; // a windows drive path
+        }
+
+        if(mBase != null)
+        {
+            try
+            {
+                return Uri.parse(mBase.resolve(new URI(null, null, path, null)).toString());
+            }catch (Exception e)
+            {
+                Log.e(TAG, e.getMessage() + "");
+                return null;
+            }
+        }
+
+        return path.startsWith("/") ? Uri.fromFile(new File(path)) : null;
+    }
+
+    /**
+     * Helper method used to find the uri relative entries are resolved against
+     * @param uri The uri of the playlist or null for a descriptor
+     * @return The base or null if relative entries cannot be resolved
+     */
+    private static URI getBase(Uri uri)
+    {
+        String scheme = uri == null ? null : uri.getScheme();
+
+        if(!"file".equals(scheme) && !"http".equals(scheme) && !"https".equals(scheme))
+        {
+            return null;
+        }
+
+        try
+        {
+            return new URI(uri.toString());
+        }catch (Exception e)
+        {
+            Log.e(TAG, e.getMessage() + "");
+            return null;
+        }
+    }
+
+    /**
+     * Helper method used to parse a duration in seconds
+     * @param value The seconds, possibly with a fraction
+     * @return The duration in milliseconds or -1 if it is unknown
+     */
+    private static int parseSeconds(String value)
+    {
+        try
+        {
+            double seconds = Double.parseDouble(value.trim());
+
+            return seconds > 0 ? (int) Math.min(Integer.MAX_VALUE, seconds * 1000) : -1;
+        }catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Helper method used to parse a duration in milliseconds
+     * @param value The milliseconds
+     * @return The duration or -1 if it is unknown
+     */
+    private static int parseInt(String value)
+    {
+        try
+        {
+            return Integer.parseInt(value);
+        }catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Helper method used to close a stream or descriptor quietly
+     * @param closeable The stream or descriptor
+     */
+    private static void close(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }catch (Exception e)
+        {
+            Log.e(TAG, e.getMessage() + "");
+        }
+    }
+}
@@ -0,0 +1,534 @@
+package com.tonyostudios.ambience;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AmbientPlaylistPager is the playlist of the AmbientService when it plays an
+ * AmbientPlaylistSource. Only the tracks around the play position are paged in. A background
+ * thread pages in the window before and after the play position. Reading a track outside it
+ * returns null and pages it in on the same thread, so the source is never read on the main
+ * thread. The listener is told once it arrives. Paged in tracks are kept in an LRU cache of
+ * MAX_TRACKS, so memory stays proportional to the window and not to the playlist.
+ *
+ * Tracks appended with add are kept after the tracks of the source. Removing tracks is not
+ * supported. A shuffled order is a pseudo-random permutation of the positions, so shuffling
+ * takes O(1) time and memory and the position of a track is found in O(1).
+ *
+ * indexOf only finds the tracks that are paged in or appended. Use the pager from the main thread.
+ * Listener methods are called on the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientPlaylistPager extends AbstractList<AmbientTrack> {
+
+    /**
+     * Tag used to identify the AmbientPlaylistPager
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientPlaylistPager";
+
+    /**
+     * Number of tracks paged in before and after the play position by prefetch
+     */
+    static final int TRACKS_BEFORE = 16;
+    static final int TRACKS_AFTER = 64;
+
+    /**
+     * Number of tracks paged in from a track that was read but is missing
+     */
+    private static final int PAGE_SIZE = 32;
+
+    /**
+     * Number of paged in tracks kept. The least recently read are dropped first.
+     */
+    private static final int MAX_TRACKS = 512;
+
+    /**
+     * Number of rounds of the shuffle permutation
+     */
+    private static final int SHUFFLE_ROUNDS = 4;
+
+    /**
+     * Callback interface of the AmbientPlaylistPager
+     */
+    interface PageListener
+    {
+        /**
+         * Called when the window requested by prefetch or the tracks of a missing read were paged in
+         */
+        void onTracksPaged();
+
+        /**
+         * Called when the source failed to page in tracks
+         */
+        void onPagingFailed();
+    }
+
+    private final AmbientPlaylistSource mSource;
+    private final int mSourceCount;
+    private final ArrayList<AmbientTrack> mAppended = new ArrayList<AmbientTrack>();
+    private final ThreadPoolExecutor mLoader;
+    private final Random mRandom = new Random();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private PageListener mListener;
+
+    /**
+     * Paged in tracks of the source by index. Guarded by this.
+     */
+    private final LinkedHashMap<Integer, AmbientTrack> mTracks = new LinkedHashMap<Integer, AmbientTrack>(MAX_TRACKS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, AmbientTrack> eldest) {
+            return size() > MAX_TRACKS;
+        }
+    };
+
+    /**
+     * Index where the source ended early. Guarded by this.
+     */
+    private int mSourceEnd;
+
+    /**
+     * Key of the shuffle permutation or 0 for the order of the source
+     */
+    private long mShuffleKey = 0;
+
+    /**
+     * Constructor
+     * @param source The AmbientPlaylistSource
+     * @param count Number of tracks of the source
+     * @param listener The PageListener
+     */
+    AmbientPlaylistPager(AmbientPlaylistSource source, int count, PageListener listener)
+    {
+        mSource = source;
+        mListener = listener;
+        mSourceCount = count;
+        mSourceEnd = count;
+
+        //a newer prefetch replaces the one that did not start
+        mLoader = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+        mLoader.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Method that returns the track at a position of the play order. A track that is not paged in
+     * yet is paged in on the background thread, see isPaging.
+     * @param position The position
+     * @return The AmbientTrack or null if the source has no track there or it is not paged in
+     */
+    @Override
+    public AmbientTrack get(int position)
+    {
+        if(position < 0 || position >= size())
+        {
+            throw new IndexOutOfBoundsException(TAG + ": invalid position " + position);
+        }
+
+        int index = getIndex(position);
+
+        if(index >= mSourceCount)
+        {
+            return mAppended.get(index - mSourceCount);
+        }
+
+        synchronized (this)
+        {
+            AmbientTrack track = mTracks.get(index);
+
+            if(track != null || index >= mSourceEnd)
+            {
+                return track;
+            }
+        }
+
+        requestTracks(getMissingIndexes(position, Math.min(size(), position + PAGE_SIZE)));
+
+        return null;
+    }
+
+    /**
+     * Method that checks if the track at a position is still to be paged in. Its position is
+     * then null until the listener is told that tracks were paged in.
+     * @param position The position
+     * @return true if the source may have a track there that is not paged in
+     */
+    synchronized boolean isPaging(int position)
+    {
+        int index = getIndex(position);
+
+        return index < mSourceEnd && !mTracks.containsKey(index);
+    }
+
+    /**
+     * Method that returns the track at a position of the play order if it is paged in
+     * @param position The position
+     * @return The AmbientTrack or null if it is not paged in
+     */
+    AmbientTrack peek(int position)
+    {
+        int index = getIndex(position);
+
+        if(index >= mSourceCount)
+        {
+            return mAppended.get(index - mSourceCount);
+        }
+
+        synchronized (this)
+        {
+            return mTracks.get(index);
+        }
+    }
+
+    /**
+     * Method that returns the number of tracks of the playlist
+     * @return The number of tracks
+     */
+    @Override
+    public int size()
+    {
+        return mSourceCount + mAppended.size();
+    }
+
+    /**
+     * Method used to append a track to the playlist
+     * @param position Must be the size of the playlist
+     * @param track The AmbientTrack
+     */
+    @Override
+    public void add(int position, AmbientTrack track)
+    {
+        if(position != size())
+        {
+            throw new UnsupportedOperationException(TAG + ": tracks can only be appended");
+        }
+
+        mAppended.add(track);
+        modCount++;
+    }
+
+    /**
+     * Method that returns the position of a paged in or appended track
+     * @param track The AmbientTrack
+     * @return The position or -1 if the track is not paged in
+     */
+    @Override
+    public int indexOf(Object track)
+    {
+        int appended = mAppended.indexOf(track);
+
+        if(appended != -1)
+        {
+            return getPosition(mSourceCount + appended);
+        }
+
+        synchronized (this)
+        {
+            for(Map.Entry<Integer, AmbientTrack> entry : mTracks.entrySet())
+            {
+                if(entry.getValue() == track)
+                {
+                    return getPosition(entry.getKey());
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Method used to shuffle the play order or to restore the order of the source. Every call
+     * with shuffled set to true picks a new order.
+     * @param shuffled true to shuffle the play order
+     */
+    void setShuffled(boolean shuffled)
+    {
+        mShuffleKey = shuffled ? mRandom.nextLong() | 1 : 0;
+        modCount++;
+    }
+
+    /**
+     * Method used to page in the tracks before and after a position on the background thread.
+     * The window wraps around the end of the playlist.
+     * @param position The play position
+     */
+    void prefetch(int position)
+    {
+        if(size() == 0)
+        {
+            return;
+        }
+
+        requestTracks(getMissingIndexes(position - TRACKS_BEFORE, position + TRACKS_AFTER + 1));
+    }
+
+    /**
+     * Method used to stop paging. The source is closed once a running page in finishes.
+     */
+    void release()
+    {
+        if(mLoader.isShutdown())
+        {
+            return;
+        }
+
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mSource)
+                {
+                    mSource.close();
+                }
+            }
+        });
+
+        mLoader.shutdown();
+        mListener = null;
+        mMainHandler.removeCallbacks(mPagedCallback);
+        mMainHandler.removeCallbacks(mFailedCallback);
+
+        synchronized (this)
+        {
+            mTracks.clear();
+        }
+    }
+
+    /**
+     * Helper method used to page in tracks on the background thread. The request replaces the
+     * one that did not start yet. The listener is told on the main thread.
+     * @param indexes The sorted indexes
+     */
+    private void requestTracks(final int[] indexes)
+    {
+        if(indexes.length == 0 || mLoader.isShutdown())
+        {
+            return;
+        }
+
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                mMainHandler.post(loadTracks(indexes) ? mPagedCallback : mFailedCallback);
+            }
+        });
+    }
+
+    /**
+     * Helper method used to collect the source indexes of a range of positions that are not paged in
+     * @param start First position. Positions outside the playlist wrap around.
+     * @param end Position after the last one
+     * @return The sorted indexes
+     */
+    private int[] getMissingIndexes(int start, int end)
+    {
+        int size = size();
+        int[] indexes = new int[Math.min(size, Math.max(0, end - start))];
+        int count = 0;
+
+        synchronized (this)
+        {
+            for(int x = start; x < start + indexes.length; x++)
+            {
+                int index = getIndex(((x % size) + size) % size);
+
+                if(index < mSourceEnd && !mTracks.containsKey(index))
+                {
+                    indexes[count++] = index;
+                }
+            }
+        }
+
+        Arrays.sort(indexes, 0, count);
+
+        return Arrays.copyOf(indexes, count);
+    }
+
+    /**
+     * Runnable object used to notify the listener on the main thread
+     */
+    private final Runnable mPagedCallback = new Runnable() {
+        @Override
+        public void run() {
+            if(mListener != null)
+            {
+                mListener.onTracksPaged();
+            }
+        }
+    };
+
+    /**
+     * Runnable object used to notify the listener of a failed page in on the main thread
+     */
+    private final Runnable mFailedCallback = new Runnable() {
+        @Override
+        public void run() {
+            if(mListener != null)
+            {
+                mListener.onPagingFailed();
+            }
+        }
+    };
+
+    /**
+     * Helper method used to page in tracks of the source. Consecutive indexes are read with one call.
+     * @param indexes The sorted indexes
+     * @return false if the source failed
+     */
+    private boolean loadTracks(int[] indexes)
+    {
+        for(int x = 0; x < indexes.length;)
+        {
+            int start = indexes[x];
+            int end = x + 1;
+
+            while(end < indexes.length && indexes[end] == indexes[end - 1] + 1)
+            {
+                end++;
+            }
+
+            int count = end - x;
+            x = end;
+
+            List<AmbientTrack> tracks;
+
+            try
+            {
+                synchronized (mSource)
+                {
+                    tracks = mSource.getTracks(start, count);
+                }
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage() + "");
+                return false;
+            }
+
+            synchronized (this)
+            {
+                int loaded = tracks == null ? 0 : Math.min(count, tracks.size());
+
+                for(int y = 0; y < loaded; y++)
+                {
+                    mTracks.put(start + y, tracks.get(y));
+                }
+
+                if(loaded < count)
+                {
+                    mSourceEnd = Math.min(mSourceEnd, start + loaded); // the source is shorter than its count
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Helper method used to map a position of the play order to the index of its track
+     * @param position The position
+     * @return The index. Indexes from mSourceCount are appended tracks.
+     */
+    private int getIndex(int position)
+    {
+        if(mShuffleKey == 0)
+        {
+            return position;
+        }
+
+        long index = position;
+
+        do
+        {
+            index = permute(index, true); // walk the cycle until the index is in the playlist
+        }while(index >= size());
+
+        return (int) index;
+    }
+
+    /**
+     * Helper method used to map the index of a track to its position in the play order
+     * @param index The index
+     * @return The position
+     */
+    private int getPosition(int index)
+    {
+        if(mShuffleKey == 0)
+        {
+            return index;
+        }
+
+        long position = index;
+
+        do
+        {
+            position = permute(position, false);
+        }while(position >= size());
+
+        return (int) position;
+    }
+
+    /**
+     * Helper method used to apply the shuffle permutation. It is a Feistel network over the
+     * smallest even number of bits that holds the playlist, so it is a bijection that needs no table.
+     * @param value The value to permute
+     * @param isForward true for the permutation, false for its inverse
+     * @return The permuted value
+     */
+    private long permute(long value, boolean isForward)
+    {
+        int bits = 64 - Long.numberOfLeadingZeros(Math.max(1, size() - 1));
+        int half = (bits + 1) / 2;
+        long mask = (1L << half) - 1;
+        long left = value >>> half;
+        long right = value & mask;
+
+        for(int x = 0; x < SHUFFLE_ROUNDS; x++)
+        {
+            if(isForward)
+            {
+                long next = left ^ (mix(right, x) & mask);
+                left = right;
+                right = next;
+            }
+            else
+            {
+                long previous = right ^ (mix(left, SHUFFLE_ROUNDS - 1 - x) & mask);
+                right = left;
+                left = previous;
+            }
+        }
+
+        return (left << half) | right;
+    }
+
+    /**
+     * Helper method used to hash a half of the Feistel network with the shuffle key
+     * @param value The half
+     * @param round The round
+     * @return The hash
+     */
+    private long mix(long value, int round)
+    {
+        long z = mShuffleKey + value * 0x9E3779B97F4A7C15L + round;
+
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+
+        return z ^ (z >>> 33);
+    }
+}
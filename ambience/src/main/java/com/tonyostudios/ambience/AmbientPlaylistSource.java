@@ -0,0 +1,309 @@
+package com.tonyostudios.ambience;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An AmbientPlaylistSource hands the tracks of a playlist to the AmbientService a page at a time,
+ * so a playlist of any size starts without sending its tracks through the binder. The service
+ * only keeps the tracks around the play position.
+ *
+ * A source is either a content uri whose rows hold the COLUMN_* columns, or a subclass
+ * registered by name in the service process. Register sources from Application.onCreate, which
+ * also runs in the service process:
+ *
+ * <pre>AmbientPlaylistSource.register("favorites", new AmbientPlaylistSource() {
+ *     public List&lt;AmbientTrack&gt; getTracks(int start, int count) {
+ *         return loadFavorites(start, count);
+ *     }
+ * });
+ *
+ * Ambience.activeInstance().setPlaylistSourceTo("favorites", favoriteCount).play();</pre>
+ *
+ * getTracks is called on a background thread of the service, never on its main thread, so it
+ * may block but must be thread-safe: guard any state it shares with other threads of the app.
+ * The service does not call it from two threads at once.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public abstract class AmbientPlaylistSource {
+
+    /**
+     * Tag used to identify the AmbientPlaylistSource
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientPlaylistSource";
+
+    /**
+     * Columns read from the rows of a content uri. Only the audio uri is required.
+     * Genres are separated by commas.
+     */
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_NAME = "name";
+    public static final String COLUMN_DURATION = "duration";
+    public static final String COLUMN_ARTIST_NAME = "artist_name";
+    public static final String COLUMN_ARTIST_ID = "artist_id";
+    public static final String COLUMN_ALBUM_NAME = "album_name";
+    public static final String COLUMN_ALBUM_ID = "album_id";
+    public static final String COLUMN_POSITION = "position";
+    public static final String COLUMN_RELEASE_DATE = "release_date";
+    public static final String COLUMN_GENRES = "genres";
+    public static final String COLUMN_AUDIO_URI = "audio_uri";
+    public static final String COLUMN_AUDIO_DOWNLOAD_URI = "audio_download_uri";
+    public static final String COLUMN_ALBUM_IMAGE_URI = "album_image_uri";
+
+    /**
+     * Sources registered in this process by name
+     */
+    private static final HashMap<String, AmbientPlaylistSource> mSources = new HashMap<String, AmbientPlaylistSource>();
+
+    /**
+     * Method that returns the tracks of a range of the playlist. Called on a background thread.
+     * @param start Position of the first track
+     * @param count Number of tracks
+     * @return The tracks of the range. A shorter list marks the end of the source.
+     */
+    public abstract List<AmbientTrack> getTracks(int start, int count);
+
+    /**
+     * Called when the service stops playing the source. A registered source may be played again later.
+     */
+    public void close()
+    {
+        // nothing to release
+    }
+
+    /**
+     * Method used to register a source under a name
+     * @param name The name passed to Ambience.setPlaylistSourceTo
+     * @param source The AmbientPlaylistSource or null to remove the name
+     */
+    public static void register(String name, AmbientPlaylistSource source)
+    {
+        if(name == null)
+        {
+            throw new NullPointerException(TAG + ": the source name cannot be null");
+        }
+
+        synchronized (mSources)
+        {
+            if(source == null)
+            {
+                mSources.remove(name);
+            }
+            else
+            {
+                mSources.put(name, source);
+            }
+        }
+    }
+
+    /**
+     * Method that checks if a source name or uri can be resolved
+     * @param name A registered name or a content uri
+     * @return true if resolve returns a source
+     */
+    static boolean isResolvable(String name)
+    {
+        synchronized (mSources)
+        {
+            if(name == null || mSources.containsKey(name))
+            {
+                return name != null;
+            }
+        }
+
+        return ContentResolver.SCHEME_CONTENT.equals(Uri.parse(name).getScheme());
+    }
+
+    /**
+     * Method that returns the source of a registered name or a content uri
+     * @param context Context used to query the content uri
+     * @param name A registered name or a content uri
+     * @return The AmbientPlaylistSource
+     */
+    static AmbientPlaylistSource resolve(Context context, String name)
+    {
+        if(!isResolvable(name))
+        {
+            throw new IllegalStateException(TAG + ": unknown playlist source " + name);
+        }
+
+        synchronized (mSources)
+        {
+            AmbientPlaylistSource source = mSources.get(name);
+
+            if(source != null)
+            {
+                return source;
+            }
+        }
+
+        return new ContentSource(context.getContentResolver(), Uri.parse(name));
+    }
+
+    /**
+     * Source of the rows of a content uri. One cursor is kept open and moved to each range,
+     * so the provider is queried once and only the cursor window is held in memory.
+     */
+    private static final class ContentSource extends AmbientPlaylistSource
+    {
+        private final ContentResolver mResolver;
+        private final Uri mUri;
+        private Cursor mCursor;
+        private int[] mColumns;
+
+        /**
+         * Constructor
+         * @param resolver ContentResolver used to query the uri
+         * @param uri The content uri
+         */
+        ContentSource(ContentResolver resolver, Uri uri)
+        {
+            mResolver = resolver;
+            mUri = uri;
+        }
+
+        /**
+         * Method that returns the tracks of a range of rows
+         * @param start Position of the first row
+         * @param count Number of rows
+         * @return The tracks of the rows
+         */
+        @Override
+        public List<AmbientTrack> getTracks(int start, int count)
+        {
+            if(mCursor == null)
+            {
+                mCursor = mResolver.query(mUri, null, null, null, null);
+
+                if(mCursor == null)
+                {
+                    Log.e(TAG, "The provider of " + mUri + " returned no cursor");
+                    return Collections.emptyList();
+                }
+
+                String[] names = {COLUMN_ID, COLUMN_NAME, COLUMN_DURATION, COLUMN_ARTIST_NAME,
+                        COLUMN_ARTIST_ID, COLUMN_ALBUM_NAME, COLUMN_ALBUM_ID, COLUMN_POSITION,
+                        COLUMN_RELEASE_DATE, COLUMN_GENRES, COLUMN_AUDIO_URI,
+                        COLUMN_AUDIO_DOWNLOAD_URI, COLUMN_ALBUM_IMAGE_URI};
+
+                mColumns = new int[names.length];
+
+                for(int x = 0; x < names.length; x++)
+                {
+                    mColumns[x] = mCursor.getColumnIndex(names[x]);
+                }
+            }
+
+            List<AmbientTrack> tracks = new ArrayList<AmbientTrack>(count);
+
+            for(int x = start; x < start + count && mCursor.moveToPosition(x); x++)
+            {
+                tracks.add(readTrack());
+            }
+
+            return tracks;
+        }
+
+        /**
+         * Method used to close the cursor
+         */
+        @Override
+        public void close()
+        {
+            if(mCursor != null)
+            {
+                mCursor.close();
+                mCursor = null;
+            }
+        }
+
+        /**
+         * Helper method used to read the track of the current row
+         * @return The AmbientTrack
+         */
+        private AmbientTrack readTrack()
+        {
+            AmbientTrack track = AmbientTrack.newInstance()
+                    .setName(getString(1))
+                    .setArtistName(getString(3))
+                    .setAlbumName(getString(5))
+                    .setReleaseDate(getString(8))
+                    .setAudioUri(getUri(10))
+                    .setAudioDownloadUri(getUri(11))
+                    .setAlbumImageUri(getUri(12));
+
+            if(mColumns[0] != -1)
+            {
+                track.setId(mCursor.getLong(mColumns[0]));
+            }
+
+            if(mColumns[2] != -1)
+            {
+                track.setDuration(mCursor.getInt(mColumns[2]));
+            }
+
+            if(mColumns[4] != -1)
+            {
+                track.setArtistId(mCursor.getLong(mColumns[4]));
+            }
+
+            if(mColumns[6] != -1)
+            {
+                track.setAlbumId(mCursor.getLong(mColumns[6]));
+            }
+
+            if(mColumns[7] != -1)
+            {
+                track.setPosition(mCursor.getInt(mColumns[7]));
+            }
+
+            String genres = getString(9);
+
+            if(genres != null && !genres.trim().isEmpty())
+            {
+                ArrayList<String> genreList = new ArrayList<String>();
+                String[] names = genres.split(",");
+
+                for(int x = 0; x < names.length; x++)
+                {
+                    genreList.add(names[x].trim());
+                }
+
+                track.setGenres(genreList);
+            }
+
+            return track;
+        }
+
+        /**
+         * Helper method used to read a string column of the current row
+         * @param column Index into mColumns
+         * @return The value or null if the column is missing
+         */
+        private String getString(int column)
+        {
+            return mColumns[column] == -1 ? null : mCursor.getString(mColumns[column]);
+        }
+
+        /**
+         * Helper method used to read a uri column of the current row
+         * @param column Index into mColumns
+         * @return The uri or null if the column is missing or empty
+         */
+        private Uri getUri(int column)
+        {
+            String value = getString(column);
+
+            return value == null || value.isEmpty() ? null : Uri.parse(value);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.tonyostudios.ambience;
+
+import java.util.List;
+
+/**
+ * The AmbientQueueTimeline keeps the durations of a playlist in play order in a Fenwick tree, so
+ * the time before a play position and the track at a time of the whole queue are found in
+ * O(log n). Each track has a slot. A second Fenwick tree counts the tracks per slot, so a removed
+ * track only empties its slot and the play positions after it still resolve in O(log n).
+ *
+ * Appending and removing a track and changing a duration take O(log n). Empty slots are dropped
+ * once they outnumber the tracks. A new play order, e.g. a shuffle, is a rebuild in O(n).
+ * Tracks with an unknown duration count as 0 until setDuration is called.
+ *
+ * Use the timeline from the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientQueueTimeline {
+
+    /**
+     * Fenwick trees of the durations and of the track counts, indexed from 1
+     */
+    private long[] mDurationTree = new long[1];
+    private int[] mCountTree = new int[1];
+
+    /**
+     * Duration of each slot, or -1 for an empty slot
+     */
+    private long[] mDurations = new long[0];
+
+    private int mSlotCount = 0;
+    private int mTrackCount = 0;
+
+    /**
+     * Method used to rebuild the timeline for a new play order
+     * @param playlist The tracks of the playlist in play order
+     */
+    void setTracks(List<AmbientTrack> playlist)
+    {
+        int size = playlist == null ? 0 : playlist.size();
+        long[] durations = new long[Math.max(16, size)];
+
+        for(int x = 0; x < size; x++)
+        {
+            durations[x] = getDuration(playlist.get(x));
+        }
+
+        rebuild(durations, size);
+    }
+
+    /**
+     * Method used to append a track to the end of the play order
+     * @param track The AmbientTrack
+     */
+    void append(AmbientTrack track)
+    {
+        if(mSlotCount == mDurations.length)
+        {
+            long[] durations = new long[Math.max(16, mDurations.length * 2)];
+            System.arraycopy(mDurations, 0, durations, 0, mSlotCount);
+            rebuild(durations, mSlotCount); // growing rebuilds the trees, amortized O(1) per track
+        }
+
+        mDurations[mSlotCount] = getDuration(track);
+        mSlotCount++;
+        mTrackCount++;
+        addToTrees(mSlotCount, mDurations[mSlotCount - 1], 1);
+    }
+
+    /**
+     * Method used to remove the track at a play position
+     * @param position The play position
+     */
+    void remove(int position)
+    {
+        if(position < 0 || position >= mTrackCount)
+        {
+            return;
+        }
+
+        int slot = findSlot(position);
+
+        addToTrees(slot, -mDurations[slot - 1], -1);
+        mDurations[slot - 1] = -1;
+        mTrackCount--;
+
+        if(mSlotCount - mTrackCount > Math.max(16, mTrackCount))
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Method used to set the duration of the track at a play position, e.g. once its player is prepared
+     * @param position The play position
+     * @param duration Duration in milliseconds
+     */
+    void setDuration(int position, long duration)
+    {
+        if(position < 0 || position >= mTrackCount || duration < 0)
+        {
+            return;
+        }
+
+        int slot = findSlot(position);
+
+        addToTrees(slot, duration - mDurations[slot - 1], 0);
+        mDurations[slot - 1] = duration;
+    }
+
+    /**
+     * Method that returns the duration of the track at a play position
+     * @param position The play position
+     * @return Duration in milliseconds
+     */
+    long getDuration(int position)
+    {
+        return position < 0 || position >= mTrackCount ? 0 : mDurations[findSlot(position) - 1];
+    }
+
+    /**
+     * Method that returns the total duration of the queue
+     * @return Duration in milliseconds
+     */
+    long getTotalTime()
+    {
+        return sumDurations(mSlotCount);
+    }
+
+    /**
+     * Method that returns the duration of the tracks before a play position
+     * @param position The play position
+     * @return Duration in milliseconds
+     */
+    long getTimeBefore(int position)
+    {
+        if(position <= 0)
+        {
+            return 0;
+        }
+
+        return position >= mTrackCount ? getTotalTime() : sumDurations(findSlot(position) - 1);
+    }
+
+    /**
+     * Method that returns the play position of the track playing at a time of the queue
+     * @param time Time from the start of the queue in milliseconds
+     * @return The play position or -1 if the time is outside the queue
+     */
+    int getPosition(long time)
+    {
+        if(time < 0 || time >= getTotalTime())
+        {
+            return -1;
+        }
+
+        //walk down the tree to the last slot whose prefix sum does not exceed time
+        int slot = 0;
+        int tracks = 0;
+        long remaining = time;
+
+        for(int step = Integer.highestOneBit(Math.max(1, mSlotCount)); step > 0; step >>= 1)
+        {
+            int next = slot + step;
+
+            if(next <= mSlotCount && mDurationTree[next] <= remaining)
+            {
+                slot = next;
+                remaining -= mDurationTree[next];
+                tracks += mCountTree[next];
+            }
+        }
+
+        //the track holding the time is the first track after the slots whose sum fits.
+        //Empty slots and tracks with no duration in between are skipped.
+        while(slot < mSlotCount && mDurations[slot] <= 0)
+        {
+            if(mDurations[slot] == 0)
+            {
+                tracks++;
+            }
+
+            slot++;
+        }
+
+        return Math.min(tracks, mTrackCount - 1);
+    }
+
+    /**
+     * Method that returns the number of tracks in the timeline
+     * @return The number of tracks
+     */
+    int size()
+    {
+        return mTrackCount;
+    }
+
+    /**
+     * Helper method used to find the slot of a play position
+     * @param position The play position
+     * @return The slot, indexed from 1
+     */
+    private int findSlot(int position)
+    {
+        int slot = 0;
+        int remaining = position + 1;
+
+        for(int step = Integer.highestOneBit(Math.max(1, mSlotCount)); step > 0; step >>= 1)
+        {
+            int next = slot + step;
+
+            if(next <= mSlotCount && mCountTree[next] < remaining)
+            {
+                slot = next;
+                remaining -= mCountTree[next];
+            }
+        }
+
+        return slot + 1;
+    }
+
+    /**
+     * Helper method used to sum the durations of the first slots
+     * @param slots Number of slots
+     * @return Duration in milliseconds
+     */
+    private long sumDurations(int slots)
+    {
+        long sum = 0;
+
+        for(int x = slots; x > 0; x -= x & -x)
+        {
+            sum += mDurationTree[x];
+        }
+
+        return sum;
+    }
+
+    /**
+     * Helper method used to add to a slot of both trees
+     * @param slot The slot, indexed from 1
+     * @param duration Duration to add
+     * @param count Track count to add
+     */
+    private void addToTrees(int slot, long duration, int count)
+    {
+        for(int x = slot; x < mDurationTree.length; x += x & -x)
+        {
+            mDurationTree[x] += duration;
+            mCountTree[x] += count;
+        }
+    }
+
+    /**
+     * Helper method used to drop the empty slots
+     */
+    private void compact()
+    {
+        long[] durations = new long[Math.max(16, mTrackCount * 2)];
+        int size = 0;
+
+        for(int x = 0; x < mSlotCount; x++)
+        {
+            if(mDurations[x] >= 0)
+            {
+                durations[size++] = mDurations[x];
+            }
+        }
+
+        rebuild(durations, size);
+    }
+
+    /**
+     * Helper method used to build both trees in O(n)
+     * @param durations Duration of each slot, or -1 for an empty slot. Its length is the capacity.
+     * @param slotCount Number of used slots
+     */
+    private void rebuild(long[] durations, int slotCount)
+    {
+        mDurations = durations;
+        mSlotCount = slotCount;
+        mTrackCount = 0;
+        mDurationTree = new long[durations.length + 1];
+        mCountTree = new int[durations.length + 1];
+
+        //every node passes its sum to its parent, unused slots included
+        for(int x = 1; x < mDurationTree.length; x++)
+        {
+            boolean isTrack = x <= slotCount && durations[x - 1] >= 0;
+
+            mDurationTree[x] += isTrack ? durations[x - 1] : 0;
+            mCountTree[x] += isTrack ? 1 : 0;
+            mTrackCount += isTrack ? 1 : 0;
+
+            int parent = x + (x & -x);
+
+            if(parent < mDurationTree.length)
+            {
+                mDurationTree[parent] += mDurationTree[x];
+                mCountTree[parent] += mCountTree[x];
+            }
+        }
+    }
+
+    /**
+     * Helper method used to get the known duration of a track
+     * @param track The AmbientTrack
+     * @return Duration in milliseconds or 0 if it is unknown
+     */
+    private static long getDuration(AmbientTrack track)
+    {
+        return track == null ? 0 : Math.max(0, track.getDuration());
+    }
+}
@@ -0,0 +1,263 @@
+package com.tonyostudios.ambience;
+
+import android.annotation.TargetApi;
+import android.media.MediaDescription;
+import android.media.session.MediaSession;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The AmbientQueueWindow builds the queue published on the MediaSession of the
+ * AmbientMediaBrowserService. A large playlist does not fit in one binder transaction, so only
+ * a window of the play order around the play position is published. Each track keeps its queue
+ * item id while it stays in the playlist, across shuffles, moves and window shifts, so
+ * controllers can keep their selection and skip to an item by id.
+ *
+ * The window is only published again when the tracks it covers change. A playlist source is
+ * never walked as a whole: the window stops at the tracks that are not paged in, and its tracks
+ * only keep their ids while they stay in the window.
+ * Use the window from the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class AmbientQueueWindow {
+
+    /**
+     * Number of tracks published before and after the play position
+     */
+    static final int TRACKS_BEFORE = 10;
+    static final int TRACKS_AFTER = 40;
+
+    /**
+     * Media id prefix of the queue items. The media id of an item is the prefix, a # and its id.
+     */
+    static final String QUEUE_ITEM_ID = "__QUEUE_ITEM__";
+
+    private final IdentityHashMap<AmbientTrack, Long> mIds = new IdentityHashMap<AmbientTrack, Long>();
+    private final HashMap<Long, AmbientTrack> mTracks = new HashMap<Long, AmbientTrack>();
+    private final HashMap<Long, MediaSession.QueueItem> mItems = new HashMap<Long, MediaSession.QueueItem>();
+    private long mNextId = 0;
+
+    /**
+     * Ids of the published window, in order
+     */
+    private long[] mWindow = new long[0];
+
+    /**
+     * Method used to forget the tracks that left the playlist. Tracks that stay keep their ids.
+     * @param playlist The tracks of the playlist
+     */
+    void setPlaylist(List<AmbientTrack> playlist)
+    {
+        IdentityHashMap<AmbientTrack, Long> ids = new IdentityHashMap<AmbientTrack, Long>();
+
+        for(int x = 0; playlist != null && !(playlist instanceof AmbientPlaylistPager) && x < playlist.size(); x++)
+        {
+            Long id = mIds.get(playlist.get(x));
+
+            if(id != null)
+            {
+                ids.put(playlist.get(x), id);
+            }
+        }
+
+        retainIds(ids);
+    }
+
+    /**
+     * Method used to publish the whole window on the next update, e.g. for a new MediaSession
+     */
+    void invalidate()
+    {
+        mWindow = new long[0];
+    }
+
+    /**
+     * Method used to rebuild the queue item of a track whose fields changed
+     * @param track The AmbientTrack
+     * @return true if the track is in the published window, which then needs an update
+     */
+    boolean refresh(AmbientTrack track)
+    {
+        Long id = mIds.get(track);
+
+        if(id == null || mItems.remove(id) == null)
+        {
+            return false;
+        }
+
+        for(int x = 0; x < mWindow.length; x++)
+        {
+            if(mWindow[x] == id)
+            {
+                invalidate();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Method used to build the window around a play position
+     * @param playlist The tracks of the playlist in play order
+     * @param position The play position
+     * @return The queue items of the window or null if the window did not change
+     */
+    List<MediaSession.QueueItem> update(List<AmbientTrack> playlist, int position)
+    {
+        int size = playlist == null ? 0 : playlist.size();
+        int start = Math.max(0, Math.min(position, size) - TRACKS_BEFORE);
+        int end = Math.min(size, Math.max(position, 0) + TRACKS_AFTER + 1);
+
+        if(playlist instanceof AmbientPlaylistPager)
+        {
+            AmbientPlaylistPager pager = (AmbientPlaylistPager) playlist;
+
+            //only the paged in run around the play position, reading a missing track would page it in
+            for(int x = start; x < end; x++)
+            {
+                if(pager.peek(x) == null)
+                {
+                    if(x < position)
+                    {
+                        start = x + 1;
+                    }
+                    else
+                    {
+                        end = x;
+                    }
+                }
+            }
+        }
+
+        long[] window = new long[Math.max(0, end - start)];
+        boolean isChanged = window.length != mWindow.length;
+
+        for(int x = start; x < end; x++)
+        {
+            window[x - start] = getId(playlist.get(x));
+
+            if(!isChanged && window[x - start] != mWindow[x - start])
+            {
+                isChanged = true;
+            }
+        }
+
+        if(!isChanged)
+        {
+            return null;
+        }
+
+        mWindow = window;
+
+        if(playlist instanceof AmbientPlaylistPager)
+        {
+            IdentityHashMap<AmbientTrack, Long> ids = new IdentityHashMap<AmbientTrack, Long>();
+
+            for(int x = 0; x < window.length; x++)
+            {
+                ids.put(mTracks.get(window[x]), window[x]); // tracks paged out get new ids
+            }
+
+            retainIds(ids);
+        }
+
+        List<MediaSession.QueueItem> items = new ArrayList<MediaSession.QueueItem>(window.length);
+
+        for(int x = 0; x < window.length; x++)
+        {
+            items.add(getItem(window[x]));
+        }
+
+        return items;
+    }
+
+    /**
+     * Method that returns the queue item id of a track. A track without an id gets the next one.
+     * @param track The AmbientTrack
+     * @return The id
+     */
+    long getId(AmbientTrack track)
+    {
+        Long id = mIds.get(track);
+
+        if(id == null)
+        {
+            id = mNextId++;
+            mIds.put(track, id);
+            mTracks.put(id, track);
+        }
+
+        return id;
+    }
+
+    /**
+     * Method that returns the position of a queue item in the playlist
+     * @param playlist The tracks of the playlist in play order
+     * @param id The queue item id
+     * @return The position or -1 if the id left the playlist
+     */
+    int getPosition(List<AmbientTrack> playlist, long id)
+    {
+        AmbientTrack track = mTracks.get(id);
+
+        return track == null || playlist == null ? -1 : playlist.indexOf(track);
+    }
+
+    /**
+     * Helper method used to forget every track but the given ones
+     * @param ids The ids of the tracks to keep
+     */
+    private void retainIds(IdentityHashMap<AmbientTrack, Long> ids)
+    {
+        mIds.clear();
+        mIds.putAll(ids);
+        mTracks.keySet().retainAll(ids.values());
+        mItems.keySet().retainAll(ids.values());
+    }
+
+    /**
+     * Helper method used to get the queue item of an id. Items are built once per track.
+     * @param id The queue item id
+     * @return The QueueItem
+     */
+    private MediaSession.QueueItem getItem(long id)
+    {
+        MediaSession.QueueItem item = mItems.get(id);
+
+        if(item != null)
+        {
+            return item;
+        }
+
+        AmbientTrack track = mTracks.get(id);
+
+        if(track == null)
+        {
+            track = AmbientTrack.newInstance(); // a playlist source that ended before its count
+        }
+
+        MediaDescription.Builder builder = new MediaDescription.Builder()
+                .setMediaId(QUEUE_ITEM_ID + "#" + id)
+                .setTitle(track.getName())
+                .setSubtitle(track.getArtistName())
+                .setDescription(track.getAlbumName());
+
+        if(track.getAlbumImageUri() != null && !Uri.EMPTY.equals(track.getAlbumImageUri()))
+        {
+            builder.setIconUri(track.getAlbumImageUri());
+        }
+
+        item = new MediaSession.QueueItem(builder.build(), id);
+        mItems.put(id, item);
+
+        return item;
+    }
+}
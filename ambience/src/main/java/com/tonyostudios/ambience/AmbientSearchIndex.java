@@ -0,0 +1,614 @@
+package com.tonyostudios.ambience;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The AmbientSearchIndex is an inverted index over the name, artist, album and genres of
+ * AmbientTracks. It answers the voice queries of the AmbientMediaBrowserService. Every query
+ * word is matched exactly, as a prefix of an indexed word and, when neither matches, with a
+ * small edit distance. Tracks that match more query words rank first. Among those, matches
+ * on the name beat matches on the artist, album and genres.
+ *
+ * Tracks are added and removed one at a time, so the index of a queue follows the queue without
+ * a rebuild. Words are kept in a sorted map, so a prefix is a range of the map and a query over
+ * 100k tracks does not scan the tracks. The index is not thread safe. An index built on another
+ * thread must be published through a volatile field.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientSearchIndex {
+
+    /**
+     * Fields of a track that can be searched
+     */
+    static final int FIELD_NAME = 1;
+    static final int FIELD_ARTIST = 2;
+    static final int FIELD_ALBUM = 4;
+    static final int FIELD_GENRE = 8;
+    static final int FIELD_ALL = FIELD_NAME | FIELD_ARTIST | FIELD_ALBUM | FIELD_GENRE;
+
+    /**
+     * Weight of a match in each field, in the order of the field bits
+     */
+    private static final float[] FIELD_WEIGHTS = {8f, 6f, 4f, 2f};
+
+    /**
+     * Weight of an exact, a prefix and a fuzzy match of a query word
+     */
+    private static final float EXACT_MATCH = 1f;
+    private static final float PREFIX_MATCH = 0.5f;
+    private static final float FUZZY_MATCH = 0.3f;
+
+    /**
+     * Shortest query word matched as a prefix and shortest query word matched with an edit
+     * distance. Shorter words match too many indexed words to be useful.
+     */
+    private static final int MIN_PREFIX_LENGTH = 3;
+    private static final int MIN_FUZZY_LENGTH = 4;
+
+    /**
+     * Query word length from which two edits are tolerated instead of one
+     */
+    private static final int LONG_WORD_LENGTH = 8;
+
+    /**
+     * Query words of a spoken request that do not describe the music. They add to the score
+     * when they match but a track does not need to match them.
+     */
+    private static final String[] FILLER_WORDS = {"a", "an", "by", "from", "me", "music", "play",
+            "some", "something", "song", "songs", "the", "track", "tracks"};
+
+    private final TreeMap<String, Postings> mWords = new TreeMap<String, Postings>();
+    private final IdentityHashMap<AmbientTrack, Integer> mDocIds = new IdentityHashMap<AmbientTrack, Integer>();
+    private final ArrayList<AmbientTrack> mTracks = new ArrayList<AmbientTrack>();
+    private int mRemovedCount = 0;
+
+    /**
+     * Scratch state of a query, indexed by doc id. A doc belongs to the current query or query
+     * word when its stamp equals the current generation, so nothing is cleared between queries.
+     */
+    private int mGeneration = 0;
+    private int[] mQueryStamps = new int[0];
+    private int[] mWordStamps = new int[0];
+    private float[] mScores = new float[0];
+    private float[] mWordScores = new float[0];
+    private int[] mMatches = new int[0];
+    private int[] mWordDocs = new int[16];
+    private int mWordDocCount = 0;
+    private int[] mDistanceRow = new int[0];
+    private int[] mPreviousRow = new int[0];
+    private int[] mSecondPreviousRow = new int[0];
+
+    /**
+     * Method used to add a track to the index. A track that is already indexed is ignored.
+     * @param track The AmbientTrack
+     */
+    void add(AmbientTrack track)
+    {
+        if(track == null || mDocIds.containsKey(track))
+        {
+            return;
+        }
+
+        int doc = mTracks.size();
+        mTracks.add(track);
+        mDocIds.put(track, doc);
+
+        addWords(doc, track.getName(), FIELD_NAME);
+        addWords(doc, track.getArtistName(), FIELD_ARTIST);
+        addWords(doc, track.getAlbumName(), FIELD_ALBUM);
+
+        ArrayList<String> genres = track.getGenresList();
+
+        for(int x = 0; genres != null && x < genres.size(); x++)
+        {
+            addWords(doc, genres.get(x), FIELD_GENRE);
+        }
+    }
+
+    /**
+     * Method used to remove a track from the index. The postings of a removed track are dropped
+     * when removed tracks outnumber the indexed ones.
+     * @param track The AmbientTrack
+     * @return true if the track was indexed
+     */
+    boolean remove(AmbientTrack track)
+    {
+        Integer doc = track == null ? null : mDocIds.remove(track);
+
+        if(doc == null)
+        {
+            return false;
+        }
+
+        mTracks.set(doc, null);
+
+        if(++mRemovedCount > mDocIds.size())
+        {
+            compact();
+        }
+
+        return true;
+    }
+
+    /**
+     * Method used to remove every track from the index
+     */
+    void clear()
+    {
+        mWords.clear();
+        mDocIds.clear();
+        mTracks.clear();
+        mRemovedCount = 0;
+    }
+
+    /**
+     * Method that returns the number of indexed tracks
+     * @return The number of tracks
+     */
+    int size()
+    {
+        return mDocIds.size();
+    }
+
+    /**
+     * Method that returns indexed tracks in the order they were added
+     * @param limit Maximum number of tracks
+     * @return The tracks
+     */
+    ArrayList<AmbientTrack> getTracks(int limit)
+    {
+        ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>();
+
+        for(int x = 0; x < mTracks.size() && tracks.size() < limit; x++)
+        {
+            if(mTracks.get(x) != null)
+            {
+                tracks.add(mTracks.get(x));
+            }
+        }
+
+        return tracks;
+    }
+
+    /**
+     * Method used to search the index
+     * @param query The spoken or typed query
+     * @param fields Bits of the fields to search
+     * @param limit Maximum number of tracks
+     * @return The matching tracks, best match first. The list is empty if nothing matches.
+     */
+    ArrayList<AmbientTrack> search(String query, int fields, int limit)
+    {
+        ArrayList<AmbientTrack> results = new ArrayList<AmbientTrack>();
+        ArrayList<String> words = tokenize(query);
+
+        if(words.isEmpty() || limit <= 0)
+        {
+            return results;
+        }
+
+        ensureScratchCapacity();
+
+        int generation = ++mGeneration;
+        int[] candidates = new int[16];
+        int candidateCount = 0;
+        int descriptiveWords = 0;
+
+        for(int w = 0; w < words.size(); w++)
+        {
+            String word = words.get(w);
+            boolean isFiller = isFillerWord(word);
+            int wordGeneration = ++mGeneration;
+            mWordDocCount = 0;
+
+            //exact and prefix matches
+            Postings exact = mWords.get(word);
+
+            if(exact != null)
+            {
+                collect(exact, EXACT_MATCH, fields, wordGeneration);
+            }
+
+            if(word.length() >= MIN_PREFIX_LENGTH)
+            {
+                NavigableMap<String, Postings> range = mWords.subMap(word, false, word + Character.MAX_VALUE, false);
+
+                for(Map.Entry<String, Postings> entry : range.entrySet())
+                {
+                    collect(entry.getValue(), PREFIX_MATCH, fields, wordGeneration);
+                }
+            }
+
+            //fuzzy matches only when a descriptive word matched nothing
+            if(mWordDocCount == 0 && !isFiller && word.length() >= MIN_FUZZY_LENGTH)
+            {
+                int maxDistance = word.length() >= LONG_WORD_LENGTH ? 2 : 1;
+                char first = word.charAt(0);
+                NavigableMap<String, Postings> range = mWords.subMap(String.valueOf(first), true,
+                        String.valueOf((char) (first + 1)), false);
+
+                for(Map.Entry<String, Postings> entry : range.entrySet())
+                {
+                    String indexed = entry.getKey();
+
+                    if(Math.abs(indexed.length() - word.length()) <= maxDistance
+                            && isWithinDistance(word, indexed, maxDistance))
+                    {
+                        collect(entry.getValue(), FUZZY_MATCH, fields, wordGeneration);
+                    }
+                }
+            }
+
+            if(!isFiller)
+            {
+                descriptiveWords++;
+            }
+
+            for(int x = 0; x < mWordDocCount; x++)
+            {
+                int doc = mWordDocs[x];
+
+                if(mQueryStamps[doc] != generation)
+                {
+                    mQueryStamps[doc] = generation;
+                    mScores[doc] = 0;
+                    mMatches[doc] = 0;
+
+                    if(candidateCount == candidates.length)
+                    {
+                        int[] grown = new int[candidateCount * 2];
+                        System.arraycopy(candidates, 0, grown, 0, candidateCount);
+                        candidates = grown;
+                    }
+
+                    candidates[candidateCount++] = doc;
+                }
+
+                mScores[doc] += mWordScores[doc];
+
+                if(!isFiller)
+                {
+                    mMatches[doc]++;
+                }
+            }
+        }
+
+        //keep the best docs. Matched words rank first, the score breaks ties.
+        int[] top = new int[Math.min(limit, candidateCount)];
+        int topCount = 0;
+
+        for(int x = 0; x < candidateCount; x++)
+        {
+            int doc = candidates[x];
+
+            if(descriptiveWords > 0 && mMatches[doc] == 0)
+            {
+                continue; // only filler words matched
+            }
+
+            if(topCount == top.length && !isBetter(doc, top[topCount - 1]))
+            {
+                continue;
+            }
+
+            int y = topCount == top.length ? topCount - 1 : topCount++;
+
+            while(y > 0 && isBetter(doc, top[y - 1]))
+            {
+                top[y] = top[y - 1];
+                y--;
+            }
+
+            top[y] = doc;
+        }
+
+        for(int x = 0; x < topCount; x++)
+        {
+            results.add(mTracks.get(top[x]));
+        }
+
+        return results;
+    }
+
+    /**
+     * Helper method used to collect the docs of a posting list for the current query word. A doc
+     * keeps the best score of the indexed words the query word matched.
+     * @param postings The posting list
+     * @param quality Weight of the match
+     * @param fields Bits of the searched fields
+     * @param wordGeneration Generation of the query word
+     */
+    private void collect(Postings postings, float quality, int fields, int wordGeneration)
+    {
+        for(int x = 0; x < postings.mSize; x++)
+        {
+            int doc = postings.mDocs[x];
+            int matchedFields = postings.mFields[x] & fields;
+
+            if(matchedFields == 0 || mTracks.get(doc) == null)
+            {
+                continue;
+            }
+
+            float score = quality * getFieldWeight(matchedFields);
+
+            if(mWordStamps[doc] == wordGeneration)
+            {
+                mWordScores[doc] = Math.max(mWordScores[doc], score);
+                continue;
+            }
+
+            mWordStamps[doc] = wordGeneration;
+            mWordScores[doc] = score;
+
+            if(mWordDocCount == mWordDocs.length)
+            {
+                int[] grown = new int[mWordDocCount * 2];
+                System.arraycopy(mWordDocs, 0, grown, 0, mWordDocCount);
+                mWordDocs = grown;
+            }
+
+            mWordDocs[mWordDocCount++] = doc;
+        }
+    }
+
+    /**
+     * Helper method used to compare two docs of the current query
+     * @param doc A doc
+     * @param other Another doc
+     * @return true if doc ranks above other
+     */
+    private boolean isBetter(int doc, int other)
+    {
+        if(mMatches[doc] != mMatches[other])
+        {
+            return mMatches[doc] > mMatches[other];
+        }
+
+        return mScores[doc] > mScores[other];
+    }
+
+    /**
+     * Helper method used to get the weight of the best field of a match
+     * @param fields Bits of the matched fields
+     * @return The weight
+     */
+    private static float getFieldWeight(int fields)
+    {
+        for(int x = 0; x < FIELD_WEIGHTS.length; x++)
+        {
+            if((fields & (1 << x)) != 0)
+            {
+                return FIELD_WEIGHTS[x];
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Helper method used to check if two words are within an edit distance. Swapped neighbour
+     * letters count as one edit, as they are a common misspelling.
+     * @param word The query word
+     * @param indexed The indexed word
+     * @param maxDistance The maximum number of insertions, deletions, substitutions and swaps
+     * @return true if the words are within the distance
+     */
+    private boolean isWithinDistance(String word, String indexed, int maxDistance)
+    {
+        int length = indexed.length() + 1;
+
+        if(mDistanceRow.length < length)
+        {
+            mDistanceRow = new int[length * 2];
+            mPreviousRow = new int[length * 2];
+            mSecondPreviousRow = new int[length * 2];
+        }
+
+        int[] secondPrevious = mSecondPreviousRow;
+        int[] previous = mPreviousRow;
+        int[] row = mDistanceRow;
+        int previousMin = 0;
+
+        for(int y = 0; y < length; y++)
+        {
+            previous[y] = y;
+        }
+
+        for(int x = 1; x <= word.length(); x++)
+        {
+            row[0] = x;
+            int rowMin = x;
+
+            for(int y = 1; y < length; y++)
+            {
+                int cost = word.charAt(x - 1) == indexed.charAt(y - 1) ? 0 : 1;
+                row[y] = Math.min(Math.min(row[y - 1] + 1, previous[y] + 1), previous[y - 1] + cost);
+
+                if(x > 1 && y > 1 && word.charAt(x - 1) == indexed.charAt(y - 2)
+                        && word.charAt(x - 2) == indexed.charAt(y - 1))
+                {
+                    row[y] = Math.min(row[y], secondPrevious[y - 2] + 1);
+                }
+
+                rowMin = Math.min(rowMin, row[y]);
+            }
+
+            if(rowMin > maxDistance && previousMin > maxDistance)
+            {
+                return false; // every path already costs too much
+            }
+
+            previousMin = rowMin;
+
+            int[] swap = secondPrevious;
+            secondPrevious = previous;
+            previous = row;
+            row = swap;
+        }
+
+        return previous[length - 1] <= maxDistance;
+    }
+
+    /**
+     * Helper method used to index the words of a field
+     * @param doc Id of the track
+     * @param text Text of the field
+     * @param field Bit of the field
+     */
+    private void addWords(int doc, String text, int field)
+    {
+        ArrayList<String> words = tokenize(text);
+
+        for(int x = 0; x < words.size(); x++)
+        {
+            Postings postings = mWords.get(words.get(x));
+
+            if(postings == null)
+            {
+                postings = new Postings();
+                mWords.put(words.get(x), postings);
+            }
+
+            postings.add(doc, field);
+        }
+    }
+
+    /**
+     * Helper method used to rebuild the index without the removed tracks
+     */
+    private void compact()
+    {
+        ArrayList<AmbientTrack> tracks = getTracks(Integer.MAX_VALUE);
+
+        clear();
+
+        for(int x = 0; x < tracks.size(); x++)
+        {
+            add(tracks.get(x));
+        }
+    }
+
+    /**
+     * Helper method used to size the scratch arrays to the number of docs
+     */
+    private void ensureScratchCapacity()
+    {
+        if(mScores.length >= mTracks.size())
+        {
+            return;
+        }
+
+        int capacity = Math.max(16, mTracks.size() + mTracks.size() / 2);
+
+        mQueryStamps = new int[capacity];
+        mWordStamps = new int[capacity];
+        mScores = new float[capacity];
+        mWordScores = new float[capacity];
+        mMatches = new int[capacity];
+        mGeneration = 0;
+    }
+
+    /**
+     * Helper method used to check if a query word does not describe the music
+     * @param word The query word
+     * @return true for filler words
+     */
+    private static boolean isFillerWord(String word)
+    {
+        for(int x = 0; x < FILLER_WORDS.length; x++)
+        {
+            if(FILLER_WORDS[x].equals(word))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Method used to split a text in lower case words without accents
+     * @param text The text
+     * @return The words
+     */
+    static ArrayList<String> tokenize(String text)
+    {
+        ArrayList<String> words = new ArrayList<String>();
+
+        if(text == null || text.isEmpty())
+        {
+            return words;
+        }
+
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.US);
+        StringBuilder word = new StringBuilder();
+
+        for(int x = 0; x <= normalized.length(); x++)
+        {
+            char c = x < normalized.length() ? normalized.charAt(x) : ' ';
+
+            if(Character.getType(c) == Character.NON_SPACING_MARK)
+            {
+                continue; // accents split from their letters by NFD
+            }
+
+            if(Character.isLetterOrDigit(c))
+            {
+                word.append(c);
+            }
+            else if(word.length() > 0)
+            {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+
+        return words;
+    }
+
+    /**
+     * Docs and field bits of an indexed word, in the order the docs were added
+     */
+    private static final class Postings
+    {
+        int[] mDocs = new int[2];
+        byte[] mFields = new byte[2];
+        int mSize = 0;
+
+        /**
+         * Method used to add a field of a doc. Fields of the last doc are merged.
+         * @param doc Id of the track
+         * @param field Bit of the field
+         */
+        void add(int doc, int field)
+        {
+            if(mSize > 0 && mDocs[mSize - 1] == doc)
+            {
+                mFields[mSize - 1] |= field;
+                return;
+            }
+
+            if(mSize == mDocs.length)
+            {
+                int[] docs = new int[mSize * 2];
+                byte[] fields = new byte[mSize * 2];
+                System.arraycopy(mDocs, 0, docs, 0, mSize);
+                System.arraycopy(mFields, 0, fields, 0, mSize);
+                mDocs = docs;
+                mFields = fields;
+            }
+
+            mDocs[mSize] = doc;
+            mFields[mSize] = (byte) field;
+            mSize++;
+        }
+    }
+}
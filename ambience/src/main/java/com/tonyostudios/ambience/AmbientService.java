@@ -1,5 +1,6 @@
 package com.tonyostudios.ambience;
 
+import android.annotation.TargetApi;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
@@ -11,12 +12,14 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
-import android.net.wifi.WifiManager;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Parcelable;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.util.Log;
@@ -28,6 +31,9 @@ import com.squareup.picasso.Target;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 
 /**
  * AmbientService is an Android Service that is used to control media playback
@@ -41,7 +47,11 @@ import java.util.Collections;
  */
 public class AmbientService extends Service implements MediaPlayer.OnErrorListener,
         MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener,
-        AudioManager.OnAudioFocusChangeListener {
+        MediaPlayer.OnSeekCompleteListener, MediaPlayer.OnBufferingUpdateListener, MediaPlayer.OnInfoListener,
+        AudioManager.OnAudioFocusChangeListener,
+        AmbientServiceBinder.RequestHandler, AmbientCrossfader.Callback, AmbientMetadataProber.ProbeListener,
+        AmbientPlaylistPager.PageListener, AmbientPlaylistImporter.ImportListener,
+        AmbientMixer.LayerStatsListener {
 
 
     /**
@@ -54,6 +64,12 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
      */
     public final static String AMBIENT_SERVICE_BROADCASTER = TAG + ".INCOMING_REQUEST_BROADCASTER";
 
+    /**
+     * Action used to bind to the IAmbientService interface of the AmbientService
+     * and the AmbientMediaBrowserService
+     */
+    public final static String AMBIENT_SERVICE_BINDER = TAG + ".BINDER";
+
     /**
      * Tag used to identify the AmbientService playlist
      */
@@ -70,59 +86,56 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
     public final static String VOLUME_LEVEL = TAG + ".VOLUME_VALUE";
 
     /**
-     * Tag used to identify the AmbientService seek position
-     */
-    public final static String SEEK_POSITION = TAG + ".SEEK_POSITION";
-
-    /**
-     * Tag used to identify the AmbientService playback state
+     * Tag used to identify the AmbientService repeat mode
      */
-    public final static String PLAYBACK_STATE = TAG + ".PLAYBACK_STATE";
+    public final static String REPEAT_MODE = TAG + ".REPEAT_MODE";
 
     /**
-     * Tag used to identify the AmbientService repeat mode
+     * Tag used to identify the AmbientService shuffle mode
      */
-    public final static String REPEAT_MODE = TAG + ".REPEAT_MODE";
+    public final static String SHUFFLE_MODE = TAG + ".SHUFFLE_MODE";
 
     /**
-     * Tag used to identify a track added to the AmbientService playlist
+     * Tag used to identify the AmbientService launch activity for notifications
      */
-    public final static String ADD_TRACK = TAG + ".ADD_TRACK";
+    public final static String ACTIVITY_LAUNCHER = TAG + ".ACTIVITY_LAUNCHER";
 
     /**
-     * Tag used to identify a track that needs to be removed from the the AmbientService playlist
+     * Tag used to identify the AmbientService current playing track
      */
-    public final static String REMOVE_TRACK = TAG + ".REMOVE_TRACK";
+    public final static String CURRENT_TRACK = TAG + ".CURRENT_PLAYING_TRACK";
 
     /**
-     * Tag used to identify the AmbientService shuffle mode
+     * Value used to update the handler/user interface
      */
-    public final static String SHUFFLE_MODE = TAG + ".SHUFFLE_MODE";
+    public final static int AUDIO_PROGRESS_UPDATE_TIME = 100;
 
     /**
-     * Tag used to identify the AmbientService launch activity for notifications
+     * Number of progress updates between two updates that carry the current track
      */
-    public final static String ACTIVITY_LAUNCHER = TAG + ".ACTIVITY_LAUNCHER";
+    final static int TRACK_UPDATE_INTERVAL = 10;
 
     /**
-     * Tag used to identify the AmbientService progress track
+     * Time before the end of a loop range at which the loop seeks back, in milliseconds
      */
-    public final static String TRACK_PROGRESS = TAG + ".TRACK_PROGRESS";
+    final static int LOOP_TOLERANCE = 20;
 
     /**
-     * Tag used to identify the AmbientService track duration
+     * Minimum number of tracks an infinite queue asks its supplier for at once
      */
-    public final static String TRACK_DURATION = TAG + ".TRACK_DURATION";
+    final static int REFILL_PAGE_SIZE = 20;
 
     /**
-     * Tag used to identify the AmbientService current playing track
+     * Number of played tracks trimmed at once from an infinite queue beyond its history limit
      */
-    public final static String CURRENT_TRACK = TAG + ".CURRENT_PLAYING_TRACK";
+    final static int TRIM_BATCH = 32;
 
     /**
-     * Value used to update the handler/user interface
+     * Default retry policy of failed tracks: retries, delay of the first retry and prepare timeout in milliseconds
      */
-    public final static int AUDIO_PROGRESS_UPDATE_TIME = 100;
+    final static int DEFAULT_MAX_RETRIES = 2;
+    final static int DEFAULT_RETRY_DELAY = 1000;
+    final static int DEFAULT_PREPARE_TIMEOUT = 15000;
 
     /**
      * Tag used to identify the AmbientService notification ID
@@ -165,7 +178,11 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
         CURRENT_PLAYING_TRACK_INFO,
         ERROR,
         SERVICE_STARTED,
-        SERVICE_STOPPED
+        SERVICE_STOPPED,
+        SEEK_COMPLETED,
+        COMMAND_REJECTED,
+        BUFFERING_STARTED,
+        BUFFERING_ENDED
     }
 
     /**
@@ -179,9 +196,32 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
     private Handler mHandler;
 
     /**
-     * Allows service to keep the wifi-radio on when needed
+     * Allows service to keep the wifi-radio on while a remote track is fetched
+     */
+    private AmbientWifiLock mWifiLock;
+
+    /**
+     * Boolean values used to indicate if the current track streams from the network and if
+     * it is completely buffered
+     */
+    private boolean isRemoteTrack = false;
+    private boolean isTrackBuffered = false;
+
+    /**
+     * Buffered percentage of the current track and the last one sent to Ambience
      */
-    private WifiManager.WifiLock mWifiLock;
+    private int mBufferedPercent = 0;
+    private int mLastSentBufferedPercent = -1;
+
+    /**
+     * Time the current stall started or 0 if playback is not stalled
+     */
+    private long mStallStart = 0;
+
+    /**
+     * Play position when the current stall started. It is reported as the progress until the stall ends.
+     */
+    private int mStallPosition = 0;
 
     /**
      * Provides access to volume and ringer controls
@@ -199,9 +239,62 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
     private ArrayList<AmbientTrack> mOriginalPlaylist = new ArrayList<AmbientTrack>();
 
     /**
-     * ArrayList used to manage AmbientTracks sent to the AmbientService for processing
+     * List used to manage AmbientTracks sent to the AmbientService for processing
+     */
+    private List<AmbientTrack> mPlaylist = new ArrayList<AmbientTrack>();
+
+    /**
+     * Pages in the tracks of a playlist source. It is mPlaylist while a source is played, otherwise null.
+     */
+    private AmbientPlaylistPager mPager;
+
+    /**
+     * Supplier of the infinite queue or null if the queue ends with its last track
+     */
+    private AmbientPlaylistSource mQueueSupplier;
+
+    /**
+     * Number of upcoming tracks below which the supplier is asked for more
+     */
+    private int mRefillWatermark = 0;
+
+    /**
+     * Number of played tracks of the infinite queue kept before the play position
+     */
+    private int mHistoryLimit = 0;
+
+    /**
+     * Number of tracks the supplier handed out. It is the start of the next page.
+     */
+    private int mSuppliedCount = 0;
+
+    /**
+     * Incremented when the supplier or the playlist is replaced, so a page asked for earlier is dropped
+     */
+    private int mRefillGeneration = 0;
+
+    private boolean isRefilling = false;
+    private boolean isSupplierExhausted = false;
+
+    /**
+     * true when playback reached the end of the infinite queue and continues with the next page
+     */
+    private boolean isWaitingForRefill = false;
+
+    /**
+     * true when the track at the play position is paged in from the playlist source before it is prepared
+     */
+    private boolean isWaitingForPage = false;
+
+    /**
+     * Importer of the playlist file being read or null
+     */
+    private AmbientPlaylistImporter mImporter;
+
+    /**
+     * true when PLAY arrived before the first track of the playlist file was imported
      */
-    private ArrayList<AmbientTrack> mPlaylist = new ArrayList<AmbientTrack>();
+    private boolean isPlayPending = false;
 
     /**
      * Holds the current playing AmbientTrack
@@ -221,10 +314,139 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
     private String mActivityLauncher;
 
     /**
-     * The bundle passed to the IncomingRequestReceiver. This bundle may contain
-     * data or actions requested by the Ambience Class
+     * Holds the sequence number of the last request applied for each sender. Used to drop
+     * duplicate and out of order requests.
+     */
+    private HashMap<Long, Long> mRequestSequences = new HashMap<Long, Long>();
+
+    /**
+     * Sender and sequence number of the last applied request. Updates echo them, so Ambience can
+     * tell which of its requests a state follows. The sender is null until a request carries a sequence.
+     */
+    private Long mAppliedSender;
+    private long mAppliedSequence;
+
+    /**
+     * Sender and sequence number of the play request waiting for the first imported track
+     */
+    private Long mPendingPlaySender;
+    private long mPendingPlaySequence;
+
+    /**
+     * Reusable message used to decode incoming requests on the main thread
+     */
+    private final AmbientCodec.Message mRequest = new AmbientCodec.Message();
+
+    /**
+     * Binder returned to clients that bind with the AMBIENT_SERVICE_BINDER action
+     */
+    private AmbientServiceBinder mBinder;
+
+    /**
+     * Mixer of the layered playback mode. Created with the first layer.
+     */
+    private AmbientMixer mMixer;
+
+    /**
+     * Audio focus listener of the layers. It holds the focus while the layers play and the playlist
+     * does not. Android takes the focus from the other listeners of an app, so only one listener of
+     * the service holds it. While the playlist holds it, the layers follow its focus changes.
+     */
+    private final AudioManager.OnAudioFocusChangeListener mMixerFocusListener = new AudioManager.OnAudioFocusChangeListener() {
+        @Override
+        public void onAudioFocusChange(int focusChange) {
+            if(mMixer != null)
+            {
+                onMixerAudioFocusChange(focusChange);
+            }
+        }
+    };
+
+    /**
+     * Boolean values used to indicate which listener holds the audio focus
+     */
+    private boolean isPlaylistFocused = false;
+    private boolean isMixerFocused = false;
+
+    /**
+     * Boolean value used to indicate that another app took the audio focus from the layers.
+     * The layers do not take it back until a layer is added.
+     */
+    private boolean isMixerFocusLost = false;
+
+    /**
+     * Crossfader of the track transitions. Created with the first crossfade request.
+     */
+    private AmbientCrossfader mCrossfader;
+
+    /**
+     * Failure state of the hosts of the played tracks
+     */
+    private final AmbientCircuitBreaker mCircuitBreaker = new AmbientCircuitBreaker();
+
+    /**
+     * Durations of the playlist in play order
+     */
+    private final AmbientQueueTimeline mTimeline = new AmbientQueueTimeline();
+
+    /**
+     * Prober of the durations and tags the queued tracks are missing. Created by the first command.
+     */
+    private AmbientMetadataProber mProber;
+
+    /**
+     * Boolean value indicating if the media player is prepared and can seek
+     */
+    private boolean isPlayerPrepared = false;
+
+    /**
+     * Seek position applied when mPendingSeekTrack is prepared
+     */
+    private int mPendingSeek = 0;
+    private AmbientTrack mPendingSeekTrack;
+
+    /**
+     * Play position of a queue time seek whose track was not paged in yet or -1
+     */
+    private int mPendingSeekPosition = -1;
+
+    /**
+     * Retry policy of failed tracks. Set with Ambience.setRetryPolicyTo
+     */
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private int mRetryDelay = DEFAULT_RETRY_DELAY;
+    private int mPrepareTimeout = DEFAULT_PREPARE_TIMEOUT;
+
+    /**
+     * Number of retries of mRetryTrack
+     */
+    private int mRetries = 0;
+    private AmbientTrack mRetryTrack;
+
+    /**
+     * Number of failed tracks skipped in a row
      */
-    private Bundle mBundle;
+    private int mSkippedTracks = 0;
+
+    /**
+     * Host of the current track or null if the track is local
+     */
+    private String mCurrentHost;
+
+    /**
+     * Boolean value used to indicate that the pending seek was made by a loop
+     */
+    private boolean isLoopSeek = false;
+
+    /**
+     * The last AmbientTrack sent to Ambience
+     */
+    private AmbientTrack mLastSentTrack;
+
+    /**
+     * Number of progress updates sent since the AmbientTrack was last sent
+     */
+    private int mProgressUpdates = 0;
 
     /**
      * Holds the current repeat mode for the playlist
@@ -252,6 +474,12 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
      */
     @Override
     public IBinder onBind(Intent intent) {
+
+        if(intent != null && AMBIENT_SERVICE_BINDER.equals(intent.getAction()))
+        {
+            return mBinder;
+        }
+
         return null;
     }
 
@@ -284,673 +512,2506 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
         @Override
         public void onReceive(Context context, Intent intent) {
 
-            if (intent == null || intent.getExtras() == null) {
+            if (intent == null || intent.getByteArrayExtra(AmbientCodec.MESSAGE) == null) {
                 Log.e(TAG, "Passed an empty intent to IncomingRequestBroadcaster");
                 return;
             }
 
-            mBundle = intent.getExtras();
-
-
-            if(mBundle.containsKey(ACTIVITY_LAUNCHER))
-            {
-                mActivityLauncher = mBundle.getString(ACTIVITY_LAUNCHER);
-            }
-
-            if(mBundle.containsKey(VOLUME_LEVEL))
-            {
-                setVolumeTo(mBundle.getFloat(VOLUME_LEVEL,0.5f));
-            }
-
-            if(mBundle.containsKey(PLAYLIST))
-            {
-                createPlaylist();
-            }
-
-            if(mBundle.containsKey(PLAY_POSITION))
-            {
-                setPlayPosition();
-            }
+            handleRequest(intent.getByteArrayExtra(AmbientCodec.MESSAGE), intent.getExtras());
+        }
+    };
 
-            if(mBundle.containsKey(REMOVE_TRACK))
-            {
-                removeTrackFromPlaylist();
-            }
+    /**
+     * Method used to handle a request received from the IncomingRequestReceiver or the binder.
+     * Must be called on the main thread.
+     * @param message The encoded request
+     * @param extras The request extras holding the tracks, playlist and launcher
+     */
+    @Override
+    public void handleRequest(byte[] message, Bundle extras)
+    {
+        if(mHandler == null)
+        {
+            return; // the service was destroyed
+        }
 
-            if(mBundle.containsKey(ADD_TRACK))
-            {
-                addTrackToPlaylist();
-            }
+        try
+        {
+            AmbientCodec.decode(message, mRequest);
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
 
-            if(mBundle.containsKey(REPEAT_MODE))
-            {
-                setRepeatMode();
-            }
+            sendRejection(getSender(mRequest), mRequest.sequence); // the request could not be decoded
+            return;
+        }
 
-            if(mBundle.containsKey(SHUFFLE_MODE))
-            {
-                setShuffleMode();
-            }
+        if(isStaleRequest(mRequest))
+        {
+            Log.i(TAG, "Rejected a duplicate or out of order request");
 
-            if(mBundle.containsKey(SEEK_POSITION))
-            {
-                seekTo(mBundle.getInt(SEEK_POSITION,0));
-            }
+            sendRejection(mRequest.sender, mRequest.sequence);
+            return;
+        }
 
+        try
+        {
+            validateRequest(mRequest, extras);
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
 
-            if(mBundle.containsKey(PLAYBACK_STATE))
-            {
+            sendRejection(getSender(mRequest), mRequest.sequence); // the request was dropped
+            return;
+        }
 
-                try {
-                    PlaybackState state = (PlaybackState) mBundle.getSerializable(PLAYBACK_STATE);
-
-                    //PLAYBACK CONTROLS
-                    switch (state) {
-                        case PLAY: init();
-                            break;
-                        case STOP: stop();
-                            break;
-                        case PAUSE: pause();
-                            break;
-                        case RESUME: play();
-                            break;
-                        case SKIP: playNext();
-                            break;
-                        case PREVIOUS: playPrevious();
-                            break;
-                        default:
-                            throw new IllegalStateException(TAG + ": Unknown Playback State");
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    Log.e(TAG, e.getMessage());
-                }
-            }
+        if(mRequest.has(AmbientCodec.OP_SEQUENCE))
+        {
+            mAppliedSender = mRequest.sender;
+            mAppliedSequence = mRequest.sequence;
         }
-    };
+
+        createPlaybackResources();
+        applyRequest(mRequest, extras);
+    }
 
     /**
-     * Called by the system when the service is first created.
+     * Method used to check if a request was already applied. Requests sent by Ambience carry a sender
+     * and a sequence number. Stale requests are rejected. Requests without a sequence number (e.g.
+     * notification actions) are never stale.
+     * @param request The decoded request
+     * @return boolean value indicating if the request must be dropped
      */
-    @Override
-    public void onCreate() {
-        super.onCreate();
-
-        createMediaPlayer();
-        mHandler = new Handler();
-
-        //get handle on audio manager, wifi lock and notification manager
-        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        mWifiLock = ((WifiManager) getSystemService(Context.WIFI_SERVICE))
-                .createWifiLock(WifiManager.WIFI_MODE_FULL,TAG);
+    private boolean isStaleRequest(AmbientCodec.Message request)
+    {
+        if(!request.has(AmbientCodec.OP_SEQUENCE))
+        {
+            return false;
+        }
 
+        Long sender = request.sender;
+        long sequence = request.sequence;
+        Long lastSequence = mRequestSequences.get(sender);
 
-        mNotificationManager = NotificationManagerCompat.from(AmbientService.this);
+        if(lastSequence != null && sequence <= lastSequence)
+        {
+            return true;
+        }
 
-        //register the incoming request receiver
-        IntentFilter filter = new IntentFilter(AMBIENT_SERVICE_BROADCASTER);
-        registerReceiver(IncomingRequestReceiver,filter);
+        mRequestSequences.put(sender, sequence);
 
-        sendUpdateBroadcast(PlaybackState.SERVICE_STARTED);
+        return false;
     }
 
     /**
-     * resets and create a new media player object
+     * Method used to reject a request that was not applied. The rejection carries the sender and
+     * sequence number of the request, so Ambience only fails the command of that request.
+     * @param sender Id of the request sender or null if the request has no sequence number
+     * @param sequence Sequence number of the request
      */
-    private void createMediaPlayer()
+    private void sendRejection(Long sender, long sequence)
     {
-        if(mPlayer != null)
+        if(sender == null)
         {
-            try
-            {
-                mPlayer.release();
-            }catch (Exception e)
-            {
-                e.printStackTrace();
-                Log.e(TAG, e.getMessage());
-            }
-
-            mPlayer = null;
+            return; // no command waits for a request without a sequence number
         }
 
-        mPlayer = new MediaPlayer();
-
-        //Set listeners on media player
-        mPlayer.setOnCompletionListener(this);
-        mPlayer.setOnPreparedListener(this);
-        mPlayer.setOnErrorListener(this);
+        sendUpdateBroadcast(new AmbientCodec.Writer()
+                .playbackState(PlaybackState.COMMAND_REJECTED)
+                .sequence(sender, sequence));
+    }
 
-        ///set wake-lock mode for media player
-        mPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+    /**
+     * Helper method used to get the sender of a request
+     * @param request The decoded request
+     * @return Id of the sender or null if the request has no sequence number
+     */
+    private static Long getSender(AmbientCodec.Message request)
+    {
+        return request.has(AmbientCodec.OP_SEQUENCE) ? request.sender : null;
     }
 
     /**
-     * Method used to added the passed AmbientPlaylist to the queue
+     * Method used to validate every part of a request before any of it is applied. A request that
+     * fails validation is rejected as a whole, so a batched request is applied completely or not at all.
+     * @param request The decoded request
+     * @param extras The request extras holding the tracks, playlist and launcher
      */
-    private void createPlaylist()
+    private void validateRequest(AmbientCodec.Message request, Bundle extras)
     {
-        if( mBundle == null || !mBundle.containsKey(PLAYLIST)
-                ||  mBundle.getParcelableArrayList(PLAYLIST) == null)
+        if(request.has(AmbientCodec.OP_PLAYLIST)
+                && (extras == null || extras.getParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST) == null))
         {
             throw new IllegalStateException(TAG + ": needs at least one AmbientTrack item to play");
         }
 
-        if(mOriginalPlaylist != null)
+        if(request.has(AmbientCodec.OP_PLAYLIST_FILE) && (extras == null
+                || !AmbientPlaylistImporter.isImportable(extras.get(AmbientCodec.EXTRA_PLAYLIST_FILE))
+                || request.has(AmbientCodec.OP_PLAYLIST) || request.has(AmbientCodec.OP_PLAYLIST_SOURCE)))
         {
-            mOriginalPlaylist.clear();
+            throw new IllegalStateException(TAG + ": a playlist file needs a uri or a file descriptor and replaces the playlist");
         }
-        else
+
+        if(request.has(AmbientCodec.OP_PLAYLIST_SOURCE) && (request.sourceCount <= 0 || extras == null
+                || !AmbientPlaylistSource.isResolvable(extras.getString(AmbientCodec.EXTRA_PLAYLIST_SOURCE))))
         {
-            mOriginalPlaylist = new ArrayList<AmbientTrack>();
+            throw new IllegalStateException(TAG + ": a playlist source needs a registered name or a content uri and a positive count");
         }
 
-
-        if(mPlaylist == null)
+        if(request.has(AmbientCodec.OP_REMOVE_TRACKS) && (request.has(AmbientCodec.OP_PLAYLIST_SOURCE)
+                || mPager != null && !request.has(AmbientCodec.OP_PLAYLIST) && !request.has(AmbientCodec.OP_PLAYLIST_FILE)))
+        {
+            throw new IllegalStateException(TAG + ": tracks cannot be removed from a playlist source");
+        }
+
+        if(request.has(AmbientCodec.OP_INFINITE_QUEUE) && (request.refillWatermark < 0 || request.historyLimit < 0
+                || request.refillWatermark > 0 && (extras == null
+                || !AmbientPlaylistSource.isResolvable(extras.getString(AmbientCodec.EXTRA_QUEUE_SUPPLIER)))))
+        {
+            throw new IllegalStateException(TAG + ": an infinite queue needs a registered supplier and values that are not negative");
+        }
+
+        boolean isInfiniteQueue = request.has(AmbientCodec.OP_INFINITE_QUEUE) ? request.refillWatermark > 0 : mQueueSupplier != null;
+        boolean isSourcePlaylist = request.has(AmbientCodec.OP_PLAYLIST_SOURCE)
+                || mPager != null && !request.has(AmbientCodec.OP_PLAYLIST) && !request.has(AmbientCodec.OP_PLAYLIST_FILE);
+
+        if(isInfiniteQueue && isSourcePlaylist)
+        {
+            throw new IllegalStateException(TAG + ": an infinite queue cannot extend a playlist source");
+        }
+
+        if(request.has(AmbientCodec.OP_PLAYBACK_STATE))
+        {
+            PlaybackState state = request.playbackState;
+
+            if(state != PlaybackState.PLAY && state != PlaybackState.STOP
+                    && state != PlaybackState.PAUSE && state != PlaybackState.RESUME
+                    && state != PlaybackState.SKIP && state != PlaybackState.PREVIOUS)
+            {
+                throw new IllegalStateException(TAG + ": Unknown Playback State");
+            }
+        }
+
+        if(request.has(AmbientCodec.OP_RETRY_POLICY)
+                && (request.maxRetries < 0 || request.retryDelay < 0 || request.prepareTimeout < 0))
+        {
+            throw new IllegalStateException(TAG + ": the retry policy values cannot be negative");
+        }
+
+        if(request.has(AmbientCodec.OP_SEEK) && (request.seekPosition < 0 || mPlayer == null
+                || !isPlayerPrepared || request.seekPosition > mPlayer.getDuration()))
+        {
+            throw new IllegalStateException(TAG + ": the seek position is outside the current track");
+        }
+
+        if(request.has(AmbientCodec.OP_SEEK_QUEUE_TIME) && (request.seekQueueTime < 0
+                || request.seekQueueTime >= getQueueTimeAfter(request, extras)))
+        {
+            throw new IllegalStateException(TAG + ": the queue time is outside the queue");
+        }
+
+        if(request.has(AmbientCodec.OP_METADATA_PROBING) && (request.probeFlags
+                & ~(AmbientMetadataProber.PROBE_DURATION | AmbientMetadataProber.PROBE_TAGS)) != 0)
+        {
+            throw new IllegalStateException(TAG + ": unknown metadata probe flags");
+        }
+
+        if(request.has(AmbientCodec.OP_CROSSFADE) && request.crossfade < 0)
+        {
+            throw new IllegalStateException(TAG + ": the crossfade duration cannot be negative");
+        }
+
+        if(hasLayerRequest(request) && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN)
+        {
+            throw new IllegalStateException(TAG + ": layered playback requires API 16");
+        }
+
+        if(request.has(AmbientCodec.OP_ADD_LAYER)
+                && (extras == null || extras.getParcelable(AmbientCodec.EXTRA_LAYER_TRACK) == null))
+        {
+            throw new IllegalStateException(TAG + ": a layer needs an AmbientTrack");
+        }
+
+        if(request.has(AmbientCodec.OP_ADD_LAYER) && mMixer != null && !mMixer.canAddLayer(request.layerId))
+        {
+            throw new IllegalStateException(TAG + ": the mixer already plays " + AmbientMixer.MAX_LAYERS + " layers");
+        }
+    }
+
+    /**
+     * Helper method used to compute the total time of the queue a request leaves behind, so a
+     * queue time seek is checked before any part of the request is applied. It replays the new
+     * playlist, the play position, the removed and added tracks and the history an infinite queue
+     * trims. Shuffling changes the order of the queue but not its total time.
+     * @param request The decoded request
+     * @param extras The request extras holding the tracks and playlist
+     * @return Total time in milliseconds or -1 if the resulting playlist has no queue time
+     */
+    private long getQueueTimeAfter(AmbientCodec.Message request, Bundle extras)
+    {
+        if(request.has(AmbientCodec.OP_PLAYLIST_SOURCE) || request.has(AmbientCodec.OP_PLAYLIST_FILE)
+                || !request.has(AmbientCodec.OP_PLAYLIST) && (mPlaylist == null || mPager != null))
+        {
+            return -1; // a source has no queue time and an imported playlist starts empty
+        }
+
+        ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>();
+        ArrayList<Long> durations = new ArrayList<Long>();
+        int position = playPosition;
+
+        if(request.has(AmbientCodec.OP_PLAYLIST))
+        {
+            ArrayList<Parcelable> playlist = extras.getParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST);
+
+            for(int x = 0; x < playlist.size(); x++)
+            {
+                AmbientTrack track = (AmbientTrack) playlist.get(x);
+                tracks.add(track);
+                durations.add(track == null ? 0 : Math.max(0L, track.getDuration()));
+            }
+
+            position = 0;
+        }
+        else
+        {
+            for(int x = 0; x < mPlaylist.size(); x++)
+            {
+                tracks.add(mPlaylist.get(x));
+                durations.add(mTimeline.getDuration(x)); // holds the probed durations
+            }
+        }
+
+        if(request.has(AmbientCodec.OP_PLAY_POSITION))
+        {
+            position = request.playPosition < 0 || request.playPosition >= tracks.size() ? 0 : request.playPosition;
+        }
+
+        if(request.has(AmbientCodec.OP_REMOVE_TRACKS))
+        {
+            ArrayList<AmbientTrack> removed = getRequestTracks(extras, AmbientCodec.EXTRA_REMOVE_TRACKS);
+
+            for(int x = 0; x < removed.size(); x++)
+            {
+                int index = tracks.indexOf(removed.get(x));
+
+                if(index != -1)
+                {
+                    tracks.remove(index);
+                    durations.remove(index);
+                }
+            }
+        }
+
+        if(request.has(AmbientCodec.OP_ADD_TRACKS))
+        {
+            ArrayList<AmbientTrack> added = getRequestTracks(extras, AmbientCodec.EXTRA_ADD_TRACKS);
+
+            for(int x = 0; x < added.size(); x++)
+            {
+                durations.add(Math.max(0L, added.get(x).getDuration()));
+            }
+        }
+
+        if(request.has(AmbientCodec.OP_INFINITE_QUEUE) && request.refillWatermark > 0
+                && position >= request.historyLimit + TRIM_BATCH)
+        {
+            durations.subList(0, position - request.historyLimit).clear(); // the played tracks are trimmed
+        }
+
+        long total = 0;
+
+        for(int x = 0; x < durations.size(); x++)
+        {
+            total += durations.get(x);
+        }
+
+        return total;
+    }
+
+    /**
+     * Helper method used to check if a request contains a layer operation
+     * @param request The decoded request
+     * @return true if the request adds, changes or removes a layer
+     */
+    private boolean hasLayerRequest(AmbientCodec.Message request)
+    {
+        return request.has(AmbientCodec.OP_ADD_LAYER) || request.has(AmbientCodec.OP_LAYER_GAIN)
+                || request.has(AmbientCodec.OP_LAYER_LOOP) || request.has(AmbientCodec.OP_REMOVE_LAYER);
+    }
+
+    /**
+     * Method used to apply the layer operation of a request to the AmbientMixer. The mixer is
+     * created with the first layer.
+     * @param request The decoded request
+     * @param extras The request extras holding the layer track
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void applyLayerRequest(AmbientCodec.Message request, Bundle extras)
+    {
+        if(mMixer == null)
+        {
+            mMixer = new AmbientMixer(this);
+            mMixer.setLayerStatsListener(this);
+        }
+
+        if(request.has(AmbientCodec.OP_ADD_LAYER))
+        {
+            AmbientTrack track = extras.getParcelable(AmbientCodec.EXTRA_LAYER_TRACK);
+            isMixerFocusLost = false; // a new layer asks for the focus again
+
+            if(!mMixer.addLayer(request.layerId, track, request.layerGain, request.layerLoop))
+            {
+                return; // validated, only a released mixer refuses a layer
+            }
+        }
+
+        if(request.has(AmbientCodec.OP_LAYER_GAIN))
+        {
+            mMixer.setLayerGain(request.layerId, request.layerGain);
+        }
+
+        if(request.has(AmbientCodec.OP_LAYER_LOOP))
+        {
+            mMixer.setLayerLooping(request.layerId, request.layerLoop);
+        }
+
+        if(request.has(AmbientCodec.OP_REMOVE_LAYER))
+        {
+            if(request.layerId == AmbientCodec.ALL_LAYERS)
+            {
+                mMixer.removeAllLayers();
+            }
+            else
+            {
+                mMixer.removeLayer(request.layerId);
+            }
+        }
+
+        updateMixerFocus();
+    }
+
+    /**
+     * Helper method used to request or abandon the audio focus of the layers. The layers request
+     * the focus with their own listener while they play and the playlist does not hold the focus.
+     */
+    private void updateMixerFocus()
+    {
+        boolean hasLayers = mMixer != null && mMixer.getLayerCount() > 0;
+
+        if(hasLayers && !isPlaylistFocused && !isMixerFocused && !isMixerFocusLost)
+        {
+            isMixerFocused = mAudioManager.requestAudioFocus(mMixerFocusListener, AudioManager.STREAM_MUSIC,
+                    AudioManager.AUDIOFOCUS_GAIN) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED;
+
+            if(isMixerFocused)
+            {
+                mMixer.resume();
+            }
+        }
+        else if(isMixerFocused && (!hasLayers || isPlaylistFocused))
+        {
+            mAudioManager.abandonAudioFocus(mMixerFocusListener);
+            isMixerFocused = false;
+        }
+    }
+
+    /**
+     * Method used to apply a validated request. The parts of a request are always applied
+     * in the same order: launcher, volume, crossfade, retry policy, metadata probing, playlist, playlist source, playlist file, play position, removed tracks, added tracks,
+     * repeat mode, shuffle mode, infinite queue, seek position, layer operation and finally the playback state.
+     * @param request The decoded request
+     * @param extras The request extras holding the tracks, playlist and launcher
+     */
+    private void applyRequest(AmbientCodec.Message request, Bundle extras)
+    {
+        if(request.has(AmbientCodec.OP_ACTIVITY_LAUNCHER))
+        {
+            mActivityLauncher = extras.getString(AmbientCodec.EXTRA_ACTIVITY_LAUNCHER);
+        }
+
+        if(request.has(AmbientCodec.OP_VOLUME))
+        {
+            setVolumeTo(request.volume);
+        }
+
+        if(request.has(AmbientCodec.OP_CROSSFADE))
+        {
+            setCrossfade(request.crossfade);
+        }
+
+        if(request.has(AmbientCodec.OP_RETRY_POLICY))
+        {
+            mMaxRetries = request.maxRetries;
+            mRetryDelay = request.retryDelay;
+            mPrepareTimeout = request.prepareTimeout;
+        }
+
+        if(request.has(AmbientCodec.OP_METADATA_PROBING))
+        {
+            mProber.setFlags(request.probeFlags);
+        }
+
+        if(request.has(AmbientCodec.OP_PLAYLIST))
+        {
+            createPlaylist(extras);
+        }
+
+        if(request.has(AmbientCodec.OP_PLAYLIST_SOURCE))
+        {
+            createPlaylist(extras.getString(AmbientCodec.EXTRA_PLAYLIST_SOURCE), request.sourceCount);
+        }
+
+        if(request.has(AmbientCodec.OP_PLAYLIST_FILE))
+        {
+            importPlaylist(extras.get(AmbientCodec.EXTRA_PLAYLIST_FILE));
+        }
+
+        if(request.has(AmbientCodec.OP_PLAY_POSITION))
+        {
+            setPlayPosition(request.playPosition);
+        }
+
+        if(request.has(AmbientCodec.OP_REMOVE_TRACKS))
+        {
+            removeTrackFromPlaylist(extras);
+        }
+
+        if(request.has(AmbientCodec.OP_ADD_TRACKS))
+        {
+            addTrackToPlaylist(extras, !request.has(AmbientCodec.OP_SHUFFLE_MODE));
+        }
+
+        if(request.has(AmbientCodec.OP_REPEAT_MODE))
+        {
+            setRepeatMode(request.repeatMode);
+        }
+
+        if(request.has(AmbientCodec.OP_SHUFFLE_MODE))
+        {
+            setShuffleMode(request.shuffleMode);
+        }
+
+        if(request.has(AmbientCodec.OP_INFINITE_QUEUE))
+        {
+            setInfiniteQueue(extras == null ? null : extras.getString(AmbientCodec.EXTRA_QUEUE_SUPPLIER),
+                    request.refillWatermark, request.historyLimit);
+        }
+
+        if(request.has(AmbientCodec.OP_SEEK))
+        {
+            seekTo(request.seekPosition);
+        }
+
+        if(request.has(AmbientCodec.OP_SEEK_QUEUE_TIME))
+        {
+            seekToQueueTime(request.seekQueueTime);
+        }
+
+        if(hasLayerRequest(request))
+        {
+            applyLayerRequest(request, extras);
+        }
+
+        if(request.has(AmbientCodec.OP_PLAYBACK_STATE))
+        {
+
+            try {
+                PlaybackState state = request.playbackState;
+
+                isPlayPending = false;
+
+                //PLAYBACK CONTROLS
+                switch (state) {
+                    case PLAY: mSkippedTracks = 0; // a new attempt at the playlist
+                        isPlayPending = mImporter != null && mPlaylist.isEmpty(); // the first imported track starts playback
+                        mPendingPlaySender = mAppliedSender;
+                        mPendingPlaySequence = mAppliedSequence;
+
+                        if(!isPlayPending)
+                        {
+                            init();
+                        }
+                        break;
+                    case STOP: stop();
+                        break;
+                    case PAUSE: pause();
+                        break;
+                    case RESUME: play();
+                        break;
+                    case SKIP: playNext();
+                        break;
+                    case PREVIOUS: playPrevious();
+                        break;
+                    default:
+                        throw new IllegalStateException(TAG + ": Unknown Playback State");
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage()); // a validated request is not rejected
+            }
+        }
+    }
+
+    /**
+     * Called by the system when the service is first created.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        AmbientTrace.begin(AmbientTrace.SERVICE_CREATE);
+
+        //the media player and audio manager are created by the first command
+        mHandler = new Handler();
+        mBinder = new AmbientServiceBinder(mHandler, this);
+        mNotificationManager = NotificationManagerCompat.from(AmbientService.this);
+
+        //register the incoming request receiver
+        IntentFilter filter = new IntentFilter(AMBIENT_SERVICE_BROADCASTER);
+        registerReceiver(IncomingRequestReceiver,filter);
+
+        sendUpdateBroadcast(PlaybackState.SERVICE_STARTED);
+
+        AmbientTrace.end();
+    }
+
+    /**
+     * Helper method used to create the playback resources on the first command. Starting the
+     * service only registers the request receiver, so turnOn stays cheap for apps that never play.
+     */
+    private void createPlaybackResources()
+    {
+        if(mPlayer != null)
+        {
+            return;
+        }
+
+        AmbientTrace.begin(AmbientTrace.SERVICE_RESOURCES);
+
+        createMediaPlayer();
+
+        //get handle on audio manager
+        mAudioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+
+        mProber = new AmbientMetadataProber(this);
+        mProber.setProbeListener(this);
+
+        AmbientTrace.end();
+    }
+
+    /**
+     * resets and create a new media player object
+     */
+    private void createMediaPlayer()
+    {
+        if(mPlayer != null)
+        {
+            try
+            {
+                mPlayer.release();
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage());
+            }
+
+            mPlayer = null;
+        }
+
+        mPlayer = new MediaPlayer();
+
+        //Set listeners on media player
+        mPlayer.setOnCompletionListener(this);
+        mPlayer.setOnPreparedListener(this);
+        mPlayer.setOnErrorListener(this);
+        mPlayer.setOnSeekCompleteListener(this);
+        mPlayer.setOnBufferingUpdateListener(this);
+        mPlayer.setOnInfoListener(this);
+
+        ///set wake-lock mode for media player
+        mPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+    }
+
+    /**
+     * Method used to added the passed AmbientPlaylist to the queue
+     * @param extras The request extras containing the playlist
+     */
+    private void createPlaylist(Bundle extras)
+    {
+        if( extras == null ||  extras.getParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST) == null)
+        {
+            throw new IllegalStateException(TAG + ": needs at least one AmbientTrack item to play");
+        }
+
+        releasePager();
+        cancelImport();
+        dropRefill(); // a page asked for the replaced playlist
+
+        if(mOriginalPlaylist != null)
+        {
+            mOriginalPlaylist.clear();
+        }
+        else
+        {
+            mOriginalPlaylist = new ArrayList<AmbientTrack>();
+        }
+
+
+        if(mPlaylist != null)
+        {
+            mPlaylist.clear();
+        }
+        else
         {
             mPlaylist = new ArrayList<AmbientTrack>();
         }
 
-        ArrayList<Parcelable> newTracks =  mBundle.getParcelableArrayList(PLAYLIST);
+        ArrayList<Parcelable> newTracks =  extras.getParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST);
+
+        for(int j = 0; j < newTracks.size(); j++)
+        {
+            mPlaylist.add((AmbientTrack)newTracks.get(j));
+        }
+
+
+        //Copy position to maintain shuffle & un-shuffle state
+        for(int x = 0; x < mPlaylist.size(); x++)
+        {
+            mOriginalPlaylist.add(mPlaylist.get(x));
+        }
+
+        mTimeline.setTracks(mPlaylist);
+        probeMetadata();
+
+        playPosition = 0;
+
+    }
+
+    /**
+     * Method used to play a playlist source. Only the tracks around the play position are paged in.
+     * The queue time of a source is not tracked, as it needs the duration of every track.
+     * @param name The registered name or content uri of the source
+     * @param count Number of tracks of the source
+     */
+    private void createPlaylist(String name, int count)
+    {
+        releasePager();
+        cancelImport();
+
+        if(mOriginalPlaylist != null)
+        {
+            mOriginalPlaylist.clear();
+        }
+
+        mPager = new AmbientPlaylistPager(AmbientPlaylistSource.resolve(this, name), count, this);
+        mPlaylist = mPager;
+        mTimeline.setTracks(null);
+        playPosition = 0;
+        probeMetadata();
+    }
+
+    /**
+     * Method used to import a M3U, PLS or XSPF playlist file. The playlist is replaced by an empty
+     * one, and the tracks of the file are appended to it while the file is read on a background
+     * thread, so playback starts with the first entry.
+     * @param file The uri string or the ParcelFileDescriptor of the file
+     */
+    private void importPlaylist(Object file)
+    {
+        releasePager();
+        cancelImport();
+        dropRefill();
+
+        if(mOriginalPlaylist != null)
+        {
+            mOriginalPlaylist.clear();
+        }
+        else
+        {
+            mOriginalPlaylist = new ArrayList<AmbientTrack>();
+        }
+
+        if(mPlaylist != null)
+        {
+            mPlaylist.clear();
+        }
+        else
+        {
+            mPlaylist = new ArrayList<AmbientTrack>();
+        }
+        mTimeline.setTracks(mPlaylist);
+        playPosition = 0;
+
+        mImporter = new AmbientPlaylistImporter(this, file, this);
+        mImporter.start();
+    }
+
+    /**
+     * Helper method used to stop importing the playlist file, if one is read
+     */
+    private void cancelImport()
+    {
+        if(mImporter != null)
+        {
+            mImporter.cancel();
+            mImporter = null;
+        }
+
+        isPlayPending = false;
+    }
+
+    /**
+     * Called on the main thread with the next tracks of the playlist file. They are appended to
+     * the playlist in file order. A pending PLAY starts with the first of them.
+     * @param importer The AmbientPlaylistImporter
+     * @param tracks The tracks
+     */
+    @Override
+    public void onTracksImported(AmbientPlaylistImporter importer, ArrayList<AmbientTrack> tracks) {
+
+        if(importer != mImporter || tracks.isEmpty())
+        {
+            return;
+        }
+
+        appendTracks(tracks);
+
+        if(isPlayPending)
+        {
+            isPlayPending = false;
+            init();
+        }
+        else if(isWaitingForRefill)
+        {
+            isWaitingForRefill = false;
+            playNext();
+        }
+    }
+
+    /**
+     * Called on the main thread once the playlist file was read
+     * @param importer The AmbientPlaylistImporter
+     * @param count Number of tracks imported
+     * @param isFailed true if the file could not be read to its end
+     */
+    @Override
+    public void onImportFinished(AmbientPlaylistImporter importer, int count, boolean isFailed) {
+
+        if(importer != mImporter)
+        {
+            return;
+        }
+
+        mImporter = null;
+
+        if(isFailed || count == 0)
+        {
+            Log.e(TAG, ": The playlist file was not fully imported. Imported tracks: " + count);
+        }
+
+        if(isPlayPending)
+        {
+            isPlayPending = false;
+            sendRejection(mPendingPlaySender, mPendingPlaySequence); // the file had no playable entry
+        }
+        else if(isWaitingForRefill && (mQueueSupplier == null || isSupplierExhausted))
+        {
+            isWaitingForRefill = false;
+            sendUpdateBroadcast(PlaybackState.END_OF_PLAYLIST);
+        }
+
+        updateInfiniteQueue(); // the supplier extends the playlist once the file is imported
+    }
+
+    /**
+     * Helper method used to stop paging the playlist source, if one is played
+     */
+    private void releasePager()
+    {
+        isWaitingForPage = false;
+
+        if(mPager != null)
+        {
+            mPager.release();
+            mPager = null;
+            mPlaylist = new ArrayList<AmbientTrack>();
+        }
+    }
+
+    /**
+     * Helper method used to collect the tracks of a request extra
+     * @param extras The request extras
+     * @param key Key of an AmbientTrack list
+     * @return The requested tracks
+     */
+    private ArrayList<AmbientTrack> getRequestTracks(Bundle extras, String key)
+    {
+        ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>();
+        ArrayList<Parcelable> list = extras == null ? null : extras.<Parcelable>getParcelableArrayList(key);
+
+        if(list != null)
+        {
+            for(int x = 0; x < list.size(); x++)
+            {
+                if(list.get(x) != null)
+                {
+                    tracks.add((AmbientTrack) list.get(x));
+                }
+            }
+        }
+
+        return tracks;
+    }
+
+    /**
+     * Called to remove tracks from the current playlist
+     * @param extras The request extras containing the tracks to remove
+     */
+    private void removeTrackFromPlaylist(Bundle extras)
+    {
+        if(mOriginalPlaylist != null && mPlaylist != null)
+        {
+            ArrayList<AmbientTrack> tracks = getRequestTracks(extras, AmbientCodec.EXTRA_REMOVE_TRACKS);
+
+            for(int x = 0; x < tracks.size(); x++)
+            {
+                mOriginalPlaylist.remove(tracks.get(x));
+
+                int position = mPlaylist.indexOf(tracks.get(x));
+
+                if(position != -1)
+                {
+                    mPlaylist.remove(position);
+                    mTimeline.remove(position);
+                }
+            }
+
+            probeMetadata(); // the queued probes moved
+        }
+    }
+
+    /**
+     * Called to append tracks to the current playlist
+     * @param extras The request extras containing the tracks to add
+     * @param reshuffle true if the playlist must be reshuffled when shuffle is on
+     */
+    private void addTrackToPlaylist(Bundle extras, boolean reshuffle)
+    {
+        if(mOriginalPlaylist != null && mPlaylist != null)
+        {
+            ArrayList<AmbientTrack> tracks = getRequestTracks(extras, AmbientCodec.EXTRA_ADD_TRACKS);
+
+            if(tracks.isEmpty())
+            {
+                return;
+            }
+
+            appendTracks(tracks);
+
+            if(mShuffleState == ShuffleMode.ON && reshuffle)
+            {
+                toggleShuffle(); //If shuffle is on reshuffle track
+            }
+        }
+    }
+
+    /**
+     * Helper method used to append tracks to the playlist and its timeline
+     * @param tracks The tracks to append
+     */
+    private void appendTracks(ArrayList<AmbientTrack> tracks)
+    {
+        mPlaylist.addAll(tracks);
+
+        if(mPager == null)
+        {
+            mOriginalPlaylist.addAll(tracks);
+
+            for(int x = 0; x < tracks.size(); x++)
+            {
+                mTimeline.append(tracks.get(x));
+            }
+        }
+
+        probeMetadata();
+    }
+
+    /**
+     * Method used to turn the infinite queue on or off. When fewer than lowWatermark tracks are
+     * left after the play position, the next page of the supplier is asked for on a background
+     * thread and appended. Played tracks beyond the history limit are trimmed.
+     * @param supplier Registered name or content uri of the supplier
+     * @param lowWatermark Number of upcoming tracks below which a page is asked for. 0 turns the infinite queue off.
+     * @param historyLimit Number of played tracks kept before the play position
+     */
+    private void setInfiniteQueue(String supplier, int lowWatermark, int historyLimit)
+    {
+        closeQueueSupplier();
+
+        mQueueSupplier = lowWatermark == 0 ? null : AmbientPlaylistSource.resolve(this, supplier);
+        mRefillWatermark = lowWatermark;
+        mHistoryLimit = historyLimit;
+        mSuppliedCount = 0;
+        isSupplierExhausted = false;
+
+        updateInfiniteQueue();
+    }
+
+    /**
+     * Helper method used to trim the played tracks of the infinite queue beyond the history
+     * limit, and to ask the supplier for the next page when few tracks are left
+     */
+    private void updateInfiniteQueue()
+    {
+        if(mQueueSupplier == null || mPlaylist == null)
+        {
+            return;
+        }
+
+        if(playPosition >= mHistoryLimit + TRIM_BATCH)
+        {
+            trimHistory(playPosition - mHistoryLimit); // in batches, each trim copies the playlist
+        }
+
+        if(mImporter == null && !isRefilling && !isSupplierExhausted && mPlaylist.size() - 1 - playPosition < mRefillWatermark)
+        {
+            refillQueue();
+        }
+    }
+
+    /**
+     * Helper method used to remove the first played tracks of the infinite queue
+     * @param count Number of tracks to remove
+     */
+    private void trimHistory(int count)
+    {
+        List<AmbientTrack> played = mPlaylist.subList(0, count);
+        IdentityHashMap<AmbientTrack, Boolean> trimmed = new IdentityHashMap<AmbientTrack, Boolean>();
+
+        for(int x = 0; x < played.size(); x++)
+        {
+            trimmed.put(played.get(x), Boolean.TRUE);
+            mTimeline.remove(0);
+        }
+
+        played.clear();
+
+        //the original order holds the same tracks, shuffled or not
+        ArrayList<AmbientTrack> original = new ArrayList<AmbientTrack>(mPlaylist.size());
+
+        for(int x = 0; x < mOriginalPlaylist.size(); x++)
+        {
+            if(!trimmed.containsKey(mOriginalPlaylist.get(x)))
+            {
+                original.add(mOriginalPlaylist.get(x));
+            }
+        }
+
+        mOriginalPlaylist = original;
+        playPosition -= count;
+        probeMetadata(); // the queued probes moved
+    }
+
+    /**
+     * Helper method used to ask the supplier for the next page of the infinite queue on a background thread
+     */
+    private void refillQueue()
+    {
+        final AmbientPlaylistSource supplier = mQueueSupplier;
+        final Handler handler = mHandler;
+        final int generation = mRefillGeneration;
+        final int start = mSuppliedCount;
+        final int count = Math.max(REFILL_PAGE_SIZE, mRefillWatermark);
+
+        if(handler == null)
+        {
+            return;
+        }
+
+        isRefilling = true;
+
+        Thread refill = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<AmbientTrack> tracks = null;
+
+                try
+                {
+                    synchronized (supplier)
+                    {
+                        tracks = supplier.getTracks(start, count);
+                    }
+                }catch (Exception e)
+                {
+                    e.printStackTrace();
+                    Log.e(TAG, e.getMessage() + "");
+                }
+
+                final List<AmbientTrack> page = tracks;
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onQueueRefilled(page, generation);
+                    }
+                });
+            }
+        }, "AmbientQueueRefill");
+
+        refill.setPriority(Thread.MIN_PRIORITY);
+        refill.start();
+    }
+
+    /**
+     * Called on the main thread with the next page of the infinite queue. Playback that
+     * reached the end of the queue continues with the page. If the supplier failed or ran out,
+     * it ends with END_OF_PLAYLIST.
+     * @param page The tracks, an empty list if the supplier ran out, or null if it failed
+     * @param generation The refill generation the page was asked for in
+     */
+    private void onQueueRefilled(List<AmbientTrack> page, int generation)
+    {
+        if(generation != mRefillGeneration || mPlaylist == null)
+        {
+            return; // the supplier or the playlist was replaced
+        }
+
+        isRefilling = false;
+
+        if(page == null || page.isEmpty())
+        {
+            isSupplierExhausted = page != null;
+
+            if(isWaitingForRefill)
+            {
+                isWaitingForRefill = false;
+                sendUpdateBroadcast(PlaybackState.END_OF_PLAYLIST);
+            }
+
+            return;
+        }
+
+        ArrayList<AmbientTrack> tracks = new ArrayList<AmbientTrack>(page.size());
+
+        for(int x = 0; x < page.size(); x++)
+        {
+            if(page.get(x) != null)
+            {
+                tracks.add(page.get(x));
+            }
+        }
+
+        mSuppliedCount += page.size();
+        appendTracks(tracks);
+
+        if(isWaitingForRefill)
+        {
+            isWaitingForRefill = false;
+            playNext();
+        }
+        else
+        {
+            updateInfiniteQueue(); // a short page may leave the queue below the watermark
+        }
+    }
+
+    /**
+     * Helper method that checks if tracks are still appended to the end of the playlist, by the
+     * import of a playlist file or by an infinite queue whose supplier has not run out
+     * @return true if playback at the end of the playlist waits for the next tracks
+     */
+    private boolean isPlaylistExtending()
+    {
+        return mImporter != null || mQueueSupplier != null && !isSupplierExhausted;
+    }
+
+    /**
+     * Helper method used to drop the page the supplier is asked for
+     */
+    private void dropRefill()
+    {
+        mRefillGeneration++;
+        isRefilling = false;
+        isWaitingForRefill = false;
+    }
+
+    /**
+     * Helper method used to drop the supplier of the infinite queue. It is closed on a background
+     * thread once a page it is asked for is handed out.
+     */
+    private void closeQueueSupplier()
+    {
+        dropRefill();
+
+        final AmbientPlaylistSource supplier = mQueueSupplier;
+        mQueueSupplier = null;
+
+        if(supplier == null)
+        {
+            return;
+        }
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (supplier)
+                {
+                    supplier.close();
+                }
+            }
+        }, "AmbientQueueRefill").start();
+    }
+
+    /**
+     * Sets the repeat mode for the Ambient Playlist
+     * @param mode The repeat mode
+     */
+    private void setRepeatMode(RepeatMode mode)
+    {
+        if(mode == null)
+        {
+            Log.e(TAG,": No valid repeat mode");
+            return;
+        }
+
+        mRepeatMode = mode;
+        updateLooping();
+    }
+
+    /**
+     * Sets the shuffle mode for the Ambient Playlist
+     * @param mode The shuffle mode
+     */
+    private void setShuffleMode(ShuffleMode mode)
+    {
+        if(mode == null)
+        {
+            Log.e(TAG,"No valid shuffle mode");
+            return;
+        }
+
+        mShuffleState = mode;
+
+        toggleShuffle();
+    }
+
+    /**
+     * Helper method used to toggle the shuffle state of the Ambient Playlist
+     */
+    private void toggleShuffle()
+    {
+        if(mPager != null)
+        {
+            mPager.setShuffled(mShuffleState == ShuffleMode.ON); // a permutation, the source is not read
+            setCurrentAmbientTrackPosition();
+            probeMetadata();
+            return;
+        }
+
+        if(mPlaylist != null && mOriginalPlaylist != null)
+        {
+            if(mShuffleState == ShuffleMode.ON)
+            {
+                Collections.shuffle(mPlaylist);
+                setCurrentAmbientTrackPosition();
+
+            }else
+            {
+                mPlaylist.clear();
+
+                for(int x = 0; x < mOriginalPlaylist.size(); x++)
+                {
+                    mPlaylist.add(mOriginalPlaylist.get(x));
+                }
+
+                setCurrentAmbientTrackPosition();
+            }
+
+            mTimeline.setTracks(mPlaylist); // a new play order
+            probeMetadata();
+        }
+    }
+
+    /**
+     * Helper method used to get the position of the current playing AmbientTrack
+     * before and after shuffle
+     */
+    private void  setCurrentAmbientTrackPosition()
+    {
+        int position = mPlaylist == null ? -1 : mPlaylist.indexOf(mAmbientTrack);
+
+        if(position != -1)
+        {
+            playPosition = position;
+        }
+    }
+
+    /**
+     * Sets the play position of an Ambient track from the Ambient Playlist
+     * @param position The play position
+     */
+    private void setPlayPosition(int position)
+    {
+        playPosition = position;
+
+        if(playPosition < 0 || playPosition >= mPlaylist.size())
+        {
+            playPosition = 0;
+        }
+    }
+
+    /**
+     * Alerts the AmbientService about audio focus gain,
+     * loss, etc.
+     * @param focusChange value of focus changed
+     */
+    @Override
+    public void onAudioFocusChange(int focusChange) {
+        if(mMixer != null)
+        {
+            mMixerFocusListener.onAudioFocusChange(focusChange); // the layers follow the focus of the playlist
+        }
+
+        if(mPlayer == null)
+        {
+            return;
+        }
+
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+
+                if (!mPlayer.isPlaying())
+                {
+                    play();
+                }
+
+                mPlayer.setVolume(mVolume,mVolume);
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS:
+                // Lost focus for an unbounded amount of time: stop playback and release media player
+                if (mPlayer.isPlaying())
+                {
+                    pause();
+                }
+
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                // Lost focus for a short time, but we have to stop
+                // playback. We don't release the media player because playback
+                // is likely to resume
+                if (mPlayer.isPlaying())
+                {
+                    pause();
+                }
+
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                // Lost focus for a short time, but it's ok to keep playing
+                // at an attenuated level
+                if (mPlayer.isPlaying())
+                {
+                    mPlayer.setVolume(0.1f, 0.1f);
+                }
+
+                break;
+        }
+    }
+
+    /**
+     * Helper method used to pause, resume or duck the layers of the AmbientMixer
+     * @param focusChange value of focus changed
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void onMixerAudioFocusChange(int focusChange)
+    {
+        switch (focusChange) {
+            case AudioManager.AUDIOFOCUS_GAIN:
+                isMixerFocusLost = false;
+                mMixer.setMasterGain(1.0f);
+                mMixer.resume();
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS:
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
+                isMixerFocusLost = true;
+                mMixer.pause();
+                break;
+
+            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
+                mMixer.setMasterGain(0.1f);
+                break;
+        }
+    }
+
+    /**
+     * Initialize and prepare the media player with the ambient track
+     */
+    private void init()
+    {
+        sendUpdateBroadcast(PlaybackState.PREPPING_TRACK); // send prepping update to callback
+
+        cancelLoopRange();
+        cancelCrossfade(); // a manual skip drops the crossfade
+        cancelRecovery();
+        endStall();
+        isPlayerPrepared = false;
+
+        if(mPlayer == null)
+        {
+            createMediaPlayer();
+        }
+
+        try {
+
+            if(mPager != null && mPlaylist.get(playPosition) == null && mPager.isPaging(playPosition))
+            {
+                if(mPlayer.isPlaying())
+                {
+                    mPlayer.stop();
+                }
+
+                isWaitingForPage = true; // onTracksPaged prepares the track
+                return;
+            }
+
+            if(mPlaylist == null || mPlaylist.get(playPosition) == null )
+            {
+                Log.e(TAG, ": The AmbientTrack item was null. Check the quality of your playlist before" +
+                        " passing it to the AmbientService.");
+                sendUpdateBroadcast(PlaybackState.COMMAND_REJECTED);
+                return;
+            }
+
+            mAmbientTrack = mPlaylist.get(playPosition);
+            probeMetadata(); // the upcoming tracks moved
+            updateInfiniteQueue();
+
+            if(mPendingSeekPosition == playPosition && mPendingSeekTrack == null)
+            {
+                mPendingSeekTrack = mAmbientTrack; // the seek waited for its track to be paged in
+            }
+
+            mPendingSeekPosition = -1;
+
+            if(mAmbientTrack != mRetryTrack)
+            {
+                mRetryTrack = mAmbientTrack;
+                mRetries = 0;
+            }
+
+            Uri uri = AmbientDownloader.resolveAudioUri(this, mAmbientTrack); // prefer the offline copy
+            isRemoteTrack = AmbientWifiLock.isRemote(uri);
+            isTrackBuffered = false;
+            mBufferedPercent = 0;
+            mLastSentBufferedPercent = -1;
+            mCurrentHost = isRemoteTrack ? uri.getHost() : null;
+
+            if(mCircuitBreaker.isOpen(mCurrentHost))
+            {
+                Log.w(TAG, mCurrentHost + " is failing. Skipping " + mAmbientTrack.getName());
+                mHandler.post(mSkipFailedTrack);
+                return;
+            }
+
+            if(mPlayer.isPlaying())
+            {
+                mPlayer.stop();
+            }
+            mPlayer.reset();
+
+            mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            mPlayer.setDataSource(this, uri); // set audio source
+            AmbientBandwidthMeter.getInstance().onStreamStarted(mAmbientTrack);
+
+            mPlayer.prepareAsync();
+            updateWifiLock(true); // preparing fetches the start of the stream
+
+            if(mPrepareTimeout > 0)
+            {
+                mHandler.postDelayed(mPrepareTimeoutCheck, mPrepareTimeout);
+            }
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+
+            onPlaybackFailure();
+        }
+    }
+
+    /**
+     * Plays the AmbientTrack
+     */
+    private void play()
+    {
+        try
+        {
+            isPlaylistFocused = true;
+            updateMixerFocus(); // the focus moves from the layers to the playlist
+
+            int result = mAudioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC,AudioManager.AUDIOFOCUS_GAIN);
+
+            if (result != AudioManager.AUDIOFOCUS_GAIN)
+            {
+                Log.i(TAG, ": could not get audio focus from manager");
+
+                isPlaylistFocused = false;
+                updateMixerFocus();
+            }
+
+            updateWifiLock(true);
+
+            if(mPlayer != null)
+            {
+                mPlayer.start();
+                scheduleLoopRange();
+                scheduleCrossfade();
+            }
+
+            if(mHandler != null)
+            {
+                mHandler.postDelayed(mUpdateProgress, AUDIO_PROGRESS_UPDATE_TIME);
+            }
+
+            sendUpdateBroadcast(PlaybackState.PLAY); // sends a now playing update to the callback
+            createNotification();
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG,e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the current playing AmbientTrack
+     */
+    private void stop()
+    {
+        isWaitingForPage = false;
+        cancelLoopRange();
+        cancelCrossfade();
+        cancelRecovery();
+        endStall();
+
+        try
+        {
+            mAudioManager.abandonAudioFocus(this);
+            isPlaylistFocused = false;
+            updateMixerFocus(); // the layers keep playing with their own focus
+            updateWifiLock(false);
+
+            if(mPlayer != null && mPlayer.isPlaying())
+            {
+                mPlayer.stop();
+                isPlayerPrepared = false;
+            }
+            sendUpdateBroadcast(PlaybackState.STOP); // sends a track has stopped update to the callback
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Pause the current playing AmbientTrack
+     */
+    private void pause()
+    {
+        isWaitingForPage = false;
+        cancelLoopRange();
+        cancelCrossfade();
+        cancelRecovery();
+        endStall();
+
+        try
+        {
+            mAudioManager.abandonAudioFocus(this);
+            isPlaylistFocused = false;
+            updateMixerFocus(); // the layers keep playing with their own focus
+            updateWifiLock(false);
+
+            if(mPlayer != null && mPlayer.isPlaying())
+            {
+                mPlayer.pause();
+            }
+
+            sendUpdateBroadcast(PlaybackState.PAUSE); // sends a track has paused update to the callback
+            createNotification();
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Method used to play the previous AmbientTrack in the playlist
+     */
+    private void playPrevious()
+    {
+        if(mPlayer != null && mPlayer.isPlaying())
+        {
+            stop();
+        }
+
+        if(mPlaylist != null)
+        {
+            --playPosition;
+
+            if(playPosition < 0 )
+            {
+                playPosition = mPlaylist.size() - 1;
+            }
+
+            init();
+        }
+    }
+
+    /**
+     * Method used to play the next AmbientTrack in the playlist
+     */
+    private void playNext()
+    {
+        if(mPlayer != null && mPlayer.isPlaying())
+        {
+            stop();
+        }
+
+        if(mPlaylist != null)
+        {
+            ++playPosition;
+
+            if(playPosition >= mPlaylist.size() && isPlaylistExtending())
+            {
+                --playPosition;
+                isWaitingForRefill = true; // the next imported tracks or page of the infinite queue continue playback
+                updateInfiniteQueue();
+                return;
+            }
+
+            if(playPosition >= mPlaylist.size())
+            {
+                sendUpdateBroadcast(PlaybackState.END_OF_PLAYLIST); // send end of playlist update to callback
+                playPosition = 0;
+            }
+
+            init();
+        }
+    }
+
+    /**
+     * Runnable object used to update the main user interface with playback values
+     */
+    private Runnable mUpdateProgress = new Runnable() {
+        public void run() {
+
+            if (mHandler != null && mPlayer != null && mPlayer.isPlaying()) {
+
+                int position = mStallStart != 0 ? mStallPosition : mPlayer.getCurrentPosition(); // frozen while stalled
+                int totalTime = mPlayer.getDuration();
+
+                //Send the progress to the callback. The track is only sent when it changes
+                //and every TRACK_UPDATE_INTERVAL updates
+                AmbientCodec.Writer update = new AmbientCodec.Writer()
+                        .playbackState(PlaybackState.CURRENT_PLAYING_TRACK_INFO)
+                        .progress(position, totalTime);
+
+                if(mAmbientTrack != mLastSentTrack || ++mProgressUpdates % TRACK_UPDATE_INTERVAL == 0)
+                {
+                    update.track();
+                }
+
+                if(mTimeline.size() > 0)
+                {
+                    update.queueTime(mTimeline.getTimeBefore(playPosition) + position, mTimeline.getTotalTime());
+                }
+
+                if(isRemoteTrack && mBufferedPercent != mLastSentBufferedPercent)
+                {
+                    update.bufferedPercent(mBufferedPercent);
+                    mLastSentBufferedPercent = mBufferedPercent;
+                }
+
+                sendUpdateBroadcast(update);
+
+
+                mHandler.postDelayed(this,AUDIO_PROGRESS_UPDATE_TIME);
+            }
+        }
+    };
+
+
+    /**
+     * Alerts the AmbientService when an AmbientTrack is
+     * done playing.
+     * @param mp Media Player object
+     */
+    @Override
+    public void onCompletion(MediaPlayer mp) {
+
+        if(mp != mPlayer || (mCrossfader != null && mCrossfader.isFading()))
+        {
+            return; // the crossfade hands over to the next track
+        }
+
+        if(mRepeatMode == RepeatMode.REPEAT_ONE)
+        {
+            restartLoop(); // loop without a STOP update or a new notification
+            return;
+        }
+
+
+        sendUpdateBroadcast(PlaybackState.STOP); //send a stop update to the callback
+
+
+        if(mNotificationManager != null)
+        {
+            mNotificationManager.cancel(NOTIFICATION_CONTROL_ID);
+        }
+
+        if(mRepeatMode == RepeatMode.REPEAT_ALL || mQueueSupplier != null)
+        {
+            playNext(); // an infinite queue always moves on
+        }
+
+    }
+
+    /**
+     * Method used to recover from a failed track. The track is retried with a doubling delay
+     * until its retries are used up or its host is failing. Then it is skipped.
+     */
+    private void onPlaybackFailure()
+    {
+        if(mHandler == null)
+        {
+            return;
+        }
+
+        mHandler.removeCallbacks(mPrepareTimeoutCheck);
+        mCircuitBreaker.onFailure(mCurrentHost);
+
+        if(mRetries < mMaxRetries && !mCircuitBreaker.isOpen(mCurrentHost))
+        {
+            long delay = (long) mRetryDelay << Math.min(mRetries, 16);
+            mRetries++;
+
+            Log.w(TAG, "Retry " + mRetries + " of " + mMaxRetries + " in " + delay + " ms");
+            mHandler.postDelayed(mRetry, delay);
+            return;
+        }
+
+        mHandler.post(mSkipFailedTrack);
+    }
+
+    /**
+     * Method used to give up the current track and play the next one. Playback stops at the end
+     * of the playlist unless it repeats or is still extended, or when every track of the playlist
+     * failed in a row.
+     */
+    private void skipFailedTrack()
+    {
+        mRetries = 0;
+
+        sendUpdateBroadcast(PlaybackState.ERROR); // send error update to the callback
+
+        boolean isExtending = isPlaylistExtending(); // playNext waits for the next tracks
+        boolean isLastTrack = playPosition >= mPlaylist.size() - 1 && mRepeatMode != RepeatMode.REPEAT_ALL;
+
+        if(!isExtending && (++mSkippedTracks >= mPlaylist.size() || isLastTrack))
+        {
+            mSkippedTracks = 0;
+            stop();
+
+            if(mNotificationManager != null)
+            {
+                mNotificationManager.cancel(NOTIFICATION_CONTROL_ID);
+            }
+            return;
+        }
+
+        playNext();
+    }
+
+    /**
+     * Alerts the AmbientService of information about the media player. Only the buffering
+     * start and end are handled. They mark a stall of a streamed track.
+     * @param mp Media Player object
+     * @param what Type of information
+     * @param extra Extra information
+     * @return true if the information was handled
+     */
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+
+        if(mp != mPlayer)
+        {
+            return false;
+        }
+
+        switch (what)
+        {
+            case MediaPlayer.MEDIA_INFO_BUFFERING_START: startStall();
+                return true;
+            case MediaPlayer.MEDIA_INFO_BUFFERING_END: endStall();
+                return true;
+            default:
+                return false;
+        }
+    }
 
-        for(int j = 0; j < newTracks.size(); j++)
+    /**
+     * Method used to start a stall. The progress sent to Ambience is frozen until the stall ends.
+     */
+    private void startStall()
+    {
+        if(mStallStart != 0 || mPlayer == null)
         {
-            mPlaylist.add((AmbientTrack)newTracks.get(j));
+            return;
         }
 
+        mStallStart = SystemClock.elapsedRealtime();
+        mStallPosition = mPlayer.getCurrentPosition();
 
-        //Copy position to maintain shuffle & un-shuffle state
-        for(int x = 0; x < mPlaylist.size(); x++)
+        sendUpdateBroadcast(PlaybackState.BUFFERING_STARTED);
+    }
+
+    /**
+     * Method used to end the current stall, if any, and report its duration
+     */
+    private void endStall()
+    {
+        if(mStallStart == 0)
         {
-            mOriginalPlaylist.add(mPlaylist.get(x));
+            return;
         }
 
-        playPosition = 0;
+        long stallTime = SystemClock.elapsedRealtime() - mStallStart;
+        mStallStart = 0;
 
+        sendUpdateBroadcast(new AmbientCodec.Writer()
+                .playbackState(PlaybackState.BUFFERING_ENDED)
+                .stallTime(stallTime));
     }
 
     /**
-     * Called to remove a track from the current playlist
+     * Helper method used to hold the wifi lock only while a remote track is fetched. Local
+     * and downloaded tracks and completely buffered streams do not need the wifi radio.
+     * @param isActive true if the player is preparing or playing
      */
-    private void removeTrackFromPlaylist()
+    private void updateWifiLock(boolean isActive)
     {
-        if(mBundle.getParcelable(REMOVE_TRACK) != null && mOriginalPlaylist != null
-                && mPlaylist != null)
+        boolean held = isActive && isRemoteTrack && !isTrackBuffered;
+
+        if(mWifiLock == null && held)
+        {
+            mWifiLock = new AmbientWifiLock(this, TAG); // created by the first remote track
+        }
+
+        if(mWifiLock != null)
         {
-            mOriginalPlaylist.remove((AmbientTrack)mBundle.getParcelable(REMOVE_TRACK));
-            mPlaylist.remove((AmbientTrack)mBundle.getParcelable(REMOVE_TRACK));
+            mWifiLock.setHeld(held);
         }
     }
 
     /**
-     * Called to append a track to the current playlist
+     * Helper method used to cancel pending retries, skips and the prepare timeout
      */
-    private void addTrackToPlaylist()
+    private void cancelRecovery()
     {
-        if(mBundle.getParcelable(ADD_TRACK) != null && mOriginalPlaylist != null
-                && mPlaylist != null)
+        if(mHandler != null)
         {
-            mOriginalPlaylist.add((AmbientTrack)mBundle.getParcelable(ADD_TRACK));
-            mPlaylist.add((AmbientTrack)mBundle.getParcelable(ADD_TRACK));
+            mHandler.removeCallbacks(mRetry);
+            mHandler.removeCallbacks(mSkipFailedTrack);
+            mHandler.removeCallbacks(mPrepareTimeoutCheck);
+        }
+    }
+
+    /**
+     * Runnable object used to retry the current track
+     */
+    private Runnable mRetry = new Runnable() {
+        public void run() {
+            init();
+        }
+    };
+
+    /**
+     * Runnable object used to skip a failed track. Posted so a run of dead tracks does not recurse.
+     */
+    private Runnable mSkipFailedTrack = new Runnable() {
+        public void run() {
+            skipFailedTrack();
+        }
+    };
+
+    /**
+     * Runnable object used to fail a track that does not prepare in time
+     */
+    private Runnable mPrepareTimeoutCheck = new Runnable() {
+        public void run() {
+            Log.e(TAG, mAmbientTrack.getName() + " did not prepare in " + mPrepareTimeout + " ms");
 
-            if(mShuffleState == ShuffleMode.ON && !mBundle.containsKey(SHUFFLE_MODE))
+            try
             {
-                toggleShuffle(); //If shuffle is on reshuffle track
+                mPlayer.reset();
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG, e.getMessage());
             }
+
+            onPlaybackFailure();
         }
-    }
+    };
 
     /**
-     * Sets the repeat mode for the Ambient Playlist
+     * Method used to alert the AmbientService that an error
+     * has occurred with the Media Player
+     * @param mp Media Player object
+     * @param what What error occurred
+     * @param extra Extra error information about the error
+     * @return The success of the error handling
      */
-    private void setRepeatMode()
-    {
-        if(mBundle == null || !mBundle.containsKey(REPEAT_MODE)
-                ||mBundle.getSerializable(REPEAT_MODE) == null )
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+        String errorMessage = TAG + ".Error - What: " + what + ", extra: " + extra;
+
+        Log.e(TAG, errorMessage);
+
+        if(mp != mPlayer)
         {
-            Log.e(TAG,": No valid repeat mode");
-            return;
+            return true;
+        }
+
+        try
+        {
+            cancelLoopRange();
+            cancelCrossfade();
+            endStall();
+            isPlayerPrepared = false;
+            mPlayer.reset(); // keep the media player. reset returns it to its idle state
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+
+            createMediaPlayer();
         }
 
-        mRepeatMode = (RepeatMode) mBundle.getSerializable(REPEAT_MODE);
+        onPlaybackFailure();
+
+        return true; // handled. onCompletion is not called
     }
 
     /**
-     * Sets the shuffle mode for the Ambient Playlist
+     * Alters the AmbientService when the media player has prepared an AmbientTrack
+     * and is ready for play.
+     * @param mp media player object
      */
-    private void setShuffleMode()
-    {
-        if(mBundle == null || !mBundle.containsKey(SHUFFLE_MODE)
-                ||mBundle.getSerializable(SHUFFLE_MODE) == null )
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+        if(mHandler != null)
         {
-            Log.e(TAG,"No valid shuffle mode");
-            return;
+            mHandler.removeCallbacks(mPrepareTimeoutCheck);
         }
 
-        mShuffleState = (ShuffleMode) mBundle.getSerializable(SHUFFLE_MODE);
+        mCircuitBreaker.onSuccess(mCurrentHost);
+        mRetries = 0;
+        mSkippedTracks = 0;
+        isPlayerPrepared = true;
+        updateTrackDuration();
 
-        toggleShuffle();
+        if(mPendingSeekTrack != null && mPendingSeekTrack == mAmbientTrack)
+        {
+            mp.seekTo(mPendingSeek); // a queue time seek to another track
+        }
+
+        mPendingSeekTrack = null;
+
+        updateLooping(); // reset() clears the looping flag
+        play();
     }
 
     /**
-     * Helper method used to toggle the shuffle state of the Ambient Playlist
+     * Sets the volume level of the media player
+     * @param volumeLevel volume level
      */
-    private void toggleShuffle()
-    {
-        if(mPlaylist != null && mOriginalPlaylist != null)
-        {
-            if(mShuffleState == ShuffleMode.ON)
-            {
-                Collections.shuffle(mPlaylist);
-                setCurrentAmbientTrackPosition();
+    private void setVolumeTo(float volumeLevel) {
 
-            }else
+        if(mPlayer != null)
+        {
+            if(volumeLevel < 0.0f || volumeLevel > 1.0f )
             {
-                mPlaylist.clear();
+                volumeLevel = 0.5f;
+            }
 
-                for(int x = 0; x < mOriginalPlaylist.size(); x++)
-                {
-                    mPlaylist.add(mOriginalPlaylist.get(x));
-                }
+            mVolume = volumeLevel;
 
-                setCurrentAmbientTrackPosition();
-            }
+            mPlayer.setVolume(mVolume,mVolume);
         }
     }
 
     /**
-     * Helper method used to get the position of the current playing AmbientTrack
-     * before and after shuffle
+     * Set the seek position of the current AmbientTrack
+     * @return false if the position is outside the current track
      */
-    private void  setCurrentAmbientTrackPosition()
+    private boolean seekTo(int position)
     {
-        if(mPlaylist != null)
+        if(mPlayer != null && isPlayerPrepared && position >= 0 && position <= mPlayer.getDuration())
         {
-            for(int x = 0; x < mPlaylist.size(); x++)
-            {
-                if(mPlaylist.get(x) == mAmbientTrack)
-                {
-                    playPosition = x;
-                    break;
-                }
-            }
+            cancelCrossfade();
+            mPlayer.seekTo(position);
+            scheduleLoopRange();
+            scheduleCrossfade();
+
+            return true;
         }
+
+        return false;
     }
 
     /**
-     * Sets the play position of an Ambient track from the Ambient Playlist
+     * Method used to seek to a time of the whole queue. The timeline finds the track holding the
+     * time. Another track is started and seeks once it is prepared.
+     * @param time Time from the start of the queue in milliseconds
+     * @return false if the time is outside the queue
      */
-    private void setPlayPosition()
+    private boolean seekToQueueTime(long time)
     {
-        if( mBundle == null || !mBundle.containsKey(PLAY_POSITION))
+        int position = mPlaylist == null ? -1 : mTimeline.getPosition(time);
+
+        if(position == -1 || position >= mPlaylist.size())
         {
-            throw new IllegalStateException(TAG + ": invalid play position");
+            return false;
         }
 
-        playPosition = mBundle.getInt(PLAY_POSITION,0);
+        int offset = (int) (time - mTimeline.getTimeBefore(position));
 
-        if(playPosition < 0 || playPosition >= mPlaylist.size())
+        if(position == playPosition && isPlayerPrepared && mAmbientTrack == mPlaylist.get(position))
         {
-            playPosition = 0;
+            return seekTo(offset);
         }
+
+        playPosition = position;
+        mPendingSeek = offset;
+        mPendingSeekTrack = mPlaylist.get(position);
+        mPendingSeekPosition = position;
+        mSkippedTracks = 0;
+        init();
+
+        return true;
     }
 
     /**
-     * Alerts the AmbientService about audio focus gain,
-     * loss, etc.
-     * @param focusChange value of focus changed
+     * Helper method used to page in the tracks around the play position of a playlist source and
+     * to probe the upcoming tracks of the playlist for missing metadata
      */
-    @Override
-    public void onAudioFocusChange(int focusChange) {
-        if(mPlayer == null)
+    private void probeMetadata()
+    {
+        if(mPager != null)
         {
-            return;
+            mPager.prefetch(playPosition);
         }
 
-        switch (focusChange) {
-            case AudioManager.AUDIOFOCUS_GAIN:
-
-                if (!mPlayer.isPlaying())
-                {
-                    play();
-                }
+        if(mProber != null)
+        {
+            mProber.probe(mPlaylist, playPosition);
+        }
+    }
 
-                mPlayer.setVolume(mVolume,mVolume);
-                break;
+    /**
+     * Called on the mix thread with the resource use of a layer. Reports it to Ambience on the main thread.
+     * @param id Id of the layer
+     * @param cpuTime Microseconds of CPU the layer used per second of audio
+     * @param memory Bytes held by the layer
+     * @param underruns Number of buffers the decoder fell behind the mix
+     */
+    @Override
+    public void onLayerStats(final int id, final int cpuTime, final int memory, final int underruns) {
 
-            case AudioManager.AUDIOFOCUS_LOSS:
-                // Lost focus for an unbounded amount of time: stop playback and release media player
-                if (mPlayer.isPlaying())
-                {
-                    pause();
-                }
+        Handler handler = mHandler;
 
-                break;
+        if(handler == null)
+        {
+            return; // the service was destroyed
+        }
 
-            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT:
-                // Lost focus for a short time, but we have to stop
-                // playback. We don't release the media player because playback
-                // is likely to resume
-                if (mPlayer.isPlaying())
-                {
-                    pause();
-                }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                sendUpdateBroadcast(new AmbientCodec.Writer().layerStats(id, cpuTime, memory, underruns));
+            }
+        });
+    }
 
-                break;
+    /**
+     * Called on the main thread when the prober filled in the missing metadata of a track.
+     * A probed duration replaces the unknown duration in the timeline.
+     * @param track The AmbientTrack
+     * @param position Position the track had in the playlist when it was queued
+     * @param isRetagged true if its name, artist or album was filled in
+     */
+    @Override
+    public void onTrackProbed(AmbientTrack track, int position, boolean isRetagged) {
 
-            case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
-                // Lost focus for a short time, but it's ok to keep playing
-                // at an attenuated level
-                if (mPlayer.isPlaying())
-                {
-                    mPlayer.setVolume(0.1f, 0.1f);
-                }
+        position = getTrackPosition(track, position);
 
-                break;
+        if(position != -1)
+        {
+            mTimeline.setDuration(position, track.getDuration());
         }
     }
 
     /**
-     * Initialize and prepare the media player with the ambient track
+     * Helper method used to find a track of the playlist. The probes are queued again whenever
+     * the playlist changes, so the track is almost always still at its queued position.
+     * @param track The AmbientTrack
+     * @param position Position the track had in the playlist
+     * @return The position of the track or -1 if it left the playlist
      */
-    private void init()
+    private int getTrackPosition(AmbientTrack track, int position)
     {
-        sendUpdateBroadcast(PlaybackState.PREPPING_TRACK); // send prepping update to callback
-
-        if(mPlayer == null)
+        if(mPlaylist == null)
         {
-            createMediaPlayer();
+            return -1;
         }
 
-        try {
+        if(position >= 0 && position < mPlaylist.size())
+        {
+            AmbientTrack queued = mPager != null ? mPager.peek(position) : mPlaylist.get(position);
 
-            if(mPlaylist == null || mPlaylist.get(playPosition) == null )
+            if(queued == track)
             {
-                Log.e(TAG, ": The AmbientTrack item was null. Check the quality of your playlist before" +
-                        " passing it to the AmbientService.");
-                return;
+                return position;
             }
+        }
 
-            mAmbientTrack = mPlaylist.get(playPosition);
-
+        //a playlist source is not searched, its tracks are paged in and out
+        return mPager != null ? -1 : mPlaylist.indexOf(track);
+    }
 
-            if(mPlayer.isPlaying())
-            {
-                mPlayer.stop();
-            }
-            mPlayer.reset();
+    /**
+     * Called on the main thread when tracks of a playlist source were paged in. A track waiting
+     * to be played is prepared and the tracks around the play position are probed for missing metadata.
+     */
+    @Override
+    public void onTracksPaged() {
 
-            mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
-            mPlayer.setDataSource(this, mAmbientTrack.getAudioUri()); // set audio source
+        if(isWaitingForPage)
+        {
+            isWaitingForPage = false;
+            init(); // waits again if the page did not hold the track
+        }
 
-            mPlayer.prepareAsync();
-        }catch (Exception e)
+        if(mProber != null)
         {
-            e.printStackTrace();
-            Log.e(TAG, e.getMessage());
+            mProber.probe(mPlaylist, playPosition);
         }
     }
 
     /**
-     * Plays the AmbientTrack
+     * Called on the main thread when the playlist source failed to page in tracks. A track
+     * waiting to be played is rejected.
      */
-    private void play()
-    {
-        try
-        {
-            int result = mAudioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC,AudioManager.AUDIOFOCUS_GAIN);
-
-            if (result != AudioManager.AUDIOFOCUS_GAIN)
-            {
-                Log.i(TAG, ": could not get audio focus from manager");
-            }
-
-            mWifiLock.acquire();
-
-            if(mPlayer != null)
-            {
-                mPlayer.start();
-            }
-
-            if(mHandler != null)
-            {
-                mHandler.postDelayed(mUpdateProgress, AUDIO_PROGRESS_UPDATE_TIME);
-            }
-
-            sendUpdateBroadcast(PlaybackState.PLAY); // sends a now playing update to the callback
-            createNotification();
-        }catch (Exception e)
+    @Override
+    public void onPagingFailed() {
+
+        if(isWaitingForPage)
         {
-            e.printStackTrace();
-            Log.e(TAG,e.getMessage());
+            isWaitingForPage = false;
+            Log.e(TAG, ": The playlist source failed to page in the track at " + playPosition);
+            sendUpdateBroadcast(PlaybackState.COMMAND_REJECTED);
         }
     }
 
     /**
-     * Stops the current playing AmbientTrack
+     * Helper method used to replace an unknown duration of the current track in the timeline
+     * with the duration of its prepared player
      */
-    private void stop()
+    private void updateTrackDuration()
     {
-        try
+        if(mAmbientTrack != null && mAmbientTrack.getDuration() <= 0 && mPlayer != null)
         {
-            mAudioManager.abandonAudioFocus(this);
-            mWifiLock.release();
+            mTimeline.setDuration(playPosition, mPlayer.getDuration());
+        }
+    }
 
-            if(mPlayer != null && mPlayer.isPlaying())
+    /**
+     * Method used to set the crossfade duration. The crossfader is created with the first request.
+     * @param duration Crossfade duration in milliseconds. 0 turns the crossfade off.
+     */
+    private void setCrossfade(int duration)
+    {
+        if(mCrossfader == null)
+        {
+            if(duration == 0)
             {
-                mPlayer.stop();
+                return;
             }
-            sendUpdateBroadcast(PlaybackState.STOP); // sends a track has stopped update to the callback
-        }catch (Exception e)
-        {
-            e.printStackTrace();
-            Log.e(TAG, e.getMessage());
+
+            mCrossfader = new AmbientCrossfader(this, mHandler, this);
         }
+
+        cancelCrossfade();
+        mCrossfader.setDuration(duration);
+        scheduleCrossfade();
     }
 
     /**
-     * Pause the current playing AmbientTrack
+     * Helper method that returns the track the current track crossfades into. Tracks only
+     * advance on completion in REPEAT_ALL mode or in an infinite queue, which does not wrap
+     * until its supplier ran out. A shuffled playlist is already in play order.
+     * @return The next AmbientTrack or null if there is no crossfade
      */
-    private void pause()
+    private AmbientTrack getCrossfadeTrack()
     {
-        try
+        if(mCrossfader == null || mCrossfader.getDuration() == 0 || mPlaylist == null
+                || mPlaylist.isEmpty() || (mRepeatMode != RepeatMode.REPEAT_ALL && mQueueSupplier == null))
         {
-            mAudioManager.abandonAudioFocus(this);
-            mWifiLock.release();
+            return null;
+        }
 
-            if(mPlayer != null && mPlayer.isPlaying())
-            {
-                mPlayer.pause();
-            }
+        int next = playPosition + 1;
 
-            sendUpdateBroadcast(PlaybackState.PAUSE); // sends a track has paused update to the callback
-            createNotification();
-        }catch (Exception e)
+        if(next >= mPlaylist.size() && isPlaylistExtending())
         {
-            e.printStackTrace();
-            Log.e(TAG, e.getMessage());
+            return null; // the next tracks are not there yet
         }
+
+        return mPlaylist.get(next >= mPlaylist.size() ? 0 : next);
     }
 
     /**
-     * Method used to play the previous AmbientTrack in the playlist
+     * Helper method used to schedule the next step of the crossfade from the remaining duration
+     * of the current track: preparing the next track PREPARE_LEAD before the fade, then starting
+     * the fade. Each step is a single post to the main looper.
      */
-    private void playPrevious()
+    private void scheduleCrossfade()
     {
-        if(mPlayer != null && mPlayer.isPlaying())
+        if(mHandler == null)
         {
-            stop();
+            return;
         }
 
-        if(mPlaylist != null)
+        mHandler.removeCallbacks(mCrossfadeCheck);
+
+        AmbientTrack next = getCrossfadeTrack();
+
+        if(next == null || mPlayer == null || mCrossfader.isFading() || !mPlayer.isPlaying())
         {
-            --playPosition;
+            return;
+        }
 
-            if(playPosition < 0 )
-            {
-                playPosition = mPlaylist.size() - 1;
-            }
+        int duration = mPlayer.getDuration();
+        int fade = Math.min(mCrossfader.getDuration(), duration / 2);
+        int remaining = duration - mPlayer.getCurrentPosition();
 
-            init();
+        if(duration <= 0 || remaining <= 0)
+        {
+            return; // streams without a duration are not crossfaded
+        }
+
+        if(remaining > fade + AmbientCrossfader.PREPARE_LEAD)
+        {
+            mHandler.postDelayed(mCrossfadeCheck, remaining - fade - AmbientCrossfader.PREPARE_LEAD);
+            return;
+        }
+
+        mCrossfader.prepare(next);
+
+        if(remaining > fade)
+        {
+            mHandler.postDelayed(mCrossfadeCheck, remaining - fade);
+        }
+        else if(!mCrossfader.start(mPlayer, next, mVolume, remaining))
+        {
+            mHandler.postDelayed(mCrossfadeCheck, AUDIO_PROGRESS_UPDATE_TIME); // still preparing
         }
     }
 
     /**
-     * Method used to play the next AmbientTrack in the playlist
+     * Helper method used to cancel the crossfade and restore the volume of the current track
      */
-    private void playNext()
+    private void cancelCrossfade()
     {
-        if(mPlayer != null && mPlayer.isPlaying())
+        if(mHandler != null)
         {
-            stop();
+            mHandler.removeCallbacks(mCrossfadeCheck);
         }
 
-        if(mPlaylist != null)
+        if(mCrossfader != null)
         {
-            ++playPosition;
+            boolean wasFading = mCrossfader.isFading();
 
-            if(playPosition >= mPlaylist.size())
+            mCrossfader.cancel();
+
+            if(wasFading && mPlayer != null)
             {
-                sendUpdateBroadcast(PlaybackState.END_OF_PLAYLIST); // send end of playlist update to callback
-                playPosition = 0;
+                mPlayer.setVolume(mVolume, mVolume);
             }
-
-            init();
         }
     }
 
     /**
-     * Runnable object used to update the main user interface with playback values
+     * Runnable object used to run the next step of the crossfade
      */
-    private Runnable mUpdateProgress = new Runnable() {
+    private Runnable mCrossfadeCheck = new Runnable() {
         public void run() {
+            scheduleCrossfade();
+        }
+    };
 
-            if (mHandler != null && mPlayer != null && mPlayer.isPlaying()) {
-
-                int position = mPlayer.getCurrentPosition();
-                int totalTime = mPlayer.getDuration();
-
-                //Send bundle with all track information to callback
-                Bundle bundle = new Bundle();
-                bundle.putSerializable(PLAYBACK_STATE,PlaybackState.CURRENT_PLAYING_TRACK_INFO);
-
-                bundle.putInt(TRACK_PROGRESS,position);
-                bundle.putParcelable(CURRENT_TRACK,mAmbientTrack);
-                bundle.putInt(TRACK_DURATION,totalTime);
+    /**
+     * Called by the AmbientCrossfader when the next track has faded in. The incoming player
+     * becomes the player of the service.
+     * @param incoming The player of the next track
+     * @param uri The uri the incoming player plays
+     */
+    @Override
+    public void onCrossfadeCompleted(MediaPlayer incoming, Uri uri) {
+        mPlayer = incoming;
+        endStall();
+        isPlayerPrepared = true;
+        isRemoteTrack = AmbientWifiLock.isRemote(uri);
+        isTrackBuffered = false;
+        mBufferedPercent = 0;
+        mLastSentBufferedPercent = -1;
+        mCurrentHost = isRemoteTrack ? uri.getHost() : null;
+        updateWifiLock(true);
 
-                sendUpdateBroadcast(bundle);
+        mPlayer.setOnCompletionListener(this);
+        mPlayer.setOnPreparedListener(this);
+        mPlayer.setOnErrorListener(this);
+        mPlayer.setOnSeekCompleteListener(this);
+        mPlayer.setOnBufferingUpdateListener(this);
+        mPlayer.setOnInfoListener(this);
+        mPlayer.setVolume(mVolume, mVolume);
 
+        ++playPosition;
 
-                mHandler.postDelayed(this,AUDIO_PROGRESS_UPDATE_TIME);
-            }
+        if(playPosition >= mPlaylist.size())
+        {
+            sendUpdateBroadcast(PlaybackState.END_OF_PLAYLIST); // send end of playlist update to callback
+            playPosition = 0;
         }
-    };
 
+        mAmbientTrack = mPlaylist.get(playPosition);
+        probeMetadata(); // the upcoming tracks moved
+        updateInfiniteQueue();
+        AmbientBandwidthMeter.getInstance().onStreamStarted(mAmbientTrack);
+        updateTrackDuration();
+
+        updateLooping();
+        sendUpdateBroadcast(PlaybackState.PLAY); // sends a now playing update to the callback
+        createNotification();
+        scheduleCrossfade();
+    }
 
     /**
-     * Alerts the AmbientService when an AmbientTrack is
-     * done playing.
-     * @param mp Media Player object
+     * Called by the AmbientCrossfader when the next track failed during the fade. The current
+     * track plays on at full volume and completes as usual.
      */
     @Override
-    public void onCompletion(MediaPlayer mp) {
-
-
-        sendUpdateBroadcast(PlaybackState.STOP); //send a stop update to the callback
-
+    public void onCrossfadeFailed() {
+        if(mPlayer == null)
+        {
+            return;
+        }
 
-        if(mNotificationManager != null)
+        if(mPlayer.isPlaying())
         {
-            mNotificationManager.cancel(NOTIFICATION_CONTROL_ID);
+            mPlayer.setVolume(mVolume, mVolume);
+        }
+        else
+        {
+            onCompletion(mPlayer); // completed while the fade was running
         }
+    }
 
-        if(mRepeatMode != null)
+    /**
+     * Helper method used to loop the whole track with the MediaPlayer in REPEAT_ONE mode.
+     * A track with a loop range is looped by mLoopRange instead.
+     */
+    private void updateLooping()
+    {
+        try
         {
-            if(mRepeatMode == RepeatMode.REPEAT_ALL)
-            {
-                playNext();
-            }else if(mRepeatMode == RepeatMode.REPEAT_ONE)
+            if(mPlayer != null)
             {
-                play();
+                mPlayer.setLooping(mRepeatMode == RepeatMode.REPEAT_ONE
+                        && (mAmbientTrack == null || !mAmbientTrack.hasLoopRange()));
             }
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
         }
 
+        scheduleLoopRange();
     }
 
     /**
-     * Method used to alert the AmbientService that an error
-     * has occurred with the Media Player
-     * @param mp Media Player object
-     * @param what What error occurred
-     * @param extra Extra error information about the error
-     * @return The success of the error handling
+     * Helper method used to check if the current track loops a part of itself
+     * @return true if the track has a loop range in REPEAT_ONE mode
      */
-    @Override
-    public boolean onError(MediaPlayer mp, int what, int extra) {
-        String errorMessage = TAG + ".Error - What: \" + what + \", extra: \" + extra";
-
-        Log.e(TAG, errorMessage);
-
-        createMediaPlayer(); // reset media player to original state
+    private boolean isLoopingRange()
+    {
+        return mRepeatMode == RepeatMode.REPEAT_ONE && mAmbientTrack != null && mAmbientTrack.hasLoopRange();
+    }
 
-        sendUpdateBroadcast(PlaybackState.ERROR); // send error update to the callback
+    /**
+     * Helper method used to schedule the end of the loop range from the current position
+     */
+    private void scheduleLoopRange()
+    {
+        cancelLoopRange();
 
-        if(mNotificationManager != null)
+        if(mHandler != null && mPlayer != null && isLoopingRange() && mPlayer.isPlaying())
         {
-            mNotificationManager.cancel(NOTIFICATION_CONTROL_ID);
+            int delay = mAmbientTrack.getLoopEnd() - mPlayer.getCurrentPosition();
+            mHandler.postDelayed(mLoopRange, Math.max(0, delay));
         }
-
-        return false;
     }
 
     /**
-     * Alters the AmbientService when the media player has prepared an AmbientTrack
-     * and is ready for play.
-     * @param mp media player object
+     * Helper method used to cancel the loop range
      */
-    @Override
-    public void onPrepared(MediaPlayer mp) {
-        play();
+    private void cancelLoopRange()
+    {
+        if(mHandler != null)
+        {
+            mHandler.removeCallbacks(mLoopRange);
+        }
     }
 
     /**
-     * Sets the volume level of the media player
-     * @param volumeLevel volume level
+     * Helper method used to restart a REPEAT_ONE track that completed, without stopping it
      */
-    private void setVolumeTo(float volumeLevel) {
+    private void restartLoop()
+    {
+        if(mPlayer == null)
+        {
+            return;
+        }
 
-        if(mPlayer != null)
+        try
         {
-            if(volumeLevel < 0.0f || volumeLevel > 1.0f )
+            isLoopSeek = true;
+            mPlayer.seekTo(isLoopingRange() ? mAmbientTrack.getLoopStart() : 0);
+            mPlayer.start();
+            scheduleLoopRange();
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
+        }
+    }
+
+    /**
+     * Runnable object used to loop the loop range of the current track. It runs once per
+     * iteration at the loop end and seeks back to the loop start.
+     */
+    private Runnable mLoopRange = new Runnable() {
+        public void run() {
+
+            if (mHandler == null || mPlayer == null || !isLoopingRange() || !mPlayer.isPlaying()) {
+                return;
+            }
+
+            int position = mPlayer.getCurrentPosition();
+
+            if(position >= mAmbientTrack.getLoopEnd() - LOOP_TOLERANCE)
             {
-                volumeLevel = 0.5f;
+                isLoopSeek = true;
+                mPlayer.seekTo(mAmbientTrack.getLoopStart());
+                position = mAmbientTrack.getLoopStart();
             }
 
-            mVolume = volumeLevel;
+            mHandler.postDelayed(this, Math.max(0, mAmbientTrack.getLoopEnd() - position));
+        }
+    };
 
-            mPlayer.setVolume(mVolume,mVolume);
+    /**
+     * Alerts the AmbientService when a seek request has completed
+     * @param mp Media Player object
+     */
+    @Override
+    public void onSeekComplete(MediaPlayer mp) {
+
+        if(isLoopSeek)
+        {
+            isLoopSeek = false; // seek made by a loop, not requested by Ambience
+            return;
         }
+
+        sendUpdateBroadcast(PlaybackState.SEEK_COMPLETED);
     }
 
     /**
-     * Set the seek position of the current AmbientTrack
+     * Alerts the AmbientService when more of a streamed AmbientTrack is buffered. The updates
+     * feed the bandwidth estimate used to pick the variant of the next track.
+     * @param mp Media Player object
+     * @param percent Buffered part of the track
      */
-    private void seekTo(int position)
-    {
-        if(mPlayer != null && position >= 0 && position <= mPlayer.getDuration())
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent) {
+
+        if(mp != mPlayer)
         {
-            mPlayer.seekTo(position);
+            return;
+        }
+
+        try
+        {
+            AmbientBandwidthMeter.getInstance().onBufferingUpdate(percent, mp.getDuration(), mp.getCurrentPosition());
+            mBufferedPercent = percent;
+
+            if(percent >= 100 && !isTrackBuffered)
+            {
+                isTrackBuffered = true;
+                updateWifiLock(mp.isPlaying()); // nothing left to fetch
+            }
+        }catch (Exception e)
+        {
+            e.printStackTrace();
+            Log.e(TAG, e.getMessage());
         }
     }
 
     /**
      * Method used to send an intent to the Ambience Broadcast Receiver to update the callback
-     * component.
-     * @param bundle A bundle object containing the current AmbientTrack component
+     * component. Updates carry the sender and sequence number of the last applied request.
+     * @param update The encoded update. The current AmbientTrack is attached if the update has a track.
      */
-    private void sendUpdateBroadcast(Bundle bundle)
+    private void sendUpdateBroadcast(AmbientCodec.Writer update)
     {
+        if(mAppliedSender != null && !update.hasSequence())
+        {
+            update.sequence(mAppliedSender, mAppliedSequence); // the state follows this request
+        }
+
+        long wifiLockTime = mWifiLock == null ? 0 : mWifiLock.takeHeldTime();
+
+        if(wifiLockTime > 0)
+        {
+            update.wifiLockTime(wifiLockTime); // reported to the metrics of Ambience
+        }
+
         Intent intent = new Intent(Ambience.AMBIENCE_BROADCASTER);
-        intent.putExtras(bundle);
+        intent.putExtra(AmbientCodec.MESSAGE, update.toByteArray());
+
+        if(update.hasTrack())
+        {
+            intent.putExtra(AmbientCodec.EXTRA_TRACK, mAmbientTrack);
+            mLastSentTrack = mAmbientTrack;
+            mProgressUpdates = 0;
+        }
+
         sendBroadcast(intent);
     }
 
@@ -961,9 +3022,14 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
      */
     private void sendUpdateBroadcast(PlaybackState value)
     {
-        Intent intent = new Intent(Ambience.AMBIENCE_BROADCASTER);
-        intent.putExtra(PLAYBACK_STATE,value);
-        sendBroadcast(intent);
+        AmbientCodec.Writer update = new AmbientCodec.Writer().playbackState(value);
+
+        if(value == PlaybackState.PLAY && mAmbientTrack != null)
+        {
+            update.track(); // the now playing update carries the track
+        }
+
+        sendUpdateBroadcast(update);
     }
 
 
@@ -998,9 +3064,9 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
             bundle.putSerializable(SHUFFLE_MODE,mShuffleState);
         }
 
-        if(mPlaylist != null)
+        if(mPlaylist != null && mPager == null) // a playlist source may not fit in an intent
         {
-            bundle.putParcelableArrayList(PLAYLIST,mPlaylist);
+            bundle.putParcelableArrayList(PLAYLIST,new ArrayList<AmbientTrack>(mPlaylist));
         }
 
 
@@ -1040,20 +3106,51 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
             }
         }
 
+        if(mHandler != null)
+        {
+            mHandler.removeCallbacksAndMessages(null); // drop pending binder requests
+        }
+
         mHandler = null;
         mAudioManager = null;
 
-        try
+        if(mWifiLock != null)
         {
-            mWifiLock.release();
-        }catch (Exception e)
+            try
+            {
+                mWifiLock.setHeld(false);
+            }catch (Exception e)
+            {
+                e.printStackTrace();
+                Log.e(TAG,e.getMessage());
+            }
+
+            mWifiLock = null;
+        }
+
+        if(mMixer != null)
         {
-            e.printStackTrace();
-            Log.e(TAG,e.getMessage());
+            mMixer.release();
+            mMixer = null;
+            updateMixerFocus();
+        }
+
+        if(mCrossfader != null)
+        {
+            mCrossfader.release();
+            mCrossfader = null;
         }
 
-        mWifiLock = null;
-        mBundle = null;
+        if(mProber != null)
+        {
+            mProber.shutdown(); // unsaved results are written to the cache
+            mProber = null;
+        }
+        mRequestSequences.clear();
+        mAppliedSender = null;
+        releasePager();
+        cancelImport();
+        closeQueueSupplier();
 
 		if(mOriginalPlaylist != null)
 		{
@@ -1213,7 +3310,8 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
 
 
         Intent previousIntent = new Intent(AMBIENT_SERVICE_BROADCASTER);
-        previousIntent.putExtra(PLAYBACK_STATE,PlaybackState.PREVIOUS);
+        previousIntent.putExtra(AmbientCodec.MESSAGE,
+                new AmbientCodec.Writer().playbackState(PlaybackState.PREVIOUS).toByteArray());
         int drawablePrevious = android.R.drawable.ic_media_previous;
 
         PendingIntent PrevIntent = PendingIntent.getBroadcast(AmbientService.this,
@@ -1230,12 +3328,14 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
         // SONG IS PLAYING SET INTENT TO PAUSE
         if(mPlayer.isPlaying())
         {
-            playIntent.putExtra(PLAYBACK_STATE,PlaybackState.PAUSE);
+            playIntent.putExtra(AmbientCodec.MESSAGE,
+                    new AmbientCodec.Writer().playbackState(PlaybackState.PAUSE).toByteArray());
 
         }
         else
         {
-            playIntent.putExtra(PLAYBACK_STATE,PlaybackState.RESUME);
+            playIntent.putExtra(AmbientCodec.MESSAGE,
+                    new AmbientCodec.Writer().playbackState(PlaybackState.RESUME).toByteArray());
             drawableId = android.R.drawable.ic_media_play;
         }
 
@@ -1247,7 +3347,8 @@ public class AmbientService extends Service implements MediaPlayer.OnErrorListen
 
 
         Intent forwardIntent = new Intent(AMBIENT_SERVICE_BROADCASTER);
-        forwardIntent.putExtra(PLAYBACK_STATE,PlaybackState.SKIP);
+        forwardIntent.putExtra(AmbientCodec.MESSAGE,
+                new AmbientCodec.Writer().playbackState(PlaybackState.SKIP).toByteArray());
         int drawableForward = android.R.drawable.ic_media_next;
 
         PendingIntent NextIntent = PendingIntent.getBroadcast(AmbientService.this,803,
@@ -0,0 +1,141 @@
+package com.tonyostudios.ambience;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binder returned by the AmbientService and the AmbientMediaBrowserService for the
+ * AmbientService.AMBIENT_SERVICE_BINDER action. Binder calls arrive on binder threads, so every
+ * call is encoded as an AmbientCodec request and posted to the main thread of the service where
+ * it is handled like a broadcast request.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+class AmbientServiceBinder extends IAmbientService.Stub {
+
+    /**
+     * Handler of the service main thread
+     */
+    private final Handler mHandler;
+
+    /**
+     * The service that handles the requests
+     */
+    private final RequestHandler mRequestHandler;
+
+    /**
+     * constructor
+     * @param handler Handler of the service main thread
+     * @param requestHandler The service that handles the requests
+     */
+    AmbientServiceBinder(Handler handler, RequestHandler requestHandler)
+    {
+        mHandler = handler;
+        mRequestHandler = requestHandler;
+    }
+
+    @Override
+    public void sendRequest(byte[] message, Bundle extras) {
+        post(message, extras);
+    }
+
+    @Override
+    public void setPlaylist(List<AmbientTrack> playlist, int position) {
+
+        if(playlist == null)
+        {
+            return;
+        }
+
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(AmbientCodec.EXTRA_PLAYLIST, new ArrayList<Parcelable>(playlist));
+
+        post(new AmbientCodec.Writer().playlist().playPosition(position).toByteArray(), extras);
+    }
+
+    @Override
+    public void play() {
+        postPlaybackState(AmbientService.PlaybackState.PLAY);
+    }
+
+    @Override
+    public void pause() {
+        postPlaybackState(AmbientService.PlaybackState.PAUSE);
+    }
+
+    @Override
+    public void resume() {
+        postPlaybackState(AmbientService.PlaybackState.RESUME);
+    }
+
+    @Override
+    public void stop() {
+        postPlaybackState(AmbientService.PlaybackState.STOP);
+    }
+
+    @Override
+    public void skip() {
+        postPlaybackState(AmbientService.PlaybackState.SKIP);
+    }
+
+    @Override
+    public void previous() {
+        postPlaybackState(AmbientService.PlaybackState.PREVIOUS);
+    }
+
+    @Override
+    public void seekTo(int position) {
+        post(new AmbientCodec.Writer().seek(position).toByteArray(), null);
+    }
+
+    @Override
+    public void setVolume(float volume) {
+        post(new AmbientCodec.Writer().volume(volume).toByteArray(), null);
+    }
+
+    /**
+     * Helper method used to post a playback request
+     * @param state The playback request
+     */
+    private void postPlaybackState(AmbientService.PlaybackState state)
+    {
+        post(new AmbientCodec.Writer().playbackState(state).toByteArray(), null);
+    }
+
+    /**
+     * Helper method used to hand a request to the service main thread
+     * @param message The encoded request
+     * @param extras The request extras
+     */
+    private void post(final byte[] message, final Bundle extras)
+    {
+        if(extras != null)
+        {
+            extras.setClassLoader(AmbientTrack.class.getClassLoader()); // unparcel AmbientTracks
+        }
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRequestHandler.handleRequest(message, extras);
+            }
+        });
+    }
+
+    /**
+     * Interface implemented by the services to handle a request on their main thread
+     */
+    interface RequestHandler {
+
+        /**
+         * Called on the main thread with a request
+         * @param message The encoded request
+         * @param extras The request extras or null
+         */
+        void handleRequest(byte[] message, Bundle extras);
+    }
+}
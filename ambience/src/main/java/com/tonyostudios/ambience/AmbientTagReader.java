@@ -0,0 +1,679 @@
+package com.tonyostudios.ambience;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * The AmbientTagReader reads the tags and duration of an audio file in pure Java, without a
+ * MediaMetadataRetriever. It reads ID3v2 (2.2, 2.3 and 2.4) and ID3v1 tags and the frame headers
+ * of MP3 files, and the Vorbis comments and stream headers of Ogg Vorbis, Opus and FLAC files.
+ * Only the headers are read: large frames such as cover art are skipped with a seek.
+ *
+ * Other formats yield empty tags. A duration that cannot be read is -1. A reader is not thread
+ * safe, use one per thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientTagReader {
+
+    /**
+     * Tags of a file. Missing tags are empty strings.
+     */
+    static final class Tags
+    {
+        String title = "";
+        String artist = "";
+        String album = "";
+        String genre = "";
+        int trackNumber = -1;
+        int duration = -1;
+    }
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+
+    /**
+     * Largest text frame or comment header that is read. Larger ones hold pictures.
+     */
+    private static final int MAX_TEXT_SIZE = 64 * 1024;
+
+    /**
+     * Number of bytes searched for the first MP3 frame and the last Ogg page
+     */
+    private static final int SEARCH_SIZE = 16 * 1024;
+
+    private static final int[][] MPEG1_BITRATES = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}};
+
+    private static final int[][] MPEG2_BITRATES = {
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}};
+
+    private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000};
+
+    private final byte[] mBuffer = new byte[SEARCH_SIZE];
+
+    /**
+     * Method used to read the tags of a file
+     * @param file The audio file
+     * @return The Tags
+     * @throws IOException if the file cannot be read
+     */
+    Tags read(File file) throws IOException
+    {
+        Tags tags = new Tags();
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+
+        try
+        {
+            int length = read(input, 0, 4);
+
+            if(length == 4 && mBuffer[0] == 'f' && mBuffer[1] == 'L' && mBuffer[2] == 'a' && mBuffer[3] == 'C')
+            {
+                readFlac(input, tags);
+            }
+            else if(length == 4 && mBuffer[0] == 'O' && mBuffer[1] == 'g' && mBuffer[2] == 'g' && mBuffer[3] == 'S')
+            {
+                readOgg(input, tags);
+            }
+            else
+            {
+                readMp3(input, tags);
+            }
+        }finally
+        {
+            input.close();
+        }
+
+        return tags;
+    }
+
+    /**
+     * Helper method used to read the ID3 tags and duration of an MP3 file
+     * @param input The file
+     * @param tags The Tags to fill
+     * @throws IOException if the file cannot be read
+     */
+    private void readMp3(RandomAccessFile input, Tags tags) throws IOException
+    {
+        long audioStart = 0;
+
+        //a file may start with several ID3v2 tags
+        while(read(input, audioStart, 10) == 10 && mBuffer[0] == 'I' && mBuffer[1] == 'D' && mBuffer[2] == '3')
+        {
+            int version = mBuffer[3];
+            int flags = mBuffer[5] & 0xFF;
+            int size = readSyncsafe(mBuffer, 6);
+
+            readId3v2(input, audioStart + 10, size, version, flags, tags);
+            audioStart += 10 + size + ((flags & 0x10) != 0 ? 10 : 0); // footer
+        }
+
+        long audioEnd = input.length();
+
+        if(audioEnd >= 128 && read(input, audioEnd - 128, 128) == 128
+                && mBuffer[0] == 'T' && mBuffer[1] == 'A' && mBuffer[2] == 'G')
+        {
+            audioEnd -= 128;
+
+            //ID3v1 fills only what ID3v2 did not
+            tags.title = tags.title.length() > 0 ? tags.title : readLatin1(mBuffer, 3, 30);
+            tags.artist = tags.artist.length() > 0 ? tags.artist : readLatin1(mBuffer, 33, 30);
+            tags.album = tags.album.length() > 0 ? tags.album : readLatin1(mBuffer, 63, 30);
+
+            if(tags.trackNumber < 0 && mBuffer[125] == 0 && mBuffer[126] != 0)
+            {
+                tags.trackNumber = mBuffer[126] & 0xFF; // ID3v1.1
+            }
+        }
+
+        if(tags.duration < 0)
+        {
+            tags.duration = readMp3Duration(input, audioStart, audioEnd);
+        }
+    }
+
+    /**
+     * Helper method used to read the frames of an ID3v2 tag. Unsynchronised and compressed frames are skipped.
+     * @param input The file
+     * @param start Offset of the first frame or the extended header
+     * @param size Size of the tag without its header
+     * @param version Major version of the tag
+     * @param flags Flags of the tag
+     * @param tags The Tags to fill
+     * @throws IOException if the file cannot be read
+     */
+    private void readId3v2(RandomAccessFile input, long start, int size, int version, int flags, Tags tags)
+            throws IOException
+    {
+        if(version < 2 || version > 4 || (version == 2 && (flags & 0x40) != 0))
+        {
+            return; // unknown version or ID3v2.2 compression
+        }
+
+        long offset = start;
+        long end = start + size;
+
+        if(version > 2 && (flags & 0x40) != 0 && read(input, offset, 4) == 4)
+        {
+            //the ID3v2.4 extended header size includes itself, the ID3v2.3 size does not
+            offset += version == 4 ? readSyncsafe(mBuffer, 0) : 4 + readInt(mBuffer, 0);
+        }
+
+        int headerSize = version == 2 ? 6 : 10;
+        int idSize = version == 2 ? 3 : 4;
+
+        while(offset + headerSize <= end && read(input, offset, headerSize) == headerSize && mBuffer[0] != 0)
+        {
+            String id = new String(mBuffer, 0, idSize, ISO_8859_1);
+            int frameSize;
+            boolean isReadable = true;
+
+            if(version == 2)
+            {
+                frameSize = ((mBuffer[3] & 0xFF) << 16) | ((mBuffer[4] & 0xFF) << 8) | (mBuffer[5] & 0xFF);
+            }
+            else
+            {
+                frameSize = version == 4 ? readSyncsafe(mBuffer, 4) : readInt(mBuffer, 4);
+                int formatFlags = mBuffer[9] & 0xFF;
+                isReadable = version == 4 ? (formatFlags & 0x0F) == 0 : (formatFlags & 0xC0) == 0;
+            }
+
+            offset += headerSize;
+
+            if(frameSize <= 0 || offset + frameSize > end)
+            {
+                break;
+            }
+
+            if(isReadable && frameSize <= MAX_TEXT_SIZE && id.charAt(0) == 'T')
+            {
+                readTextFrame(input, id, offset, frameSize, tags);
+            }
+
+            offset += frameSize;
+        }
+    }
+
+    /**
+     * Helper method used to read a text frame of an ID3v2 tag
+     * @param input The file
+     * @param id Id of the frame
+     * @param offset Offset of the frame body
+     * @param size Size of the frame body
+     * @param tags The Tags to fill
+     * @throws IOException if the file cannot be read
+     */
+    private void readTextFrame(RandomAccessFile input, String id, long offset, int size, Tags tags) throws IOException
+    {
+        boolean isTitle = id.equals("TIT2") || id.equals("TT2");
+        boolean isArtist = id.equals("TPE1") || id.equals("TP1");
+        boolean isAlbum = id.equals("TALB") || id.equals("TAL");
+        boolean isGenre = id.equals("TCON") || id.equals("TCO");
+        boolean isTrack = id.equals("TRCK") || id.equals("TRK");
+        boolean isLength = id.equals("TLEN") || id.equals("TLE");
+
+        if(!(isTitle || isArtist || isAlbum || isGenre || isTrack || isLength) || size < 2)
+        {
+            return;
+        }
+
+        byte[] body = new byte[size];
+        input.seek(offset);
+        input.readFully(body);
+
+        Charset charset;
+
+        switch (body[0])
+        {
+            case 1: charset = UTF_16;
+                break;
+            case 2: charset = UTF_16BE;
+                break;
+            case 3: charset = UTF_8;
+                break;
+            default: charset = ISO_8859_1;
+                break;
+        }
+
+        String text = new String(body, 1, size - 1, charset);
+        int terminator = text.indexOf('\0');
+        text = (terminator >= 0 ? text.substring(0, terminator) : text).trim();
+
+        if(isTitle)
+        {
+            tags.title = text;
+        }
+        else if(isArtist)
+        {
+            tags.artist = text;
+        }
+        else if(isAlbum)
+        {
+            tags.album = text;
+        }
+        else if(isGenre)
+        {
+            //ID3v2.3 genres may start with a numeric reference such as (17)
+            tags.genre = text.startsWith("(") && text.indexOf(')') > 0 && text.indexOf(')') < text.length() - 1
+                    ? text.substring(text.indexOf(')') + 1).trim() : text;
+        }
+        else if(isTrack)
+        {
+            tags.trackNumber = parseNumber(text);
+        }
+        else
+        {
+            tags.duration = parseNumber(text);
+        }
+    }
+
+    /**
+     * Helper method used to read the duration of an MP3 file from its first frame. A Xing, Info
+     * or VBRI header gives the frame count, otherwise the bitrate of the first frame is used.
+     * @param input The file
+     * @param audioStart Offset of the audio after the ID3v2 tags
+     * @param audioEnd Offset of the end of the audio before the ID3v1 tag
+     * @return Duration in milliseconds or -1
+     * @throws IOException if the file cannot be read
+     */
+    private int readMp3Duration(RandomAccessFile input, long audioStart, long audioEnd) throws IOException
+    {
+        int length = read(input, audioStart, SEARCH_SIZE);
+
+        for(int x = 0; x + 4 <= length; x++)
+        {
+            if((mBuffer[x] & 0xFF) != 0xFF || (mBuffer[x + 1] & 0xE0) != 0xE0)
+            {
+                continue;
+            }
+
+            int versionBits = (mBuffer[x + 1] >> 3) & 0x03; // 0 = MPEG2.5, 2 = MPEG2, 3 = MPEG1
+            int layerBits = (mBuffer[x + 1] >> 1) & 0x03; // 1 = III, 2 = II, 3 = I
+            int bitrateIndex = (mBuffer[x + 2] >> 4) & 0x0F;
+            int sampleRateIndex = (mBuffer[x + 2] >> 2) & 0x03;
+            boolean isMono = ((mBuffer[x + 3] >> 6) & 0x03) == 3;
+
+            if(versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3)
+            {
+                continue; // not a frame header
+            }
+
+            boolean isMpeg1 = versionBits == 3;
+            int layer = 4 - layerBits;
+            int sampleRate = MPEG1_SAMPLE_RATES[sampleRateIndex] >> (isMpeg1 ? 0 : (versionBits == 2 ? 1 : 2));
+            int bitrate = (isMpeg1 ? MPEG1_BITRATES : MPEG2_BITRATES)[layer - 1][bitrateIndex];
+            int samplesPerFrame = layer == 1 ? 384 : (layer == 3 && !isMpeg1 ? 576 : 1152);
+
+            //a Xing or Info header follows the side information of the first frame
+            int xing = x + 4 + (isMpeg1 ? (isMono ? 17 : 32) : (isMono ? 9 : 17));
+            int vbri = x + 4 + 32;
+            long frames = -1;
+
+            if(xing + 12 <= length && (matches(xing, "Xing") || matches(xing, "Info"))
+                    && (readInt(mBuffer, xing + 4) & 0x01) != 0)
+            {
+                frames = readInt(mBuffer, xing + 8) & 0xFFFFFFFFL;
+            }
+            else if(vbri + 18 <= length && matches(vbri, "VBRI"))
+            {
+                frames = readInt(mBuffer, vbri + 14) & 0xFFFFFFFFL;
+            }
+
+            if(frames > 0)
+            {
+                return (int) (frames * samplesPerFrame * 1000 / sampleRate);
+            }
+
+            //kilobits per second are bits per millisecond
+            return (int) ((audioEnd - audioStart - x) * 8 / bitrate);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Helper method used to read the Vorbis comments and stream information of a FLAC file
+     * @param input The file
+     * @param tags The Tags to fill
+     * @throws IOException if the file cannot be read
+     */
+    private void readFlac(RandomAccessFile input, Tags tags) throws IOException
+    {
+        long offset = 4;
+        boolean isLast = false;
+
+        while(!isLast && read(input, offset, 4) == 4)
+        {
+            isLast = (mBuffer[0] & 0x80) != 0;
+            int type = mBuffer[0] & 0x7F;
+            int size = ((mBuffer[1] & 0xFF) << 16) | ((mBuffer[2] & 0xFF) << 8) | (mBuffer[3] & 0xFF);
+            offset += 4;
+
+            if(type == 0 && size >= 18 && read(input, offset, 18) == 18)
+            {
+                //STREAMINFO: 20 bits of sample rate and 36 bits of total samples from byte 10
+                int sampleRate = ((mBuffer[10] & 0xFF) << 12) | ((mBuffer[11] & 0xFF) << 4) | ((mBuffer[12] & 0xFF) >> 4);
+                long samples = ((long) (mBuffer[13] & 0x0F) << 32) | (readInt(mBuffer, 14) & 0xFFFFFFFFL);
+
+                if(sampleRate > 0 && samples > 0)
+                {
+                    tags.duration = (int) (samples * 1000 / sampleRate);
+                }
+            }
+            else if(type == 4)
+            {
+                byte[] body = new byte[Math.min(size, MAX_TEXT_SIZE)];
+                input.seek(offset);
+                input.readFully(body);
+                readVorbisComments(body, 0, body.length, tags);
+            }
+
+            offset += size;
+        }
+    }
+
+    /**
+     * Helper method used to read the Vorbis comments of an Ogg Vorbis or Opus file, and its
+     * duration from the granule position of the last page
+     * @param input The file
+     * @param tags The Tags to fill
+     * @throws IOException if the file cannot be read
+     */
+    private void readOgg(RandomAccessFile input, Tags tags) throws IOException
+    {
+        //join the first two packets of the stream: the identification and the comment header
+        byte[] packets = new byte[MAX_TEXT_SIZE];
+        int packetsLength = 0;
+        int[] packetEnds = new int[2];
+        int completed = 0;
+        long offset = 0;
+
+        while(completed < 2 && read(input, offset, 27) == 27 && matches(0, "OggS"))
+        {
+            int segments = mBuffer[26] & 0xFF;
+
+            if(read(input, offset + 27, segments) != segments)
+            {
+                break;
+            }
+
+            int bodySize = 0;
+
+            //a lacing value below 255 ends a packet
+            for(int x = 0; x < segments; x++)
+            {
+                bodySize += mBuffer[x] & 0xFF;
+
+                if((mBuffer[x] & 0xFF) < 255 && completed < 2)
+                {
+                    packetEnds[completed++] = Math.min(packets.length, packetsLength + bodySize);
+                }
+            }
+
+            int length = Math.min(bodySize, packets.length - packetsLength);
+            input.seek(offset + 27 + segments);
+            input.readFully(packets, packetsLength, length);
+            packetsLength += length;
+            offset += 27 + segments + bodySize;
+        }
+
+        if(completed < 2)
+        {
+            return;
+        }
+
+        int sampleRate = -1;
+        int comments = -1;
+        int second = packetEnds[0];
+
+        if(second >= 16 && matchesVorbis(packets, 0, 1) && second + 7 <= packetEnds[1]
+                && matchesVorbis(packets, second, 3))
+        {
+            sampleRate = readIntLE(packets, 12);
+            comments = second + 7;
+        }
+        else if(second >= 8 && new String(packets, 0, 8, ISO_8859_1).equals("OpusHead")
+                && second + 8 <= packetEnds[1] && new String(packets, second, 8, ISO_8859_1).equals("OpusTags"))
+        {
+            sampleRate = 48000; // Opus granule positions always count 48 kHz samples
+            comments = second + 8;
+        }
+
+        if(comments < 0)
+        {
+            return;
+        }
+
+        readVorbisComments(packets, comments, packetEnds[1], tags);
+
+        long length = input.length();
+        int searched = read(input, Math.max(0, length - SEARCH_SIZE), SEARCH_SIZE);
+
+        for(int x = searched - 27; x >= 0 && sampleRate > 0; x--)
+        {
+            if(matches(x, "OggS"))
+            {
+                long granule = ((long) readIntLE(mBuffer, x + 10) << 32) | (readIntLE(mBuffer, x + 6) & 0xFFFFFFFFL);
+
+                if(granule > 0)
+                {
+                    tags.duration = (int) (granule * 1000 / sampleRate);
+                }
+
+                break;
+            }
+        }
+    }
+
+    /**
+     * Helper method used to check for a Vorbis packet header
+     * @param data The bytes
+     * @param offset Offset of the header
+     * @param type Vorbis packet type
+     * @return true if a header of the type starts at the offset
+     */
+    private static boolean matchesVorbis(byte[] data, int offset, int type)
+    {
+        return data[offset] == type && data[offset + 1] == 'v' && data[offset + 2] == 'o' && data[offset + 3] == 'r'
+                && data[offset + 4] == 'b' && data[offset + 5] == 'i' && data[offset + 6] == 's';
+    }
+
+    /**
+     * Helper method used to read Vorbis comments. A truncated list is read up to the cut.
+     * @param data The bytes
+     * @param offset Offset of the vendor length
+     * @param end End of the bytes
+     * @param tags The Tags to fill
+     */
+    private static void readVorbisComments(byte[] data, int offset, int end, Tags tags)
+    {
+        if(offset + 8 > end)
+        {
+            return;
+        }
+
+        offset += 4 + readIntLE(data, offset); // vendor string
+
+        if(offset + 4 > end || offset < 0)
+        {
+            return;
+        }
+
+        int count = readIntLE(data, offset);
+        offset += 4;
+
+        for(int x = 0; x < count && offset + 4 <= end; x++)
+        {
+            int length = readIntLE(data, offset);
+            offset += 4;
+
+            if(length < 0 || offset + length > end)
+            {
+                return;
+            }
+
+            String comment = new String(data, offset, length, UTF_8);
+            int separator = comment.indexOf('=');
+            offset += length;
+
+            if(separator <= 0)
+            {
+                continue;
+            }
+
+            String key = comment.substring(0, separator).toUpperCase();
+            String value = comment.substring(separator + 1).trim();
+
+            if(key.equals("TITLE"))
+            {
+                tags.title = value;
+            }
+            else if(key.equals("ARTIST"))
+            {
+                tags.artist = value;
+            }
+            else if(key.equals("ALBUM"))
+            {
+                tags.album = value;
+            }
+            else if(key.equals("GENRE"))
+            {
+                tags.genre = value;
+            }
+            else if(key.equals("TRACKNUMBER"))
+            {
+                tags.trackNumber = parseNumber(value);
+            }
+        }
+    }
+
+    /**
+     * Helper method used to read part of the file into the buffer
+     * @param input The file
+     * @param offset Offset in the file
+     * @param length Number of bytes, at most the buffer size
+     * @return Number of bytes read
+     * @throws IOException if the file cannot be read
+     */
+    private int read(RandomAccessFile input, long offset, int length) throws IOException
+    {
+        input.seek(offset);
+
+        int total = 0;
+
+        while(total < length)
+        {
+            int count = input.read(mBuffer, total, length - total);
+
+            if(count < 0)
+            {
+                break;
+            }
+
+            total += count;
+        }
+
+        return total;
+    }
+
+    /**
+     * Helper method used to compare the buffer with an ASCII string
+     * @param offset Offset in the buffer
+     * @param value The string
+     * @return true if the bytes match
+     */
+    private boolean matches(int offset, String value)
+    {
+        for(int x = 0; x < value.length(); x++)
+        {
+            if(mBuffer[offset + x] != value.charAt(x))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Helper method used to read a NUL padded ISO-8859-1 string
+     * @param data The bytes
+     * @param offset Offset of the string
+     * @param length Maximum length
+     * @return The trimmed string
+     */
+    private static String readLatin1(byte[] data, int offset, int length)
+    {
+        int end = offset;
+
+        while(end < offset + length && data[end] != 0)
+        {
+            end++;
+        }
+
+        return new String(data, offset, end - offset, ISO_8859_1).trim();
+    }
+
+    /**
+     * Helper method used to parse the leading number of a tag, e.g. 3 of 3/12
+     * @param text The tag
+     * @return The number or -1
+     */
+    private static int parseNumber(String text)
+    {
+        int value = 0;
+        int x = 0;
+
+        while(x < text.length() && x < 9 && Character.isDigit(text.charAt(x)))
+        {
+            value = value * 10 + (text.charAt(x++) - '0');
+        }
+
+        return x == 0 ? -1 : value;
+    }
+
+    /**
+     * Helper method used to read a 28 bit syncsafe integer of an ID3v2 tag
+     * @param data The bytes
+     * @param offset Offset of the integer
+     * @return The integer
+     */
+    private static int readSyncsafe(byte[] data, int offset)
+    {
+        return ((data[offset] & 0x7F) << 21) | ((data[offset + 1] & 0x7F) << 14)
+                | ((data[offset + 2] & 0x7F) << 7) | (data[offset + 3] & 0x7F);
+    }
+
+    /**
+     * Helper method used to read a big endian integer
+     * @param data The bytes
+     * @param offset Offset of the integer
+     * @return The integer
+     */
+    private static int readInt(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Helper method used to read a little endian integer
+     * @param data The bytes
+     * @param offset Offset of the integer
+     * @return The integer
+     */
+    private static int readIntLE(byte[] data, int offset)
+    {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8)
+                | ((data[offset + 2] & 0xFF) << 16) | ((data[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,64 @@
+package com.tonyostudios.ambience;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * The AmbientTrace marks the startup work of Ambience and its services as sections of a systrace.
+ * Sections nest and must be ended on the thread that began them. Below API 18 the calls do nothing.
+ *
+ * Capture a startup trace with: python systrace.py --app=[package] --time=5 am view
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientTrace {
+
+    /**
+     * Section of Ambience.turnOn in the process of the app
+     */
+    static final String TURN_ON = "Ambience.turnOn";
+
+    /**
+     * Section of the onCreate method of a service
+     */
+    static final String SERVICE_CREATE = "AmbientService.onCreate";
+
+    /**
+     * Section of the playback resources created for the first command
+     */
+    static final String SERVICE_RESOURCES = "AmbientService.resources";
+
+    /**
+     * private constructor
+     */
+    private AmbientTrace()
+    {
+        super();
+    }
+
+    /**
+     * Method used to begin a section
+     * @param section Name of the section
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void begin(String section)
+    {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+        {
+            Trace.beginSection(section);
+        }
+    }
+
+    /**
+     * Method used to end the last section begun on the calling thread
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void end()
+    {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+        {
+            Trace.endSection();
+        }
+    }
+}
@@ -30,6 +30,10 @@ public class AmbientTrack implements Parcelable {
     private Uri audioUri = Uri.EMPTY;
     private Uri audioDownloadUri = Uri.EMPTY;
     private ArrayList<String> genresList = new ArrayList<String>();
+    private int loopStart = -1;
+    private int loopEnd = -1;
+    private ArrayList<String> variantUriList = new ArrayList<String>();
+    private ArrayList<Integer> variantBitrateList = new ArrayList<Integer>();
 
     /**
      * Private Constructor
@@ -70,6 +74,14 @@ public class AmbientTrack implements Parcelable {
             AmbientTrack.audioUri = Uri.parse(in.readString());
             AmbientTrack.audioDownloadUri = Uri.parse(in.readString());
             in.readStringList(AmbientTrack.genresList);
+            AmbientTrack.loopStart = in.readInt();
+            AmbientTrack.loopEnd = in.readInt();
+            in.readStringList(AmbientTrack.variantUriList);
+
+            for(int x = 0; x < AmbientTrack.variantUriList.size(); x++)
+            {
+                AmbientTrack.variantBitrateList.add(in.readInt());
+            }
 
             return AmbientTrack;
         }
@@ -115,6 +127,14 @@ public class AmbientTrack implements Parcelable {
         parcel.writeString(audioUri.toString());
         parcel.writeString(audioDownloadUri.toString());
         parcel.writeStringList(genresList);
+        parcel.writeInt(loopStart);
+        parcel.writeInt(loopEnd);
+        parcel.writeStringList(variantUriList);
+
+        for(int x = 0; x < variantBitrateList.size(); x++)
+        {
+            parcel.writeInt(variantBitrateList.get(x));
+        }
 
     }
 
@@ -420,4 +440,108 @@ public class AmbientTrack implements Parcelable {
 
         return this;
     }
+
+    /**
+     * Method that returns the start of the loop range
+     * @return Loop start in milliseconds or -1 if the track has no loop range
+     */
+    public int getLoopStart() {
+        return loopStart;
+    }
+
+    /**
+     * Method that returns the end of the loop range
+     * @return Loop end in milliseconds or -1 if the track has no loop range
+     */
+    public int getLoopEnd() {
+        return loopEnd;
+    }
+
+    /**
+     * Method that checks if the track has a loop range
+     * @return true if only a part of the track loops in REPEAT_ONE mode
+     */
+    public boolean hasLoopRange() {
+        return loopEnd > loopStart && loopStart >= 0;
+    }
+
+    /**
+     * Method that sets the part of the track that loops in REPEAT_ONE mode and in layers.
+     * Pass -1 for both values to loop the whole track.
+     * @param start Loop start in milliseconds
+     * @param end Loop end in milliseconds
+     * @return The AmbientTrack instance
+     */
+    public AmbientTrack setLoopRange(int start, int end) {
+
+        if(start == -1 && end == -1)
+        {
+            this.loopStart = -1;
+            this.loopEnd = -1;
+
+            return this;
+        }
+
+        if(start < 0 || end <= start)
+        {
+            throw new IllegalStateException(TAG + ": invalid loop range " + start + " - " + end);
+        }
+
+        this.loopStart = start;
+        this.loopEnd = end;
+
+        return this;
+    }
+
+    /**
+     * Method that adds a variant of the audio at another bitrate. The AmbientService picks a
+     * variant for each track from the measured bandwidth. The audioUri is played until a
+     * bandwidth estimate exists.
+     * @param variant Uri of the variant
+     * @param bitrate Bitrate of the variant in bits per second
+     * @return The AmbientTrack instance
+     */
+    public AmbientTrack addVariant(Uri variant, int bitrate) {
+
+        if(variant == null)
+        {
+            throw new NullPointerException(TAG + ": variant cannot be null");
+        }
+
+        if(bitrate <= 0)
+        {
+            throw new IllegalStateException(TAG + ": the bitrate of a variant must be positive");
+        }
+
+        variantUriList.add(variant.toString());
+        variantBitrateList.add(bitrate);
+
+        return this;
+    }
+
+    /**
+     * Method that returns the number of variants
+     * @return Number of variants
+     */
+    public int getVariantCount() {
+        return variantUriList.size();
+    }
+
+    /**
+     * Method that returns the uri of a variant
+     * @param index Variant index
+     * @return Uri of the variant
+     */
+    public Uri getVariantUri(int index) {
+        return Uri.parse(variantUriList.get(index));
+    }
+
+    /**
+     * Method that returns the bitrate of a variant
+     * @param index Variant index
+     * @return Bitrate in bits per second
+     */
+    public int getVariantBitrate(int index) {
+        return variantBitrateList.get(index);
+    }
 }
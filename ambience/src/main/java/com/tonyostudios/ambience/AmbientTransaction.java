@@ -0,0 +1,508 @@
+package com.tonyostudios.ambience;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Parcelable;
+
+import java.util.ArrayList;
+
+/**
+ * An AmbientTransaction batches several Ambience requests into a single request that the
+ * AmbientService applies at once, in a fixed order, without other requests in between.
+ * Use Ambience.edit() to start a transaction and commit() to send it.
+ *
+ * <pre>Ambience.activeInstance().edit()
+ *        .setPlaylistTo(playlist)
+ *        .setVolumeTo(0.5f)
+ *        .play()
+ *        .commit();</pre>
+ *
+ * The AmbientService applies the parts of a transaction in this order no matter the order they
+ * were set in: launcher, volume, crossfade, retry policy, metadata probing, playlist, playlist
+ * source, playlist file, play position, removed tracks, added tracks, repeat mode, shuffle mode,
+ * infinite queue, seek position, layer operation and finally the playback state. If any part is
+ * invalid the whole transaction is rejected.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+public class AmbientTransaction {
+
+    /**
+     * Tag used to identify the AmbientTransaction class
+     */
+    private static final String TAG = "com.tonyostudios.ambience.AmbientTransaction";
+
+    private final Ambience mAmbience;
+
+    private String mActivityLauncher;
+    private float mVolume = -1.0f;
+    private ArrayList<Parcelable> mPlaylist;
+    private String mPlaylistSource;
+    private int mPlaylistSourceCount;
+    private String mPlaylistFile;
+    private int mPlayPosition = -1;
+    private final ArrayList<Parcelable> mRemovedTracks = new ArrayList<Parcelable>();
+    private final ArrayList<Parcelable> mAddedTracks = new ArrayList<Parcelable>();
+    private AmbientService.RepeatMode mRepeatMode;
+    private AmbientService.ShuffleMode mShuffleMode;
+    private String mQueueSupplier;
+    private int mRefillWatermark = -1;
+    private int mHistoryLimit;
+    private int mSeekPosition = -1;
+    private AmbientService.PlaybackState mPlaybackState;
+    private boolean isCommitted = false;
+
+    /**
+     * constructor
+     * @param ambience The Ambience instance that commits the transaction
+     */
+    AmbientTransaction(Ambience ambience)
+    {
+        mAmbience = ambience;
+    }
+
+    /**
+     * Sets the Ambience Playlist
+     * @param playlist Ambient Track Playlist Array
+     * @return This transaction
+     */
+    public AmbientTransaction setPlaylistTo(AmbientTrack[] playlist)
+    {
+        if(playlist == null)
+        {
+            return this;
+        }
+
+        ArrayList<AmbientTrack> list = new ArrayList<AmbientTrack>();
+
+        for(int x = 0; x < playlist.length; x++)
+        {
+            list.add(playlist[x]);
+        }
+
+        return setPlaylistTo(list);
+    }
+
+    /**
+     * Sets the Ambience Playlist
+     * @param playlist Ambient Track Playlist ArrayList
+     * @return This transaction
+     */
+    public AmbientTransaction setPlaylistTo(ArrayList<AmbientTrack> playlist)
+    {
+        if(playlist == null)
+        {
+            return this;
+        }
+
+        ArrayList<Parcelable> list = new ArrayList<Parcelable>();
+
+        for(int x = 0; x < playlist.size(); x++)
+        {
+            if(playlist.get(x) == null)
+            {
+                throw new NullPointerException(TAG + ": AmbientTrack at position" + x + " cannot be null.");
+            }
+
+            list.add(playlist.get(x));
+        }
+
+        mPlaylist = list;
+
+        return this;
+    }
+
+    /**
+     * Sets the Ambience Playlist to the rows of a content uri or to a registered AmbientPlaylistSource
+     * @param source The content uri or the name the source is registered under
+     * @param count Number of tracks of the playlist
+     * @return This transaction
+     */
+    public AmbientTransaction setPlaylistSourceTo(String source, int count)
+    {
+        if(source == null)
+        {
+            throw new NullPointerException(TAG + ": the playlist source cannot be null");
+        }
+
+        if(count <= 0)
+        {
+            throw new IllegalStateException(TAG + ": a playlist source needs at least one AmbientTrack");
+        }
+
+        mPlaylistSource = source;
+        mPlaylistSourceCount = count;
+
+        return this;
+    }
+
+    /**
+     * Sets the Ambience Playlist to the entries of a M3U, PLS or XSPF playlist file read by the AmbientService
+     * @param playlistUri The content, file or http uri of the playlist file
+     * @return This transaction
+     */
+    public AmbientTransaction setPlaylistFileTo(Uri playlistUri)
+    {
+        if(playlistUri == null)
+        {
+            throw new NullPointerException(TAG + ": the playlist uri cannot be null");
+        }
+
+        mPlaylistFile = playlistUri.toString();
+
+        return this;
+    }
+
+    /**
+     * Adds a single track to the AmbientTrack playlist
+     * @param track A AmbientTrack object
+     * @return This transaction
+     */
+    public AmbientTransaction addTrackToPlaylist(AmbientTrack track)
+    {
+        if(track != null)
+        {
+            mAddedTracks.add(track);
+        }
+
+        return this;
+    }
+
+    /**
+     * Removes a single track in the AmbientTrack playlist
+     * @param track The AmbientTrack object to remove
+     * @return This transaction
+     */
+    public AmbientTransaction removeTrackFromPlaylist(AmbientTrack track)
+    {
+        if(track != null)
+        {
+            mRemovedTracks.add(track);
+        }
+
+        return this;
+    }
+
+    /**
+     * Sets the track position in the playlist used by the next play request
+     * @param position Track position
+     * @return This transaction
+     */
+    public AmbientTransaction setPlayPositionTo(int position)
+    {
+        mPlayPosition = position;
+
+        return this;
+    }
+
+    /**
+     * Sets the volume of the audio player
+     * @param volume Volume level between 0.0 and 1.0
+     * @return This transaction
+     */
+    public AmbientTransaction setVolumeTo(float volume)
+    {
+        if(volume < 0.0f || volume > 1.0f)
+        {
+            volume = 0.5f;
+        }
+
+        mVolume = volume;
+
+        return this;
+    }
+
+    /**
+     * Shuffles the playlist
+     * @return This transaction
+     */
+    public AmbientTransaction shufflePlaylist()
+    {
+        mShuffleMode = AmbientService.ShuffleMode.ON;
+
+        return this;
+    }
+
+    /**
+     * Un-shuffles the playlist
+     * @return This transaction
+     */
+    public AmbientTransaction unShufflePlaylist()
+    {
+        mShuffleMode = AmbientService.ShuffleMode.OFF;
+
+        return this;
+    }
+
+    /**
+     * Repeats a single track
+     * @return This transaction
+     */
+    public AmbientTransaction repeatASingleTrack()
+    {
+        mRepeatMode = AmbientService.RepeatMode.REPEAT_ONE;
+
+        return this;
+    }
+
+    /**
+     * Repeats the playlist
+     * @return This transaction
+     */
+    public AmbientTransaction repeatAllTracks()
+    {
+        mRepeatMode = AmbientService.RepeatMode.REPEAT_ALL;
+
+        return this;
+    }
+
+    /**
+     * Turns repeat off
+     * @return This transaction
+     */
+    public AmbientTransaction turnRepeatOff()
+    {
+        mRepeatMode = AmbientService.RepeatMode.OFF;
+
+        return this;
+    }
+
+    /**
+     * Turns the infinite queue on
+     * @param supplierName The registered name or content uri of the supplier
+     * @param lowWatermark Number of upcoming tracks below which more are asked for
+     * @param historyLimit Number of played tracks kept in the playlist
+     * @return This transaction
+     */
+    public AmbientTransaction setInfiniteQueueTo(String supplierName, int lowWatermark, int historyLimit)
+    {
+        if(supplierName == null)
+        {
+            throw new NullPointerException(TAG + ": the supplier name cannot be null");
+        }
+
+        if(lowWatermark <= 0 || historyLimit < 0)
+        {
+            throw new IllegalStateException(TAG + ": the low watermark must be positive and the history limit cannot be negative");
+        }
+
+        mQueueSupplier = supplierName;
+        mRefillWatermark = lowWatermark;
+        mHistoryLimit = historyLimit;
+
+        return this;
+    }
+
+    /**
+     * Turns the infinite queue off
+     * @return This transaction
+     */
+    public AmbientTransaction turnInfiniteQueueOff()
+    {
+        mQueueSupplier = null;
+        mRefillWatermark = 0;
+        mHistoryLimit = 0;
+
+        return this;
+    }
+
+    /**
+     * Sets the activity launched from the Ambience notification
+     * @param intentFilterAction intent Filter Action Name to launch a specific activity
+     * @return This transaction
+     */
+    public AmbientTransaction setNotificationLaunchActivity(String intentFilterAction)
+    {
+        if(intentFilterAction != null)
+        {
+            mActivityLauncher = intentFilterAction;
+        }
+
+        return this;
+    }
+
+    /**
+     * Seeks the current track
+     * @param progress Seek progress value
+     * @return This transaction
+     */
+    public AmbientTransaction seekTo(int progress)
+    {
+        mSeekPosition = progress;
+
+        return this;
+    }
+
+    /**
+     * Plays the track at the play position. Replaces any other playback request of this transaction.
+     * @return This transaction
+     */
+    public AmbientTransaction play()
+    {
+        mPlaybackState = AmbientService.PlaybackState.PLAY;
+
+        return this;
+    }
+
+    /**
+     * Stops the current track. Replaces any other playback request of this transaction.
+     * @return This transaction
+     */
+    public AmbientTransaction stop()
+    {
+        mPlaybackState = AmbientService.PlaybackState.STOP;
+
+        return this;
+    }
+
+    /**
+     * Pauses the current track. Replaces any other playback request of this transaction.
+     * @return This transaction
+     */
+    public AmbientTransaction pause()
+    {
+        mPlaybackState = AmbientService.PlaybackState.PAUSE;
+
+        return this;
+    }
+
+    /**
+     * Resumes the current track. Replaces any other playback request of this transaction.
+     * @return This transaction
+     */
+    public AmbientTransaction resume()
+    {
+        mPlaybackState = AmbientService.PlaybackState.RESUME;
+
+        return this;
+    }
+
+    /**
+     * Skips the current track. Replaces any other playback request of this transaction.
+     * @return This transaction
+     */
+    public AmbientTransaction skip()
+    {
+        mPlaybackState = AmbientService.PlaybackState.SKIP;
+
+        return this;
+    }
+
+    /**
+     * Plays the previous track. Replaces any other playback request of this transaction.
+     * @return This transaction
+     */
+    public AmbientTransaction previous()
+    {
+        mPlaybackState = AmbientService.PlaybackState.PREVIOUS;
+
+        return this;
+    }
+
+    /**
+     * Sends the transaction to the AmbientService as a single request. A transaction can only be
+     * committed once.
+     * @return A future for the playback request of the transaction, or null if the transaction
+     * has no playback request
+     */
+    public AmbientCommandFuture commit()
+    {
+        if(isCommitted)
+        {
+            throw new IllegalStateException(TAG + ": transaction already committed");
+        }
+
+        isCommitted = true;
+
+        return mAmbience.commit(this);
+    }
+
+    /**
+     * Method that returns the playback request of the transaction
+     * @return The playback request or null
+     */
+    AmbientService.PlaybackState getPlaybackState()
+    {
+        return mPlaybackState;
+    }
+
+    /**
+     * Method used to encode the transaction into a request
+     * @param request The request writer
+     * @param intent The request intent that carries the object extras
+     */
+    void writeTo(AmbientCodec.Writer request, Intent intent)
+    {
+        if(mActivityLauncher != null)
+        {
+            request.activityLauncher();
+            intent.putExtra(AmbientCodec.EXTRA_ACTIVITY_LAUNCHER, mActivityLauncher);
+        }
+
+        if(mVolume >= 0.0f)
+        {
+            request.volume(mVolume);
+        }
+
+        if(mPlaylist != null)
+        {
+            request.playlist();
+            intent.putParcelableArrayListExtra(AmbientCodec.EXTRA_PLAYLIST, mPlaylist);
+        }
+
+        if(mPlaylistSource != null)
+        {
+            request.playlistSource(mPlaylistSourceCount);
+            intent.putExtra(AmbientCodec.EXTRA_PLAYLIST_SOURCE, mPlaylistSource);
+        }
+
+        if(mPlaylistFile != null)
+        {
+            request.playlistFile();
+            intent.putExtra(AmbientCodec.EXTRA_PLAYLIST_FILE, mPlaylistFile);
+        }
+
+        if(mPlayPosition >= 0)
+        {
+            request.playPosition(mPlayPosition);
+        }
+
+        if(!mRemovedTracks.isEmpty())
+        {
+            request.removeTracks();
+            intent.putParcelableArrayListExtra(AmbientCodec.EXTRA_REMOVE_TRACKS, mRemovedTracks);
+        }
+
+        if(!mAddedTracks.isEmpty())
+        {
+            request.addTracks();
+            intent.putParcelableArrayListExtra(AmbientCodec.EXTRA_ADD_TRACKS, mAddedTracks);
+        }
+
+        if(mRepeatMode != null)
+        {
+            request.repeatMode(mRepeatMode);
+        }
+
+        if(mShuffleMode != null)
+        {
+            request.shuffleMode(mShuffleMode);
+        }
+
+        if(mRefillWatermark >= 0)
+        {
+            request.infiniteQueue(mRefillWatermark, mHistoryLimit);
+            intent.putExtra(AmbientCodec.EXTRA_QUEUE_SUPPLIER, mQueueSupplier);
+        }
+
+        if(mSeekPosition >= 0)
+        {
+            request.seek(mSeekPosition);
+        }
+
+        if(mPlaybackState != null)
+        {
+            request.playbackState(mPlaybackState);
+        }
+    }
+}
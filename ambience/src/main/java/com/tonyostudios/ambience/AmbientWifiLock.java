@@ -0,0 +1,100 @@
+package com.tonyostudios.ambience;
+
+import android.content.Context;
+import android.net.Uri;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+
+/**
+ * The AmbientWifiLock keeps the wifi radio on while a service streams a remote track. The lock
+ * is not reference counted, so setHeld can be called any number of times and one release always
+ * turns it off. The time the lock was held is collected for the metrics of Ambience.
+ *
+ * Use the lock from the main thread.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientWifiLock {
+
+    private final WifiManager.WifiLock mLock;
+
+    /**
+     * Time the lock was acquired or 0 if it is not held
+     */
+    private long mAcquiredAt = 0;
+
+    /**
+     * Held time of the released holds that was not taken yet
+     */
+    private long mHeldTime = 0;
+
+    /**
+     * constructor
+     * @param context A context object
+     * @param tag Tag of the lock
+     */
+    AmbientWifiLock(Context context, String tag)
+    {
+        mLock = ((WifiManager) context.getSystemService(Context.WIFI_SERVICE))
+                .createWifiLock(WifiManager.WIFI_MODE_FULL, tag);
+        mLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Method used to acquire or release the lock
+     * @param held true to keep the wifi radio on
+     */
+    void setHeld(boolean held)
+    {
+        if(held == isHeld())
+        {
+            return;
+        }
+
+        if(held)
+        {
+            mLock.acquire();
+            mAcquiredAt = SystemClock.elapsedRealtime();
+        }
+        else
+        {
+            mLock.release();
+            mHeldTime += SystemClock.elapsedRealtime() - mAcquiredAt;
+            mAcquiredAt = 0;
+        }
+    }
+
+    /**
+     * Method used to check if the lock is held
+     * @return true if the wifi radio is kept on
+     */
+    boolean isHeld()
+    {
+        return mAcquiredAt != 0;
+    }
+
+    /**
+     * Method that returns the held time of the holds released since the last call
+     * @return Time in milliseconds
+     */
+    long takeHeldTime()
+    {
+        long heldTime = mHeldTime;
+        mHeldTime = 0;
+
+        return heldTime;
+    }
+
+    /**
+     * Method used to check if a uri is streamed from the network
+     * @param uri The uri
+     * @return true for http, https and rtsp uris
+     */
+    static boolean isRemote(Uri uri)
+    {
+        String scheme = uri == null ? null : uri.getScheme();
+
+        return "http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)
+                || "rtsp".equalsIgnoreCase(scheme);
+    }
+}
@@ -0,0 +1,111 @@
+package com.tonyostudios.ambience;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests of the AmbientBandwidthMeter. The shadow clock of Robolectric times the samples.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class AmbientBandwidthMeterTest {
+
+    private static final Uri AUDIO_URI = Uri.parse("http://stand-in.test/track.mp3");
+    private static final Uri LOW_URI = Uri.parse("http://stand-in.test/track-64.mp3");
+    private static final Uri HIGH_URI = Uri.parse("http://stand-in.test/track-256.mp3");
+
+    /**
+     * Duration of the test tracks in milliseconds
+     */
+    private static final int DURATION = 200000;
+
+    private AmbientBandwidthMeter mMeter;
+
+    @Before
+    public void setUp()
+    {
+        mMeter = new AmbientBandwidthMeter();
+    }
+
+    @Test
+    public void playsTheAudioUriOfATrackWithoutVariants()
+    {
+        AmbientTrack track = AmbientTrack.newInstance().setAudioUri(AUDIO_URI);
+
+        assertEquals(AUDIO_URI, mMeter.selectVariant(track));
+    }
+
+    @Test
+    public void playsTheFirstVariantWithoutAnEstimate()
+    {
+        AmbientTrack track = newTrack(); // no audioUri
+
+        assertEquals(-1, mMeter.getEstimate());
+        assertEquals(LOW_URI, mMeter.selectVariant(track));
+    }
+
+    @Test
+    public void movesOffTheFirstVariantOnceItWasMeasured()
+    {
+        AmbientTrack first = newTrack();
+        mMeter.selectVariant(first);
+        mMeter.onStreamStarted(first);
+
+        //10% of a 64 kbps track in a second: 160000 bytes, 1.28 Mbps
+        SystemClock.sleep(1000);
+        mMeter.onBufferingUpdate(10, DURATION, 0);
+
+        assertEquals(1280000, mMeter.getEstimate());
+        assertEquals(HIGH_URI, mMeter.selectVariant(newTrack()));
+    }
+
+    @Test
+    public void fallsBackToTheCheapestVariantOnASlowNetwork()
+    {
+        AmbientTrack first = newTrack();
+        mMeter.selectVariant(first);
+        mMeter.onStreamStarted(first);
+
+        //1% of a 64 kbps track in 10 seconds: 16000 bytes, 12.8 kbps
+        SystemClock.sleep(10000);
+        mMeter.onBufferingUpdate(1, DURATION, 0);
+
+        assertTrue(mMeter.getEstimate() < 64000);
+        assertEquals(LOW_URI, mMeter.selectVariant(newTrack()));
+    }
+
+    @Test
+    public void doesNotMeasureTheAudioUri()
+    {
+        AmbientTrack track = AmbientTrack.newInstance().setAudioUri(AUDIO_URI);
+        mMeter.selectVariant(track);
+        mMeter.onStreamStarted(track);
+
+        SystemClock.sleep(1000);
+        mMeter.onBufferingUpdate(10, DURATION, 0);
+
+        assertEquals(-1, mMeter.getEstimate()); // its bitrate is unknown
+    }
+
+    /**
+     * Helper method used to create a track with a 64 kbps and a 256 kbps variant and no audioUri
+     * @return The AmbientTrack
+     */
+    private static AmbientTrack newTrack()
+    {
+        return AmbientTrack.newInstance()
+                .addVariant(LOW_URI, 64000)
+                .addVariant(HIGH_URI, 256000);
+    }
+}
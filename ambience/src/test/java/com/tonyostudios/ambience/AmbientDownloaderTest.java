@@ -0,0 +1,364 @@
+package com.tonyostudios.ambience;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests of the AmbientDownloader. Downloads are served by an HTTP stand-in that supports
+ * range requests, validators and dropped connections.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class AmbientDownloaderTest {
+
+    private static final Uri DOWNLOAD_URI = Uri.parse("http://stand-in.test/track.mp3");
+
+    /**
+     * Size of the served track. Larger than the progress interval of the downloader.
+     */
+    private static final int TRACK_SIZE = 600 * 1024;
+
+    private static final int DROP_OFFSET = 100000;
+
+    private static final long QUOTA = 10 * 1024 * 1024;
+
+    /**
+     * Longest wait for a download in milliseconds
+     */
+    private static final long DOWNLOAD_TIMEOUT = 10000;
+
+    private StandInServer mServer;
+    private AmbientDownloader mDownloader;
+    private AmbientTrack mTrack;
+
+    private int mCompleted;
+    private Exception mFailure;
+    private long mProgress;
+
+    @Before
+    public void setUp()
+    {
+        mServer = new StandInServer(newBody(1), "\"v1\"");
+        mDownloader = newDownloader(QUOTA);
+        mTrack = AmbientTrack.newInstance().setAudioDownloadUri(DOWNLOAD_URI);
+    }
+
+    @After
+    public void tearDown()
+    {
+        mDownloader.unpin(mTrack);
+        mDownloader.shutdown();
+    }
+
+    @Test
+    public void downloadsAPinnedTrack() throws Exception
+    {
+        assertTrue(mDownloader.pin(mTrack));
+        waitForDownload();
+
+        assertEquals(1, mCompleted);
+        assertNull(mFailure);
+        assertEquals(TRACK_SIZE, mProgress);
+        assertTrue(mDownloader.isDownloaded(mTrack));
+        assertArrayEquals(mServer.mBody, readLocalCopy());
+        assertEquals(Arrays.asList((String) null), mServer.mRanges);
+    }
+
+    @Test
+    public void resumesWithARangeRequestAfterADroppedConnection() throws Exception
+    {
+        mServer.mDropOffset = DROP_OFFSET;
+        mDownloader.pin(mTrack);
+        waitForDownload();
+
+        assertTrue(mFailure instanceof IOException);
+        assertFalse(mDownloader.isDownloaded(mTrack));
+
+        mServer.mDropOffset = -1;
+        mDownloader.resumePending();
+        waitForDownload();
+
+        assertEquals(1, mCompleted);
+        assertArrayEquals(mServer.mBody, readLocalCopy());
+        assertEquals(Arrays.asList(null, "bytes=" + DROP_OFFSET + "-"), mServer.mRanges);
+        assertEquals("\"v1\"", mServer.mValidators.get(1));
+    }
+
+    @Test
+    public void restartsWhenTheTrackChangedBetweenRequests() throws Exception
+    {
+        mServer.mDropOffset = DROP_OFFSET;
+        mDownloader.pin(mTrack);
+        waitForDownload();
+
+        mServer.mDropOffset = -1;
+        mServer.mBody = newBody(2);
+        mServer.mValidator = "\"v2\"";
+        mDownloader.resumePending();
+        waitForDownload();
+
+        assertEquals(1, mCompleted);
+        assertArrayEquals(mServer.mBody, readLocalCopy()); // the stale part was not kept
+    }
+
+    @Test
+    public void failsADownloadThatDoesNotFitTheQuota() throws Exception
+    {
+        mDownloader.shutdown();
+        mDownloader = newDownloader(TRACK_SIZE / 2);
+
+        mDownloader.pin(mTrack);
+        waitForDownload();
+
+        assertTrue(mFailure instanceof IllegalStateException);
+        assertFalse(mDownloader.isDownloaded(mTrack));
+        assertEquals(0, mDownloader.getUsedBytes());
+    }
+
+    @Test
+    public void deletesAnUnpinnedTrack() throws Exception
+    {
+        mDownloader.pin(mTrack);
+        waitForDownload();
+
+        mDownloader.unpin(mTrack);
+
+        assertFalse(mDownloader.isDownloaded(mTrack));
+        assertEquals(0, mDownloader.getUsedBytes());
+    }
+
+    @Test
+    public void downloadsATrackPinnedAgainAfterUnpin() throws Exception
+    {
+        assertTrue(mDownloader.pin(mTrack));
+        mDownloader.unpin(mTrack);
+        assertTrue(mDownloader.pin(mTrack));
+        waitForDownload();
+
+        assertTrue(mDownloader.isDownloaded(mTrack));
+        assertArrayEquals(mServer.mBody, readLocalCopy());
+        assertEquals(TRACK_SIZE, mDownloader.getUsedBytes());
+    }
+
+    /**
+     * Helper method used to create a downloader that connects to the stand-in
+     * @param quota Download quota in bytes
+     * @return The AmbientDownloader
+     */
+    private AmbientDownloader newDownloader(long quota)
+    {
+        AmbientDownloader downloader = new AmbientDownloader(RuntimeEnvironment.application, 1, quota) {
+            @Override
+            protected HttpURLConnection openConnection(URL url) throws IOException {
+                return mServer.open(url);
+            }
+        };
+
+        downloader.setDownloadListener(new AmbientDownloader.DownloadListener() {
+            @Override
+            public void onDownloadProgress(AmbientTrack track, long bytes, long total) {
+                mProgress = bytes;
+            }
+
+            @Override
+            public void onDownloadCompleted(AmbientTrack track) {
+                mCompleted++;
+            }
+
+            @Override
+            public void onDownloadFailed(AmbientTrack track, Exception e) {
+                mFailure = e;
+            }
+        });
+
+        return downloader;
+    }
+
+    /**
+     * Helper method used to wait until the download is no longer active and its callbacks ran
+     * @throws InterruptedException if the test is interrupted
+     */
+    private void waitForDownload() throws InterruptedException
+    {
+        mCompleted = 0;
+        mFailure = null;
+
+        long deadline = System.currentTimeMillis() + DOWNLOAD_TIMEOUT;
+
+        while(mDownloader.isDownloading(mTrack) && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertFalse("The download did not end", mDownloader.isDownloading(mTrack));
+
+        //the listener is called on the main looper
+        ShadowLooper.runUiThreadTasks();
+    }
+
+    /**
+     * Helper method used to read the local copy of the track
+     * @return The bytes of the local copy
+     * @throws IOException if it cannot be read
+     */
+    private byte[] readLocalCopy() throws IOException
+    {
+        File file = new File(AmbientDownloader.getLocalUri(RuntimeEnvironment.application, mTrack).getPath());
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+
+        try
+        {
+            int offset = 0;
+            int read;
+
+            while(offset < bytes.length && (read = input.read(bytes, offset, bytes.length - offset)) != -1)
+            {
+                offset += read;
+            }
+        }finally
+        {
+            input.close();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Helper method used to generate the body of a track
+     * @param seed Seed of the bytes
+     * @return The body
+     */
+    private static byte[] newBody(long seed)
+    {
+        byte[] body = new byte[TRACK_SIZE];
+        new Random(seed).nextBytes(body);
+
+        return body;
+    }
+
+    /**
+     * An HTTP server stand-in. It answers range requests with 206 while the If-Range validator
+     * matches, and can drop a connection after a number of bytes.
+     */
+    private static final class StandInServer
+    {
+        volatile byte[] mBody;
+        volatile String mValidator;
+
+        /**
+         * Offset of the body at which responses end early or -1
+         */
+        volatile int mDropOffset = -1;
+
+        /**
+         * Range and If-Range headers of the requests, in order
+         */
+        final List<String> mRanges = new ArrayList<String>();
+        final List<String> mValidators = new ArrayList<String>();
+
+        StandInServer(byte[] body, String validator)
+        {
+            mBody = body;
+            mValidator = validator;
+        }
+
+        /**
+         * Method used to open a connection to the stand-in
+         * @param url The url
+         * @return The HttpURLConnection
+         */
+        HttpURLConnection open(URL url)
+        {
+            return new HttpURLConnection(url) {
+
+                private int mStart = 0;
+
+                @Override
+                public int getResponseCode() {
+                    String range = getRequestProperty("Range");
+                    String validator = getRequestProperty("If-Range");
+
+                    synchronized (StandInServer.this)
+                    {
+                        mRanges.add(range);
+                        mValidators.add(validator);
+                    }
+
+                    if(range == null || (validator != null && !validator.equals(mValidator)))
+                    {
+                        return HTTP_OK;
+                    }
+
+                    mStart = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+
+                    return mStart >= mBody.length ? 416 : HTTP_PARTIAL;
+                }
+
+                @Override
+                public String getHeaderField(String name) {
+                    if("Content-Length".equals(name))
+                    {
+                        return String.valueOf(mBody.length - mStart);
+                    }
+
+                    if("Content-Range".equals(name))
+                    {
+                        return "bytes " + mStart + "-" + (mBody.length - 1) + "/" + mBody.length;
+                    }
+
+                    return "ETag".equals(name) ? mValidator : null;
+                }
+
+                @Override
+                public InputStream getInputStream() {
+                    int end = mDropOffset < 0 ? mBody.length : Math.min(mBody.length, mDropOffset);
+
+                    return new ByteArrayInputStream(mBody, mStart, Math.max(0, end - mStart));
+                }
+
+                @Override
+                public void connect() {
+                    connected = true;
+                }
+
+                @Override
+                public void disconnect() {
+                }
+
+                @Override
+                public boolean usingProxy() {
+                    return false;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.tonyostudios.ambience;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Generates a library of tagged MP3 files for the scanner tests. Every file holds an ID3v2.3 tag
+ * and FRAME_COUNT silent 128 kbps frames, so its duration is known without decoding.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+final class AmbientLibraryFixture {
+
+    /**
+     * Size of a 128 kbps MPEG1 layer III frame at 44.1 kHz, without padding
+     */
+    static final int FRAME_SIZE = 417;
+
+    static final int FRAME_COUNT = 4;
+
+    /**
+     * Duration of every file in milliseconds. Kilobits per second are bits per millisecond.
+     */
+    static final int DURATION = FRAME_SIZE * FRAME_COUNT * 8 / 128;
+
+    private static final byte[] FRAME_HEADER = {(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x00};
+
+    private AmbientLibraryFixture()
+    {
+    }
+
+    /**
+     * Method used to generate a library. The files of a directory share an artist and an album.
+     * @param root The library directory
+     * @param fileCount Number of files
+     * @param filesPerDirectory Number of files of a directory
+     * @throws IOException if a file cannot be written
+     */
+    static void create(File root, int fileCount, int filesPerDirectory) throws IOException
+    {
+        for(int x = 0; x < fileCount; x++)
+        {
+            int directory = x / filesPerDirectory;
+            File parent = new File(root, "artist-" + directory);
+
+            if(!parent.isDirectory() && !parent.mkdirs())
+            {
+                throw new IOException("Cannot create " + parent);
+            }
+
+            writeTrack(new File(parent, "track-" + x + ".mp3"), getTitle(x),
+                    "Artist " + directory, "Album " + directory, x % filesPerDirectory + 1);
+        }
+    }
+
+    /**
+     * Method that returns the title of a generated file
+     * @param index Index of the file
+     * @return The title
+     */
+    static String getTitle(int index)
+    {
+        return "Title " + index;
+    }
+
+    /**
+     * Method used to write one tagged MP3 file
+     * @param file The file
+     * @param title The title tag
+     * @param artist The artist tag
+     * @param album The album tag
+     * @param trackNumber The track number tag
+     * @throws IOException if the file cannot be written
+     */
+    static void writeTrack(File file, String title, String artist, String album, int trackNumber)
+            throws IOException
+    {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        writeTextFrame(frames, "TIT2", title);
+        writeTextFrame(frames, "TPE1", artist);
+        writeTextFrame(frames, "TALB", album);
+        writeTextFrame(frames, "TRCK", String.valueOf(trackNumber));
+
+        int size = frames.size();
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file));
+
+        try
+        {
+            output.write(new byte[]{'I', 'D', '3', 3, 0, 0,
+                    (byte) ((size >> 21) & 0x7F), (byte) ((size >> 14) & 0x7F),
+                    (byte) ((size >> 7) & 0x7F), (byte) (size & 0x7F)}); // syncsafe size
+            frames.writeTo(output);
+
+            for(int x = 0; x < FRAME_COUNT; x++)
+            {
+                output.write(FRAME_HEADER);
+                output.write(new byte[FRAME_SIZE - FRAME_HEADER.length]);
+            }
+        }finally
+        {
+            output.close();
+        }
+    }
+
+    /**
+     * Method used to delete a directory and its files
+     * @param file The directory or file
+     */
+    static void delete(File file)
+    {
+        File[] files = file.listFiles();
+
+        for(int x = 0; files != null && x < files.length; x++)
+        {
+            delete(files[x]);
+        }
+
+        file.delete();
+    }
+
+    /**
+     * Helper method used to write an ISO-8859-1 text frame of an ID3v2.3 tag
+     * @param output The tag
+     * @param id Id of the frame
+     * @param text The text
+     * @throws IOException if the text cannot be encoded
+     */
+    private static void writeTextFrame(ByteArrayOutputStream output, String id, String text) throws IOException
+    {
+        byte[] body = text.getBytes("ISO-8859-1");
+        int size = body.length + 1;
+
+        output.write(id.getBytes("ISO-8859-1"));
+        output.write(new byte[]{(byte) (size >> 24), (byte) (size >> 16), (byte) (size >> 8), (byte) size, 0, 0});
+        output.write(0); // ISO-8859-1 encoding
+        output.write(body);
+    }
+}
@@ -0,0 +1,200 @@
+package com.tonyostudios.ambience;
+
+import android.net.Uri;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests of the AmbientLibraryScanner over libraries generated by the AmbientLibraryFixture.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class AmbientLibraryScannerTest {
+
+    /**
+     * Number of files of the large library
+     */
+    private static final int LARGE_LIBRARY = 50000;
+
+    private static final int FILES_PER_DIRECTORY = 100;
+
+    private static final int THREADS = 4;
+
+    /**
+     * Longest wait for a scan in milliseconds
+     */
+    private static final long SCAN_TIMEOUT = 120000;
+
+    private File mLibrary;
+    private AmbientLibraryScanner mScanner;
+    private final List<AmbientTrack> mTracks = new ArrayList<AmbientTrack>();
+    private int mTrackCount;
+    private int mReadCount;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        mLibrary = File.createTempFile("library", "");
+
+        if(!mLibrary.delete() || !mLibrary.mkdirs())
+        {
+            throw new IOException("Cannot create " + mLibrary);
+        }
+
+        mScanner = new AmbientLibraryScanner(RuntimeEnvironment.application, THREADS);
+        mScanner.setScanListener(new AmbientLibraryScanner.ScanListener() {
+            @Override
+            public void onTracksScanned(List<AmbientTrack> tracks) {
+                mTracks.addAll(tracks);
+            }
+
+            @Override
+            public void onScanCompleted(int trackCount, int readCount) {
+                mTrackCount = trackCount;
+                mReadCount = readCount;
+            }
+        });
+    }
+
+    @After
+    public void tearDown()
+    {
+        mScanner.shutdown();
+        AmbientLibraryFixture.delete(mLibrary);
+    }
+
+    @Test
+    public void scansALargeLibrary() throws Exception
+    {
+        AmbientLibraryFixture.create(mLibrary, LARGE_LIBRARY, FILES_PER_DIRECTORY);
+
+        scan();
+
+        assertEquals(LARGE_LIBRARY, mTrackCount);
+        assertEquals(LARGE_LIBRARY, mReadCount);
+        assertEquals(LARGE_LIBRARY, mTracks.size());
+
+        scan();
+
+        assertEquals(LARGE_LIBRARY, mTrackCount);
+        assertEquals(0, mReadCount); // every file is in the index
+    }
+
+    @Test
+    public void readsTheTagsOfTheFiles() throws Exception
+    {
+        AmbientLibraryFixture.create(mLibrary, 10, 10);
+
+        scan();
+
+        AmbientTrack track = findTrack(AmbientLibraryFixture.getTitle(3));
+        assertEquals("Artist 0", track.getArtistName());
+        assertEquals("Album 0", track.getAlbumName());
+        assertEquals(4, track.getPosition());
+        assertEquals(AmbientLibraryFixture.DURATION, track.getDuration());
+        assertEquals(Uri.fromFile(new File(mLibrary, "artist-0/track-3.mp3").getAbsoluteFile()), track.getAudioUri());
+    }
+
+    @Test
+    public void readsOnlyTheChangedFilesAgain() throws Exception
+    {
+        AmbientLibraryFixture.create(mLibrary, 200, FILES_PER_DIRECTORY);
+
+        scan();
+        assertEquals(200, mReadCount);
+
+        AmbientLibraryFixture.writeTrack(new File(mLibrary, "artist-1/track-150.mp3"),
+                "Retagged", "Artist 1", "Album 1", 51);
+        AmbientLibraryFixture.writeTrack(new File(mLibrary, "artist-1/track-200.mp3"),
+                "Added", "Artist 1", "Album 1", 101);
+
+        scan();
+
+        assertEquals(201, mTrackCount);
+        assertEquals(2, mReadCount);
+        assertEquals("Artist 1", findTrack("Retagged").getArtistName());
+    }
+
+    @Test
+    public void skipsHiddenAndNomediaDirectories() throws Exception
+    {
+        AmbientLibraryFixture.create(mLibrary, 20, 10);
+        AmbientLibraryFixture.create(new File(mLibrary, ".hidden"), 10, 10);
+        new FileOutputStream(new File(mLibrary, "artist-1/.nomedia")).close();
+
+        scan();
+
+        assertEquals(10, mTrackCount); // only artist-0
+
+        Set<String> artists = new HashSet<String>();
+
+        for(AmbientTrack track : mTracks)
+        {
+            artists.add(track.getArtistName());
+        }
+
+        assertEquals(1, artists.size());
+    }
+
+    /**
+     * Helper method used to run a scan of the library and wait until it is complete
+     * @throws InterruptedException if the test is interrupted
+     */
+    private void scan() throws InterruptedException
+    {
+        mTracks.clear();
+        mTrackCount = -1;
+        mReadCount = -1;
+
+        mScanner.scan(new File[]{mLibrary});
+
+        long deadline = System.currentTimeMillis() + SCAN_TIMEOUT;
+
+        //the listener is called on the main looper
+        while(mTrackCount == -1 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+            ShadowLooper.runUiThreadTasks();
+        }
+
+        assertTrue("The scan did not complete", mTrackCount != -1);
+    }
+
+    /**
+     * Helper method used to find a scanned track by its name
+     * @param name The name
+     * @return The AmbientTrack
+     */
+    private AmbientTrack findTrack(String name)
+    {
+        for(AmbientTrack track : mTracks)
+        {
+            if(name.equals(track.getName()))
+            {
+                return track;
+            }
+        }
+
+        throw new AssertionError("No track named " + name);
+    }
+}
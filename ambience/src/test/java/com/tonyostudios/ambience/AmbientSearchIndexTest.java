@@ -0,0 +1,245 @@
+package com.tonyostudios.ambience;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests of the AmbientSearchIndex over small and generated 100k track libraries. The query
+ * benchmark is ignored by default and run on its own.
+ * @author TonyoStudios.com
+ * @version 1.5
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class AmbientSearchIndexTest {
+
+    private static final int LIBRARY_SIZE = 100000;
+
+    /**
+     * Longest average time of a warm query in milliseconds. Loose, so a slow machine does not fail it
+     */
+    private static final double MAX_QUERY_TIME = 50.0;
+
+    private static final int WARM_UP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 20;
+
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "ren", "sta", "vel", "dor", "qui",
+            "na", "bri", "tho", "zen", "mar", "lu", "ex", "fa", "gor", "pi", "sol", "tra"};
+
+    private static final String[] GENRES = {"Ambient", "Jazz", "Rock", "Classical", "Electronic",
+            "Folk", "Soul", "Blues"};
+
+    private static final int RESULT_LIMIT = 50;
+
+    private AmbientSearchIndex mIndex;
+
+    @Before
+    public void setUp()
+    {
+        mIndex = new AmbientSearchIndex();
+    }
+
+    @Test
+    public void ranksNameMatchesFirst()
+    {
+        AmbientTrack byArtist = newTrack("Morning Light", "Ocean Drive", "Tides");
+        AmbientTrack byName = newTrack("Ocean Waves", "Harbor", "Shores");
+        mIndex.add(byArtist);
+        mIndex.add(byName);
+
+        List<AmbientTrack> results = mIndex.search("play ocean", AmbientSearchIndex.FIELD_ALL, RESULT_LIMIT);
+
+        assertEquals(Arrays.asList(byName, byArtist), results);
+    }
+
+    @Test
+    public void matchesPrefixesAndTypos()
+    {
+        AmbientTrack track = newTrack("Midnight Rain", "Lumen", "Weather");
+        mIndex.add(track);
+
+        assertSame(track, mIndex.search("midn", AmbientSearchIndex.FIELD_ALL, RESULT_LIMIT).get(0));
+        assertSame(track, mIndex.search("midnihgt", AmbientSearchIndex.FIELD_ALL, RESULT_LIMIT).get(0));
+        assertTrue(mIndex.search("thunder", AmbientSearchIndex.FIELD_ALL, RESULT_LIMIT).isEmpty());
+    }
+
+    @Test
+    public void searchesOnlyTheRequestedFields()
+    {
+        mIndex.add(newTrack("Rain", "Cloud", "Storm"));
+
+        assertTrue(mIndex.search("cloud", AmbientSearchIndex.FIELD_NAME, RESULT_LIMIT).isEmpty());
+        assertFalse(mIndex.search("cloud", AmbientSearchIndex.FIELD_ARTIST, RESULT_LIMIT).isEmpty());
+    }
+
+    @Test
+    public void forgetsRemovedTracks()
+    {
+        AmbientTrack track = newTrack("Rain", "Cloud", "Storm");
+        mIndex.add(track);
+
+        assertTrue(mIndex.remove(track));
+        assertFalse(mIndex.remove(track));
+        assertTrue(mIndex.search("rain", AmbientSearchIndex.FIELD_ALL, RESULT_LIMIT).isEmpty());
+        assertEquals(0, mIndex.size());
+    }
+
+    @Test
+    public void searchesALargeLibrary()
+    {
+        Random random = new Random(41);
+        List<AmbientTrack> library = addLibrary(random);
+
+        for(int x = 0; x < 40; x++)
+        {
+            AmbientTrack track = library.get(random.nextInt(LIBRARY_SIZE));
+            String word = track.getName().split(" ")[0];
+
+            List<AmbientTrack> byWord = mIndex.search(word, AmbientSearchIndex.FIELD_ALL, RESULT_LIMIT);
+            List<AmbientTrack> byName = mIndex.search("play " + track.getName(), AmbientSearchIndex.FIELD_ALL, RESULT_LIMIT);
+
+            assertFalse(byWord.isEmpty());
+            assertTrue(byWord.get(0).getName().contains(word)); // name matches rank first
+            assertSame(track, byName.get(0));
+        }
+    }
+
+    @Ignore("Benchmark. Run it on its own")
+    @Test
+    public void answersQueriesOverALargeLibraryQuickly()
+    {
+        Random random = new Random(41);
+        List<AmbientTrack> library = addLibrary(random);
+
+        //exact, prefix, fuzzy and multi word queries on words of the library
+        String[] queries = new String[40];
+
+        for(int x = 0; x < queries.length; x++)
+        {
+            String name = library.get(random.nextInt(LIBRARY_SIZE)).getName();
+            String word = name.split(" ")[0];
+
+            switch (x % 4)
+            {
+                case 0: queries[x] = word;
+                    break;
+                case 1: queries[x] = word.substring(0, 3);
+                    break;
+                case 2: queries[x] = word.length() > 4 ? word.substring(0, 2) + word.charAt(3) + word.charAt(2)
+                        + word.substring(4) : word;
+                    break;
+                default: queries[x] = "play " + name + " by " + library.get(random.nextInt(LIBRARY_SIZE)).getArtistName();
+                    break;
+            }
+        }
+
+        for(int x = 0; x < WARM_UP_ROUNDS; x++)
+        {
+            runQueries(queries);
+        }
+
+        long start = System.nanoTime();
+
+        for(int x = 0; x < MEASURED_ROUNDS; x++)
+        {
+            assertFalse(runQueries(queries) == 0);
+        }
+
+        double average = (System.nanoTime() - start) / 1e6 / (MEASURED_ROUNDS * queries.length);
+
+        assertTrue("Average query time " + average + " ms", average < MAX_QUERY_TIME);
+    }
+
+    /**
+     * Helper method used to add a generated library to the index
+     * @param random The random generator
+     * @return The tracks of the library
+     */
+    private List<AmbientTrack> addLibrary(Random random)
+    {
+        List<AmbientTrack> library = new ArrayList<AmbientTrack>(LIBRARY_SIZE);
+
+        for(int x = 0; x < LIBRARY_SIZE; x++)
+        {
+            AmbientTrack track = newTrack(newWords(random, 3), newWords(random, 2), newWords(random, 2));
+            ArrayList<String> genres = new ArrayList<String>();
+            genres.add(GENRES[random.nextInt(GENRES.length)]);
+
+            mIndex.add(track.setGenres(genres));
+            library.add(track);
+        }
+
+        return library;
+    }
+
+    /**
+     * Helper method used to run queries against the index
+     * @param queries The queries
+     * @return Number of results
+     */
+    private int runQueries(String[] queries)
+    {
+        int results = 0;
+
+        for(String query : queries)
+        {
+            results += mIndex.search(query, AmbientSearchIndex.FIELD_ALL, RESULT_LIMIT).size();
+        }
+
+        return results;
+    }
+
+    /**
+     * Helper method used to generate the words of a name from the syllables
+     * @param random The random generator
+     * @param count Number of words
+     * @return The words, capitalized
+     */
+    private static String newWords(Random random, int count)
+    {
+        StringBuilder words = new StringBuilder();
+
+        for(int x = 0; x < count; x++)
+        {
+            StringBuilder word = new StringBuilder();
+
+            for(int y = 0; y < 3; y++)
+            {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+
+            words.append(x == 0 ? "" : " ").append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+        }
+
+        return words.toString();
+    }
+
+    /**
+     * Helper method used to create a track
+     * @param name The track name
+     * @param artist The artist name
+     * @param album The album name
+     * @return The AmbientTrack
+     */
+    private static AmbientTrack newTrack(String name, String artist, String album)
+    {
+        return AmbientTrack.newInstance()
+                .setName(name)
+                .setArtistName(artist)
+                .setAlbumName(album);
+    }
+}